@@ -1,5 +1,11 @@
 package com.example.bekzhan;
 
+import com.example.bekzhan.Server.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -7,12 +13,38 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
 
 /**
  * Server for a network programming proof of concept.
@@ -28,314 +60,8967 @@ public class Server {
 	private static int PORT = 8888;
 	
 	/**
-	 * The size of a chunk.
+	 * The default size of a chunk.
 	 */
 	private static int CHUNKSIZE = 16384;
 	
+	/**
+	 * The chunk sizes a client may ask for. Chunk sizes are powers of two.
+	 */
+	private static int MIN_CHUNKSIZE = 16384;
+	private static int MAX_CHUNKSIZE = 8 << 20;
+	
+	/**
+	 * With adaptive chunk sizes, files get the smallest chunk size that needs at most this many chunks.
+	 */
+	private static int TARGET_CHUNKS = 4096;
+	
 	/**
 	 * The socket clients connect to.
 	 */
 	private ServerSocket serverSocket;
 	
+	/**
+	 * The threads the accepted connections are served on, so a long session doesn't hold up the next accept.
+	 */
+	private java.util.concurrent.ExecutorService sessions;
+	
 	/**
 	 * The port the server binds to.
 	 */
 	private int port;
 	
 	/**
-	 * The file-path of the served file.
+	 * The file-path of the served file, or of the served directory.
 	 */
 	private String filePath;
 	
 	/**
-	 * A table of chunk-tables for more than one file.
-	 * At the moment this isn't really used, in the future it is planned  that more than one file can be served.
+	 * The chunk-tables of the served files.
+	 */
+	private ChunkTableCache tables;
+	
+	/**
+	 * The hash-function the chunks' contents are hashed with, see ChunkTable.hash().
+	 */
+	private String hashAlgorithm;
+	
+	/**
+	 * Whether file-data is sent with FileChannel.transferTo instead of being copied through a buffer.
+	 */
+	private boolean zeroCopy;
+	
+	/**
+	 * Popular chunks kept in off-heap memory, null if chunks are always read from disk.
+	 */
+	private HotChunkCache hotChunks;
+	
+	/**
+	 * The served files mapped into memory, null if file-data is read or transferred instead.
+	 */
+	private MappedFiles mappedFiles;
+	
+	/**
+	 * The chunk size for clients that don't ask for one, 0 if it depends on the file's length.
+	 */
+	private int chunkSize;
+	
+	/**
+	 * The highest Deflater level a client may ask for, 0 if chunks are never compressed.
+	 */
+	private int maxCompressionLevel;
+	
+	/**
+	 * Chunks that were already compressed.
+	 */
+	private CompressedChunkCache compressedChunks;
+	
+	/**
+	 * Request latencies, traffic and connections.
+	 */
+	private Metrics metrics;
+	
+	/**
+	 * The clients that re-serve the chunks they have, per file, see PEERS.
+	 */
+	private Tracker tracker;
+	
+	/**
+	 * Shapes the bandwidth of the non-blocking server, null if it is unlimited.
+	 */
+	private BandwidthScheduler bandwidth;
+	
+	/**
+	 * The chunks being read and sent, so concurrent GET-requests for a chunk share one read,
+	 * null if every request reads its chunk itself.
+	 */
+	private ChunkReads chunkReads;
+	
+	/**
+	 * The broadcasts of the files, by path.
+	 */
+	private HashMap<String, Broadcast> broadcasts;
+	
+	/**
+	 * Whether the chunks end where their content says, see ChunkTable.findBoundaries().
+	 */
+	private boolean contentDefined;
+	
+	/**
+	 * The deduplicated store the chunks are added to and served from, null if there is none.
 	 */
-	private HashMap<String, HashMap<String, Integer>> fileMap;
+	private ChunkStore store;
 	
 	/**
 	 * The constructor for the server.
 	 * 
 	 * @param port The port to bind to.
-	 * @param filePath The filepath for the file to be served.
+	 * @param filePath The filepath for the file to be served. If it is a directory all files in it are served.
 	 */
 	public Server(int port, String filePath) {
 		this.port = port;
 		this.filePath = filePath;
-		this.fileMap = new HashMap<String, HashMap<String,Integer>>();
+		this.tables = new ChunkTableCache(ChunkTableCache.MAX_TABLES, ChunkTableCache.MAX_BYTES);
+		this.hashAlgorithm = ChunkTable.MD5;
+		this.zeroCopy = true;
+		this.chunkSize = CHUNKSIZE;
+		this.maxCompressionLevel = Deflater.BEST_COMPRESSION;
+		this.compressedChunks = new CompressedChunkCache(CompressedChunkCache.MAX_BYTES);
+		this.metrics = new Metrics(this);
+		this.tracker = new Tracker(Tracker.TTL, Tracker.MAX_PEERS);
+		this.broadcasts = new HashMap<String, Broadcast>();
+		this.sessions = java.util.concurrent.Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "session-" + this.count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		
 		// Bind to the given port.
 		this.openPort(this.port);
 	}
 	
 	/**
-	 * Hashes a index. We have this abstraction-method so we can replace the hash-function.
+	 * Chooses the hash-function for the chunks' contents. MD5 is the default,
+	 * CRC32C and XXH64 are much faster but only fit for trusted networks.
+	 * Chunk-tables hashed with another function are dropped.
 	 * 
-	 * @param index
-	 * @return The hashed index. If the chosen hash-function doesn't exist the index as a string is returned.
+	 * @param hashAlgorithm One of the names ChunkTable.hash() knows, in any case.
+	 * @throws IllegalArgumentException If there is no such hash-function.
 	 */
-	private String hash(int index) {
-		byte[] defaultBytes = String.valueOf(index).getBytes();
-		try{
-			MessageDigest algorithm = MessageDigest.getInstance("MD5");
-			algorithm.reset();
-			algorithm.update(defaultBytes);
-			byte messageDigest[] = algorithm.digest();
-		            
-			StringBuffer hexString = new StringBuffer();
-			for (int i=0;i<messageDigest.length;i++) {
-				hexString.append(Integer.toHexString(0xFF & messageDigest[i]));
-			}
-			
-			return hexString.toString();
-		}catch(NoSuchAlgorithmException nsae){
-			// If the hash-function we chose doesn't exist we just return the index as a string.
-			return String.valueOf(index);
+	public void setHashAlgorithm(String hashAlgorithm) {
+		this.hashAlgorithm = ChunkTable.algorithm(hashAlgorithm);
+		this.tables.clear();
+	}
+	
+	/**
+	 * Limits how many chunk-tables are kept and how much memory they may take.
+	 * The least recently used tables are dropped first.
+	 * 
+	 * @param maxTables
+	 * @param maxBytes
+	 */
+	public void setTableCache(int maxTables, long maxBytes) {
+		this.tables = new ChunkTableCache(maxTables, maxBytes);
+		this.tables.setStore(this.store);
+	}
+	
+	/**
+	 * Chooses content-defined chunks: their boundaries depend on the content around them, so an insert
+	 * only changes the chunks it touches and equal data in different files gets equal chunks.
+	 * The chunk size is their average size then.
+	 * 
+	 * @param contentDefined
+	 */
+	public void setContentDefined(boolean contentDefined) {
+		this.contentDefined = contentDefined;
+		this.tables.clear();
+	}
+	
+	/**
+	 * Keeps the chunks of all served files in a deduplicated store and serves them from there.
+	 * A file's chunks are added when its chunk-table is built.
+	 * 
+	 * @param directory The store's directory, null for no store.
+	 * @throws IOException
+	 */
+	public void setChunkStore(File directory) throws IOException {
+		if (this.store != null) {
+			this.store.close();
 		}
+		this.store = (directory == null) ? null : ChunkStore.open(directory);
+		this.tables.setStore(this.store);
+	}
+	
+	/**
+	 * @return The chunk store, null if there is none.
+	 */
+	ChunkStore getChunkStore() {
+		return this.store;
 	}
 	
 	/**
-	 * Gets a chunk-table. If it doesn't exist yet it is generated.
+	 * Where a chunk is read from: the chunk store if there is one, the file otherwise.
 	 * 
 	 * @param file
+	 * @param table
+	 * @param index
 	 * @return
 	 */
-	private HashMap<String, Integer> getHashMap(File file) {
-		if (this.fileMap.containsKey(file.getAbsolutePath())) {
-			// If the chunk-table already exists return it
-			return this.fileMap.get(file.getAbsolutePath());
-		} else {
-			// Initialize a new chunk-table
-			HashMap<String, Integer> hashMap = new HashMap<String, Integer>();
-			
-			// Calculate how many chunks we need
-			long chunks = file.length() / CHUNKSIZE;
-			long lastChunkSize = file.length() % CHUNKSIZE;
-			if ( lastChunkSize != 0) {
-				chunks++;
-			}
-			
-			// Fill the chunk-table
-			for (int i = 1; i <= chunks; i++) {
-				hashMap.put(hash(i), i);
+	ChunkStore.Location locateChunk(File file, ChunkTable table, int index) {
+		if (this.store != null) {
+			ChunkStore.Location location = this.store.locate(table, index);
+			if (location != null) {
+				return location;
 			}
-			
-			this.fileMap.put(file.getAbsolutePath(), hashMap);
-			return hashMap;
 		}
+		return new ChunkStore.Location(file, table.getOffset(index), table.getChunkLength(index));
 	}
 	
 	/**
-	 * Open the port.
+	 * Sets the chunk size for clients that don't ask for one.
 	 * 
-	 * @param port
+	 * @param chunkSize A power of two between 16 KiB and 8 MiB, or 0 to choose it by the file's length.
 	 */
-	private void openPort(int port) {
-		try {
-			this.serverSocket = new ServerSocket(port);
-		} catch(IOException e) {
-			System.out.println("Couldn't listen on Port " + port + "!");
-			System.exit(-1);
-		}
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = (chunkSize == 0) ? 0 : negotiateChunkSize(chunkSize);
 	}
 	
 	/**
-	 * Handles a client-request.
-	 * Possible requests are:
-	 *   ALL - send a whole file
-	 *   LIST - send a chunk-list
-	 *   GET:hash - send a chunk
+	 * Limits the compression clients may ask for.
+	 * 
+	 * @param level The highest Deflater level, 0 to never compress.
 	 */
-	public void handleRequest() {
-		Socket client = null;
-		try {
-			// Accept a client-connection
-			client = this.serverSocket.accept();
-			
-			// We want to read strings from the client, so we need a Scanner.
-			Scanner in  = new Scanner(client.getInputStream());
-			//in.useDelimiter(".");
-			
-			// Read the request
-			String request = in.nextLine();
-			
-			// handle the request
-			if (request.equals("ALL")) {
-				this.sendFile(client);
-			} else if (request.equals("LIST")) {
-				this.sendHashMap(client);
-			} else if (request.startsWith("GET:")) {
-				String[] requestParts = request.split(":");
-				this.sendFilePart(client, requestParts[1]);
-			}else {
-				System.out.println("Unknown request: " + request);
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			// close the client-connection
-			if (client!=null) {
-				try {
-					client.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+	public void setMaxCompressionLevel(int level) {
+		this.maxCompressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
 	}
 	
 	/**
-	 * Send a whole file to the client.
+	 * Limits how much memory the compressed chunks may take.
 	 * 
-	 * @param client
+	 * @param maxBytes
+	 */
+	public void setCompressionCache(long maxBytes) {
+		this.compressedChunks = new CompressedChunkCache(maxBytes);
+	}
+	
+	/**
+	 * Limits the bandwidth of the non-blocking server. Connections share it fairly, see BandwidthScheduler,
+	 * and chunk requests go before whole-file downloads. The blocking server serves one client at a time,
+	 * it is not limited. Call it before serving.
+	 * 
+	 * @param globalRate The bytes per second all clients together may get, 0 for no limit.
+	 * @param clientRate The bytes per second every client address may get, 0 for no limit.
+	 */
+	public void setBandwidth(long globalRate, long clientRate) {
+		this.bandwidth = (globalRate > 0 || clientRate > 0) ? new BandwidthScheduler(globalRate, clientRate) : null;
+	}
+	
+	/**
+	 * How long the clients had to wait for bandwidth.
+	 * 
+	 * @return The nanoseconds per client address, empty if the bandwidth isn't limited.
+	 */
+	public java.util.Map<String, Long> getThrottledTimes() {
+		return (this.bandwidth == null) ? new HashMap<String, Long>() : this.bandwidth.getThrottledTimes();
+	}
+	
+	/**
+	 * @return The bandwidth scheduler, null if the bandwidth isn't limited.
+	 */
+	BandwidthScheduler getBandwidthScheduler() {
+		return this.bandwidth;
+	}
+	
+	/**
+	 * @return The server's metrics.
+	 */
+	Metrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * @return The chunk-table cache, for the metrics.
+	 */
+	ChunkTableCache getTableCache() {
+		return this.tables;
+	}
+	
+	/**
+	 * @return The compressed-chunk cache, for the metrics.
+	 */
+	CompressedChunkCache getCompressedChunkCache() {
+		return this.compressedChunks;
+	}
+	
+	/**
+	 * The metrics in the plain-text format Prometheus scrapes: one "name value" line per series.
+	 * 
+	 * @return
+	 */
+	public String getMetricsText() {
+		return this.metrics.scrape();
+	}
+	
+	/**
+	 * Rewrites a file with the metrics text every second, for a node-exporter's text-file collector
+	 * or anything else that reads files.
+	 * 
+	 * @param path
+	 */
+	public void writeMetricsTo(String path) {
+		this.metrics.getExporter().setFile(new File(path));
+	}
+	
+	/**
+	 * Serves the metrics text over HTTP on the loopback interface, GET /metrics.
+	 * 
+	 * @param port The port, 0 for a free one.
+	 * @return The port the endpoint listens on.
 	 * @throws IOException
 	 */
-	private void sendFile(Socket client) throws IOException {
-		Scanner      in       = new Scanner(client.getInputStream());
-		PrintWriter  printOut = new PrintWriter(client.getOutputStream(), true);
-		
-		// We want to write bytes to the client, so we need a OutputStream
-		OutputStream out      = client.getOutputStream();
-		
-		// Initialize the file an check for existance
-		File file = new File(this.filePath);
-		if (!file.exists()) {
-			System.out.println("The file doesn't exist!");
-			System.exit(-1);
-		}
-		
-		// initialize the FileInputStream
-		InputStream fileInput = null;
-		try {
-			 fileInput = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
-			System.out.println("The file doesn't exist!");
-			System.exit(-1);
-		}
-		
-		byte[] buffer = new byte[CHUNKSIZE];
-		
-		int readData;
-		
-		System.out.println("Sending file...");
-		// Read the file and send it to the client
-		int sendcounter = 0;
-		while ( (readData = fileInput.read(buffer)) != -1 ) {
-			out.write(buffer, 0, readData);
-			System.out.print(".");
-			sendcounter++;
-		}
-		
-		System.out.println("\nfinished (" + sendcounter +")!");
+	public int serveMetrics(int port) throws IOException {
+		return this.metrics.getExporter().serve(port);
 	}
 	
 	/**
-	 * Send a chunk to the client.
+	 * Registers the metrics with the platform MBean server, as com.example.bekzhan:type=Server,port=...
 	 * 
-	 * @param client
-	 * @param hash
 	 * @throws IOException
 	 */
-	private void sendFilePart(Socket client, String hash) throws IOException {
-		Scanner      in       = new Scanner(client.getInputStream());
-		
-		// We want to write strings to the client, so we need a PrintWriter
-		PrintWriter  printOut = new PrintWriter(client.getOutputStream(), true);
-		
-		// We want to write bytes to the client, so wee need a OutputStream
-		OutputStream out      = client.getOutputStream();
-		
-		// Initialize the file and check for existance
-		File file = new File(this.filePath);
-		if (!file.exists()) {
-			System.out.println("The file doesn't exist!");
-			System.exit(-1);
-		}
-		
-		// Calculate how many chunks the file consists of
-		long chunks = file.length() / CHUNKSIZE;
-		long lastChunkSize = file.length() % CHUNKSIZE;
-		if ( lastChunkSize != 0) {
-			chunks++;
-		}
-		
-		// Get the chunk-table
-		HashMap<String, Integer> hashMap = this.getHashMap(file);
-		
-		// Get the index for the requested chunk
-		int index = hashMap.get(hash).intValue();
-		
-		System.out.println("Hash: " +  hash + " Index: " + index);
-		
-		// Calculate the offset in the file for the requested chunk
-		long offset = (index-1) * CHUNKSIZE;
-		
-		// Initialize the FileInputStream
-		FileInputStream fileInput = null;
-		try {
-			 fileInput = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
-			System.out.println("The file doesn't exist!");
-			System.exit(-1);
-		}
-		
-		byte[] buffer = new byte[CHUNKSIZE];
-		
-		System.out.println("Reading from file at offset: " + offset);
-		// Move the pointer to the offset
-		fileInput.skip(offset);
-		
-		// Read the chunk
-		int len = fileInput.read(buffer, 0, CHUNKSIZE);
-		System.out.println("Sending to client");
-		
-		// Send the offset to the client
-		printOut.println(String.valueOf(offset));
-		
-		// Send the chunk to the client
-		out.write(buffer, 0, len);
+	public void registerMetricsMBean() throws IOException {
+		this.metrics.getExporter().register(this.getPort());
 	}
 	
 	/**
-	 * Send a hash-list to the client.
+	 * The compression a client gets when it asks for a level.
 	 * 
-	 * @param client
+	 * @param requested
+	 * @return The Deflater level, 0 for no compression.
+	 */
+	int negotiateCompression(int requested) {
+		return Math.max(Deflater.NO_COMPRESSION, Math.min(this.maxCompressionLevel, requested));
+	}
+	
+	/**
+	 * Gets a chunk compressed, from the cache if it was compressed before.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param level
+	 * @return The compressed chunk, or null if it doesn't get smaller and has to be sent as it is.
 	 * @throws IOException
 	 */
-	private void sendHashMap(Socket client) throws IOException {
-		Scanner      in       = new Scanner(client.getInputStream());
-		OutputStream out      = client.getOutputStream();
-		
-		// We want to write strings to the client, so we need a PrintWriter
-		PrintWriter  printOut = new PrintWriter(client.getOutputStream(), true);
-		
-		// Initialize the file and check for existance
-		File file = new File(this.filePath);
-		if (!file.exists()) {
-			System.out.println("The file doesn't exist!");
-			System.exit(-1);
-		}
-		
-		// Get the chunk-table
-		HashMap<String, Integer> hashMap = this.getHashMap(file);
-		
-		// Send the hashes to the client
-		for (String hash : hashMap.keySet()) {
-			printOut.println(hash);
+	byte[] getCompressedChunk(File file, long offset, int length, int level) throws IOException {
+		String key = compressedKey(file, offset, length, level);
+		byte[] compressed = this.compressedChunks.get(key);
+		if (compressed == null) {
+			// Read the chunk, from the hot-chunk cache if there is one
+			byte[] chunk = new byte[length];
+			ByteBuffer cached = this.getCachedChunk(file, offset, length);
+			if (cached != null) {
+				cached.get(chunk);
+			} else {
+				FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				try {
+					ByteBuffer buffer = ByteBuffer.wrap(chunk);
+					while (buffer.hasRemaining() && fileChannel.read(buffer, offset + buffer.position()) != -1) {
+					}
+				} finally {
+					fileChannel.close();
+				}
+			}
+			
+			compressed = CompressedChunkCache.deflate(chunk, level);
+			this.compressedChunks.put(key, compressed);
 		}
+		return (compressed.length == 0) ? null : compressed;
 	}
-
+	
 	/**
-	 * @param args
-	 * @throws IOException 
+	 * Gets a compressed chunk only if it was compressed already, never reads or compresses it.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param level
+	 * @return The compressed chunk, an empty array if it doesn't get smaller, null if it isn't cached.
 	 */
-	public static void main(String[] args) throws IOException {
-		
-		Server s = new Server(PORT, ((args.length>0) ? args[0] : "/tmp/testfile"));
-		
-		while(true) {
-			s.handleRequest();
-		}
+	byte[] peekCompressedChunk(File file, long offset, int length, int level) {
+		return this.compressedChunks.peek(compressedKey(file, offset, length, level));
+	}
+	
+	/**
+	 * The key of a compressed chunk in the cache. It has the file's length too, as a file can change
+	 * within the resolution of its modification time.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param level
+	 * @return
+	 */
+	private static String compressedKey(File file, long offset, int length, int level) {
+		return file.getAbsolutePath() + "@" + file.lastModified() + "#" + file.length() + ":" + offset + "+" + length + "/" + level;
+	}
+	
+	/**
+	 * Gets a chunk-table with the default chunk size for the file. If it doesn't exist yet
+	 * or the file changed it is generated.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	ChunkTable getChunkTable(File file) throws IOException {
+		return this.getChunkTable(file, 0);
+	}
+	
+	/**
+	 * Gets a chunk-table with the chunk size a client asked for.
+	 * 
+	 * @param file
+	 * @param requested The chunk size the client wants, 0 for the default.
+	 * @return
+	 * @throws IOException
+	 */
+	ChunkTable getChunkTable(File file, long requested) throws IOException {
+		int size = (requested == 0) ? this.getChunkSize(file) : negotiateChunkSize(requested);
+		return this.tables.get(file, size, this.hashAlgorithm, this.contentDefined);
+	}
+	
+	/**
+	 * Gets a chunk-table only if it is built already, never builds it. For the event-loops,
+	 * they hand the requests of files without a table to a worker.
+	 * 
+	 * @param file
+	 * @param requested The chunk size the client wants, 0 for the default.
+	 * @return The table, null if it has to be built first.
+	 */
+	ChunkTable peekChunkTable(File file, long requested) {
+		int size = (requested == 0) ? this.getChunkSize(file) : negotiateChunkSize(requested);
+		return this.tables.peek(file, size, this.hashAlgorithm, this.contentDefined);
+	}
+	
+	/**
+	 * The default chunk size for a file. With adaptive chunk sizes large files get larger chunks,
+	 * so the per-chunk overhead and the chunk-list stay small.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	int getChunkSize(File file) {
+		if (this.chunkSize != 0) {
+			return this.chunkSize;
+		}
+		return negotiateChunkSize(file.length() / TARGET_CHUNKS);
+	}
+	
+	/**
+	 * Turns the chunk size a client asked for into one the server serves:
+	 * rounded down to a power of two between MIN_CHUNKSIZE and MAX_CHUNKSIZE.
+	 * 
+	 * @param requested
+	 * @return
+	 */
+	static int negotiateChunkSize(long requested) {
+		long size = Math.max(MIN_CHUNKSIZE, Math.min(MAX_CHUNKSIZE, requested));
+		return (int) Long.highestOneBit(size);
+	}
+	
+	/**
+	 * Open the port.
+	 * 
+	 * @param port
+	 */
+	private void openPort(int port) {
+		try {
+			// We bind through a channel, so the socket can also be served by the non-blocking reactor.
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			this.serverSocket = channel.socket();
+		} catch(IOException e) {
+			System.out.println("Couldn't listen on Port " + port + "!");
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * The port the server is actually bound to. Differs from the requested port if that was 0.
+	 * 
+	 * @return The local port.
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Closes the server-socket. Blocked accepts return with an exception, running sessions are finished.
+	 */
+	public void close() {
+		this.sessions.shutdown();
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Chooses how file-data is sent. With zero-copy the kernel moves the bytes from the file to the socket,
+	 * without it the data is copied through a buffer like before.
+	 * 
+	 * @param zeroCopy
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+	
+	/**
+	 * @return Whether file-data is sent with FileChannel.transferTo.
+	 */
+	public boolean isZeroCopy() {
+		return this.zeroCopy;
+	}
+	
+	/**
+	 * Serves file-data from memory-mappings: every served file is mapped once, read-only, and requests
+	 * write slices of the mapping. A request costs no open, read or close, and no heap buffer.
+	 * Served files should be replaced by renaming a new file over them, not rewritten in place,
+	 * a file that shrinks under a mapping can't be read anymore.
+	 * 
+	 * @param memoryMapped
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		if (this.mappedFiles != null) {
+			this.mappedFiles.clear();
+		}
+		this.mappedFiles = memoryMapped ? new MappedFiles(MappedFiles.MAX_FILES, MappedFiles.MAX_BYTES) : null;
+	}
+	
+	/**
+	 * @return The mapped files, null if file-data isn't memory-mapped.
+	 */
+	MappedFiles getMappedFiles() {
+		return this.mappedFiles;
+	}
+	
+	/**
+	 * Keeps popular chunks in off-heap memory, so GET-requests for them don't touch the disk.
+	 * 
+	 * @param capacity The memory for the chunks in bytes, 0 turns the cache off.
+	 * @param policy HotChunkCache.LRU or HotChunkCache.TINY_LFU.
+	 */
+	public void setHotChunkCache(long capacity, String policy) {
+		this.hotChunks = (capacity > 0) ? new HotChunkCache(capacity, policy) : null;
+	}
+	
+	/**
+	 * @return The hot-chunk cache, null if there is none.
+	 */
+	public HotChunkCache getHotChunkCache() {
+		return this.hotChunks;
+	}
+	
+	/**
+	 * Coalesces GET-requests: while a chunk is read or still being sent, requests for it share
+	 * the read instead of reading the chunk again. This pays off when many clients want the same chunks
+	 * at the same time, otherwise zero-copy is cheaper. The hot-chunk cache always coalesces its misses.
+	 * 
+	 * @param coalescing
+	 */
+	public void setCoalescing(boolean coalescing) {
+		this.chunkReads = coalescing ? new ChunkReads() : null;
+	}
+	
+	/**
+	 * @return The shared chunk reads, null if requests aren't coalesced.
+	 */
+	ChunkReads getChunkReads() {
+		return this.chunkReads;
+	}
+	
+	/**
+	 * Gets the broadcast of a file. A file that changed gets a new one.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	synchronized Broadcast getBroadcast(File file) {
+		Broadcast broadcast = this.broadcasts.get(file.getAbsolutePath());
+		if (broadcast == null || !broadcast.isCurrent(file)) {
+			broadcast = new Broadcast(file);
+			this.broadcasts.put(file.getAbsolutePath(), broadcast);
+		}
+		return broadcast;
+	}
+	
+	/**
+	 * @return The broadcasts of the files.
+	 */
+	synchronized List<Broadcast> getBroadcasts() {
+		return new ArrayList<Broadcast>(this.broadcasts.values());
+	}
+	
+	/**
+	 * Serves clients with a non-blocking reactor instead of handleRequest().
+	 * The calling thread accepts connections, the given number of event-loops serve them.
+	 * Returns when the server is closed.
+	 * 
+	 * @param threads The number of event-loop threads.
+	 * @throws IOException
+	 */
+	public void serveNonBlocking(int threads) throws IOException {
+		Reactor reactor = new Reactor(this, this.serverSocket.getChannel(), threads);
+		reactor.run();
+	}
+	
+	/**
+	 * The file a request is for. ALL:name, LIST:name, GET:hash:name and PEERS:port:name name a file in the served directory,
+	 * without a name the served file is meant.
+	 * 
+	 * @param requestParts The request split at the first two colons.
+	 * @return The file or null if it can't be served.
+	 * @throws IOException
+	 */
+	File getFile(String[] requestParts) throws IOException {
+		int nameIndex = (requestParts[0].equals("GET") || requestParts[0].equals("PEERS")) ? 2 : 1;
+		return this.getFile((requestParts.length > nameIndex) ? requestParts[nameIndex] : null);
+	}
+	
+	/**
+	 * Resolves a file-name.
+	 * 
+	 * @param name A path relative to the served directory, or null for the served file.
+	 * @return The file or null if it doesn't exist or is outside the served directory.
+	 * @throws IOException
+	 */
+	File getFile(String name) throws IOException {
+		File root = new File(this.filePath);
+		File file = root;
+		if (name != null) {
+			if (!root.isDirectory()) {
+				Log.warn("Not serving a directory: {}", name);
+				return null;
+			}
+			
+			// Don't let the name lead out of the served directory
+			file = new File(root, name).getCanonicalFile();
+			if (!file.getPath().startsWith(root.getCanonicalPath() + File.separator)) {
+				Log.warn("Not in the served directory: {}", name);
+				return null;
+			}
+		}
+		
+		if (!file.isFile()) {
+			Log.warn("The file doesn't exist: {}", file);
+			return null;
+		}
+		return file;
+	}
+	
+	/**
+	 * The default size of a chunk.
+	 * 
+	 * @return
+	 */
+	static int getChunkSize() {
+		return CHUNKSIZE;
+	}
+	
+	/**
+	 * Looks up the offset of a chunk.
+	 * 
+	 * @param file
+	 * @param hash
+	 * @return The offset in the file or -1 if the hash is unknown.
+	 * @throws IOException
+	 */
+	long getOffset(File file, String hash) throws IOException {
+		ChunkTable table = this.getChunkTable(file);
+		int index = table.getIndex(hash);
+		if (index == -1) {
+			return -1;
+		}
+		return table.getOffset(index);
+	}
+	
+	/**
+	 * The number of chunks of a file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	int getChunkCount(File file) throws IOException {
+		return this.getChunkTable(file).getChunkCount();
+	}
+	
+	/**
+	 * The chunk-list as it is sent for a LIST-request, one hash per line in file order.
+	 * Chunks with the same content appear once for every place they are at.
+	 * Content-defined chunks don't start at multiples of the chunk size, their lines are "hash offset".
+	 * 
+	 * @param table
+	 * @return
+	 */
+	byte[] getHashList(ChunkTable table) {
+		StringBuilder list = new StringBuilder();
+		for (int i = 1; i <= table.getChunkCount(); i++) {
+			list.append(table.getHash(i));
+			if (table.isContentDefined()) {
+				list.append(' ').append(table.getOffset(i));
+			}
+			list.append('\n');
+		}
+		return list.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * The answer to a PEERS-request: other clients that download the file and re-serve its chunks.
+	 * The asking client is announced as a peer too, at the address it connected from.
+	 * 
+	 * @param file
+	 * @param address The client's address.
+	 * @param port The port the client serves chunks on, 0 if it doesn't serve any.
+	 * @return One "host:port" line per peer.
+	 * @throws IOException
+	 */
+	byte[] getPeers(File file, java.net.InetAddress address, String port) throws IOException {
+		String swarm = file.getCanonicalPath();
+		String self = null;
+		try {
+			int peerPort = Integer.parseInt(port);
+			if (peerPort > 0 && peerPort < 65536) {
+				self = address.getHostAddress() + ":" + peerPort;
+			}
+		} catch (NumberFormatException e) {
+			Log.warn("Bad peer port: {}", port);
+		}
+		
+		StringBuilder list = new StringBuilder();
+		for (String peer : this.tracker.announce(swarm, self)) {
+			list.append(peer).append('\n');
+		}
+		return list.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * The answer to a text STAT-request: "length chunksize chunks", followed by " cdc" if the chunks
+	 * are content-defined.
+	 * 
+	 * @param table
+	 * @return
+	 */
+	byte[] getStat(ChunkTable table) {
+		String stat = table.getLength() + " " + table.getChunkSize() + " " + table.getChunkCount()
+				+ (table.isContentDefined() ? " cdc" : "") + "\n";
+		return stat.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * The answer to a binary STAT-request: an INFO frame.
+	 * 
+	 * @param table The chunk-table with the negotiated chunk size.
+	 * @return
+	 */
+	ByteBuffer getStatFrame(ChunkTable table) {
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + 4);
+		Frame.put(frame, Frame.INFO, table.isContentDefined() ? Frame.CONTENT_DEFINED : 0, table.getChunkCount(), table.getLength(), 4);
+		frame.putInt(table.getChunkSize());
+		frame.flip();
+		return frame;
+	}
+	
+	/**
+	 * The chunk-list as binary frames: a HASH frame for every chunk and an END frame.
+	 * 
+	 * @param table The chunk-table with the negotiated chunk size.
+	 * @return
+	 */
+	ByteBuffer getHashFrames(ChunkTable table) {
+		int count = table.getChunkCount();
+		int hashLength = (count == 0) ? 0 : table.getHash(1).length();
+		
+		ByteBuffer frames = ByteBuffer.allocate((count + 1) * Frame.HEADER + count * hashLength);
+		for (int i = 1; i <= count; i++) {
+			byte[] hash = table.getHash(i).getBytes(StandardCharsets.US_ASCII);
+			Frame.put(frames, Frame.HASH, i, table.getOffset(i), hash.length);
+			frames.put(hash);
+		}
+		Frame.put(frames, Frame.END, count, table.getLength(), 0);
+		frames.flip();
+		return frames;
+	}
+	
+	/**
+	 * The answer to a ROOT-request: the chunk-list's size and the root of its Merkle tree.
+	 * 
+	 * @param table The chunk-table with the negotiated chunk size.
+	 * @return
+	 */
+	ByteBuffer getRootFrame(ChunkTable table) {
+		byte[] root = table.getTree().getRoot();
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + 4 + root.length);
+		Frame.put(frame, Frame.TREE, table.isContentDefined() ? Frame.CONTENT_DEFINED : 0, table.getChunkCount(), table.getLength(), 4 + root.length);
+		frame.putInt(table.getChunkSize());
+		frame.put(root);
+		frame.flip();
+		return frame;
+	}
+	
+	/**
+	 * The answer to a PAGE-request: the HASH frames of a page of the chunk-list, the proof that
+	 * they belong to the root and an END frame.
+	 * 
+	 * @param table The chunk-table with the negotiated chunk size.
+	 * @param page The page, counted from 0.
+	 * @return The frames, or an ERROR frame if there is no such page.
+	 */
+	ByteBuffer getPageFrames(ChunkTable table, int page) {
+		MerkleTree tree = table.getTree();
+		if (page < 0 || page >= tree.getPageCount()) {
+			return Frame.error("No page " + page);
+		}
+		int first = page * MerkleTree.PAGE + 1;
+		int last = Math.min(table.getChunkCount(), first + MerkleTree.PAGE - 1);
+		int hashLength = (last >= first) ? table.getHash(first).length() : 0;
+		List<byte[]> proof = tree.getProof(page);
+		
+		ByteBuffer frames = ByteBuffer.allocate((last - first + 3) * Frame.HEADER
+				+ (last - first + 1) * hashLength + proof.size() * MerkleTree.HASH);
+		for (int i = first; i <= last; i++) {
+			byte[] hash = table.getHash(i).getBytes(StandardCharsets.US_ASCII);
+			Frame.put(frames, Frame.HASH, i, table.getOffset(i), hash.length);
+			frames.put(hash);
+		}
+		Frame.put(frames, Frame.PROOF, page, 0, proof.size() * MerkleTree.HASH);
+		for (byte[] hash : proof) {
+			frames.put(hash);
+		}
+		Frame.put(frames, Frame.END, table.getChunkCount(), table.getLength(), 0);
+		frames.flip();
+		return frames;
+	}
+	
+	/**
+	 * The answer to a DELTA-request: how to build the file from the client's old copy, see Delta.
+	 * 
+	 * @param file
+	 * @param blockSize The block size of the client's signatures.
+	 * @param count The number of signatures.
+	 * @param signatures
+	 * @return The frames, or an ERROR frame if the client should download the file instead.
+	 * @throws IOException
+	 */
+	ByteBuffer getDeltaFrames(File file, long blockSize, int count, ByteBuffer signatures) throws IOException {
+		if (blockSize < Delta.MIN_BLOCK || blockSize > MAX_CHUNKSIZE) {
+			return Frame.error("Bad block size " + blockSize);
+		}
+		ByteBuffer frames = Delta.encode(file, (int) blockSize, count, signatures, Delta.MAX_LITERAL);
+		if (frames == null) {
+			return Frame.error("Too much changed for a delta, download the file");
+		}
+		return frames;
+	}
+	
+	/**
+	 * Handles a client-request.
+	 * Possible requests are:
+	 *   ALL - send a whole file
+	 *   LIST - send a chunk-list
+	 *   GET:hash - send a chunk
+	 *   STAT - send "length chunksize chunks" of the file
+	 *   PEERS:port - announce that the client serves the chunks it has on port and send the other peers,
+	 *                one "host:port" line each, see Tracker
+	 *   KEEPALIVE - keep the connection open for any number of the requests above, see serveKeepAlive()
+	 *   BINARY - switch the connection to binary frames, see Frame
+	 * When a directory is served, ALL:name, LIST:name, STAT:name, GET:hash:name and PEERS:port:name name the file.
+	 * 
+	 * The connection is served on a thread of its own, so KEEPALIVE and BINARY sessions don't keep
+	 * other clients from being accepted.
+	 */
+	public void handleRequest() {
+		final Socket client;
+		try {
+			// Accept a client-connection
+			client = this.serverSocket.accept();
+		} catch (IOException e) {
+			this.metrics.error();
+			e.printStackTrace();
+			return;
+		}
+		this.metrics.connectionOpened();
+		try {
+			this.sessions.execute(new Runnable() {
+				public void run() {
+					serve(client);
+				}
+			});
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			// The server was closed
+			this.metrics.connectionClosed();
+			try {
+				client.close();
+			} catch (IOException e2) {
+				e2.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Serves the requests of an accepted client, see handleRequest(), and closes the connection.
+	 * 
+	 * @param client
+	 */
+	private void serve(Socket client) {
+		try {
+			client.setTcpNoDelay(true);
+			
+			// We read a request line and maybe binary frames after it, so we can't use a Scanner,
+			// it would read ahead into the frames.
+			DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+			
+			// Read the request
+			String request = readLine(in);
+			if (request == null) {
+				return;
+			}
+			
+			// handle the request
+			String[] requestParts = request.split(":", 3);
+			if (request.equals("KEEPALIVE")) {
+				this.serveKeepAlive(client, in);
+				return;
+			}
+			if (request.equals("BINARY")) {
+				this.serveBinary(client, in);
+				return;
+			}
+			
+			File file = this.getFile(requestParts);
+			if (file == null) {
+				this.metrics.error();
+				return;
+			}
+			
+			long start = System.nanoTime();
+			long sent;
+			if (requestParts[0].equals("ALL")) {
+				if (this.zeroCopy || this.mappedFiles != null) {
+					sent = this.transferFile(client, file);
+				} else {
+					sent = this.sendFile(client, file);
+				}
+			} else if (requestParts[0].equals("LIST")) {
+				sent = this.sendHashMap(client, file);
+			} else if (requestParts[0].equals("STAT")) {
+				byte[] stat = this.getStat(this.getChunkTable(file));
+				client.getOutputStream().write(stat);
+				sent = stat.length;
+			} else if (requestParts[0].equals("PEERS") && requestParts.length > 1) {
+				byte[] peers = this.getPeers(file, client.getInetAddress(), requestParts[1]);
+				client.getOutputStream().write(peers);
+				sent = peers.length;
+			} else if (requestParts[0].equals("GET") && requestParts.length > 1) {
+				if (this.zeroCopy || this.mappedFiles != null) {
+					sent = this.transferFilePart(client, file, requestParts[1]);
+				} else {
+					sent = this.sendFilePart(client, file, requestParts[1]);
+				}
+			}else {
+				Log.warn("Unknown request: {}", request);
+				this.metrics.error();
+				return;
+			}
+			this.metrics.record(Metrics.verb(requestParts[0]), System.nanoTime() - start, sent);
+			Log.debug("Served {}, {} bytes", request, sent);
+		} catch (IOException e) {
+			this.metrics.error();
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			// A bad request must not take the server down, only its connection
+			this.metrics.error();
+			e.printStackTrace();
+		} finally {
+			// close the client-connection
+			this.metrics.connectionClosed();
+			try {
+				client.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Send a whole file to the client.
+	 * 
+	 * @param client
+	 * @param file
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long sendFile(Socket client, File file) throws IOException {
+		// We want to write bytes to the client, so we need a OutputStream
+		OutputStream out      = client.getOutputStream();
+		
+		// initialize the FileInputStream. The file may have been deleted since the request named it,
+		// that fails only this request.
+		InputStream fileInput = null;
+		try {
+			 fileInput = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			Log.error("The file doesn't exist: {}", file);
+			throw e;
+		}
+		
+		byte[] buffer = new byte[CHUNKSIZE];
+		
+		int readData;
+		
+		Log.debug("Sending file {}", file);
+		// Read the file and send it to the client
+		int sendcounter = 0;
+		long sent = 0;
+		try {
+			while ( (readData = fileInput.read(buffer)) != -1 ) {
+				out.write(buffer, 0, readData);
+				sent += readData;
+				sendcounter++;
+			}
+		} finally {
+			fileInput.close();
+		}
+		
+		Log.debug("finished ({})!", sendcounter);
+		return sent;
+	}
+	
+	/**
+	 * Send a chunk to the client.
+	 * 
+	 * @param client
+	 * @param file
+	 * @param hash
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long sendFilePart(Socket client, File file, String hash) throws IOException {
+		// We want to write bytes to the client, so wee need a OutputStream
+		OutputStream out      = client.getOutputStream();
+		
+		// Get the chunk-table
+		ChunkTable table = this.getChunkTable(file);
+		
+		// Get the index for the requested chunk
+		int index = table.getIndex(hash);
+		if (index == -1) {
+			Log.warn("Unknown chunk: {}", hash);
+			return 0;
+		}
+		
+		Log.debug("Hash: {} Index: {}", hash, index);
+		
+		// Calculate the offset in the file for the requested chunk, and where it is read from
+		long offset = table.getOffset(index);
+		ChunkStore.Location source = this.locateChunk(file, table, index);
+		
+		// Initialize the FileInputStream. The file or the chunk store's pack may have been deleted
+		// since the request named it, that fails only this request.
+		FileInputStream fileInput = null;
+		try {
+			 fileInput = new FileInputStream(source.getFile());
+		} catch (FileNotFoundException e) {
+			Log.error("The file doesn't exist: {}", source.getFile());
+			throw e;
+		}
+		
+		byte[] buffer = new byte[table.getChunkLength(index)];
+		
+		int len = 0;
+		try {
+			Log.debug("Reading from file at offset: {}", offset);
+			// Move the pointer to the offset
+			fileInput.skip(source.getOffset());
+			
+			// Read the chunk
+			int read;
+			while (len < buffer.length && (read = fileInput.read(buffer, len, buffer.length - len)) != -1) {
+				len += read;
+			}
+		} finally {
+			fileInput.close();
+		}
+		Log.debug("Sending to client");
+		
+		// Send the offset to the client
+		out.write((offset + "\n").getBytes(StandardCharsets.US_ASCII));
+		
+		// Send the chunk to the client
+		out.write(buffer, 0, len);
+		return len;
+	}
+	
+	/**
+	 * Serves requests on a persistent connection until the client closes it.
+	 * The client may pipeline requests, the responses are sent in the same order.
+	 * Every response starts with a head line, so the client knows where it ends:
+	 *   ALL - "length", followed by the file
+	 *   LIST - "count", followed by count hash lines
+	 *   GET:hash - "offset length", followed by the chunk. An unknown hash gets "-1 0".
+	 *   STAT - "length chunksize chunks", nothing follows
+	 *   PEERS:port - "count", followed by count peer lines
+	 * 
+	 * @param client
+	 * @param in The stream the KEEPALIVE request was read from, it may already hold the next requests.
+	 * @throws IOException
+	 */
+	private void serveKeepAlive(Socket client, InputStream in) throws IOException {
+		OutputStream out = client.getOutputStream();
+		
+		String request;
+		while ((request = readLine(in)) != null) {
+			String[] requestParts = request.split(":", 3);
+			
+			File file = this.getFile(requestParts);
+			if (file == null) {
+				this.metrics.error();
+				return;
+			}
+			
+			long start = System.nanoTime();
+			long sent;
+			if (requestParts[0].equals("ALL")) {
+				out.write((file.length() + "\n").getBytes(StandardCharsets.US_ASCII));
+				this.sendRegion(client, file, 0, file.length());
+				sent = file.length();
+			} else if (requestParts[0].equals("LIST")) {
+				ChunkTable table = this.getChunkTable(file);
+				byte[] list = this.getHashList(table);
+				out.write((table.getChunkCount() + "\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(list);
+				sent = list.length;
+			} else if (requestParts[0].equals("STAT")) {
+				byte[] stat = this.getStat(this.getChunkTable(file));
+				out.write(stat);
+				sent = stat.length;
+			} else if (requestParts[0].equals("PEERS") && requestParts.length > 1) {
+				byte[] peers = this.getPeers(file, client.getInetAddress(), requestParts[1]);
+				out.write((count(peers) + "\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(peers);
+				sent = peers.length;
+			} else if (requestParts[0].equals("GET") && requestParts.length > 1) {
+				ChunkTable table = this.getChunkTable(file);
+				int index = table.getIndex(requestParts[1]);
+				if (index == -1) {
+					Log.warn("Unknown chunk: {}", requestParts[1]);
+					out.write("-1 0\n".getBytes(StandardCharsets.US_ASCII));
+					this.metrics.error();
+					continue;
+				}
+				long offset = table.getOffset(index);
+				long length = table.getChunkLength(index);
+				ChunkStore.Location source = this.locateChunk(file, table, index);
+				out.write((offset + " " + length + "\n").getBytes(StandardCharsets.US_ASCII));
+				this.sendChunk(client, source.getFile(), source.getOffset(), length);
+				sent = length;
+			} else {
+				Log.warn("Unknown request: {}", request);
+				this.metrics.error();
+				return;
+			}
+			this.metrics.record(Metrics.verb(requestParts[0]), System.nanoTime() - start, sent);
+			Log.debug("Served {}, {} bytes", request, sent);
+		}
+	}
+	
+	/**
+	 * Serves binary frames on a persistent connection until the client closes it.
+	 * The header buffer is reused for every request and response.
+	 * 
+	 * @param client
+	 * @param in The stream the BINARY request was read from, it may already hold the first frames.
+	 * @throws IOException
+	 */
+	private void serveBinary(Socket client, DataInputStream in) throws IOException {
+		OutputStream out = client.getOutputStream();
+		byte[] headerBytes = new byte[Frame.HEADER];
+		ByteBuffer header = ByteBuffer.wrap(headerBytes);
+		int level = 0;
+		
+		while (true) {
+			try {
+				in.readFully(headerBytes);
+			} catch (EOFException e) {
+				// The client is done
+				return;
+			}
+			byte opcode = Frame.opcode(header);
+			int chunk = Frame.chunk(header);
+			long chunkSize = Frame.offset(header);
+			long length = Frame.length(header);
+			if (length < 0) {
+				// The stream can't be followed after a header like this
+				out.write(Frame.error("Bad length " + length).array());
+				this.metrics.error();
+				return;
+			}
+			if (length > ((opcode == Frame.DELTA) ? Frame.MAX_DELTA_REQUEST : Frame.MAX_REQUEST)) {
+				Log.warn("Request too long");
+				return;
+			}
+			
+			// The payload of a request is the file-name, a DELTA-request has the signatures after it
+			byte[] payload = new byte[(int) length];
+			in.readFully(payload);
+			if (opcode == Frame.DELTA && (chunk < 0 || (long) chunk * Delta.SIGNATURE > length)) {
+				out.write(Frame.error("Bad signature count " + chunk).array());
+				this.metrics.error();
+				continue;
+			}
+			// A GET-request may tell the hash it expects before the file-name
+			String hash = null;
+			int nameStart = 0;
+			if (opcode == Frame.GET && (Frame.flags(header) & Frame.HASHED) != 0) {
+				hash = Frame.hash(payload, 0, payload.length);
+				if (hash == null) {
+					out.write(Frame.error("No hash in the request for chunk " + chunk).array());
+					this.metrics.error();
+					continue;
+				}
+				nameStart = hash.length() + 1;
+			}
+			int nameLength = (opcode == Frame.DELTA) ? (int) (length - (long) chunk * Delta.SIGNATURE) : (int) length - nameStart;
+			String name = (nameLength == 0) ? null : new String(payload, nameStart, nameLength, StandardCharsets.UTF_8);
+			
+			// Compression is set for the connection, it isn't about a file
+			if (opcode == Frame.COMPRESS) {
+				level = this.negotiateCompression(chunk);
+				header.clear();
+				Frame.put(header, Frame.COMPRESS, level, 0, 0);
+				out.write(headerBytes);
+				continue;
+			}
+			
+			File file = this.getFile(name);
+			if (file == null) {
+				out.write(Frame.error(name + ": no such file").array());
+				this.metrics.error();
+				continue;
+			}
+			
+			long start = System.nanoTime();
+			long sent;
+			if (opcode == Frame.LIST) {
+				byte[] frames = this.getHashFrames(this.getChunkTable(file, chunkSize)).array();
+				out.write(frames);
+				sent = frames.length;
+			} else if (opcode == Frame.STAT) {
+				byte[] frame = this.getStatFrame(this.getChunkTable(file, chunkSize)).array();
+				out.write(frame);
+				sent = frame.length;
+			} else if (opcode == Frame.ROOT) {
+				byte[] frame = this.getRootFrame(this.getChunkTable(file, chunkSize)).array();
+				out.write(frame);
+				sent = frame.length;
+			} else if (opcode == Frame.PAGE) {
+				ByteBuffer frames = this.getPageFrames(this.getChunkTable(file, chunkSize), chunk);
+				out.write(frames.array(), 0, frames.limit());
+				sent = frames.limit();
+			} else if (opcode == Frame.GET) {
+				ChunkTable table = this.getChunkTable(file, chunkSize);
+				if (chunk < 1 || chunk > table.getChunkCount()) {
+					out.write(Frame.error("No chunk " + chunk).array());
+					this.metrics.error();
+					continue;
+				}
+				if (hash != null && !hash.equals(table.getHash(chunk))) {
+					out.write(Frame.error(file.getName() + " has changed, chunk " + chunk + " isn't " + hash + " anymore").array());
+					this.metrics.error();
+					continue;
+				}
+				long offset = table.getOffset(chunk);
+				int len = table.getChunkLength(chunk);
+				ChunkStore.Location source = this.locateChunk(file, table, chunk);
+				byte[] compressed = (level > 0) ? this.getCompressedChunk(source.getFile(), source.getOffset(), len, level) : null;
+				header.clear();
+				if (compressed != null) {
+					Frame.put(header, Frame.DATA, Frame.DEFLATE, chunk, offset, compressed.length);
+					out.write(headerBytes);
+					out.write(compressed);
+					sent = Frame.HEADER + compressed.length;
+				} else {
+					Frame.put(header, Frame.DATA, chunk, offset, len);
+					out.write(headerBytes);
+					this.sendChunk(client, source.getFile(), source.getOffset(), len);
+					sent = Frame.HEADER + len;
+				}
+			} else if (opcode == Frame.DELTA) {
+				ByteBuffer signatures = ByteBuffer.wrap(payload, nameLength, payload.length - nameLength).slice();
+				byte[] frames = this.getDeltaFrames(file, chunkSize, chunk, signatures).array();
+				out.write(frames);
+				sent = frames.length;
+			} else if (opcode == Frame.ALL && (Frame.flags(header) & Frame.BROADCAST) != 0) {
+				sent = this.sendBroadcast(client, file);
+			} else if (opcode == Frame.ALL) {
+				header.clear();
+				Frame.put(header, Frame.DATA, 0, 0, file.length());
+				out.write(headerBytes);
+				this.sendRegion(client, file, 0, file.length());
+				sent = Frame.HEADER + file.length();
+			} else {
+				Log.warn("Unknown opcode: {}", opcode);
+				this.metrics.error();
+				return;
+			}
+			this.metrics.record(Metrics.verb(opcode), System.nanoTime() - start, sent);
+			Log.debug("Served {}, {} bytes", Metrics.VERBS[Metrics.verb(opcode)], sent);
+		}
+	}
+	
+	/**
+	 * Reads a request line without reading ahead.
+	 * 
+	 * @param in
+	 * @return The line without the line-break, null if the stream ended before it.
+	 * @throws IOException
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return (line.length() == 0) ? null : line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.toString().trim();
+	}
+	
+	/**
+	 * @param lines
+	 * @return The number of lines.
+	 */
+	static int count(byte[] lines) {
+		int count = 0;
+		for (byte b : lines) {
+			if (b == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Sends a chunk, from the hot-chunk cache if there is one, or from a read shared with other requests.
+	 * 
+	 * @param client
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	private void sendChunk(Socket client, File file, long offset, long length) throws IOException {
+		ByteBuffer chunk = this.getCachedChunk(file, offset, length);
+		ChunkReads.Read read = null;
+		if (chunk == null && this.chunkReads != null && this.mappedFiles == null) {
+			read = this.chunkReads.acquire(file, offset, (int) length, false);
+			chunk = read.getChunk();
+		}
+		if (chunk == null) {
+			this.sendRegion(client, file, offset, length);
+			return;
+		}
+		
+		try {
+			SocketChannel out = client.getChannel();
+			while (chunk.hasRemaining()) {
+				out.write(chunk);
+			}
+		} finally {
+			if (read != null) {
+				this.chunkReads.release(read);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a file as a member of its broadcast: DATA frames of the segments, from wherever
+	 * the broadcast is around to where it was, and an END frame.
+	 * 
+	 * @param client
+	 * @param file
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long sendBroadcast(Socket client, File file) throws IOException {
+		SocketChannel out = client.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+		long sent = 0;
+		Broadcast.Member member = this.getBroadcast(file).join();
+		try {
+			while (member.hasNext()) {
+				long offset = member.getOffset();
+				ByteBuffer segment = member.next();
+				header.clear();
+				Frame.put(header, Frame.DATA, 0, offset, segment.remaining());
+				header.flip();
+				sent += Frame.HEADER + segment.remaining();
+				while (header.hasRemaining()) {
+					out.write(header);
+				}
+				while (segment.hasRemaining()) {
+					out.write(segment);
+				}
+			}
+		} finally {
+			member.leave();
+		}
+		header.clear();
+		Frame.put(header, Frame.END, 0, file.length(), 0);
+		header.flip();
+		while (header.hasRemaining()) {
+			out.write(header);
+		}
+		return sent + Frame.HEADER;
+	}
+	
+	/**
+	 * Gets a chunk from the hot-chunk cache, reading it into the cache if it isn't there yet.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return A read-only view of the chunk for the caller alone, or null if there is no cache.
+	 * @throws IOException
+	 */
+	ByteBuffer getCachedChunk(File file, long offset, long length) throws IOException {
+		if (this.hotChunks == null) {
+			return null;
+		}
+		return this.hotChunks.get(file, offset, (int) length);
+	}
+	
+	/**
+	 * Gets a chunk from the hot-chunk cache only if it is cached, never reads it.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return The chunk, null if there is no cache or the chunk isn't cached.
+	 */
+	ByteBuffer peekCachedChunk(File file, long offset, long length) {
+		if (this.hotChunks == null) {
+			return null;
+		}
+		return this.hotChunks.peek(file, offset, (int) length);
+	}
+	
+	/**
+	 * @return Whether the server has a hot-chunk cache.
+	 */
+	boolean hasHotChunks() {
+		return this.hotChunks != null;
+	}
+	
+	/**
+	 * Sends a region of a file, from its mapping if file-data is memory-mapped, with zero-copy if it is enabled.
+	 * 
+	 * @param client
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	private void sendRegion(Socket client, File file, long offset, long length) throws IOException {
+		if (this.mappedFiles != null) {
+			MappedFiles.Mapping mapping = this.mappedFiles.acquire(file);
+			try {
+				SocketChannel out = client.getChannel();
+				long end = Math.min(offset + length, mapping.getLength());
+				while (offset < end) {
+					ByteBuffer slice = mapping.slice(offset, end - offset);
+					offset += slice.remaining();
+					while (slice.hasRemaining()) {
+						out.write(slice);
+					}
+				}
+			} finally {
+				this.mappedFiles.release(mapping);
+			}
+			return;
+		}
+		if (this.zeroCopy) {
+			FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				transfer(fileChannel, offset, length, client.getChannel());
+			} finally {
+				fileChannel.close();
+			}
+			return;
+		}
+		
+		OutputStream out = client.getOutputStream();
+		FileInputStream fileInput = new FileInputStream(file);
+		try {
+			fileInput.skip(offset);
+			byte[] buffer = new byte[CHUNKSIZE];
+			while (length > 0) {
+				int len = fileInput.read(buffer, 0, (int) Math.min(buffer.length, length));
+				if (len == -1) {
+					break;
+				}
+				out.write(buffer, 0, len);
+				length -= len;
+			}
+		} finally {
+			fileInput.close();
+		}
+	}
+	
+	/**
+	 * Send a whole file to the client with zero-copy, or from its mapping.
+	 * 
+	 * @param client
+	 * @param file
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long transferFile(Socket client, File file) throws IOException {
+		Log.debug("Sending file {}", file);
+		long sent = file.length();
+		this.sendRegion(client, file, 0, sent);
+		Log.debug("finished!");
+		return sent;
+	}
+	
+	/**
+	 * Send a chunk to the client with zero-copy.
+	 * 
+	 * @param client
+	 * @param file
+	 * @param hash
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long transferFilePart(Socket client, File file, String hash) throws IOException {
+		ChunkTable table = this.getChunkTable(file);
+		int index = table.getIndex(hash);
+		if (index == -1) {
+			Log.warn("Unknown chunk: {}", hash);
+			return 0;
+		}
+		long offset = table.getOffset(index);
+		Log.debug("Hash: {} Offset: {}", hash, offset);
+		
+		// Send the offset to the client
+		SocketChannel out = client.getChannel();
+		ByteBuffer head = ByteBuffer.wrap((offset + "\n").getBytes(StandardCharsets.US_ASCII));
+		while (head.hasRemaining()) {
+			out.write(head);
+		}
+		
+		// Send the chunk to the client
+		ChunkStore.Location source = this.locateChunk(file, table, index);
+		this.sendChunk(client, source.getFile(), source.getOffset(), table.getChunkLength(index));
+		return table.getChunkLength(index);
+	}
+	
+	/**
+	 * Transfers a region of a file to a blocking channel. transferTo may send less than asked for, so we loop.
+	 * 
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @param out
+	 * @throws IOException
+	 */
+	static void transfer(FileChannel file, long position, long count, java.nio.channels.WritableByteChannel out) throws IOException {
+		while (count > 0) {
+			long sent = file.transferTo(position, count, out);
+			if (sent <= 0) {
+				// Nothing left to read, the file shrank
+				break;
+			}
+			position += sent;
+			count -= sent;
+		}
+	}
+	
+	/**
+	 * Send a hash-list to the client.
+	 * 
+	 * @param client
+	 * @param file
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long sendHashMap(Socket client, File file) throws IOException {
+		OutputStream out      = client.getOutputStream();
+		
+		// Send the hashes to the client
+		byte[] list = this.getHashList(this.getChunkTable(file));
+		out.write(list);
+		return list.length;
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException 
+	 */
+	public static void main(String[] args) throws IOException {
+		
+		Server s = new Server(PORT, ((args.length>0) ? args[0] : "/tmp/testfile"));
+		
+		// Options after the file-path:
+		//   nio    - serve with the non-blocking reactor
+		//   stream - copy file-data through a buffer instead of zero-copy
+		//   coalesce - let concurrent GET-requests for a chunk share one read
+		//   mmap   - serve file-data from read-only memory-mappings
+		//   hash=name - the hash-function for the chunks' contents, see ChunkTable.hash()
+		//   cache=n - keep up to n MiB of popular chunks off-heap
+		//   policy=name - how the chunk cache evicts, LRU or TINYLFU
+		//   chunk=n - the default chunk size in KiB, 0 to choose it by the file's length
+		//   cdc - content-defined chunks, chunk is their average size then
+		//   store=path - keep the chunks of all served files in a deduplicated store and serve them from there
+		//   deflate=n - the highest compression level clients may ask for, 0 to never compress
+		//   metrics=path - rewrite a file with the metrics every second
+		//   metrics-port=n - serve the metrics over HTTP on the loopback interface
+		//   jmx - register the metrics as an MBean
+		//   rate=n - limit the non-blocking server to n MiB/s
+		//   client-rate=n - limit every client address to n MiB/s on the non-blocking server
+		//   log=path - write the log to a file instead of the console
+		//   log-level=name - the lowest level that is logged: DEBUG, INFO, WARN or ERROR
+		//   log-sample=n - keep only one in n log records below WARN
+		//   number - the number of event-loops for the reactor
+		boolean nio = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long cache = 0;
+		String policy = HotChunkCache.LRU;
+		long rate = 0;
+		long clientRate = 0;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("nio")) {
+				nio = true;
+			} else if (args[i].equals("stream")) {
+				s.setZeroCopy(false);
+			} else if (args[i].equals("coalesce")) {
+				s.setCoalescing(true);
+			} else if (args[i].equals("mmap")) {
+				s.setMemoryMapped(true);
+			} else if (args[i].startsWith("hash=")) {
+				s.setHashAlgorithm(args[i].substring(5));
+			} else if (args[i].startsWith("cache=")) {
+				cache = Long.parseLong(args[i].substring(6)) << 20;
+			} else if (args[i].equals("cdc")) {
+				s.setContentDefined(true);
+			} else if (args[i].startsWith("store=")) {
+				s.setChunkStore(new File(args[i].substring(6)));
+			} else if (args[i].startsWith("policy=")) {
+				policy = args[i].substring(7);
+			} else if (args[i].startsWith("chunk=")) {
+				s.setChunkSize(Integer.parseInt(args[i].substring(6)) << 10);
+			} else if (args[i].startsWith("deflate=")) {
+				s.setMaxCompressionLevel(Integer.parseInt(args[i].substring(8)));
+			} else if (args[i].startsWith("metrics=")) {
+				s.writeMetricsTo(args[i].substring(8));
+			} else if (args[i].startsWith("metrics-port=")) {
+				System.out.println("Metrics on port " + s.serveMetrics(Integer.parseInt(args[i].substring(13))));
+			} else if (args[i].equals("jmx")) {
+				s.registerMetricsMBean();
+			} else if (args[i].startsWith("log=")) {
+				Log.open(args[i].substring(4));
+			} else if (args[i].startsWith("log-level=")) {
+				Log.setLevel(args[i].substring(10));
+			} else if (args[i].startsWith("log-sample=")) {
+				Log.setSampling(Integer.parseInt(args[i].substring(11)));
+			} else if (args[i].startsWith("rate=")) {
+				rate = (long) (Double.parseDouble(args[i].substring(5)) * (1 << 20));
+			} else if (args[i].startsWith("client-rate=")) {
+				clientRate = (long) (Double.parseDouble(args[i].substring(12)) * (1 << 20));
+			} else {
+				threads = Integer.parseInt(args[i]);
+			}
+		}
+		
+		s.setHotChunkCache(cache, policy);
+		s.setBandwidth(rate, clientRate);
+		
+		if (nio) {
+			s.serveNonBlocking(threads);
+			return;
+		}
+		
+		while(true) {
+			s.handleRequest();
+		}
+	}
+	
+	/**
+	 * Asynchronous request logging. Logging a record only claims a slot in a ring of preallocated
+	 * records and fills in the template and the arguments, it doesn't allocate, format or block.
+	 * A background thread formats the records and writes them to the log file, or to the console
+	 * if there is none. When the ring is full, records are dropped and counted instead of waiting.
+	 * 
+	 * Templates are constants with a {} for every argument. Arguments are numbers or objects that
+	 * exist anyway, like a hash or a request, they are only turned into text on the writer thread.
+	 * Records below WARN can be sampled, so only one in n of them is kept.
+	 * 
+	 * The client logs here too, so this is public.
+	 */
+	public static class Log {
+		
+		/**
+		 * The levels.
+		 */
+		public static final int DEBUG = 0;
+		public static final int INFO = 1;
+		public static final int WARN = 2;
+		public static final int ERROR = 3;
+		private static final String[] LEVELS = {"DEBUG", "INFO ", "WARN ", "ERROR"};
+		
+		/**
+		 * The number of records in the ring, a power of two, and the arguments a record holds.
+		 */
+		private static int RING = 8192;
+		private static int ARGS = 2;
+		
+		/**
+		 * How long the writer sleeps when the ring is empty, in nanoseconds.
+		 */
+		private static long IDLE = 1000000;
+		
+		/**
+		 * The records and the mask for their index.
+		 */
+		private static Record[] ring;
+		private static int mask;
+		
+		/**
+		 * The next record to claim and the next record to write.
+		 */
+		private static AtomicLong head = new AtomicLong();
+		private static volatile long tail;
+		
+		/**
+		 * The lowest level that is logged, and one in how many records below WARN is kept.
+		 */
+		private static volatile int level = INFO;
+		private static volatile int sampling = 1;
+		
+		/**
+		 * The records that were dropped because the ring was full.
+		 */
+		private static LongAdder dropped = new LongAdder();
+		
+		/**
+		 * The log file, null for the console.
+		 */
+		private static java.io.Writer out;
+		
+		static {
+			ring = new Record[RING];
+			mask = RING - 1;
+			for (int i = 0; i < RING; i++) {
+				ring[i] = new Record(i - RING);
+			}
+			
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					while (true) {
+						if (!drain()) {
+							java.util.concurrent.locks.LockSupport.parkNanos(IDLE);
+						}
+					}
+				}
+			}, "log-writer");
+			writer.setDaemon(true);
+			writer.start();
+			
+			// Write what is left when the JVM exits
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					drain();
+				}
+			}, "log-flush"));
+		}
+		
+		/**
+		 * A log record.
+		 */
+		private static class Record {
+			
+			/**
+			 * The position in the ring the record was published for.
+			 */
+			volatile long sequence;
+			
+			long time;
+			int level;
+			String thread;
+			String template;
+			Object[] objects = new Object[ARGS];
+			long[] numbers = new long[ARGS];
+			
+			/**
+			 * Which arguments are numbers, a bit per argument.
+			 */
+			int numeric;
+			int count;
+			
+			Record(long sequence) {
+				this.sequence = sequence;
+			}
+		}
+		
+		/**
+		 * Writes the log to a file from now on, appending to it.
+		 * 
+		 * @param path
+		 * @throws IOException
+		 */
+		public static void open(String path) throws IOException {
+			java.io.Writer writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+					new java.io.FileOutputStream(path, true), StandardCharsets.UTF_8), 1 << 16);
+			synchronized (Log.class) {
+				if (out != null) {
+					out.close();
+				}
+				out = writer;
+			}
+		}
+		
+		/**
+		 * @param name DEBUG, INFO, WARN or ERROR.
+		 */
+		public static void setLevel(String name) {
+			for (int i = 0; i < LEVELS.length; i++) {
+				if (LEVELS[i].trim().equalsIgnoreCase(name)) {
+					level = i;
+					return;
+				}
+			}
+			throw new IllegalArgumentException("Unknown log level: " + name);
+		}
+		
+		/**
+		 * Keeps only one in n records below WARN.
+		 * 
+		 * @param n
+		 */
+		public static void setSampling(int n) {
+			sampling = Math.max(1, n);
+		}
+		
+		/**
+		 * @param level
+		 * @return Whether records of the level are logged at all.
+		 */
+		public static boolean isEnabled(int level) {
+			return level >= Log.level;
+		}
+		
+		/**
+		 * @return The number of records dropped because the ring was full.
+		 */
+		public static long getDropped() {
+			return dropped.sum();
+		}
+		
+		public static void debug(String template) {
+			log(DEBUG, template, 0, null, 0, null, 0);
+		}
+		
+		public static void debug(String template, Object a) {
+			log(DEBUG, template, 1, a, 0, null, 0);
+		}
+		
+		public static void debug(String template, long a) {
+			log(DEBUG, template, 1, null, a, null, 0);
+		}
+		
+		public static void debug(String template, Object a, long b) {
+			log(DEBUG, template, 2, a, 0, null, b);
+		}
+		
+		public static void debug(String template, long a, long b) {
+			log(DEBUG, template, 2, null, a, null, b);
+		}
+		
+		public static void info(String template) {
+			log(INFO, template, 0, null, 0, null, 0);
+		}
+		
+		public static void info(String template, Object a) {
+			log(INFO, template, 1, a, 0, null, 0);
+		}
+		
+		public static void info(String template, long a) {
+			log(INFO, template, 1, null, a, null, 0);
+		}
+		
+		public static void warn(String template) {
+			log(WARN, template, 0, null, 0, null, 0);
+		}
+		
+		public static void warn(String template, Object a) {
+			log(WARN, template, 1, a, 0, null, 0);
+		}
+		
+		public static void warn(String template, long a) {
+			log(WARN, template, 1, null, a, null, 0);
+		}
+		
+		public static void error(String template, Object a) {
+			log(ERROR, template, 1, a, 0, null, 0);
+		}
+		
+		/**
+		 * Puts a record into the ring. An argument is the object if it isn't null, the number otherwise.
+		 * 
+		 * @param level
+		 * @param template
+		 * @param count The number of arguments.
+		 * @param a
+		 * @param numberA
+		 * @param b
+		 * @param numberB
+		 */
+		private static void log(int level, String template, int count, Object a, long numberA, Object b, long numberB) {
+			if (level < Log.level) {
+				return;
+			}
+			int sampling = Log.sampling;
+			if (level < WARN && sampling > 1 && java.util.concurrent.ThreadLocalRandom.current().nextInt(sampling) != 0) {
+				return;
+			}
+			
+			// Claim a record, without waiting for the writer
+			long sequence;
+			do {
+				sequence = head.get();
+				if (sequence - tail >= RING) {
+					dropped.increment();
+					return;
+				}
+			} while (!head.compareAndSet(sequence, sequence + 1));
+			
+			Record record = ring[(int) (sequence & mask)];
+			record.time = System.currentTimeMillis();
+			record.level = level;
+			record.thread = Thread.currentThread().getName();
+			record.template = template;
+			record.count = count;
+			record.objects[0] = a;
+			record.numbers[0] = numberA;
+			record.objects[1] = b;
+			record.numbers[1] = numberB;
+			record.numeric = ((a == null) ? 1 : 0) | ((b == null) ? 2 : 0);
+			
+			// Publish it
+			record.sequence = sequence;
+		}
+		
+		/**
+		 * Writes the published records. Only the writer thread and the shutdown hook call this.
+		 * 
+		 * @return Whether there was anything to write.
+		 */
+		private static synchronized boolean drain() {
+			StringBuilder line = new StringBuilder(256);
+			long next = tail;
+			boolean wrote = false;
+			try {
+				while (true) {
+					Record record = ring[(int) (next & mask)];
+					if (record.sequence != next) {
+						break;
+					}
+					format(record, line);
+					record.objects[0] = null;
+					record.objects[1] = null;
+					record.thread = null;
+					next++;
+					tail = next;
+					
+					if (out != null) {
+						out.write(line.toString());
+					} else {
+						System.out.print(line);
+					}
+					line.setLength(0);
+					wrote = true;
+				}
+				if (wrote) {
+					if (out != null) {
+						out.flush();
+					} else {
+						System.out.flush();
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Can't write the log: " + e.getMessage());
+			}
+			return wrote;
+		}
+		
+		/**
+		 * Formats a record as a line.
+		 * 
+		 * @param record
+		 * @param line
+		 */
+		private static void format(Record record, StringBuilder line) {
+			line.append(java.time.Instant.ofEpochMilli(record.time)).append(' ')
+					.append(LEVELS[record.level]).append(" [").append(record.thread).append("] ");
+			String template = record.template;
+			int arg = 0;
+			int from = 0;
+			int at;
+			while ((at = template.indexOf("{}", from)) != -1 && arg < record.count) {
+				line.append(template, from, at);
+				if ((record.numeric & (1 << arg)) != 0) {
+					line.append(record.numbers[arg]);
+				} else {
+					line.append(record.objects[arg]);
+				}
+				arg++;
+				from = at + 2;
+			}
+			line.append(template, from, template.length()).append('\n');
+		}
+	}
+	
+	/**
+	 * The binary frame format. After a client sent the line BINARY, requests and responses are frames:
+	 * a fixed header followed by length bytes of payload.
+	 * 
+	 *   byte  opcode
+	 *   byte  flags  - DEFLATE if the payload is compressed, BROADCAST on an ALL-request that joins the broadcast,
+	 *                  CONTENT_DEFINED on INFO and TREE frames of a file with content-defined chunks,
+	 *                  HASHED on a GET-request that tells the hash it expects, 0 otherwise
+	 *   short reserved, 0
+	 *   int   chunk  - the chunk's index, counted from 1
+	 *   long  offset - the chunk's offset in the file
+	 *   long  length - the length of the payload
+	 * 
+	 * All numbers are big-endian. The payload of a request is the file-name, empty for the served file.
+	 * In a request offset is the chunk size the client asks for, 0 for the server's default. The server
+	 * rounds it down to a power of two between 16 KiB and 8 MiB, STAT tells the client what it got.
+	 *   LIST - answered with a HASH frame for every chunk, the payload is the hash, and an END frame
+	 *          whose chunk is the number of chunks and whose offset is the length of the file
+	 *   GET  - chunk names the chunk, answered with a DATA frame. With the HASHED flag the payload is the hash
+	 *          the client expects, a line-break and the file-name. If the file has changed since the client
+	 *          got the chunk-list and the chunk's hash is another now, it is answered with an ERROR frame
+	 *   ALL  - answered with one DATA frame holding the whole file. With the BROADCAST flag the client
+	 *          joins the file's broadcast instead, see Broadcast: it is answered with DATA frames of
+	 *          the file's segments, starting wherever the broadcast is and wrapping around at the end,
+	 *          offset is where they go, and an END frame whose offset is the length of the file
+	 *   STAT - answered with an INFO frame whose chunk is the number of chunks, whose offset
+	 *          is the length of the file and whose payload is the chunk size as an int. Content-defined
+	 *          chunks have any length up to it, the offsets of the HASH frames tell where they start
+	 *   DELTA - chunk is the number of blocks of the client's old copy, offset the block size, and the
+	 *          payload the file-name followed by the blocks' signatures, see Delta. Answered with COPY
+	 *          frames whose chunk is the first of the client's blocks to reuse and whose payload is the
+	 *          number of consecutive blocks as an int, DATA frames with the bytes the client doesn't have,
+	 *          and an END frame whose offset is the length of the file and whose payload is its MD5 digest.
+	 *          All of them are in file order, offset is where they go.
+	 *   COMPRESS - chunk is the Deflater level the client wants for the rest of the connection, 0 for none.
+	 *          Answered with a COMPRESS frame whose chunk is the level the server granted. From then on
+	 *          DATA frames of GET-requests may have the DEFLATE flag, chunks that don't get smaller never have it.
+	 *   ROOT - answered with a TREE frame whose chunk is the number of chunks, whose offset is the length
+	 *          of the file and whose payload is the chunk size as an int followed by the root of the
+	 *          chunk-list's Merkle tree, see MerkleTree
+	 *   PAGE - chunk is the number of a page of the chunk-list, counted from 0. Answered like LIST, but only
+	 *          with the HASH frames of the page's chunks, followed by a PROOF frame whose payload are the
+	 *          hashes that lead from the page to the root, and the END frame
+	 * A request that can't be served is answered with an ERROR frame, its payload is the message.
+	 * 
+	 * The header is parsed with absolute gets, so parsing doesn't allocate.
+	 * 
+	 * The client speaks it too, so this is public.
+	 */
+	public static class Frame {
+		
+		/**
+		 * The length of the header.
+		 */
+		public static final int HEADER = 24;
+		
+		/**
+		 * The longest request payload we accept.
+		 */
+		public static final int MAX_REQUEST = 1000;
+		
+		/**
+		 * The longest DELTA payload we accept, it holds the signatures of the client's old copy.
+		 */
+		public static final int MAX_DELTA_REQUEST = 16 << 20;
+		
+		/**
+		 * Request opcodes.
+		 */
+		public static final byte LIST = 0x01;
+		public static final byte GET = 0x02;
+		public static final byte ALL = 0x03;
+		public static final byte STAT = 0x04;
+		public static final byte DELTA = 0x05;
+		public static final byte COMPRESS = 0x06;
+		public static final byte ROOT = 0x07;
+		public static final byte PAGE = 0x08;
+		
+		/**
+		 * Flags.
+		 */
+		public static final byte DEFLATE = 0x01;
+		public static final byte BROADCAST = 0x02;
+		public static final byte CONTENT_DEFINED = 0x04;
+		public static final byte HASHED = 0x08;
+		
+		/**
+		 * Response opcodes.
+		 */
+		public static final byte HASH = 0x11;
+		public static final byte DATA = 0x12;
+		public static final byte END = 0x13;
+		public static final byte INFO = 0x14;
+		public static final byte COPY = 0x15;
+		public static final byte TREE = 0x17;
+		public static final byte PROOF = 0x18;
+		public static final byte ERROR = 0x1F;
+		
+		/**
+		 * Puts a header at the buffer's position.
+		 * 
+		 * @param buffer
+		 * @param opcode
+		 * @param chunk
+		 * @param offset
+		 * @param length
+		 */
+		public static void put(ByteBuffer buffer, byte opcode, int chunk, long offset, long length) {
+			put(buffer, opcode, (byte) 0, chunk, offset, length);
+		}
+		
+		/**
+		 * Puts a header with flags at the buffer's position.
+		 * 
+		 * @param buffer
+		 * @param opcode
+		 * @param flags
+		 * @param chunk
+		 * @param offset
+		 * @param length
+		 */
+		public static void put(ByteBuffer buffer, byte opcode, byte flags, int chunk, long offset, long length) {
+			buffer.put(opcode).put(flags).putShort((short) 0).putInt(chunk).putLong(offset).putLong(length);
+		}
+		
+		/**
+		 * The hash at the start of the payload of a GET-request with the HASHED flag.
+		 * 
+		 * @param payload
+		 * @param offset Where the payload starts.
+		 * @param length The length of the payload.
+		 * @return The hash, null if there is no line-break after it.
+		 */
+		public static String hash(byte[] payload, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				if (payload[i] == '\n') {
+					return new String(payload, offset, i - offset, StandardCharsets.US_ASCII);
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * An ERROR frame, ready to be written.
+		 * 
+		 * @param message
+		 * @return
+		 */
+		public static ByteBuffer error(String message) {
+			Log.warn("{}", message);
+			byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer frame = ByteBuffer.allocate(HEADER + payload.length);
+			put(frame, ERROR, 0, 0, payload.length);
+			frame.put(payload);
+			frame.flip();
+			return frame;
+		}
+		
+		/**
+		 * @param header A buffer with a header at index 0.
+		 * @return
+		 */
+		public static byte opcode(ByteBuffer header) {
+			return header.get(0);
+		}
+		
+		/**
+		 * @param header A buffer with a header at index 0.
+		 * @return
+		 */
+		public static byte flags(ByteBuffer header) {
+			return header.get(1);
+		}
+		
+		/**
+		 * @param header A buffer with a header at index 0.
+		 * @return
+		 */
+		public static int chunk(ByteBuffer header) {
+			return header.getInt(4);
+		}
+		
+		/**
+		 * @param header A buffer with a header at index 0.
+		 * @return
+		 */
+		public static long offset(ByteBuffer header) {
+			return header.getLong(8);
+		}
+		
+		/**
+		 * @param header A buffer with a header at index 0.
+		 * @return
+		 */
+		public static long length(ByteBuffer header) {
+			return header.getLong(16);
+		}
+	}
+
+}
+
+/**
+ * Non-blocking front-end for the server.
+ * One thread accepts connections and hands them round-robin to the event-loops.
+ * Work that may block, like building a chunk-table, runs on a pool of workers the loops share.
+ */
+class Reactor implements Runnable {
+	
+	/**
+	 * The server whose files are served.
+	 */
+	private Server server;
+	
+	/**
+	 * The channel clients connect to.
+	 */
+	private ServerSocketChannel acceptChannel;
+	
+	/**
+	 * The event-loops the connections are distributed to.
+	 */
+	private EventLoop[] loops;
+	
+	/**
+	 * The workers for the blocking parts of requests. A cached pool, as a worker may wait for another one.
+	 */
+	private java.util.concurrent.ExecutorService workers;
+	
+	/**
+	 * Constructor for the reactor. Starts the event-loop threads.
+	 * 
+	 * @param server The server whose files are served.
+	 * @param acceptChannel The channel clients connect to.
+	 * @param threads The number of event-loops.
+	 * @throws IOException
+	 */
+	public Reactor(Server server, ServerSocketChannel acceptChannel, int threads) throws IOException {
+		this.server = server;
+		this.acceptChannel = acceptChannel;
+		this.loops = new EventLoop[Math.max(1, threads)];
+		this.workers = java.util.concurrent.Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "reactor-worker-" + this.count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i] = new EventLoop(server, this.workers);
+			Thread thread = new Thread(this.loops[i], "event-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Accepts connections until the accept-channel is closed.
+	 */
+	public void run() {
+		int next = 0;
+		while (this.acceptChannel.isOpen()) {
+			try {
+				SocketChannel client = this.acceptChannel.accept();
+				this.loops[next].register(client);
+				next = (next + 1) % this.loops.length;
+			} catch (IOException e) {
+				if (this.acceptChannel.isOpen()) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		for (EventLoop loop : this.loops) {
+			loop.shutdown();
+		}
+		this.workers.shutdown();
+	}
+}
+
+/**
+ * A thread that multiplexes many connections with one Selector.
+ */
+class EventLoop implements Runnable {
+	
+	/**
+	 * The server whose files are served.
+	 */
+	private Server server;
+	
+	/**
+	 * The selector all connections of this loop are registered with.
+	 */
+	private Selector selector;
+	
+	/**
+	 * Connections handed over by the acceptor, waiting to be registered by the loop-thread.
+	 */
+	private Queue<SocketChannel> pending;
+	
+	/**
+	 * Connections that wait for bandwidth, by the time they may write again.
+	 */
+	private java.util.PriorityQueue<Connection> paused;
+	
+	/**
+	 * The workers the blocking parts of requests run on.
+	 */
+	private java.util.concurrent.Executor workers;
+	
+	/**
+	 * Connections whose work on a worker is done, to be continued by the loop-thread.
+	 */
+	private Queue<Runnable> completed;
+	
+	/**
+	 * Whether the loop should stop.
+	 */
+	private volatile boolean stopped;
+	
+	/**
+	 * Constructor for the event-loop.
+	 * 
+	 * @param server The server whose files are served.
+	 * @param workers The workers the blocking parts of requests run on.
+	 * @throws IOException
+	 */
+	public EventLoop(Server server, java.util.concurrent.Executor workers) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.pending = new ConcurrentLinkedQueue<SocketChannel>();
+		this.workers = workers;
+		this.completed = new ConcurrentLinkedQueue<Runnable>();
+		this.paused = new java.util.PriorityQueue<Connection>(11, new java.util.Comparator<Connection>() {
+			public int compare(Connection a, Connection b) {
+				return Long.compare(a.getResumeAt(), b.getResumeAt());
+			}
+		});
+	}
+	
+	/**
+	 * Lets a connection write again after a while. Only called from the loop-thread.
+	 * 
+	 * @param connection It has set its resume time.
+	 */
+	void pause(Connection connection) {
+		this.paused.add(connection);
+	}
+	
+	/**
+	 * Runs work that may block on a worker, and continues the connection on the loop-thread when it is done.
+	 * The connection doesn't take part in the selection meanwhile.
+	 * 
+	 * @param connection
+	 * @param work
+	 */
+	void offload(final Connection connection, final Connection.Work work) {
+		this.workers.execute(new Runnable() {
+			public void run() {
+				boolean served = false;
+				Exception failure = null;
+				try {
+					served = work.run();
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+				final boolean result = served;
+				final Exception cause = failure;
+				completed.add(new Runnable() {
+					public void run() {
+						connection.onWorkDone(result, cause);
+					}
+				});
+				selector.wakeup();
+			}
+		});
+	}
+	
+	/**
+	 * Hands a connection to this loop. Can be called from any thread.
+	 * 
+	 * @param client
+	 */
+	public void register(SocketChannel client) {
+		this.pending.add(client);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Stops the loop, which closes all its connections. Can be called from any thread,
+	 * the selector is only closed by the loop-thread, so it isn't closed while the loop uses its keys.
+	 */
+	public void shutdown() {
+		this.stopped = true;
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Runs the loop until it is shut down.
+	 */
+	public void run() {
+		try {
+			this.serve();
+		} finally {
+			try {
+				for (SelectionKey key : this.selector.keys()) {
+					key.channel().close();
+				}
+				this.selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Serves the connections until the loop is shut down.
+	 */
+	private void serve() {
+		while (!this.stopped) {
+			try {
+				// Sleep no longer than until the first paused connection may write again
+				Connection next = this.paused.peek();
+				if (next == null) {
+					this.selector.select();
+				} else {
+					long wait = (next.getResumeAt() - System.nanoTime() + 999999) / 1000000;
+					if (wait > 0) {
+						this.selector.select(wait);
+					} else {
+						this.selector.selectNow();
+					}
+				}
+				
+				// Resume the paused connections that are due
+				long now = System.nanoTime();
+				while ((next = this.paused.peek()) != null && next.getResumeAt() - now <= 0) {
+					this.paused.poll().resume();
+				}
+				
+				// Register the connections the acceptor handed over
+				SocketChannel client;
+				while ((client = this.pending.poll()) != null) {
+					try {
+						client.configureBlocking(false);
+						// A response is a header and a body in two writes, Nagle would hold back the second one
+						client.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+						SelectionKey key = client.register(this.selector, SelectionKey.OP_READ);
+						key.attach(new Connection(this.server, key, this));
+					} catch (IOException e) {
+						// The client is gone already, the others still get registered
+						client.close();
+					}
+				}
+				
+				// Continue the connections whose work is done
+				Runnable done;
+				while ((done = this.completed.poll()) != null) {
+					done.run();
+				}
+				
+				// Serve all connections that are ready
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (IOException e) {
+						// The client went away, nothing more to do for it.
+						connection.close();
+					} catch (RuntimeException e) {
+						// A bug or a bad request must only cost this connection, not the loop and its other connections
+						Server.Log.error("Closing a connection after {}", e);
+						connection.close();
+					}
+				}
+			} catch (IOException e) {
+				if (this.selector.isOpen()) {
+					e.printStackTrace();
+				}
+			} catch (java.nio.channels.ClosedSelectorException e) {
+				return;
+			}
+		}
+	}
+}
+
+/**
+ * The state of one non-blocking client-connection.
+ * A connection reads one request line and then writes the response, which is
+ * a text head followed by a region of the served file. The region is sent with
+ * transferTo or, if the server doesn't use zero-copy, copied through a buffer.
+ * After a KEEPALIVE request the connection stays open and serves pipelined
+ * requests one after another, with the heads described at Server.serveKeepAlive().
+ * After a BINARY request it does the same with binary frames.
+ * A request whose preparation would block, like one for a file without a chunk-table yet,
+ * is prepared on one of the reactor's workers, the loop serves the other connections meanwhile.
+ */
+class Connection {
+	
+	/**
+	 * The longest request line we accept.
+	 */
+	private static int MAX_REQUEST = 1024;
+	
+	/**
+	 * What preparing a response came to: it is ready, the request can't be served,
+	 * or it has to be prepared on a worker as it would block the loop.
+	 */
+	private static final int PREPARED = 0;
+	private static final int FAILED = 1;
+	private static final int BLOCKS = 2;
+	
+	/**
+	 * The blocking part of a request, run on a worker.
+	 */
+	interface Work {
+		
+		/**
+		 * @return false if the request can't be served, the connection is closed then.
+		 * @throws IOException
+		 */
+		boolean run() throws IOException;
+	}
+	
+	/**
+	 * The server whose files are served.
+	 */
+	private Server server;
+	
+	/**
+	 * The key of this connection in the loop's selector.
+	 */
+	private SelectionKey key;
+	
+	/**
+	 * The channel to the client.
+	 */
+	private SocketChannel channel;
+	
+	/**
+	 * The bytes of the request read so far.
+	 */
+	private ByteBuffer request;
+	
+	/**
+	 * Whether the connection stays open after a response.
+	 */
+	private boolean keepAlive;
+	
+	/**
+	 * Whether requests and responses are binary frames.
+	 */
+	private boolean binary;
+	
+	/**
+	 * The header of binary responses, reused for every response.
+	 */
+	private ByteBuffer frameHeader;
+	
+	/**
+	 * The text part of the response, null if there is none.
+	 */
+	private ByteBuffer head;
+	
+	/**
+	 * The body of the response if it comes from memory, the hot-chunk or the compressed-chunk cache,
+	 * null otherwise.
+	 */
+	private ByteBuffer cached;
+	
+	/**
+	 * The shared read the body comes from, null if it isn't shared.
+	 */
+	private ChunkReads.Read shared;
+	
+	/**
+	 * The broadcast the connection sends the file of, null if it doesn't.
+	 */
+	private Broadcast.Member member;
+	
+	/**
+	 * The mapping the body comes from, null if it isn't memory-mapped, and the slice of it being written.
+	 */
+	private MappedFiles.Mapping mapping;
+	private ByteBuffer slice;
+	
+	/**
+	 * The Deflater level the client negotiated for the chunks, 0 if they are sent as they are.
+	 */
+	private int compression;
+	
+	/**
+	 * The response being written for the metrics: its verb, -1 if it isn't measured,
+	 * when its request was complete and the length of its body from the file.
+	 */
+	private int verb;
+	private long started;
+	private long bodyLength;
+	
+	/**
+	 * Whether the connection was closed.
+	 */
+	private boolean closed;
+	
+	/**
+	 * Whether a worker prepares the response right now, the connection waits without interest in the meantime.
+	 */
+	private boolean working;
+	
+	/**
+	 * The file the body of the response is read from, null if there is none.
+	 */
+	private FileChannel file;
+	
+	/**
+	 * The position in the file the body continues at.
+	 */
+	private long position;
+	
+	/**
+	 * How many bytes of the body still have to be read from the file.
+	 */
+	private long remaining;
+	
+	/**
+	 * The body-bytes read from the file and not yet written to the client, null with zero-copy.
+	 */
+	private ByteBuffer data;
+	
+	/**
+	 * The loop the connection runs on.
+	 */
+	private EventLoop loop;
+	
+	/**
+	 * The connection's share of the bandwidth, null if the server doesn't shape it,
+	 * and when it may write again while it waits for bandwidth.
+	 */
+	private BandwidthScheduler.Flow flow;
+	private long resumeAt;
+	
+	/**
+	 * Constructor for a connection.
+	 * 
+	 * @param server The server whose files are served.
+	 * @param key The key of the connection in the loop's selector.
+	 * @param loop The loop the connection runs on.
+	 */
+	public Connection(Server server, SelectionKey key, EventLoop loop) {
+		this.server = server;
+		this.key = key;
+		this.loop = loop;
+		this.channel = (SocketChannel) key.channel();
+		this.request = ByteBuffer.allocate(MAX_REQUEST);
+		this.verb = -1;
+		this.server.getMetrics().connectionOpened();
+		
+		BandwidthScheduler scheduler = this.server.getBandwidthScheduler();
+		if (scheduler != null) {
+			this.flow = scheduler.open(this.channel.socket().getInetAddress().getHostAddress());
+		}
+	}
+	
+	/**
+	 * Reads the request. As soon as the request line is complete the response is prepared.
+	 * 
+	 * @throws IOException
+	 */
+	public void onReadable() throws IOException {
+		if (this.channel.read(this.request) == -1) {
+			this.close();
+			return;
+		}
+		
+		if (this.nextRequest()) {
+			if (!this.key.isValid() || this.working) {
+				return;
+			}
+			// Until the response is written we only want to write
+			this.key.interestOps(SelectionKey.OP_WRITE);
+			this.onWritable();
+		} else if (!this.request.hasRemaining()) {
+			Server.Log.warn("Request too long");
+			this.close();
+		}
+	}
+	
+	/**
+	 * Takes the next complete request line out of the request buffer and prepares its response.
+	 * 
+	 * @return false if there is no complete request line yet.
+	 * @throws IOException
+	 */
+	private boolean nextRequest() throws IOException {
+		while (true) {
+			if (this.binary) {
+				return this.nextFrame();
+			}
+			
+			// Look for the end of the request line
+			int end = -1;
+			for (int i = 0; i < this.request.position(); i++) {
+				if (this.request.get(i) == '\n') {
+					end = i;
+					break;
+				}
+			}
+			if (end == -1) {
+				return false;
+			}
+			
+			String line = new String(this.request.array(), 0, end, StandardCharsets.US_ASCII).trim();
+			
+			// Remove the line from the buffer, pipelined requests after it stay
+			this.request.flip();
+			this.request.position(end + 1);
+			this.request.compact();
+			
+			if (line.equals("KEEPALIVE")) {
+				this.keepAlive = true;
+				continue;
+			}
+			if (line.equals("BINARY")) {
+				this.keepAlive = true;
+				this.binary = true;
+				this.frameHeader = ByteBuffer.allocate(Frame.HEADER);
+				continue;
+			}
+			this.verb = Metrics.verb(line.split(":", 2)[0]);
+			this.started = System.nanoTime();
+			final String request = line;
+			int prepared = this.prepare(request, false);
+			if (prepared == BLOCKS) {
+				this.offload(new Work() {
+					public boolean run() throws IOException {
+						return prepare(request, true) == PREPARED;
+					}
+				});
+			} else if (prepared == FAILED) {
+				this.server.getMetrics().error();
+				this.close();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Takes the next complete request frame out of the request buffer and prepares its response.
+	 * The header is parsed in place.
+	 * 
+	 * @return false if there is no complete frame yet.
+	 * @throws IOException
+	 */
+	private boolean nextFrame() throws IOException {
+		if (this.request.position() < Frame.HEADER) {
+			return false;
+		}
+		byte opcode = Frame.opcode(this.request);
+		long length = Frame.length(this.request);
+		if (length < 0) {
+			// The frames after this one can't be found, answer and close
+			this.head = Frame.error("Bad length " + length);
+			this.server.getMetrics().error();
+			this.keepAlive = false;
+			this.verb = -1;
+			return true;
+		}
+		if (length > ((opcode == Frame.DELTA) ? Frame.MAX_DELTA_REQUEST : MAX_REQUEST - Frame.HEADER)) {
+			Server.Log.warn("Request too long");
+			this.close();
+			return true;
+		}
+		if (Frame.HEADER + length > this.request.capacity()) {
+			// Only DELTA-requests are this long, the buffer shrinks back once they are handled
+			ByteBuffer larger = ByteBuffer.allocate(Frame.HEADER + (int) length);
+			this.request.flip();
+			larger.put(this.request);
+			this.request = larger;
+		}
+		if (this.request.position() < Frame.HEADER + length) {
+			return false;
+		}
+		
+		byte flags = Frame.flags(this.request);
+		int chunk = Frame.chunk(this.request);
+		long chunkSize = Frame.offset(this.request);
+		boolean badSignatures = opcode == Frame.DELTA && (chunk < 0 || (long) chunk * Delta.SIGNATURE > length);
+		// A GET-request may tell the hash it expects before the file-name
+		String hash = null;
+		int nameStart = 0;
+		if (opcode == Frame.GET && (flags & Frame.HASHED) != 0) {
+			hash = Frame.hash(this.request.array(), Frame.HEADER, (int) length);
+			nameStart = (hash == null) ? 0 : hash.length() + 1;
+		}
+		boolean noHash = opcode == Frame.GET && (flags & Frame.HASHED) != 0 && hash == null;
+		int nameLength = (opcode == Frame.DELTA && !badSignatures) ? (int) (length - (long) chunk * Delta.SIGNATURE) : (int) length - nameStart;
+		String name = (nameLength == 0 || badSignatures || noHash) ? null
+				: new String(this.request.array(), Frame.HEADER + nameStart, nameLength, StandardCharsets.UTF_8);
+		ByteBuffer signatures = null;
+		if (opcode == Frame.DELTA && !badSignatures) {
+			signatures = ByteBuffer.wrap(Arrays.copyOfRange(this.request.array(),
+					Frame.HEADER + nameLength, Frame.HEADER + (int) length));
+		}
+		
+		// Remove the frame from the buffer, pipelined frames after it stay
+		this.request.flip();
+		this.request.position(Frame.HEADER + (int) length);
+		this.request.compact();
+		if (this.request.capacity() > MAX_REQUEST && this.request.position() <= MAX_REQUEST) {
+			this.request.flip();
+			this.request = ByteBuffer.allocate(MAX_REQUEST).put(this.request);
+		}
+		if (badSignatures) {
+			// The frame was skipped as a whole, the connection goes on
+			this.head = Frame.error("Bad signature count " + chunk);
+			this.server.getMetrics().error();
+			this.verb = -1;
+			return true;
+		}
+		if (noHash) {
+			this.head = Frame.error("No hash in the request for chunk " + chunk);
+			this.server.getMetrics().error();
+			this.verb = -1;
+			return true;
+		}
+		
+		this.verb = Metrics.verb(opcode);
+		this.started = System.nanoTime();
+		
+		// Compression is set for the connection, it isn't about a file
+		if (opcode == Frame.COMPRESS) {
+			this.compression = this.server.negotiateCompression(chunk);
+			this.frameHeader.clear();
+			Frame.put(this.frameHeader, Frame.COMPRESS, this.compression, 0, 0);
+			this.frameHeader.flip();
+			this.head = this.frameHeader;
+			return true;
+		}
+		
+		final File file = this.server.getFile(name);
+		if (file == null) {
+			this.head = Frame.error(name + ": no such file");
+			this.server.getMetrics().error();
+			this.verb = -1;
+			return true;
+		}
+		
+		final byte request = opcode;
+		final byte requestFlags = flags;
+		final int requestChunk = chunk;
+		final long requestChunkSize = chunkSize;
+		final String requestHash = hash;
+		final ByteBuffer requestSignatures = signatures;
+		int prepared = this.prepareFrame(request, requestFlags, requestChunk, requestHash, requestChunkSize, file, requestSignatures, false);
+		if (prepared == BLOCKS) {
+			this.offload(new Work() {
+				public boolean run() throws IOException {
+					return prepareFrame(request, requestFlags, requestChunk, requestHash, requestChunkSize, file, requestSignatures, true) == PREPARED;
+				}
+			});
+		} else if (prepared == FAILED) {
+			this.server.getMetrics().error();
+			this.close();
+		}
+		return true;
+	}
+	
+	/**
+	 * Prepares the response for a request frame.
+	 * 
+	 * @param opcode
+	 * @param flags
+	 * @param chunk
+	 * @param hash The hash a GET-request expects, null if it doesn't tell.
+	 * @param chunkSize
+	 * @param file
+	 * @param signatures The signatures of a DELTA-request, null otherwise.
+	 * @param mayBlock Whether this runs on a worker. On the loop-thread nothing is prepared if it would block.
+	 * @return PREPARED, FAILED or BLOCKS.
+	 * @throws IOException
+	 */
+	private int prepareFrame(byte opcode, byte flags, int chunk, String hash, long chunkSize, File file, ByteBuffer signatures, boolean mayBlock) throws IOException {
+		if (opcode == Frame.DELTA && !mayBlock) {
+			// Encoding a delta scans the file
+			return BLOCKS;
+		}
+		if (opcode == Frame.LIST || opcode == Frame.STAT || opcode == Frame.ROOT || opcode == Frame.PAGE || opcode == Frame.GET) {
+			ChunkTable table = this.table(file, chunkSize, mayBlock);
+			if (table == null) {
+				return BLOCKS;
+			}
+			if (opcode == Frame.LIST) {
+				this.head = this.server.getHashFrames(table);
+			} else if (opcode == Frame.STAT) {
+				this.head = this.server.getStatFrame(table);
+			} else if (opcode == Frame.ROOT) {
+				this.head = this.server.getRootFrame(table);
+			} else if (opcode == Frame.PAGE) {
+				this.head = this.server.getPageFrames(table, chunk);
+			} else {
+				if (chunk < 1 || chunk > table.getChunkCount()) {
+					this.head = Frame.error("No chunk " + chunk);
+					this.server.getMetrics().error();
+					this.verb = -1;
+					return PREPARED;
+				}
+				if (hash != null && !hash.equals(table.getHash(chunk))) {
+					this.head = Frame.error(file.getName() + " has changed, chunk " + chunk + " isn't " + hash + " anymore");
+					this.server.getMetrics().error();
+					this.verb = -1;
+					return PREPARED;
+				}
+				long offset = table.getOffset(chunk);
+				int len = table.getChunkLength(chunk);
+				ChunkStore.Location source = this.server.locateChunk(file, table, chunk);
+				byte[] compressed = null;
+				if (this.compression > 0 && mayBlock) {
+					compressed = this.server.getCompressedChunk(source.getFile(), source.getOffset(), len, this.compression);
+				} else if (this.compression > 0) {
+					// Compressing reads the chunk
+					compressed = this.server.peekCompressedChunk(source.getFile(), source.getOffset(), len, this.compression);
+					if (compressed == null) {
+						return BLOCKS;
+					}
+					compressed = (compressed.length == 0) ? null : compressed;
+				}
+				if (compressed == null && !this.openChunk(source.getFile(), source.getOffset(), len, mayBlock)) {
+					return BLOCKS;
+				}
+				this.frameHeader.clear();
+				if (compressed != null) {
+					Frame.put(this.frameHeader, Frame.DATA, Frame.DEFLATE, chunk, offset, compressed.length);
+					this.cached = ByteBuffer.wrap(compressed);
+				} else {
+					Frame.put(this.frameHeader, Frame.DATA, chunk, offset, len);
+				}
+				this.frameHeader.flip();
+				this.head = this.frameHeader;
+			}
+		} else if (opcode == Frame.DELTA) {
+			this.head = this.server.getDeltaFrames(file, chunkSize, chunk, signatures);
+		} else if (opcode == Frame.ALL && (flags & Frame.BROADCAST) != 0) {
+			// The segments are taken one by one as they are written
+			this.member = this.server.getBroadcast(file).join();
+		} else if (opcode == Frame.ALL) {
+			this.frameHeader.clear();
+			Frame.put(this.frameHeader, Frame.DATA, 0, 0, file.length());
+			this.frameHeader.flip();
+			this.head = this.frameHeader;
+			this.openBody(file, 0, file.length());
+		} else {
+			Server.Log.warn("Unknown opcode: {}", opcode);
+			return FAILED;
+		}
+		return PREPARED;
+	}
+	
+	/**
+	 * Prepares the response for a request.
+	 * 
+	 * @param request
+	 * @param mayBlock Whether this runs on a worker. On the loop-thread nothing is prepared if it would block.
+	 * @return PREPARED, FAILED if the request can't be served, or BLOCKS.
+	 * @throws IOException
+	 */
+	private int prepare(String request, boolean mayBlock) throws IOException {
+		String[] requestParts = request.split(":", 3);
+		File file = this.server.getFile(requestParts);
+		if (file == null) {
+			return FAILED;
+		}
+		
+		// STAT, LIST and GET need the chunk-table
+		ChunkTable table = null;
+		if (requestParts[0].equals("STAT") || requestParts[0].equals("LIST") || requestParts[0].equals("GET")) {
+			table = this.table(file, 0, mayBlock);
+			if (table == null) {
+				return BLOCKS;
+			}
+		}
+		
+		if (requestParts[0].equals("ALL")) {
+			if (this.keepAlive) {
+				this.head = ByteBuffer.wrap((file.length() + "\n").getBytes(StandardCharsets.US_ASCII));
+			}
+			this.openBody(file, 0, file.length());
+		} else if (requestParts[0].equals("STAT")) {
+			this.head = ByteBuffer.wrap(this.server.getStat(table));
+		} else if (requestParts[0].equals("PEERS") && requestParts.length > 1) {
+			java.net.InetAddress address = ((SocketChannel) this.key.channel()).socket().getInetAddress();
+			byte[] peers = this.server.getPeers(file, address, requestParts[1]);
+			if (this.keepAlive) {
+				byte[] count = (Server.count(peers) + "\n").getBytes(StandardCharsets.US_ASCII);
+				this.head = ByteBuffer.allocate(count.length + peers.length).put(count).put(peers);
+				this.head.flip();
+			} else {
+				this.head = ByteBuffer.wrap(peers);
+			}
+		} else if (requestParts[0].equals("LIST")) {
+			byte[] list = this.server.getHashList(table);
+			if (this.keepAlive) {
+				byte[] count = (table.getChunkCount() + "\n").getBytes(StandardCharsets.US_ASCII);
+				this.head = ByteBuffer.allocate(count.length + list.length).put(count).put(list);
+				this.head.flip();
+			} else {
+				this.head = ByteBuffer.wrap(list);
+			}
+		} else if (requestParts[0].equals("GET") && requestParts.length > 1) {
+			int index = table.getIndex(requestParts[1]);
+			if (index == -1) {
+				Server.Log.warn("Unknown chunk: {}", requestParts[1]);
+				if (this.keepAlive) {
+					this.head = ByteBuffer.wrap("-1 0\n".getBytes(StandardCharsets.US_ASCII));
+					return PREPARED;
+				}
+				return FAILED;
+			}
+			long offset = table.getOffset(index);
+			long length = table.getChunkLength(index);
+			String head = this.keepAlive ? offset + " " + length : String.valueOf(offset);
+			this.head = ByteBuffer.wrap((head + "\n").getBytes(StandardCharsets.US_ASCII));
+			ChunkStore.Location source = this.server.locateChunk(file, table, index);
+			if (!this.openChunk(source.getFile(), source.getOffset(), length, mayBlock)) {
+				return BLOCKS;
+			}
+		} else {
+			Server.Log.warn("Unknown request: {}", request);
+			return FAILED;
+		}
+		return PREPARED;
+	}
+	
+	/**
+	 * Gets the chunk-table for a request.
+	 * 
+	 * @param file
+	 * @param chunkSize The chunk size the client asked for, 0 for the default.
+	 * @param mayBlock Whether the table may be built.
+	 * @return The table, null if it isn't built yet and mayBlock is false.
+	 * @throws IOException
+	 */
+	private ChunkTable table(File file, long chunkSize, boolean mayBlock) throws IOException {
+		return mayBlock ? this.server.getChunkTable(file, chunkSize) : this.server.peekChunkTable(file, chunkSize);
+	}
+	
+	/**
+	 * Hands the blocking part of a request to a worker. The connection has no interest until it is done.
+	 * 
+	 * @param work
+	 */
+	private void offload(Work work) {
+		this.working = true;
+		this.key.interestOps(0);
+		this.loop.offload(this, work);
+	}
+	
+	/**
+	 * Continues after a worker prepared the response. Called on the loop-thread.
+	 * 
+	 * @param served false if the request can't be served.
+	 * @param failure What the work threw, null if it didn't.
+	 */
+	void onWorkDone(boolean served, Exception failure) {
+		this.working = false;
+		if (this.closed || !this.key.isValid()) {
+			// Let go of what the worker acquired after the connection was closed
+			this.release();
+			this.close();
+			return;
+		}
+		if (failure != null || !served) {
+			if (failure instanceof RuntimeException) {
+				Server.Log.error("Closing a connection after {}", failure);
+			}
+			this.server.getMetrics().error();
+			this.close();
+			return;
+		}
+		try {
+			this.key.interestOps(SelectionKey.OP_WRITE);
+			this.onWritable();
+		} catch (IOException e) {
+			this.close();
+		} catch (RuntimeException e) {
+			Server.Log.error("Closing a connection after {}", e);
+			this.close();
+		}
+	}
+	
+	/**
+	 * Prepares a chunk as the body, from the hot-chunk cache if the server has one,
+	 * or from a read shared with other connections if the server coalesces them.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param mayBlock Whether the chunk may be read or waited for.
+	 * @return false if the chunk would have to be read or waited for and mayBlock is false.
+	 * @throws IOException
+	 */
+	private boolean openChunk(File file, long offset, long length, boolean mayBlock) throws IOException {
+		if (this.server.hasHotChunks()) {
+			this.cached = mayBlock ? this.server.getCachedChunk(file, offset, length) : this.server.peekCachedChunk(file, offset, length);
+			return this.cached != null;
+		}
+		ChunkReads reads = this.server.getChunkReads();
+		if (reads != null && this.server.getMappedFiles() == null) {
+			this.shared = mayBlock ? reads.acquire(file, offset, (int) length, false) : reads.tryAcquire(file, offset, (int) length);
+			if (this.shared == null) {
+				return false;
+			}
+			this.cached = this.shared.getChunk();
+			return true;
+		}
+		this.openBody(file, offset, length);
+		return true;
+	}
+	
+	/**
+	 * Prepares a region of the file as the body, from its mapping if the server maps the files.
+	 * 
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 */
+	private void openBody(File file, long position, long count) throws IOException {
+		MappedFiles mappedFiles = this.server.getMappedFiles();
+		if (mappedFiles == null) {
+			this.openFile(file, position, count);
+			return;
+		}
+		this.mapping = mappedFiles.acquire(file);
+		this.position = position;
+		this.remaining = Math.max(0, Math.min(count, this.mapping.getLength() - position));
+		this.bodyLength = this.remaining;
+	}
+	
+	/**
+	 * Opens the region of the file that is sent as the body.
+	 * 
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 */
+	private void openFile(File file, long position, long count) throws IOException {
+		if (this.file != null) {
+			this.file.close();
+		}
+		this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.position = position;
+		this.remaining = count;
+		this.bodyLength = count;
+		if (!this.server.isZeroCopy() && this.data == null) {
+			this.data = ByteBuffer.allocateDirect(Server.getChunkSize());
+			this.data.flip();
+		}
+	}
+	
+	/**
+	 * Writes as much of the response as the client takes without blocking.
+	 * Closes the connection once the response is complete.
+	 * 
+	 * @throws IOException
+	 */
+	public void onWritable() throws IOException {
+		while (true) {
+			if (this.head != null && this.head.hasRemaining()) {
+				if (!this.write(this.head)) {
+					return;
+				}
+			}
+			
+			if (this.cached != null && this.cached.hasRemaining()) {
+				if (!this.write(this.cached)) {
+					return;
+				}
+			}
+			
+			if (this.data != null && this.data.hasRemaining()) {
+				if (!this.write(this.data)) {
+					return;
+				}
+			}
+			
+			if (this.slice != null && this.slice.hasRemaining()) {
+				if (!this.write(this.slice)) {
+					return;
+				}
+			}
+			
+			if (this.remaining > 0 && this.mapping != null) {
+				// The next slice of the mapping, at most up to the end of its segment
+				this.slice = this.mapping.slice(this.position, this.remaining);
+				this.position += this.slice.remaining();
+				this.remaining -= this.slice.remaining();
+				continue;
+			}
+			
+			if (this.remaining > 0 && this.data == null) {
+				long count = this.allow(this.remaining);
+				if (count == 0) {
+					return;
+				}
+				
+				// Let the kernel move the bytes from the file to the socket
+				long sent = this.file.transferTo(this.position, count, this.channel);
+				this.refund(count - Math.max(0, sent));
+				if (sent > 0) {
+					this.position += sent;
+					this.remaining -= sent;
+					continue;
+				}
+				if (this.position < this.file.size()) {
+					// The socket is full, wait until it is writable again
+					return;
+				}
+				// The file shrank, send what we have
+				this.remaining = 0;
+			}
+			
+			if (this.remaining > 0) {
+				// Refill the buffer from the file
+				this.data.clear();
+				if (this.data.capacity() > this.remaining) {
+					this.data.limit((int) this.remaining);
+				}
+				int read = this.file.read(this.data, this.position);
+				if (read <= 0) {
+					// The file shrank, send what we have
+					this.remaining = 0;
+				} else {
+					this.position += read;
+					this.remaining -= read;
+				}
+				this.data.flip();
+				continue;
+			}
+			
+			// A broadcast goes on with its next segment, and ends with an END frame
+			if (this.member != null) {
+				if (this.member.hasNext()) {
+					final long offset = this.member.getOffset();
+					ByteBuffer segment = this.member.poll();
+					if (segment == null) {
+						// The segment has to be read or waited for
+						final Broadcast.Member member = this.member;
+						this.offload(new Work() {
+							public boolean run() throws IOException {
+								nextSegment(offset, member.next());
+								return true;
+							}
+						});
+						return;
+					}
+					this.nextSegment(offset, segment);
+				} else {
+					this.frameHeader.clear();
+					Frame.put(this.frameHeader, Frame.END, 0, this.member.getLength(), 0);
+					this.frameHeader.flip();
+					this.head = this.frameHeader;
+					this.cached = null;
+					this.member.leave();
+					this.member = null;
+				}
+				continue;
+			}
+			
+			// The response is complete
+			if (this.verb != -1) {
+				long sent = this.bodyLength + ((this.head != null) ? this.head.limit() : 0)
+						+ ((this.cached != null) ? this.cached.limit() : 0);
+				this.server.getMetrics().record(this.verb, System.nanoTime() - this.started, sent);
+				Server.Log.debug("Served {}, {} bytes", Metrics.VERBS[this.verb], sent);
+				this.verb = -1;
+			}
+			this.bodyLength = 0;
+			this.release();
+			if (!this.keepAlive) {
+				this.close();
+				return;
+			}
+			this.head = null;
+			this.cached = null;
+			if (!this.key.isValid()) {
+				return;
+			}
+			if (!this.nextRequest()) {
+				// Wait for the next request
+				this.key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			if (this.working || !this.key.isValid()) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Writes a buffer as far as the socket and the bandwidth allow.
+	 * 
+	 * @param buffer
+	 * @return Whether all of it was written.
+	 * @throws IOException
+	 */
+	private boolean write(ByteBuffer buffer) throws IOException {
+		if (this.flow == null) {
+			this.channel.write(buffer);
+			return !buffer.hasRemaining();
+		}
+		
+		while (buffer.hasRemaining()) {
+			int allowed = (int) this.allow(buffer.remaining());
+			if (allowed == 0) {
+				return false;
+			}
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + allowed);
+			int written = this.channel.write(buffer);
+			buffer.limit(limit);
+			this.refund(allowed - written);
+			if (written < allowed) {
+				// The socket is full
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Asks for bandwidth. Without it the connection pauses until the loop resumes it.
+	 * 
+	 * @param wanted The bytes to write.
+	 * @return The bytes that may be written, 0 if the connection paused.
+	 */
+	private long allow(long wanted) {
+		if (this.flow == null) {
+			return wanted;
+		}
+		BandwidthScheduler scheduler = this.server.getBandwidthScheduler();
+		this.flow.setBulk(this.verb == Metrics.ALL || this.verb == Metrics.DELTA);
+		long now = System.nanoTime();
+		long allowed = scheduler.acquire(this.flow, wanted, now);
+		if (allowed == 0) {
+			this.resumeAt = now + Math.max(scheduler.getWait(this.flow, wanted), 1000000L);
+			this.key.interestOps(0);
+			this.loop.pause(this);
+		}
+		return allowed;
+	}
+	
+	/**
+	 * Gives back bandwidth that wasn't used.
+	 * 
+	 * @param unused
+	 */
+	private void refund(long unused) {
+		if (this.flow != null && unused > 0) {
+			this.server.getBandwidthScheduler().refund(this.flow, unused);
+		}
+	}
+	
+	/**
+	 * @return When a paused connection may write again, in System.nanoTime().
+	 */
+	long getResumeAt() {
+		return this.resumeAt;
+	}
+	
+	/**
+	 * Lets a paused connection write again.
+	 */
+	void resume() {
+		if (this.key.isValid() && !this.working) {
+			this.key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * Sends a segment of a broadcast as a DATA frame.
+	 * 
+	 * @param offset Where the segment goes in the file.
+	 * @param segment
+	 */
+	private void nextSegment(long offset, ByteBuffer segment) {
+		this.cached = segment;
+		this.frameHeader.clear();
+		Frame.put(this.frameHeader, Frame.DATA, 0, offset, segment.remaining());
+		this.frameHeader.flip();
+		this.head = this.frameHeader;
+		this.bodyLength += Frame.HEADER + segment.remaining();
+	}
+	
+	/**
+	 * Lets go of a shared read, of the mapping and of the broadcast.
+	 */
+	private void release() {
+		if (this.mapping != null) {
+			this.server.getMappedFiles().release(this.mapping);
+			this.mapping = null;
+			this.slice = null;
+		}
+		if (this.shared != null) {
+			this.server.getChunkReads().release(this.shared);
+			this.shared = null;
+		}
+		if (this.member != null) {
+			this.member.leave();
+			this.member = null;
+		}
+	}
+	
+	/**
+	 * Closes the connection and the file.
+	 */
+	public void close() {
+		if (!this.closed) {
+			this.closed = true;
+			this.server.getMetrics().connectionClosed();
+			if (this.flow != null) {
+				this.server.getBandwidthScheduler().close(this.flow);
+			}
+			this.release();
+		}
+		this.key.cancel();
+		try {
+			this.channel.close();
+			if (this.file != null) {
+				this.file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+/**
+ * Shapes the bandwidth of the non-blocking server with token buckets: one for all connections together
+ * and one per client address. A connection asks for tokens before it writes; while there are too few,
+ * it pauses and its event-loop resumes it when enough have come in.
+ * 
+ * When the global bucket runs short, connections get their turns by start-time fair queuing:
+ * a connection that had to wait is queued by its virtual start time and only the first in the queue
+ * may take tokens. A connection's virtual time advances by the bytes it sent divided by its weight,
+ * and small requests weigh INTERACTIVE times more than ALL and DELTA, so a chunk fetch doesn't wait
+ * behind the bulk downloads that share the link.
+ */
+class BandwidthScheduler {
+	
+	/**
+	 * The most bytes a connection gets at once, and the least it waits for.
+	 */
+	static final int QUANTUM = 65536;
+	static final int MIN_GRANT = 8192;
+	
+	/**
+	 * The weight of requests for chunks, lists and metadata, against a weight of 1 for ALL and DELTA.
+	 */
+	static final double INTERACTIVE = 16;
+	
+	/**
+	 * The bucket all connections take from, null if only the clients are limited.
+	 */
+	private TokenBucket global;
+	
+	/**
+	 * The rate every client address may send at, 0 for no limit.
+	 */
+	private long clientRate;
+	
+	/**
+	 * The buckets and counters of the client addresses.
+	 */
+	private java.util.concurrent.ConcurrentHashMap<String, Share> shares;
+	
+	/**
+	 * The connections that wait for global tokens, by their virtual start time.
+	 */
+	private java.util.TreeSet<Flow> backlog;
+	
+	/**
+	 * The virtual time: the start time of the connection that was served last.
+	 */
+	private double virtualTime;
+	
+	/**
+	 * Numbers the connections, so equal start times are ordered.
+	 */
+	private long flows;
+	
+	/**
+	 * Constructor for the scheduler.
+	 * 
+	 * @param globalRate The bytes per second all connections together may send, 0 for no limit.
+	 * @param clientRate The bytes per second every client address may send, 0 for no limit.
+	 */
+	public BandwidthScheduler(long globalRate, long clientRate) {
+		this.global = (globalRate > 0) ? new TokenBucket(globalRate) : null;
+		this.clientRate = clientRate;
+		this.shares = new java.util.concurrent.ConcurrentHashMap<String, Share>();
+		this.backlog = new java.util.TreeSet<Flow>(new java.util.Comparator<Flow>() {
+			public int compare(Flow a, Flow b) {
+				int order = Double.compare(a.start, b.start);
+				return (order != 0) ? order : Long.compare(a.id, b.id);
+			}
+		});
+	}
+	
+	/**
+	 * Starts scheduling a connection.
+	 * 
+	 * @param client The client's address, the connections of a client share its limit.
+	 * @return
+	 */
+	public synchronized Flow open(String client) {
+		Share share = this.shares.get(client);
+		if (share == null) {
+			share = new Share((this.clientRate > 0) ? new TokenBucket(this.clientRate) : null);
+			this.shares.put(client, share);
+		}
+		Flow flow = new Flow(share, this.flows++);
+		flow.finish = this.virtualTime;
+		return flow;
+	}
+	
+	/**
+	 * Stops scheduling a connection.
+	 * 
+	 * @param flow
+	 */
+	public synchronized void close(Flow flow) {
+		this.dequeue(flow);
+		flow.throttledSince = 0;
+	}
+	
+	/**
+	 * Takes tokens for a write.
+	 * 
+	 * @param flow
+	 * @param wanted The bytes the connection would like to write.
+	 * @param now System.nanoTime()
+	 * @return The bytes it may write, 0 if it has to wait, see getWait().
+	 */
+	public synchronized long acquire(Flow flow, long wanted, long now) {
+		if (wanted <= 0) {
+			return 0;
+		}
+		long least = Math.min(wanted, MIN_GRANT);
+		long grant = Math.min(wanted, QUANTUM);
+		
+		// The client's own limit comes first, a client that is over it doesn't queue for the link
+		TokenBucket bucket = flow.share.bucket;
+		if (bucket != null) {
+			bucket.refill(now);
+			grant = Math.min(grant, bucket.available());
+		}
+		if (grant < least) {
+			this.dequeue(flow);
+		} else if (this.global != null) {
+			this.global.refill(now);
+			if (!this.backlog.isEmpty() && this.backlog.first() != flow) {
+				// Others waited longer for the link, virtually
+				grant = 0;
+			} else {
+				grant = Math.min(grant, this.global.available());
+			}
+			if (grant < least && !flow.queued) {
+				flow.start = Math.max(this.virtualTime, flow.finish);
+				flow.queued = true;
+				this.backlog.add(flow);
+			}
+		}
+		if (grant < least) {
+			if (flow.throttledSince == 0) {
+				flow.throttledSince = now;
+			}
+			return 0;
+		}
+		
+		if (bucket != null) {
+			bucket.take(grant);
+		}
+		if (this.global != null) {
+			this.global.take(grant);
+		}
+		if (flow.queued) {
+			this.dequeue(flow);
+		} else {
+			flow.start = Math.max(this.virtualTime, flow.finish);
+		}
+		this.virtualTime = flow.start;
+		flow.finish = flow.start + grant / flow.weight;
+		
+		if (flow.throttledSince != 0) {
+			flow.share.throttled.add(now - flow.throttledSince);
+			flow.throttledSince = 0;
+		}
+		flow.share.bytes.add(grant);
+		return grant;
+	}
+	
+	/**
+	 * Gives back tokens a connection took but couldn't write, because the socket was full.
+	 * 
+	 * @param flow
+	 * @param unused
+	 */
+	public synchronized void refund(Flow flow, long unused) {
+		if (unused <= 0) {
+			return;
+		}
+		if (flow.share.bucket != null) {
+			flow.share.bucket.take(-unused);
+		}
+		if (this.global != null) {
+			this.global.take(-unused);
+		}
+		flow.share.bytes.add(-unused);
+		flow.finish -= unused / flow.weight;
+	}
+	
+	/**
+	 * How long a connection that got no tokens should wait before it asks again.
+	 * A queued connection waits until the ones before it could have had their turn.
+	 * 
+	 * @param flow
+	 * @param wanted
+	 * @return The wait in nanoseconds.
+	 */
+	public synchronized long getWait(Flow flow, long wanted) {
+		long least = Math.min(wanted, MIN_GRANT);
+		long wait = 0;
+		if (flow.share.bucket != null) {
+			wait = flow.share.bucket.getWait(least);
+		}
+		if (this.global != null && flow.queued) {
+			int ahead = this.backlog.headSet(flow).size();
+			wait = Math.max(wait, this.global.getWait(least * (ahead + 1)));
+		}
+		return wait;
+	}
+	
+	/**
+	 * How long the clients had to wait for tokens.
+	 * 
+	 * @return The nanoseconds per client address.
+	 */
+	public java.util.Map<String, Long> getThrottledTimes() {
+		java.util.Map<String, Long> times = new java.util.TreeMap<String, Long>();
+		for (java.util.Map.Entry<String, Share> share : this.shares.entrySet()) {
+			times.put(share.getKey(), share.getValue().throttled.sum());
+		}
+		return times;
+	}
+	
+	/**
+	 * The bytes the clients were granted.
+	 * 
+	 * @return The bytes per client address.
+	 */
+	public java.util.Map<String, Long> getBytes() {
+		java.util.Map<String, Long> bytes = new java.util.TreeMap<String, Long>();
+		for (java.util.Map.Entry<String, Share> share : this.shares.entrySet()) {
+			bytes.put(share.getKey(), share.getValue().bytes.sum());
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Takes a connection out of the queue.
+	 * 
+	 * @param flow
+	 */
+	private void dequeue(Flow flow) {
+		if (flow.queued) {
+			this.backlog.remove(flow);
+			flow.queued = false;
+		}
+	}
+	
+	/**
+	 * A client address: its bucket and how long its connections waited.
+	 */
+	static class Share {
+		private TokenBucket bucket;
+		private LongAdder throttled;
+		private LongAdder bytes;
+		
+		Share(TokenBucket bucket) {
+			this.bucket = bucket;
+			this.throttled = new LongAdder();
+			this.bytes = new LongAdder();
+		}
+	}
+	
+	/**
+	 * A scheduled connection.
+	 */
+	static class Flow {
+		private Share share;
+		private long id;
+		private double weight;
+		
+		/**
+		 * The virtual start and finish time of the last grant, whether the connection is queued
+		 * and since when it waits for tokens, 0 if it doesn't.
+		 */
+		private double start;
+		private double finish;
+		private boolean queued;
+		private long throttledSince;
+		
+		Flow(Share share, long id) {
+			this.share = share;
+			this.id = id;
+			this.weight = INTERACTIVE;
+		}
+		
+		/**
+		 * @param bulk Whether the connection is sending a whole file.
+		 */
+		void setBulk(boolean bulk) {
+			this.weight = bulk ? 1 : INTERACTIVE;
+		}
+	}
+}
+
+/**
+ * A token bucket: tokens come in at a fixed rate, up to a burst of a twentieth of a second,
+ * and a byte may be sent for every token taken.
+ * Not thread-safe, the BandwidthScheduler locks around it.
+ */
+class TokenBucket {
+	
+	/**
+	 * The tokens per second and the most tokens the bucket holds.
+	 */
+	private long rate;
+	private double burst;
+	
+	/**
+	 * The tokens in the bucket and when it was refilled last.
+	 */
+	private double tokens;
+	private long refilled;
+	
+	/**
+	 * Constructor for a full bucket.
+	 * 
+	 * @param rate The tokens per second.
+	 */
+	public TokenBucket(long rate) {
+		this.rate = rate;
+		this.burst = Math.max(BandwidthScheduler.QUANTUM, rate / 20.0);
+		this.tokens = this.burst;
+		this.refilled = System.nanoTime();
+	}
+	
+	/**
+	 * Adds the tokens that came in since the last refill.
+	 * 
+	 * @param now System.nanoTime()
+	 */
+	public void refill(long now) {
+		if (now > this.refilled) {
+			this.tokens = Math.min(this.burst, this.tokens + (now - this.refilled) * this.rate / 1e9);
+			this.refilled = now;
+		}
+	}
+	
+	/**
+	 * @return The whole tokens in the bucket.
+	 */
+	public long available() {
+		return (long) Math.max(0, this.tokens);
+	}
+	
+	/**
+	 * Takes tokens, negative to give them back.
+	 * 
+	 * @param tokens
+	 */
+	public void take(long tokens) {
+		this.tokens = Math.min(this.burst, this.tokens - tokens);
+	}
+	
+	/**
+	 * @param tokens
+	 * @return The nanoseconds until the bucket holds the tokens.
+	 */
+	public long getWait(long tokens) {
+		double missing = tokens - this.tokens;
+		return (missing <= 0) ? 0 : (long) (missing * 1e9 / this.rate);
+	}
+}
+
+/**
+ * Loopback load test for the non-blocking server.
+ * Serves a generated file and lets more and more concurrent clients fetch random chunks,
+ * printing the throughput for every level of concurrency.
+ * 
+ * Usage: ReactorLoadTest [chunks] [seconds per level] [event-loops] [levels...]
+ */
+class ReactorLoadTest {
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int chunks  = (args.length > 0) ? Integer.parseInt(args[0]) : 192;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int[] levels = {1, 4, 16, 64, 256, 1024, 2048};
+		if (args.length > 3) {
+			levels = new int[args.length - 3];
+			for (int i = 3; i < args.length; i++) {
+				levels[i - 3] = Integer.parseInt(args[i]);
+			}
+		}
+		
+		File file = createFile((long) chunks * Server.getChunkSize());
+		
+		// Start the server on an ephemeral port
+		final Server server = new Server(0, file.getPath());
+		final int eventLoops = threads;
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.serveNonBlocking(eventLoops);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "reactor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		final int port = server.getPort();
+		final String[] hashes = list(port);
+		
+		System.out.println("event-loops: " + threads + ", chunks: " + hashes.length);
+		System.out.println("clients\trequests/s\tMiB/s\terrors");
+		for (int level : levels) {
+			run(port, hashes, level, seconds);
+		}
+		
+		server.close();
+	}
+	
+	/**
+	 * Generates a temporary file with random content.
+	 * 
+	 * @param size The size in bytes.
+	 * @return
+	 * @throws IOException
+	 */
+	static File createFile(long size) throws IOException {
+		File file = File.createTempFile("chunk-server", ".bin");
+		file.deleteOnExit();
+		byte[] chunk = new byte[Server.getChunkSize()];
+		Random random = new Random(42);
+		java.io.FileOutputStream fileOut = new java.io.FileOutputStream(file);
+		for (long written = 0; written < size; written += chunk.length) {
+			random.nextBytes(chunk);
+			fileOut.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+		}
+		fileOut.close();
+		return file;
+	}
+	
+	/**
+	 * Fetches the chunk-list.
+	 * 
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	static String[] list(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+		out.println("LIST");
+		Scanner in = new Scanner(socket.getInputStream());
+		List<String> hashes = new ArrayList<String>();
+		while (in.hasNextLine()) {
+			hashes.add(in.nextLine());
+		}
+		socket.close();
+		return hashes.toArray(new String[hashes.size()]);
+	}
+	
+	/**
+	 * Runs one level of concurrency and prints the result.
+	 * 
+	 * @param port
+	 * @param hashes
+	 * @param clients
+	 * @param seconds
+	 * @throws InterruptedException
+	 */
+	private static void run(final int port, final String[] hashes, int clients, int seconds) throws InterruptedException {
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong bytes    = new AtomicLong();
+		final AtomicLong errors   = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done  = new CountDownLatch(clients);
+		final long[] deadline = new long[1];
+		
+		for (int c = 0; c < clients; c++) {
+			final Random random = new Random(c);
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					byte[] buffer = new byte[Server.getChunkSize()];
+					try {
+						start.await();
+						while (System.nanoTime() < deadline[0]) {
+							try {
+								Socket socket = new Socket("localhost", port);
+								OutputStream out = socket.getOutputStream();
+								out.write(("GET:" + hashes[random.nextInt(hashes.length)] + "\n").getBytes(StandardCharsets.US_ASCII));
+								out.flush();
+								
+								// Read the offset line and the chunk until the server closes the connection
+								InputStream in = socket.getInputStream();
+								long received = 0;
+								int read;
+								while ((read = in.read(buffer)) != -1) {
+									received += read;
+								}
+								socket.close();
+								
+								requests.incrementAndGet();
+								bytes.addAndGet(received);
+							} catch (IOException e) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		
+		long begin = System.nanoTime();
+		deadline[0] = begin + seconds * 1000000000L;
+		start.countDown();
+		done.await();
+		double elapsed = (System.nanoTime() - begin) / 1e9;
+		
+		System.out.println(clients + "\t" + Math.round(requests.get() / elapsed) + "\t\t"
+				+ String.format("%.1f", bytes.get() / elapsed / (1 << 20)) + "\t" + errors.get());
+	}
+}
+
+/**
+ * Compares the stream, the zero-copy and the memory-mapped serving path on loopback.
+ * Every round downloads the whole file with ALL, then fetches every chunk with GET, a connection each,
+ * and then every chunk in random order over one binary connection with PIPELINE requests in flight,
+ * the random-access workload where a request's syscalls count most.
+ * The reactor serves, like in production.
+ * 
+ * Usage: TransferBenchmark [file-size in MiB] [rounds]
+ */
+class TransferBenchmark {
+	
+	/**
+	 * The GET-requests in flight on the binary connection.
+	 */
+	private static int PIPELINE = 16;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		long size  = ((args.length > 0) ? Long.parseLong(args[0]) : 256) << 20;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		
+		File file = ReactorLoadTest.createFile(size);
+		
+		final Server server = new Server(0, file.getPath());
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.serveNonBlocking(1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "reactor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		String[] hashes = ReactorLoadTest.list(server.getPort());
+		
+		System.out.println("path\t\tALL MiB/s\tGET MiB/s\trandom GET MiB/s\tCPU ms/GiB");
+		for (String path : new String[] {"stream", "zero-copy", "mmap", "stream", "zero-copy", "mmap"}) {
+			server.setZeroCopy(path.equals("zero-copy"));
+			server.setMemoryMapped(path.equals("mmap"));
+			
+			long cpuBefore = cpuTime();
+			long begin = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				fetch(server.getPort(), "ALL");
+			}
+			double all = (double) size * rounds / ((System.nanoTime() - begin) / 1e9);
+			
+			long bytes = 0;
+			begin = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				for (String hash : hashes) {
+					bytes += fetch(server.getPort(), "GET:" + hash);
+				}
+			}
+			double get = bytes / ((System.nanoTime() - begin) / 1e9);
+			
+			long randomBytes = 0;
+			Random random = new Random(42);
+			begin = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				randomBytes += fetchChunks(server.getPort(), hashes.length, random);
+			}
+			double randomGet = randomBytes / ((System.nanoTime() - begin) / 1e9);
+			double cpu = (cpuTime() - cpuBefore) / 1e6 / ((double) (size * rounds + bytes + randomBytes) / (1 << 30));
+			
+			System.out.println(path + "\t" + (path.length() < 8 ? "\t" : "")
+					+ String.format("%.0f", all / (1 << 20)) + "\t\t"
+					+ String.format("%.0f", get / (1 << 20)) + "\t\t"
+					+ String.format("%.0f", randomGet / (1 << 20)) + "\t\t\t"
+					+ String.format("%.0f", cpu));
+		}
+		
+		server.close();
+	}
+	
+	/**
+	 * Sends a request and reads the response until the server closes the connection.
+	 * 
+	 * @param port
+	 * @param request
+	 * @return The number of bytes received.
+	 * @throws IOException
+	 */
+	private static long fetch(int port, String request) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		OutputStream out = socket.getOutputStream();
+		out.write((request + "\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		
+		InputStream in = socket.getInputStream();
+		byte[] buffer = new byte[1 << 16];
+		long received = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			received += read;
+		}
+		socket.close();
+		return received;
+	}
+	
+	/**
+	 * Fetches every chunk once, in random order, over one binary connection.
+	 * 
+	 * @param port
+	 * @param chunks The number of chunks.
+	 * @param random
+	 * @return The number of bytes received.
+	 * @throws IOException
+	 */
+	private static long fetchChunks(int port, int chunks, Random random) throws IOException {
+		int[] order = new int[chunks];
+		for (int i = 0; i < chunks; i++) {
+			order[i] = i + 1;
+		}
+		for (int i = chunks - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		
+		Socket socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);
+		OutputStream out = new java.io.BufferedOutputStream(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+		
+		byte[] headerBytes = new byte[Frame.HEADER];
+		ByteBuffer header = ByteBuffer.wrap(headerBytes);
+		byte[] buffer = new byte[0];
+		long received = 0;
+		int sent = 0;
+		for (int done = 0; done < chunks; done++) {
+			// Keep the pipeline full
+			while (sent < chunks && sent - done < PIPELINE) {
+				header.clear();
+				Frame.put(header, Frame.GET, order[sent++], 0, 0);
+				out.write(headerBytes);
+			}
+			out.flush();
+			
+			in.readFully(headerBytes);
+			int len = (int) Frame.length(header);
+			if (buffer.length < len) {
+				buffer = new byte[len];
+			}
+			in.readFully(buffer, 0, len);
+			received += Frame.HEADER + len;
+		}
+		socket.close();
+		return received;
+	}
+	
+	/**
+	 * The CPU time used by the whole process, in nanoseconds. Client and server run in the same process.
+	 * 
+	 * @return
+	 */
+	private static long cpuTime() {
+		java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return 0;
+	}
+}
+
+/**
+ * A Merkle tree over a chunk-list, so a client can check any part of the list against the root alone.
+ * 
+ * A leaf is the SHA-256 digest of 0x00 and the chunk's hash as text, an inner node the digest of 0x01
+ * and its two children. A node without a sibling, the last of an odd level, moves up unchanged.
+ * The list is served in pages of PAGE chunks. As PAGE is a power of two, a page is a subtree: the client
+ * builds its root from the page's hashes and checks it against the root with the page's proof,
+ * the siblings on the way up. A chunk is checked in O(log n) hashes, and the pages can be fetched
+ * one after another while the download already runs.
+ * 
+ * Only the levels from the pages upwards are kept, a page's subtree is quickly rebuilt from the hashes.
+ * This has to match the client's Merkle.
+ */
+class MerkleTree {
+	
+	/**
+	 * The chunks of a page, and its level in the tree.
+	 */
+	static final int PAGE = 1024;
+	static final int PAGE_LEVEL = 10;
+	
+	/**
+	 * The length of a node.
+	 */
+	static final int HASH = 32;
+	
+	/**
+	 * The levels from the pages' roots up to the root, levels[0] are the pages' roots.
+	 */
+	private byte[][][] levels;
+	
+	/**
+	 * Constructor for the tree, hashes all leaves.
+	 * 
+	 * @param hashes The chunks' hashes in file order.
+	 */
+	public MerkleTree(String[] hashes) {
+		int pages = Math.max(1, (hashes.length + PAGE - 1) / PAGE);
+		List<byte[][]> levels = new ArrayList<byte[][]>();
+		byte[][] level = new byte[pages][];
+		for (int page = 0; page < pages; page++) {
+			int from = page * PAGE;
+			level[page] = pageRoot(Arrays.copyOfRange(hashes, Math.min(from, hashes.length), Math.min(from + PAGE, hashes.length)));
+		}
+		levels.add(level);
+		while (level.length > 1) {
+			level = up(level);
+			levels.add(level);
+		}
+		this.levels = levels.toArray(new byte[levels.size()][][]);
+	}
+	
+	/**
+	 * @return The root.
+	 */
+	public byte[] getRoot() {
+		return this.levels[this.levels.length - 1][0];
+	}
+	
+	/**
+	 * @return The number of pages.
+	 */
+	public int getPageCount() {
+		return this.levels[0].length;
+	}
+	
+	/**
+	 * The siblings on the way from a page's root to the root, lowest first.
+	 * Levels where the node has no sibling have no entry.
+	 * 
+	 * @param page
+	 * @return
+	 */
+	public List<byte[]> getProof(int page) {
+		List<byte[]> proof = new ArrayList<byte[]>();
+		int node = page;
+		for (int i = 0; i < this.levels.length - 1; i++) {
+			int sibling = node ^ 1;
+			if (sibling < this.levels[i].length) {
+				proof.add(this.levels[i][sibling]);
+			}
+			node >>= 1;
+		}
+		return proof;
+	}
+	
+	/**
+	 * The root of a page's subtree.
+	 * 
+	 * @param hashes The page's chunk hashes.
+	 * @return
+	 */
+	static byte[] pageRoot(String[] hashes) {
+		if (hashes.length == 0) {
+			return digest().digest();
+		}
+		MessageDigest digest = digest();
+		byte[][] level = new byte[hashes.length][];
+		for (int i = 0; i < hashes.length; i++) {
+			digest.update((byte) 0);
+			digest.update(hashes[i].getBytes(StandardCharsets.US_ASCII));
+			level[i] = digest.digest();
+		}
+		while (level.length > 1) {
+			level = up(level);
+		}
+		return level[0];
+	}
+	
+	/**
+	 * @param level
+	 * @return The level above.
+	 */
+	private static byte[][] up(byte[][] level) {
+		MessageDigest digest = digest();
+		byte[][] parents = new byte[(level.length + 1) / 2][];
+		for (int i = 0; i < parents.length; i++) {
+			if (2 * i + 1 < level.length) {
+				digest.update((byte) 1);
+				digest.update(level[2 * i]);
+				digest.update(level[2 * i + 1]);
+				parents[i] = digest.digest();
+			} else {
+				parents[i] = level[2 * i];
+			}
+		}
+		return parents;
+	}
+	
+	/**
+	 * @return A new SHA-256 digest.
+	 */
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
+
+/**
+ * A lightweight tracker for swarm downloads: remembers which clients re-serve the chunks of which file.
+ * A client announces itself with every PEERS-request and is forgotten when it hasn't announced
+ * for a while, so clients that went away drop out on their own.
+ * It only hands out addresses, which chunks a peer has the clients ask the peer.
+ */
+class Tracker {
+	
+	/**
+	 * How long a peer is remembered after its last announce, in milliseconds.
+	 */
+	static final long TTL = 60000;
+	
+	/**
+	 * How many peers an announce gets at most.
+	 */
+	static final int MAX_PEERS = 50;
+	
+	/**
+	 * The peers of every file and when they last announced.
+	 */
+	private java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.ConcurrentHashMap<String, Long>> swarms;
+	
+	private long ttl;
+	private int maxPeers;
+	
+	/**
+	 * Constructor for the tracker.
+	 * 
+	 * @param ttl How long a peer is remembered after its last announce, in milliseconds.
+	 * @param maxPeers How many peers an announce gets at most.
+	 */
+	public Tracker(long ttl, int maxPeers) {
+		this.swarms = new java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.ConcurrentHashMap<String, Long>>();
+		this.ttl = ttl;
+		this.maxPeers = maxPeers;
+	}
+	
+	/**
+	 * Announces a peer and returns the others. If there are more than maxPeers a random choice is returned,
+	 * so the clients of a big swarm don't all crowd the same peers.
+	 * 
+	 * @param swarm The file.
+	 * @param peer "host:port", null if the client doesn't serve chunks.
+	 * @return The other peers of the swarm.
+	 */
+	public List<String> announce(String swarm, String peer) {
+		java.util.concurrent.ConcurrentHashMap<String, Long> peers = this.swarms.get(swarm);
+		if (peers == null) {
+			java.util.concurrent.ConcurrentHashMap<String, Long> created = new java.util.concurrent.ConcurrentHashMap<String, Long>();
+			peers = this.swarms.putIfAbsent(swarm, created);
+			if (peers == null) {
+				peers = created;
+			}
+		}
+		
+		long now = System.currentTimeMillis();
+		if (peer != null) {
+			peers.put(peer, now);
+		}
+		
+		List<String> others = new ArrayList<String>();
+		Iterator<java.util.Map.Entry<String, Long>> entries = peers.entrySet().iterator();
+		while (entries.hasNext()) {
+			java.util.Map.Entry<String, Long> entry = entries.next();
+			if (now - entry.getValue().longValue() > this.ttl) {
+				entries.remove();
+			} else if (!entry.getKey().equals(peer)) {
+				others.add(entry.getKey());
+			}
+		}
+		
+		if (others.size() > this.maxPeers) {
+			java.util.Collections.shuffle(others);
+			others = new ArrayList<String>(others.subList(0, this.maxPeers));
+		}
+		return others;
+	}
+	
+	/**
+	 * @param swarm
+	 * @return The number of peers the tracker knows for the file.
+	 */
+	public int getPeerCount(String swarm) {
+		java.util.concurrent.ConcurrentHashMap<String, Long> peers = this.swarms.get(swarm);
+		return (peers == null) ? 0 : peers.size();
+	}
+}
+
+/**
+ * A reproducible load benchmark: serves generated files on loopback and drives simulated clients
+ * against them. Every client runs a closed loop: pick a request from the mix, send it, wait for
+ * the whole response, think, repeat. Everything is seeded, so two runs issue the same requests.
+ * 
+ * Reports the throughput, the latency quantiles per verb and the CPU the server threads used
+ * per GiB served. The last line is a single "key=value" record, to be kept for regression tracking.
+ * 
+ * Usage: LoadBenchmark [option=value...]
+ *   files=n      - the number of generated files (1)
+ *   size=n       - the size of a file in MiB (64)
+ *   clients=n    - the number of simulated clients (16)
+ *   seconds=n    - how long the load is measured (10)
+ *   warmup=n     - how long the load runs before it is measured (2)
+ *   think=n      - the mean think time between requests in ms, exponentially distributed (0)
+ *   mix=list     - the request mix as VERB:weight pairs (GET:90,STAT:5,LIST:3,ALL:2)
+ *   protocol=p   - binary, keepalive or close, a connection per request (binary)
+ *   server=s     - nio or blocking, blocking serves one connection at a time and needs protocol=close (nio)
+ *   loops=n      - the number of event-loops (number of processors)
+ *   chunk=n      - the chunk size in KiB (16)
+ *   rate=n       - limit the server to n MiB/s, see Server.setBandwidth() (no limit)
+ *   client-rate=n - limit every client address to n MiB/s (no limit)
+ *   coalesce=b   - true to let concurrent GET-requests share reads, see Server.setCoalescing() (false)
+ *   seed=n       - the seed for the files and the clients (42)
+ */
+class LoadBenchmark {
+	
+	private int files = 1;
+	private long size = 64L << 20;
+	private int clients = 16;
+	private int seconds = 10;
+	private int warmup = 2;
+	private double think = 0;
+	private String protocol = "binary";
+	private boolean blocking = false;
+	private int loops = Runtime.getRuntime().availableProcessors();
+	private int chunkSize = Server.getChunkSize();
+	private long rate = 0;
+	private long clientRate = 0;
+	private boolean coalesce = false;
+	private long seed = 42;
+	
+	/**
+	 * The request mix: the verbs and their cumulative weights.
+	 */
+	private int[] verbs = {Metrics.GET, Metrics.STAT, Metrics.LIST, Metrics.ALL};
+	private int[] weights = {90, 95, 98, 100};
+	
+	/**
+	 * The served files' names and their chunk-lists.
+	 */
+	private String[] names;
+	private String[][] hashes;
+	private int port;
+	
+	/**
+	 * The measurements: a histogram per verb and one for all requests, the bytes received and the errors.
+	 */
+	private LatencyHistogram[] latencies;
+	private LatencyHistogram total;
+	private LongAdder bytes;
+	private LongAdder errors;
+	
+	/**
+	 * Whether the requests are measured, and whether the clients should stop.
+	 */
+	private volatile boolean recording;
+	private volatile boolean stopped;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadBenchmark benchmark = new LoadBenchmark();
+		for (String arg : args) {
+			benchmark.set(arg);
+		}
+		benchmark.run();
+	}
+	
+	/**
+	 * Sets an option.
+	 * 
+	 * @param option name=value
+	 */
+	private void set(String option) {
+		String[] parts = option.split("=", 2);
+		String value = (parts.length > 1) ? parts[1] : "";
+		if (parts[0].equals("files")) {
+			this.files = Integer.parseInt(value);
+		} else if (parts[0].equals("size")) {
+			this.size = Long.parseLong(value) << 20;
+		} else if (parts[0].equals("clients")) {
+			this.clients = Integer.parseInt(value);
+		} else if (parts[0].equals("seconds")) {
+			this.seconds = Integer.parseInt(value);
+		} else if (parts[0].equals("warmup")) {
+			this.warmup = Integer.parseInt(value);
+		} else if (parts[0].equals("think")) {
+			this.think = Double.parseDouble(value);
+		} else if (parts[0].equals("protocol")) {
+			this.protocol = value;
+		} else if (parts[0].equals("server")) {
+			this.blocking = value.equals("blocking");
+		} else if (parts[0].equals("loops")) {
+			this.loops = Integer.parseInt(value);
+		} else if (parts[0].equals("chunk")) {
+			this.chunkSize = Integer.parseInt(value) << 10;
+		} else if (parts[0].equals("rate")) {
+			this.rate = (long) (Double.parseDouble(value) * (1 << 20));
+		} else if (parts[0].equals("client-rate")) {
+			this.clientRate = (long) (Double.parseDouble(value) * (1 << 20));
+		} else if (parts[0].equals("coalesce")) {
+			this.coalesce = Boolean.parseBoolean(value);
+		} else if (parts[0].equals("seed")) {
+			this.seed = Long.parseLong(value);
+		} else if (parts[0].equals("mix")) {
+			String[] pairs = value.split(",");
+			this.verbs = new int[pairs.length];
+			this.weights = new int[pairs.length];
+			int sum = 0;
+			for (int i = 0; i < pairs.length; i++) {
+				String[] pair = pairs[i].split(":");
+				this.verbs[i] = Metrics.verb(pair[0]);
+				if (this.verbs[i] == -1 || this.verbs[i] > Metrics.STAT) {
+					throw new IllegalArgumentException("Can't generate " + pair[0]);
+				}
+				sum += Integer.parseInt(pair[1]);
+				this.weights[i] = sum;
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown option: " + option);
+		}
+	}
+	
+	/**
+	 * Runs the benchmark and prints the report.
+	 * 
+	 * @throws Exception
+	 */
+	private void run() throws Exception {
+		if (this.blocking && !this.protocol.equals("close")) {
+			System.out.println("The blocking server serves one connection at a time, using protocol=close");
+			this.protocol = "close";
+		}
+		
+		// Generate the files
+		File directory = java.nio.file.Files.createTempDirectory("load-benchmark").toFile();
+		directory.deleteOnExit();
+		Random random = new Random(this.seed);
+		this.names = new String[this.files];
+		byte[] block = new byte[1 << 16];
+		for (int i = 0; i < this.files; i++) {
+			this.names[i] = "file-" + i + ".bin";
+			File file = new File(directory, this.names[i]);
+			file.deleteOnExit();
+			java.io.FileOutputStream fileOut = new java.io.FileOutputStream(file);
+			for (long written = 0; written < this.size; written += block.length) {
+				random.nextBytes(block);
+				fileOut.write(block, 0, (int) Math.min(block.length, this.size - written));
+			}
+			fileOut.close();
+		}
+		
+		// Start the server
+		final Server server = new Server(0, directory.getPath());
+		server.setChunkSize(this.chunkSize);
+		server.setBandwidth(this.rate, this.clientRate);
+		server.setCoalescing(this.coalesce);
+		this.port = server.getPort();
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (blocking) {
+						while (!stopped) {
+							server.handleRequest();
+						}
+					} else {
+						server.serveNonBlocking(loops);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, blocking ? "server" : "reactor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		// Fetch the chunk-lists, the clients pick their chunks from them
+		this.hashes = new String[this.files][];
+		for (int i = 0; i < this.files; i++) {
+			Socket socket = new Socket("localhost", this.port);
+			socket.getOutputStream().write(("LIST:" + this.names[i] + "\n").getBytes(StandardCharsets.US_ASCII));
+			Scanner in = new Scanner(socket.getInputStream());
+			List<String> list = new ArrayList<String>();
+			while (in.hasNextLine()) {
+				list.add(in.nextLine());
+			}
+			socket.close();
+			this.hashes[i] = list.toArray(new String[list.size()]);
+		}
+		
+		this.latencies = new LatencyHistogram[Metrics.VERBS.length];
+		for (int i = 0; i < this.latencies.length; i++) {
+			this.latencies[i] = new LatencyHistogram();
+		}
+		this.total = new LatencyHistogram();
+		this.bytes = new LongAdder();
+		this.errors = new LongAdder();
+		
+		// The server logs to the console, keep the report readable
+		java.io.PrintStream console = System.out;
+		System.setOut(new java.io.PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		
+		Thread[] threads = new Thread[this.clients];
+		for (int i = 0; i < this.clients; i++) {
+			final long clientSeed = this.seed * 31 + i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					simulate(new Random(clientSeed));
+				}
+			}, "client-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		
+		long cpuBefore;
+		long begin;
+		double elapsed;
+		long serverCpu;
+		try {
+			Thread.sleep(this.warmup * 1000L);
+			cpuBefore = serverCpuTime();
+			begin = System.nanoTime();
+			this.recording = true;
+			Thread.sleep(this.seconds * 1000L);
+			this.recording = false;
+			elapsed = (System.nanoTime() - begin) / 1e9;
+			serverCpu = serverCpuTime() - cpuBefore;
+			this.stopped = true;
+			for (Thread thread : threads) {
+				thread.join(5000);
+			}
+		} finally {
+			System.setOut(console);
+		}
+		if (this.blocking) {
+			// Wake the blocking server from accept(), so it sees it should stop
+			new Socket("localhost", this.port).close();
+			serverThread.join(5000);
+		}
+		server.close();
+		
+		ChunkReads reads = server.getChunkReads();
+		if (reads != null) {
+			System.out.println(reads.getReads() + " chunk reads, " + reads.getCoalesced() + " GET-requests shared one");
+		}
+		this.report(elapsed, serverCpu);
+	}
+	
+	/**
+	 * The loop of one simulated client.
+	 * 
+	 * @param random
+	 */
+	private void simulate(Random random) {
+		Socket socket = null;
+		DataInputStream in = null;
+		OutputStream out = null;
+		byte[] scratch = new byte[1 << 16];
+		
+		while (!this.stopped) {
+			try {
+				// Connect, a persistent connection only once
+				if (socket == null) {
+					socket = new Socket("localhost", this.port);
+					socket.setTcpNoDelay(true);
+					in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					out = new java.io.BufferedOutputStream(socket.getOutputStream());
+					if (this.protocol.equals("keepalive")) {
+						out.write("KEEPALIVE\n".getBytes(StandardCharsets.US_ASCII));
+					} else if (this.protocol.equals("binary")) {
+						out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+					}
+				}
+				
+				// Pick the request
+				int pick = random.nextInt(this.weights[this.weights.length - 1]);
+				int verb = this.verbs[0];
+				for (int i = 0; i < this.weights.length; i++) {
+					if (pick < this.weights[i]) {
+						verb = this.verbs[i];
+						break;
+					}
+				}
+				int file = random.nextInt(this.files);
+				int chunk = 1 + random.nextInt(Math.max(1, this.hashes[file].length));
+				
+				long start = System.nanoTime();
+				long received = this.request(verb, file, chunk, in, out, scratch);
+				long latency = System.nanoTime() - start;
+				if (this.recording) {
+					this.latencies[verb].record(latency);
+					this.total.record(latency);
+					this.bytes.add(received);
+				}
+				
+				if (this.protocol.equals("close")) {
+					socket.close();
+					socket = null;
+				}
+				
+				// Think, exponentially distributed around the mean
+				if (this.think > 0) {
+					long pause = (long) (-Math.log(1 - random.nextDouble()) * this.think * 1e6);
+					Thread.sleep(pause / 1000000L, (int) (pause % 1000000L));
+				}
+			} catch (IOException e) {
+				if (this.recording) {
+					this.errors.increment();
+				}
+				try {
+					if (socket != null) {
+						socket.close();
+					}
+				} catch (IOException e2) {
+					// Already broken
+				}
+				socket = null;
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// Done anyway
+		}
+	}
+	
+	/**
+	 * Sends one request and reads the whole response.
+	 * 
+	 * @param verb
+	 * @param file
+	 * @param chunk The chunk for a GET-request.
+	 * @param in
+	 * @param out
+	 * @param scratch
+	 * @return The bytes received.
+	 * @throws IOException
+	 */
+	private long request(int verb, int file, int chunk, DataInputStream in, OutputStream out, byte[] scratch) throws IOException {
+		String name = this.names[file];
+		
+		if (this.protocol.equals("binary")) {
+			byte opcode = (verb == Metrics.ALL) ? Frame.ALL : (verb == Metrics.LIST) ? Frame.LIST
+					: (verb == Metrics.STAT) ? Frame.STAT : Frame.GET;
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + nameBytes.length);
+			Frame.put(frame, opcode, chunk, this.chunkSize, nameBytes.length);
+			frame.put(nameBytes);
+			out.write(frame.array());
+			out.flush();
+			
+			// One frame, or HASH frames up to the END frame for LIST
+			byte[] headerBytes = new byte[Frame.HEADER];
+			ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			long received = 0;
+			do {
+				in.readFully(headerBytes);
+				long length = Frame.length(header);
+				skip(in, length, scratch);
+				received += Frame.HEADER + length;
+				if (Frame.opcode(header) == Frame.ERROR) {
+					throw new IOException("Server error");
+				}
+			} while (opcode == Frame.LIST && Frame.opcode(header) != Frame.END);
+			return received;
+		}
+		
+		String request = Metrics.VERBS[verb] + ":" + ((verb == Metrics.GET) ? this.hashes[file][chunk - 1] + ":" : "") + name;
+		out.write((request + "\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		
+		if (this.protocol.equals("close")) {
+			// The server closes the connection after the response
+			long received = 0;
+			int read;
+			while ((read = in.read(scratch)) != -1) {
+				received += read;
+			}
+			return received;
+		}
+		
+		// keep-alive: the head line tells how much follows
+		String head = Server.readLine(in);
+		if (head == null) {
+			throw new EOFException("Connection closed");
+		}
+		long received = head.length() + 1;
+		String[] parts = head.split(" ");
+		if (verb == Metrics.ALL) {
+			received += skip(in, Long.parseLong(parts[0]), scratch);
+		} else if (verb == Metrics.GET) {
+			received += skip(in, Long.parseLong(parts[1]), scratch);
+		} else if (verb == Metrics.LIST) {
+			for (long i = Long.parseLong(parts[0]); i > 0; i--) {
+				received += Server.readLine(in).length() + 1;
+			}
+		}
+		return received;
+	}
+	
+	/**
+	 * Reads and drops bytes.
+	 * 
+	 * @param in
+	 * @param length
+	 * @param scratch
+	 * @return length
+	 * @throws IOException
+	 */
+	private static long skip(DataInputStream in, long length, byte[] scratch) throws IOException {
+		for (long left = length; left > 0; ) {
+			int n = (int) Math.min(scratch.length, left);
+			in.readFully(scratch, 0, n);
+			left -= n;
+		}
+		return length;
+	}
+	
+	/**
+	 * The CPU time of the server's threads: the reactor and its event-loops, or the blocking server.
+	 * The clients run in the same process, so the process' CPU time would count them too.
+	 * 
+	 * @return The CPU time in nanoseconds.
+	 */
+	private static long serverCpuTime() {
+		java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+		long cpu = 0;
+		for (java.lang.management.ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info == null) {
+				continue;
+			}
+			String name = info.getThreadName();
+			if (name.equals("server") || name.equals("reactor") || name.startsWith("event-loop-")) {
+				long time = threads.getThreadCpuTime(info.getThreadId());
+				if (time > 0) {
+					cpu += time;
+				}
+			}
+		}
+		return cpu;
+	}
+	
+	/**
+	 * Prints the results.
+	 * 
+	 * @param elapsed The measured seconds.
+	 * @param serverCpu The server's CPU time in the measured seconds, in nanoseconds.
+	 */
+	private void report(double elapsed, long serverCpu) {
+		long requests = this.total.getCount();
+		long received = this.bytes.sum();
+		double gib = (double) received / (1L << 30);
+		
+		System.out.println(this.clients + " clients, " + this.files + " x " + (this.size >> 20) + " MiB, "
+				+ this.protocol + ", " + (this.blocking ? "blocking" : this.loops + " event-loops") + ", "
+				+ (this.chunkSize >> 10) + " KiB chunks, think " + this.think + " ms");
+		System.out.println("verb	requests	p50 ms	p99 ms	p999 ms");
+		for (int i = 0; i < this.latencies.length; i++) {
+			if (this.latencies[i].getCount() > 0) {
+				System.out.println(Metrics.VERBS[i] + "\t" + this.latencies[i].getCount() + "\t\t" + quantiles(this.latencies[i]));
+			}
+		}
+		System.out.println("total\t" + requests + "\t\t" + quantiles(this.total));
+		System.out.println(String.format("%.0f requests/s, %.1f MiB/s, %d errors, %.0f server CPU ms/GiB",
+				requests / elapsed, received / elapsed / (1 << 20), this.errors.sum(),
+				(gib > 0) ? serverCpu / 1e6 / gib : 0.0));
+		
+		System.out.println(String.format(java.util.Locale.ROOT,
+				"RESULT clients=%d protocol=%s rps=%.1f mibps=%.2f p50_ms=%.3f p99_ms=%.3f p999_ms=%.3f cpu_ms_per_gib=%.1f errors=%d",
+				this.clients, this.protocol, requests / elapsed, received / elapsed / (1 << 20),
+				this.total.quantile(0.5) / 1e6, this.total.quantile(0.99) / 1e6, this.total.quantile(0.999) / 1e6,
+				(gib > 0) ? serverCpu / 1e6 / gib : 0.0, this.errors.sum()));
+	}
+	
+	/**
+	 * @param histogram
+	 * @return p50, p99 and p999 in ms, tab-separated.
+	 */
+	private static String quantiles(LatencyHistogram histogram) {
+		return String.format("%.3f\t%.3f\t%.3f", histogram.quantile(0.5) / 1e6,
+				histogram.quantile(0.99) / 1e6, histogram.quantile(0.999) / 1e6);
+	}
+}
+
+/**
+ * The server's instrumentation: a latency histogram per verb, the bytes sent, the connections
+ * and the state of the caches. Recording is cheap enough for every request: a few atomic adds,
+ * no locks and no allocation.
+ * 
+ * The metrics are read as a snapshot of named series, the names follow Prometheus' conventions.
+ */
+class Metrics {
+	
+	/**
+	 * The verbs that are measured.
+	 */
+	static final int ALL = 0;
+	static final int LIST = 1;
+	static final int GET = 2;
+	static final int STAT = 3;
+	static final int DELTA = 4;
+	static final int PEERS = 5;
+	static final String[] VERBS = {"ALL", "LIST", "GET", "STAT", "DELTA", "PEERS"};
+	
+	/**
+	 * The quantiles that are reported for every verb.
+	 */
+	private static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	
+	/**
+	 * The server whose caches are reported.
+	 */
+	private Server server;
+	
+	/**
+	 * A histogram of the latencies per verb.
+	 */
+	private LatencyHistogram[] latencies;
+	
+	/**
+	 * The bytes sent, the requests that failed.
+	 */
+	private LongAdder bytesSent;
+	private LongAdder errors;
+	
+	/**
+	 * The open connections and all connections so far.
+	 */
+	private AtomicInteger activeConnections;
+	private LongAdder connections;
+	
+	/**
+	 * The rate bytes were sent at between the last two samples, see sample().
+	 */
+	private volatile double bytesPerSecond;
+	private long sampledBytes;
+	private long sampledAt;
+	
+	/**
+	 * Writes and serves the metrics, created when it is first needed.
+	 */
+	private MetricsExporter exporter;
+	
+	/**
+	 * Constructor for the metrics.
+	 * 
+	 * @param server
+	 */
+	public Metrics(Server server) {
+		this.server = server;
+		this.latencies = new LatencyHistogram[VERBS.length];
+		for (int i = 0; i < VERBS.length; i++) {
+			this.latencies[i] = new LatencyHistogram();
+		}
+		this.bytesSent = new LongAdder();
+		this.errors = new LongAdder();
+		this.activeConnections = new AtomicInteger();
+		this.connections = new LongAdder();
+		this.sampledAt = System.nanoTime();
+	}
+	
+	/**
+	 * @param verb A request verb like GET.
+	 * @return The verb's index, -1 if it isn't measured.
+	 */
+	static int verb(String verb) {
+		for (int i = 0; i < VERBS.length; i++) {
+			if (VERBS[i].equals(verb)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param opcode A request opcode like Frame.GET.
+	 * @return The verb's index, -1 if it isn't measured.
+	 */
+	static int verb(byte opcode) {
+		switch (opcode) {
+		case Frame.ALL:
+			return ALL;
+		case Frame.LIST:
+		case Frame.PAGE:
+			return LIST;
+		case Frame.GET:
+			return GET;
+		case Frame.STAT:
+		case Frame.ROOT:
+			return STAT;
+		case Frame.DELTA:
+			return DELTA;
+		default:
+			return -1;
+		}
+	}
+	
+	/**
+	 * Records a served request.
+	 * 
+	 * @param verb The verb's index, requests with -1 aren't recorded.
+	 * @param nanos From the complete request to the last byte of the response.
+	 * @param bytes The bytes of the response.
+	 */
+	public void record(int verb, long nanos, long bytes) {
+		if (verb < 0) {
+			return;
+		}
+		this.latencies[verb].record(nanos);
+		this.bytesSent.add(bytes);
+	}
+	
+	/**
+	 * Counts a request that couldn't be served.
+	 */
+	public void error() {
+		this.errors.increment();
+	}
+	
+	public void connectionOpened() {
+		this.activeConnections.incrementAndGet();
+		this.connections.increment();
+	}
+	
+	public void connectionClosed() {
+		this.activeConnections.decrementAndGet();
+	}
+	
+	/**
+	 * Updates the rate of bytes sent. Called once a second by the exporter.
+	 */
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		long bytes = this.bytesSent.sum();
+		if (now > this.sampledAt) {
+			this.bytesPerSecond = (bytes - this.sampledBytes) * 1e9 / (now - this.sampledAt);
+		}
+		this.sampledBytes = bytes;
+		this.sampledAt = now;
+	}
+	
+	/**
+	 * @return The exporter, it is started on the first call.
+	 */
+	public synchronized MetricsExporter getExporter() {
+		if (this.exporter == null) {
+			this.exporter = new MetricsExporter(this);
+			Thread thread = new Thread(this.exporter, "metrics");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return this.exporter;
+	}
+	
+	/**
+	 * Reads all metrics.
+	 * 
+	 * @return The series' names and values, in a fixed order.
+	 */
+	public java.util.Map<String, Double> snapshot() {
+		java.util.Map<String, Double> series = new java.util.LinkedHashMap<String, Double>();
+		for (int i = 0; i < VERBS.length; i++) {
+			LatencyHistogram histogram = this.latencies[i];
+			String verb = "verb=\"" + VERBS[i] + "\"";
+			for (double quantile : QUANTILES) {
+				series.put("server_request_seconds{" + verb + ",quantile=\"" + quantile + "\"}",
+						histogram.quantile(quantile) / 1e9);
+			}
+			series.put("server_request_seconds_max{" + verb + "}", histogram.getMax() / 1e9);
+			series.put("server_request_seconds_sum{" + verb + "}", histogram.getSum() / 1e9);
+			series.put("server_request_seconds_count{" + verb + "}", (double) histogram.getCount());
+		}
+		series.put("server_request_errors_total", (double) this.errors.sum());
+		series.put("server_sent_bytes_total", (double) this.bytesSent.sum());
+		series.put("server_sent_bytes_per_second", this.bytesPerSecond);
+		series.put("server_connections_active", (double) this.activeConnections.get());
+		series.put("server_connections_total", (double) this.connections.sum());
+		series.put("server_log_dropped_total", (double) Server.Log.getDropped());
+		
+		ChunkTableCache tables = this.server.getTableCache();
+		series.put("server_chunk_tables", (double) tables.size());
+		series.put("server_chunk_tables_bytes", (double) tables.getBytes());
+		series.put("server_chunk_tables_hits_total", (double) tables.getHits());
+		series.put("server_chunk_tables_misses_total", (double) tables.getMisses());
+		series.put("server_chunk_tables_evictions_total", (double) tables.getEvictions());
+		
+		HotChunkCache hotChunks = this.server.getHotChunkCache();
+		if (hotChunks != null) {
+			series.put("server_hot_chunks", (double) hotChunks.size());
+			series.put("server_hot_chunks_bytes", (double) hotChunks.getBytes());
+			series.put("server_hot_chunks_hits_total", (double) hotChunks.getHits());
+			series.put("server_hot_chunks_misses_total", (double) hotChunks.getMisses());
+			series.put("server_hot_chunks_evictions_total", (double) hotChunks.getEvictions());
+			series.put("server_hot_chunks_hit_ratio", hotChunks.getHitRate());
+		}
+		
+		ChunkStore store = this.server.getChunkStore();
+		if (store != null) {
+			series.put("server_store_chunks", (double) store.getChunkCount());
+			series.put("server_store_bytes", (double) store.getBytes());
+			series.put("server_store_added_bytes_total", (double) store.getAddedBytes());
+			series.put("server_store_new_bytes_total", (double) store.getNewBytes());
+		}
+		
+		MappedFiles mappedFiles = this.server.getMappedFiles();
+		if (mappedFiles != null) {
+			series.put("server_mapped_files", (double) mappedFiles.size());
+			series.put("server_mapped_bytes", (double) mappedFiles.getBytes());
+			series.put("server_mapped_unmaps_total", (double) mappedFiles.getUnmaps());
+		}
+		
+		ChunkReads reads = this.server.getChunkReads();
+		if (reads != null) {
+			series.put("server_chunk_reads_total", (double) reads.getReads());
+			series.put("server_chunk_reads_coalesced_total", (double) reads.getCoalesced());
+		}
+		long segmentsRead = 0;
+		long segmentsShared = 0;
+		for (Broadcast broadcast : this.server.getBroadcasts()) {
+			segmentsRead += broadcast.getReads();
+			segmentsShared += broadcast.getShared();
+		}
+		series.put("server_broadcast_segments_read_total", (double) segmentsRead);
+		series.put("server_broadcast_segments_shared_total", (double) segmentsShared);
+		
+		CompressedChunkCache compressed = this.server.getCompressedChunkCache();
+		series.put("server_compressed_chunks_bytes", (double) compressed.getBytes());
+		series.put("server_compressed_chunks_hits_total", (double) compressed.getHits());
+		series.put("server_compressed_chunks_misses_total", (double) compressed.getMisses());
+		
+		BandwidthScheduler bandwidth = this.server.getBandwidthScheduler();
+		if (bandwidth != null) {
+			java.util.Map<String, Long> bytes = bandwidth.getBytes();
+			for (java.util.Map.Entry<String, Long> throttled : bandwidth.getThrottledTimes().entrySet()) {
+				String client = "client=\"" + throttled.getKey() + "\"";
+				series.put("server_throttled_seconds_total{" + client + "}", throttled.getValue() / 1e9);
+				Long shaped = bytes.get(throttled.getKey());
+				series.put("server_shaped_bytes_total{" + client + "}", (shaped == null) ? 0.0 : shaped.doubleValue());
+			}
+		}
+		return series;
+	}
+	
+	/**
+	 * The metrics in the plain-text format Prometheus scrapes.
+	 * 
+	 * @return
+	 */
+	public String scrape() {
+		StringBuilder text = new StringBuilder();
+		text.append("# TYPE server_request_seconds summary\n");
+		for (java.util.Map.Entry<String, Double> series : this.snapshot().entrySet()) {
+			double value = series.getValue().doubleValue();
+			text.append(series.getKey()).append(' ');
+			if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+				text.append((long) value);
+			} else {
+				text.append(value);
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+}
+
+/**
+ * A histogram of latencies in nanoseconds with logarithmic buckets: four per power of two,
+ * so a quantile is off by at most a quarter. Recording is an atomic increment, without locks.
+ */
+class LatencyHistogram {
+	
+	/**
+	 * The bucket counts, see bucket().
+	 */
+	private AtomicLongArray buckets;
+	
+	/**
+	 * The number of values, their sum and the largest.
+	 */
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+	
+	/**
+	 * Constructor for the histogram.
+	 */
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(64 * 4);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+	
+	/**
+	 * The bucket of a value: values below 4 have their own, above that the power of two
+	 * and the next two bits pick the bucket.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static int bucket(long value) {
+		if (value < 4) {
+			return (int) Math.max(0, value);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return exponent * 4 + (int) ((value >>> (exponent - 2)) & 3);
+	}
+	
+	/**
+	 * @param bucket
+	 * @return The smallest value of a bucket.
+	 */
+	static long lowerBound(int bucket) {
+		if (bucket < 8) {
+			return bucket;
+		}
+		return (4L + (bucket & 3)) << ((bucket >> 2) - 2);
+	}
+	
+	/**
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		this.buckets.incrementAndGet(bucket(nanos));
+		this.count.increment();
+		this.sum.add(nanos);
+		long max;
+		while (nanos > (max = this.max.get()) && !this.max.compareAndSet(max, nanos)) {
+		}
+	}
+	
+	/**
+	 * @param quantile Between 0 and 1.
+	 * @return The upper bound of the bucket the quantile falls into, 0 if nothing was recorded.
+	 */
+	public long quantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < this.buckets.length(); i++) {
+			total += this.buckets.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < this.buckets.length() - 1; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(this.max.get(), lowerBound(i + 1) - 1);
+			}
+		}
+		return this.max.get();
+	}
+	
+	public long getCount() {
+		return this.count.sum();
+	}
+	
+	public long getSum() {
+		return this.sum.sum();
+	}
+	
+	public long getMax() {
+		return this.max.get();
+	}
+}
+
+/**
+ * Makes the metrics available outside the process:
+ *   - as a text file that is rewritten every second,
+ *   - over HTTP on the loopback interface,
+ *   - as an MBean on the platform MBean server, for JConsole and JMX collectors.
+ * Its thread also samples the rate bytes are sent at.
+ */
+class MetricsExporter implements Runnable {
+	
+	/**
+	 * How often the rate is sampled and the file is written.
+	 */
+	private static long PERIOD_MILLIS = 1000;
+	
+	private Metrics metrics;
+	
+	/**
+	 * The file the metrics are written to, null if there is none.
+	 */
+	private volatile File file;
+	
+	/**
+	 * Constructor for the exporter.
+	 * 
+	 * @param metrics
+	 */
+	public MetricsExporter(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @param file The file to rewrite every second.
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+	
+	/**
+	 * Samples and writes the file until the process ends.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(PERIOD_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			this.metrics.sample();
+			
+			File file = this.file;
+			if (file != null) {
+				try {
+					this.write(file);
+				} catch (IOException e) {
+					Server.Log.warn("Can't write the metrics: {}", e.getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the metrics to a temporary file and moves it over the file, so readers never see half of it.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	private void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		java.nio.file.Files.write(temp.toPath(), this.metrics.scrape().getBytes(StandardCharsets.UTF_8));
+		java.nio.file.Files.move(temp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+				java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Serves the metrics over HTTP on the loopback interface. Every request gets the metrics text.
+	 * 
+	 * @param port The port, 0 for a free one.
+	 * @return The port the endpoint listens on.
+	 * @throws IOException
+	 */
+	public int serve(int port) throws IOException {
+		final ServerSocket endpoint = new ServerSocket(port, 16, java.net.InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				while (!endpoint.isClosed()) {
+					try {
+						Socket client = endpoint.accept();
+						try {
+							respond(client);
+						} finally {
+							client.close();
+						}
+					} catch (IOException e) {
+						Server.Log.warn("Metrics endpoint: {}", e.getMessage());
+					}
+				}
+			}
+		}, "metrics-endpoint");
+		thread.setDaemon(true);
+		thread.start();
+		return endpoint.getLocalPort();
+	}
+	
+	/**
+	 * Answers one HTTP request with the metrics.
+	 * 
+	 * @param client
+	 * @throws IOException
+	 */
+	private void respond(Socket client) throws IOException {
+		client.setSoTimeout(5000);
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		
+		// Skip the request, up to the empty line
+		String line;
+		while ((line = Server.readLine(in)) != null && !line.isEmpty()) {
+		}
+		
+		byte[] body = this.metrics.scrape().getBytes(StandardCharsets.UTF_8);
+		String head = "HTTP/1.0 200 OK\r\n"
+				+ "Content-Type: text/plain; version=0.0.4\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		OutputStream out = client.getOutputStream();
+		out.write(head.getBytes(StandardCharsets.US_ASCII));
+		out.write(body);
+		out.flush();
+	}
+	
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 * 
+	 * @param port The server's port, it tells servers in the same JVM apart.
+	 * @throws IOException
+	 */
+	public void register(int port) throws IOException {
+		try {
+			javax.management.ObjectName name = new javax.management.ObjectName("com.example.bekzhan:type=Server,port=" + port);
+			java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this.metrics), name);
+		} catch (javax.management.JMException e) {
+			throw new IOException("Can't register the metrics MBean", e);
+		}
+	}
+}
+
+/**
+ * The metrics as an MBean. Every series is a read-only attribute of type Double.
+ * It is a DynamicMBean, so the attributes follow the series without an interface per metric.
+ */
+class MetricsMBean implements javax.management.DynamicMBean {
+	
+	private Metrics metrics;
+	
+	public MetricsMBean(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public Object getAttribute(String attribute) throws javax.management.AttributeNotFoundException {
+		Double value = this.metrics.snapshot().get(attribute);
+		if (value == null) {
+			throw new javax.management.AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+	
+	public javax.management.AttributeList getAttributes(String[] attributes) {
+		java.util.Map<String, Double> snapshot = this.metrics.snapshot();
+		javax.management.AttributeList list = new javax.management.AttributeList();
+		for (String attribute : attributes) {
+			Double value = snapshot.get(attribute);
+			if (value != null) {
+				list.add(new javax.management.Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+	
+	public void setAttribute(javax.management.Attribute attribute) throws javax.management.AttributeNotFoundException {
+		throw new javax.management.AttributeNotFoundException("The metrics are read-only");
+	}
+	
+	public javax.management.AttributeList setAttributes(javax.management.AttributeList attributes) {
+		return new javax.management.AttributeList();
+	}
+	
+	public Object invoke(String actionName, Object[] params, String[] signature) throws javax.management.ReflectionException {
+		throw new javax.management.ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	public javax.management.MBeanInfo getMBeanInfo() {
+		java.util.Set<String> names = this.metrics.snapshot().keySet();
+		javax.management.MBeanAttributeInfo[] attributes = new javax.management.MBeanAttributeInfo[names.size()];
+		int i = 0;
+		for (String name : names) {
+			attributes[i++] = new javax.management.MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false);
+		}
+		return new javax.management.MBeanInfo(MetricsMBean.class.getName(), "Server metrics", attributes, null, null, null);
+	}
+}
+
+/**
+ * A cache for compressed chunks, so a chunk is compressed once and not for every client.
+ * Chunks that don't get smaller are remembered too, as an empty array, so they aren't tried again.
+ * The least recently used chunks are dropped first. Safe to use from many threads.
+ */
+class CompressedChunkCache {
+	
+	/**
+	 * The default memory the compressed chunks may take.
+	 */
+	static long MAX_BYTES = 64L << 20;
+	
+	/**
+	 * The compressed chunks, in access order.
+	 */
+	private java.util.LinkedHashMap<String, byte[]> chunks;
+	
+	/**
+	 * The memory the chunks may take and take now.
+	 */
+	private long maxBytes;
+	private long bytes;
+	
+	/**
+	 * Counters for the statistics.
+	 */
+	private long hits;
+	private long misses;
+	
+	/**
+	 * Constructor for the cache.
+	 * 
+	 * @param maxBytes
+	 */
+	public CompressedChunkCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.chunks = new java.util.LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	}
+	
+	/**
+	 * Compresses a chunk.
+	 * 
+	 * @param chunk
+	 * @param level
+	 * @return The compressed chunk, an empty array if it doesn't get smaller.
+	 */
+	static byte[] deflate(byte[] chunk, int level) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(chunk);
+			deflater.finish();
+			
+			// Anything that doesn't fit into the chunk's own length isn't worth it
+			byte[] compressed = new byte[chunk.length];
+			int length = 0;
+			while (!deflater.finished() && length < compressed.length) {
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			if (!deflater.finished() || length >= chunk.length) {
+				return new byte[0];
+			}
+			return Arrays.copyOf(compressed, length);
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return The compressed chunk, an empty array if it doesn't get smaller, null if it isn't cached.
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] chunk = this.chunks.get(key);
+		if (chunk == null) {
+			this.misses++;
+		} else {
+			this.hits++;
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Like get(), but a miss isn't counted, the get() that compresses the chunk counts it.
+	 * 
+	 * @param key
+	 * @return The compressed chunk, an empty array if it doesn't get smaller, null if it isn't cached.
+	 */
+	public synchronized byte[] peek(String key) {
+		byte[] chunk = this.chunks.get(key);
+		if (chunk != null) {
+			this.hits++;
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Adds a compressed chunk and drops the least recently used ones until the cache fits.
+	 * 
+	 * @param key
+	 * @param chunk
+	 */
+	public synchronized void put(String key, byte[] chunk) {
+		byte[] previous = this.chunks.put(key, chunk);
+		if (previous != null) {
+			this.bytes -= previous.length + key.length();
+		}
+		this.bytes += chunk.length + key.length();
+		
+		Iterator<java.util.Map.Entry<String, byte[]>> it = this.chunks.entrySet().iterator();
+		while (this.bytes > this.maxBytes && it.hasNext()) {
+			java.util.Map.Entry<String, byte[]> eldest = it.next();
+			this.bytes -= eldest.getValue().length + eldest.getKey().length();
+			it.remove();
+		}
+	}
+	
+	/**
+	 * @return The memory the compressed chunks take.
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+	
+	/**
+	 * @return How often a chunk didn't have to be compressed again.
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+	
+	/**
+	 * @return How often a chunk had to be compressed.
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+}
+
+/**
+ * The served files, mapped into memory once and shared by all requests. A file is mapped read-only
+ * in segments of SEGMENT bytes, as a buffer can't be longer than 2 GiB, and requests write slices of
+ * the segments. Fixed-size chunks are powers of two up to 8 MiB and never span two segments, but
+ * content-defined chunks and whole files may, so a region is sent as consecutive slices.
+ * 
+ * A mapping is replaced when its file's length or modification time changed, and the least recently
+ * used mappings are evicted when there are more than MAX_FILES or they span more than MAX_BYTES.
+ * A mapping in use is only unmapped once the last request released it, so no request reads a released
+ * mapping. Unmapping needs sun.misc.Unsafe, without it the garbage collector unmaps.
+ */
+class MappedFiles {
+	
+	/**
+	 * The length of a segment.
+	 */
+	static final long SEGMENT = 1L << 30;
+	
+	/**
+	 * The default limits: the number of mapped files and the address space they span.
+	 */
+	static final int MAX_FILES = 256;
+	static final long MAX_BYTES = 256L << 30;
+	
+	/**
+	 * Invokes the cleaner of a mapping, null if it isn't available.
+	 */
+	private static Object unsafe;
+	private static java.lang.reflect.Method invokeCleaner;
+	
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			java.lang.reflect.Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			// The garbage collector unmaps
+			invokeCleaner = null;
+		}
+	}
+	
+	/**
+	 * The limits.
+	 */
+	private int maxFiles;
+	private long maxBytes;
+	
+	/**
+	 * The mappings by path, in access order.
+	 */
+	private java.util.LinkedHashMap<String, Mapping> mappings;
+	
+	/**
+	 * The address space the mappings span.
+	 */
+	private long bytes;
+	
+	/**
+	 * The number of mappings that were released.
+	 */
+	private long unmaps;
+	
+	/**
+	 * Constructor for the mapped files.
+	 * 
+	 * @param maxFiles
+	 * @param maxBytes
+	 */
+	public MappedFiles(int maxFiles, long maxBytes) {
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+		this.mappings = new java.util.LinkedHashMap<String, Mapping>(16, 0.75f, true);
+	}
+	
+	/**
+	 * Gets the mapping of a file, mapping it if it isn't mapped or changed.
+	 * It has to be released when the request is done with it.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized Mapping acquire(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		Mapping mapping = this.mappings.get(path);
+		if (mapping != null && !mapping.isCurrent(file)) {
+			this.retire(path);
+			mapping = null;
+		}
+		if (mapping == null) {
+			mapping = new Mapping(file);
+			this.mappings.put(path, mapping);
+			this.bytes += mapping.getLength();
+			
+			// Evict the least recently used mappings, not the new one
+			Iterator<Mapping> eldest = this.mappings.values().iterator();
+			while ((this.mappings.size() > this.maxFiles || this.bytes > this.maxBytes) && this.mappings.size() > 1) {
+				Mapping victim = eldest.next();
+				eldest.remove();
+				this.retired(victim);
+			}
+		}
+		mapping.users++;
+		return mapping;
+	}
+	
+	/**
+	 * Tells that a request is done with a mapping.
+	 * 
+	 * @param mapping
+	 */
+	public synchronized void release(Mapping mapping) {
+		mapping.users--;
+		if (mapping.retired && mapping.users == 0) {
+			this.unmap(mapping);
+		}
+	}
+	
+	/**
+	 * Releases all mappings, those in use when their requests are done.
+	 */
+	public synchronized void clear() {
+		for (Mapping mapping : this.mappings.values()) {
+			this.retired(mapping);
+		}
+		this.mappings.clear();
+	}
+	
+	/**
+	 * @return The number of mapped files.
+	 */
+	public synchronized int size() {
+		return this.mappings.size();
+	}
+	
+	/**
+	 * @return The address space the mappings span.
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+	
+	/**
+	 * @return The number of mappings that were released.
+	 */
+	public synchronized long getUnmaps() {
+		return this.unmaps;
+	}
+	
+	/**
+	 * Removes the mapping of a path.
+	 * 
+	 * @param path
+	 */
+	private void retire(String path) {
+		this.retired(this.mappings.remove(path));
+	}
+	
+	/**
+	 * A mapping was removed, it is released once nobody uses it.
+	 * 
+	 * @param mapping
+	 */
+	private void retired(Mapping mapping) {
+		mapping.retired = true;
+		this.bytes -= mapping.getLength();
+		if (mapping.users == 0) {
+			this.unmap(mapping);
+		}
+	}
+	
+	/**
+	 * Releases a mapping.
+	 * 
+	 * @param mapping
+	 */
+	private void unmap(Mapping mapping) {
+		this.unmaps++;
+		if (invokeCleaner != null) {
+			for (MappedByteBuffer segment : mapping.segments) {
+				try {
+					invokeCleaner.invoke(unsafe, segment);
+				} catch (Exception e) {
+					// The garbage collector unmaps it
+				}
+			}
+		}
+		mapping.segments = new MappedByteBuffer[0];
+	}
+	
+	/**
+	 * A mapped file.
+	 */
+	static class Mapping {
+		
+		private long length;
+		private long modified;
+		private MappedByteBuffer[] segments;
+		private int users;
+		private boolean retired;
+		
+		/**
+		 * Maps a file.
+		 * 
+		 * @param file
+		 * @throws IOException
+		 */
+		Mapping(File file) throws IOException {
+			this.modified = file.lastModified();
+			FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				this.length = fileChannel.size();
+				this.segments = new MappedByteBuffer[(int) ((this.length + SEGMENT - 1) / SEGMENT)];
+				for (int i = 0; i < this.segments.length; i++) {
+					long offset = i * SEGMENT;
+					this.segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT, this.length - offset));
+				}
+			} finally {
+				// The mapping stays valid without the channel
+				fileChannel.close();
+			}
+		}
+		
+		/**
+		 * @param file
+		 * @return Whether the mapping still maps the file as it is now.
+		 */
+		boolean isCurrent(File file) {
+			return file.length() == this.length && file.lastModified() == this.modified;
+		}
+		
+		/**
+		 * @return The length of the mapped file.
+		 */
+		long getLength() {
+			return this.length;
+		}
+		
+		/**
+		 * A view of the mapping for the caller alone.
+		 * 
+		 * @param offset
+		 * @param max The most bytes wanted, the view ends at the end of the segment at the latest.
+		 * @return
+		 */
+		ByteBuffer slice(long offset, long max) {
+			ByteBuffer view = this.segments[(int) (offset / SEGMENT)].duplicate();
+			int position = (int) (offset % SEGMENT);
+			view.limit((int) Math.min(view.capacity(), position + max));
+			view.position(position);
+			return view;
+		}
+	}
+}
+
+/**
+ * Coalesces reads of the same chunk. The first request for a chunk reads it, requests that come while
+ * it is read wait for that read, and requests that come while it is still being sent to someone share
+ * the buffer too. So when a whole fleet asks for a chunk at once, it is read once and written to every
+ * waiting socket. A read is dropped as soon as nobody uses it anymore, this isn't a cache.
+ * 
+ * A request only waits while another thread reads. Event-loops use tryAcquire(), which only shares
+ * a chunk that is read already, and leave reading and waiting to their workers.
+ */
+class ChunkReads {
+	
+	/**
+	 * The reads in use.
+	 */
+	private HashMap<HotChunkCache.ChunkKey, Read> reads;
+	
+	/**
+	 * Counters for the statistics.
+	 */
+	private long readCount;
+	private long coalesced;
+	
+	/**
+	 * Constructor for the reads.
+	 */
+	public ChunkReads() {
+		this.reads = new HashMap<HotChunkCache.ChunkKey, Read>();
+	}
+	
+	/**
+	 * Gets a chunk, reading it if nobody else does. The read has to be released when the chunk was sent.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param direct Whether the chunk is read into a direct buffer.
+	 * @return
+	 * @throws IOException
+	 */
+	public Read acquire(File file, long offset, int length, boolean direct) throws IOException {
+		HotChunkCache.ChunkKey key = HotChunkCache.ChunkKey.of(file, offset, length);
+		Read read;
+		boolean reader;
+		synchronized (this) {
+			read = this.reads.get(key);
+			reader = (read == null);
+			if (reader) {
+				read = new Read(key);
+				this.reads.put(key, read);
+				this.readCount++;
+			} else {
+				this.coalesced++;
+			}
+			read.users++;
+		}
+		
+		if (reader) {
+			read.read(file, offset, length, direct);
+		}
+		try {
+			read.await();
+		} catch (IOException e) {
+			this.release(read);
+			throw e;
+		}
+		return read;
+	}
+	
+	/**
+	 * Shares a chunk only if someone read it already, never reads or waits.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return The read, to be released when the chunk was sent, null if acquire() would read or wait.
+	 */
+	public synchronized Read tryAcquire(File file, long offset, int length) {
+		HotChunkCache.ChunkKey key = HotChunkCache.ChunkKey.of(file, offset, length);
+		Read read = this.reads.get(key);
+		if (read == null || !read.isRead()) {
+			return null;
+		}
+		this.coalesced++;
+		read.users++;
+		return read;
+	}
+	
+	/**
+	 * Tells that a chunk was sent.
+	 * 
+	 * @param read
+	 */
+	public synchronized void release(Read read) {
+		read.users--;
+		if ((read.users == 0 || read.failure != null) && this.reads.get(read.key) == read) {
+			this.reads.remove(read.key);
+		}
+	}
+	
+	/**
+	 * @return The number of chunks read.
+	 */
+	public synchronized long getReads() {
+		return this.readCount;
+	}
+	
+	/**
+	 * @return The number of requests that shared a read.
+	 */
+	public synchronized long getCoalesced() {
+		return this.coalesced;
+	}
+	
+	/**
+	 * A read of a chunk and the requests using it.
+	 */
+	static class Read {
+		
+		private HotChunkCache.ChunkKey key;
+		private ByteBuffer chunk;
+		private IOException failure;
+		private boolean done;
+		private int users;
+		
+		Read(HotChunkCache.ChunkKey key) {
+			this.key = key;
+		}
+		
+		/**
+		 * Reads the chunk and wakes the waiting requests.
+		 */
+		void read(File file, long offset, int length, boolean direct) {
+			ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+			IOException failure = null;
+			try {
+				FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				try {
+					while (chunk.hasRemaining()) {
+						if (fileChannel.read(chunk, offset + chunk.position()) == -1) {
+							break;
+						}
+					}
+				} finally {
+					fileChannel.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			chunk.flip();
+			synchronized (this) {
+				this.chunk = chunk.asReadOnlyBuffer();
+				this.failure = failure;
+				this.done = true;
+				this.notifyAll();
+			}
+		}
+		
+		/**
+		 * Waits until the chunk was read.
+		 */
+		synchronized void await() throws IOException {
+			while (!this.done) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					throw new java.io.InterruptedIOException();
+				}
+			}
+			if (this.failure != null) {
+				throw this.failure;
+			}
+		}
+		
+		/**
+		 * @return Whether the chunk was read without a failure.
+		 */
+		synchronized boolean isRead() {
+			return this.done && this.failure == null;
+		}
+		
+		/**
+		 * @return A read-only view of the chunk for the caller alone.
+		 */
+		synchronized ByteBuffer getChunk() {
+			return this.chunk.duplicate();
+		}
+	}
+}
+
+/**
+ * Sends a file to many clients with one sequential read pass, like a carousel. The file is read
+ * in segments of SEGMENT bytes, one after another and around again at the end, for as long as
+ * anyone listens. A client that joins gets the segments from wherever the broadcast is, until it
+ * is around at the segment it started with, so a client joining in the middle doesn't start a pass
+ * of its own. The last WINDOW segments are kept, so members that are a little behind still share
+ * them, a member further behind reads its segments itself.
+ * 
+ * The member that needs the next segment first reads it, the others wait for it. Event-loops
+ * only poll() for segments in the window and leave reading and waiting to their workers.
+ */
+class Broadcast {
+	
+	/**
+	 * The length of a segment and the number of segments kept.
+	 */
+	static final int SEGMENT = 1 << 20;
+	static final int WINDOW = 16;
+	
+	/**
+	 * The file and the version of it that is sent.
+	 */
+	private File file;
+	private long length;
+	private long modified;
+	private int segments;
+	
+	/**
+	 * The last WINDOW segments, segment t of the broadcast is at t % WINDOW.
+	 */
+	private ByteBuffer[] window;
+	
+	/**
+	 * The number of segments the broadcast read so far, and whether one is read right now.
+	 */
+	private long tick;
+	private boolean reading;
+	
+	/**
+	 * The members.
+	 */
+	private int members;
+	
+	/**
+	 * Counters for the statistics.
+	 */
+	private long reads;
+	private long shared;
+	
+	/**
+	 * Constructor for a broadcast.
+	 * 
+	 * @param file
+	 */
+	public Broadcast(File file) {
+		this.file = file;
+		this.length = file.length();
+		this.modified = file.lastModified();
+		this.segments = (int) ((this.length + SEGMENT - 1) / SEGMENT);
+		this.window = new ByteBuffer[WINDOW];
+	}
+	
+	/**
+	 * @param file
+	 * @return Whether the broadcast sends the file as it is now.
+	 */
+	public boolean isCurrent(File file) {
+		return file.length() == this.length && file.lastModified() == this.modified;
+	}
+	
+	/**
+	 * Joins the broadcast, with the segment that is read next.
+	 * 
+	 * @return
+	 */
+	public synchronized Member join() {
+		this.members++;
+		return new Member(this.tick);
+	}
+	
+	/**
+	 * Gets a segment of the broadcast.
+	 * 
+	 * @param t The segment, counted since the broadcast started.
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer get(long t) throws IOException {
+		boolean lagging = false;
+		synchronized (this) {
+			while (true) {
+				if (t < this.tick - WINDOW) {
+					lagging = true;
+					break;
+				}
+				if (t < this.tick) {
+					this.shared++;
+					return this.window[(int) (t % WINDOW)].duplicate();
+				}
+				if (!this.reading) {
+					this.reading = true;
+					break;
+				}
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					throw new java.io.InterruptedIOException();
+				}
+			}
+		}
+		
+		// Read the segment outside the lock, the others wait only for it
+		ByteBuffer segment;
+		try {
+			segment = this.read(t);
+		} catch (IOException e) {
+			if (!lagging) {
+				synchronized (this) {
+					this.reading = false;
+					this.notifyAll();
+				}
+			}
+			throw e;
+		}
+		if (lagging) {
+			return segment;
+		}
+		synchronized (this) {
+			this.window[(int) (t % WINDOW)] = segment;
+			this.tick++;
+			this.reads++;
+			this.reading = false;
+			this.notifyAll();
+		}
+		return segment.duplicate();
+	}
+	
+	/**
+	 * Gets a segment only if it is in the window, never reads or waits.
+	 * 
+	 * @param t The segment, counted since the broadcast started.
+	 * @return The segment, null if get() would read it or wait for it.
+	 */
+	private synchronized ByteBuffer peek(long t) {
+		if (t < this.tick - WINDOW || t >= this.tick) {
+			return null;
+		}
+		this.shared++;
+		return this.window[(int) (t % WINDOW)].duplicate();
+	}
+	
+	/**
+	 * Reads a segment from the file.
+	 * 
+	 * @param t
+	 * @return A read-only buffer with the segment.
+	 * @throws IOException
+	 */
+	private ByteBuffer read(long t) throws IOException {
+		long offset = (t % this.segments) * SEGMENT;
+		ByteBuffer segment = ByteBuffer.allocate((int) Math.min(SEGMENT, this.length - offset));
+		FileChannel fileChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+		try {
+			while (segment.hasRemaining()) {
+				if (fileChannel.read(segment, offset + segment.position()) == -1) {
+					break;
+				}
+			}
+		} finally {
+			fileChannel.close();
+		}
+		segment.flip();
+		return segment.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * A member left. When the last one left, the segments are dropped.
+	 */
+	private synchronized void leave() {
+		this.members--;
+		if (this.members == 0) {
+			Arrays.fill(this.window, null);
+		}
+	}
+	
+	/**
+	 * @return The number of segments read.
+	 */
+	public synchronized long getReads() {
+		return this.reads;
+	}
+	
+	/**
+	 * @return The number of segments a member got without reading them.
+	 */
+	public synchronized long getShared() {
+		return this.shared;
+	}
+	
+	/**
+	 * A client of the broadcast.
+	 */
+	class Member {
+		
+		/**
+		 * The segment it joined with and how many segments it got.
+		 */
+		private long start;
+		private int count;
+		private boolean left;
+		
+		Member(long start) {
+			this.start = start;
+		}
+		
+		/**
+		 * @return Whether the member is missing segments.
+		 */
+		boolean hasNext() {
+			return this.count < segments;
+		}
+		
+		/**
+		 * @return Where the next segment goes in the file.
+		 */
+		long getOffset() {
+			return ((this.start + this.count) % segments) * SEGMENT;
+		}
+		
+		/**
+		 * @return The next segment.
+		 * @throws IOException
+		 */
+		ByteBuffer next() throws IOException {
+			ByteBuffer segment = get(this.start + this.count);
+			this.count++;
+			return segment;
+		}
+		
+		/**
+		 * @return The next segment if it is in the window, null if next() would read it or wait for it.
+		 */
+		ByteBuffer poll() {
+			ByteBuffer segment = peek(this.start + this.count);
+			if (segment != null) {
+				this.count++;
+			}
+			return segment;
+		}
+		
+		/**
+		 * @return The length of the file.
+		 */
+		long getLength() {
+			return length;
+		}
+		
+		/**
+		 * Leaves the broadcast.
+		 */
+		void leave() {
+			if (!this.left) {
+				this.left = true;
+				Broadcast.this.leave();
+			}
+		}
+	}
+}
+
+/**
+ * A cache for popular chunks in direct, off-heap ByteBuffers, safe to use from many threads.
+ * The chunks are written to the sockets straight from these buffers.
+ * 
+ * Two eviction policies:
+ *   LRU     - the least recently used chunks are evicted.
+ *   TINYLFU - W-TinyLFU style: new chunks enter a small LRU window. A chunk that falls out of the
+ *             window only replaces the main area's least recently used chunk if it was requested more
+ *             often, according to a count-min sketch of recent requests. This keeps a burst of one-off
+ *             requests from flushing chunks the whole fleet asks for.
+ * 
+ * Chunks are keyed by file, its length and modification time, offset and length, so chunks of a changed file are never served,
+ * they just age out.
+ */
+class HotChunkCache {
+	
+	static final String LRU = "LRU";
+	static final String TINY_LFU = "TINYLFU";
+	
+	/**
+	 * The share of the capacity the TINYLFU window gets, in percent.
+	 */
+	private static int WINDOW_PERCENT = 1;
+	
+	/**
+	 * The memory the chunks may take.
+	 */
+	private long capacity;
+	
+	/**
+	 * Whether the TINYLFU policy is used.
+	 */
+	private boolean tinyLfu;
+	
+	/**
+	 * The window for new chunks, only used by TINYLFU, in access order.
+	 */
+	private java.util.LinkedHashMap<ChunkKey, ByteBuffer> window;
+	
+	/**
+	 * The main area, in access order. With LRU all chunks are here.
+	 */
+	private java.util.LinkedHashMap<ChunkKey, ByteBuffer> main;
+	
+	/**
+	 * The memory the chunks in the window and in the main area take.
+	 */
+	private long windowBytes;
+	private long mainBytes;
+	
+	/**
+	 * The request frequencies, only used by TINYLFU.
+	 */
+	private FrequencySketch sketch;
+	
+	/**
+	 * The misses being read.
+	 */
+	private ChunkReads reads;
+	
+	/**
+	 * Counters for the statistics.
+	 */
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long rejections;
+	
+	/**
+	 * Constructor for the cache.
+	 * 
+	 * @param capacity The memory the chunks may take.
+	 * @param policy LRU or TINYLFU.
+	 */
+	public HotChunkCache(long capacity, String policy) {
+		this.capacity = capacity;
+		this.tinyLfu = policy.equalsIgnoreCase(TINY_LFU);
+		if (!this.tinyLfu && !policy.equalsIgnoreCase(LRU)) {
+			throw new IllegalArgumentException("Unknown eviction policy: " + policy);
+		}
+		this.window = new java.util.LinkedHashMap<ChunkKey, ByteBuffer>(16, 0.75f, true);
+		this.main = new java.util.LinkedHashMap<ChunkKey, ByteBuffer>(16, 0.75f, true);
+		this.reads = new ChunkReads();
+		if (this.tinyLfu) {
+			this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(64, capacity / Server.getChunkSize())));
+		}
+	}
+	
+	/**
+	 * Gets a chunk, reading it from the file if it isn't cached.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return A read-only view of the chunk, the caller may change its position.
+	 * @throws IOException
+	 */
+	public ByteBuffer get(File file, long offset, int length) throws IOException {
+		ChunkKey key = ChunkKey.of(file, offset, length);
+		
+		synchronized (this) {
+			if (this.sketch != null) {
+				this.sketch.increment(key);
+			}
+			ByteBuffer chunk = this.main.get(key);
+			if (chunk == null) {
+				chunk = this.window.get(key);
+			}
+			if (chunk != null) {
+				this.hits++;
+				return chunk.duplicate();
+			}
+			this.misses++;
+		}
+		
+		// Read the chunk outside the lock, concurrent misses of the same chunk share the read
+		ByteBuffer chunk;
+		ChunkReads.Read read = this.reads.acquire(file, offset, length, true);
+		try {
+			chunk = read.getChunk();
+		} finally {
+			this.reads.release(read);
+		}
+		
+		synchronized (this) {
+			this.put(key, chunk);
+		}
+		return chunk.duplicate();
+	}
+	
+	/**
+	 * Gets a chunk only if it is cached. A miss isn't counted, the get() that reads the chunk counts it.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return A read-only view of the chunk, null if it isn't cached.
+	 */
+	public synchronized ByteBuffer peek(File file, long offset, int length) {
+		ChunkKey key = ChunkKey.of(file, offset, length);
+		ByteBuffer chunk = this.main.get(key);
+		if (chunk == null) {
+			chunk = this.window.get(key);
+		}
+		if (chunk == null) {
+			return null;
+		}
+		if (this.sketch != null) {
+			this.sketch.increment(key);
+		}
+		this.hits++;
+		return chunk.duplicate();
+	}
+	
+	/**
+	 * Adds a chunk and evicts what the policy says.
+	 * 
+	 * @param key
+	 * @param chunk
+	 */
+	private void put(ChunkKey key, ByteBuffer chunk) {
+		if (chunk.capacity() > this.capacity || this.main.containsKey(key) || this.window.containsKey(key)) {
+			return;
+		}
+		
+		if (!this.tinyLfu) {
+			this.main.put(key, chunk);
+			this.mainBytes += chunk.capacity();
+			this.evictMain(this.capacity);
+			return;
+		}
+		
+		// New chunks enter the window
+		this.window.put(key, chunk);
+		this.windowBytes += chunk.capacity();
+		
+		long windowCapacity = Math.max(Server.getChunkSize(), this.capacity * WINDOW_PERCENT / 100);
+		long mainCapacity = this.capacity - windowCapacity;
+		Iterator<java.util.Map.Entry<ChunkKey, ByteBuffer>> it = this.window.entrySet().iterator();
+		while (this.windowBytes > windowCapacity && it.hasNext()) {
+			java.util.Map.Entry<ChunkKey, ByteBuffer> candidate = it.next();
+			it.remove();
+			this.windowBytes -= candidate.getValue().capacity();
+			
+			// The candidate only gets into the main area if it is more popular than what it replaces
+			int size = candidate.getValue().capacity();
+			if (this.mainBytes + size > mainCapacity && !this.main.isEmpty()) {
+				ChunkKey victim = this.main.keySet().iterator().next();
+				if (this.sketch.frequency(candidate.getKey()) <= this.sketch.frequency(victim)) {
+					this.rejections++;
+					continue;
+				}
+			}
+			this.main.put(candidate.getKey(), candidate.getValue());
+			this.mainBytes += size;
+			this.evictMain(mainCapacity);
+		}
+	}
+	
+	/**
+	 * Evicts the least recently used chunks of the main area until it fits.
+	 * 
+	 * @param mainCapacity
+	 */
+	private void evictMain(long mainCapacity) {
+		Iterator<ByteBuffer> it = this.main.values().iterator();
+		while (this.mainBytes > mainCapacity && it.hasNext()) {
+			this.mainBytes -= it.next().capacity();
+			it.remove();
+			this.evictions++;
+		}
+	}
+	
+	/**
+	 * @return The memory the cached chunks take.
+	 */
+	public synchronized long getBytes() {
+		return this.windowBytes + this.mainBytes;
+	}
+	
+	/**
+	 * @return The number of cached chunks.
+	 */
+	public synchronized int size() {
+		return this.window.size() + this.main.size();
+	}
+	
+	/**
+	 * @return How often a chunk was served from the cache.
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+	
+	/**
+	 * @return How often a chunk had to be read from disk.
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+	
+	/**
+	 * @return How many chunks were evicted.
+	 */
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+	
+	/**
+	 * @return How many chunks TINYLFU didn't let into the main area.
+	 */
+	public synchronized long getRejections() {
+		return this.rejections;
+	}
+	
+	/**
+	 * @return The share of requests served from the cache.
+	 */
+	public synchronized double getHitRate() {
+		long requests = this.hits + this.misses;
+		return (requests == 0) ? 0 : (double) this.hits / requests;
+	}
+	
+	/**
+	 * Identifies a chunk of a file in one version. The modification time has a coarse resolution
+	 * on some file systems, so the version is told by the file's length too, like the chunk-tables do.
+	 */
+	static class ChunkKey {
+		
+		private String path;
+		private long modified;
+		private long fileLength;
+		private long offset;
+		private int length;
+		
+		ChunkKey(String path, long modified, long fileLength, long offset, int length) {
+			this.path = path;
+			this.modified = modified;
+			this.fileLength = fileLength;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		/**
+		 * @param file
+		 * @param offset
+		 * @param length
+		 * @return The key of a chunk of the file as it is now.
+		 */
+		static ChunkKey of(File file, long offset, int length) {
+			return new ChunkKey(file.getAbsolutePath(), file.lastModified(), file.length(), offset, length);
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof ChunkKey)) {
+				return false;
+			}
+			ChunkKey other = (ChunkKey) o;
+			return this.offset == other.offset && this.length == other.length && this.modified == other.modified
+					&& this.fileLength == other.fileLength && this.path.equals(other.path);
+		}
+		
+		public int hashCode() {
+			return (((this.path.hashCode() * 31 + Long.hashCode(this.modified)) * 31 + Long.hashCode(this.fileLength)) * 31
+					+ Long.hashCode(this.offset)) * 31 + this.length;
+		}
+	}
+	
+	/**
+	 * A count-min sketch with four rows of small counters. All counters are halved
+	 * after a number of increments, so the frequencies reflect recent requests.
+	 */
+	private static class FrequencySketch {
+		
+		private static int MAX_COUNT = 15;
+		
+		private byte[][] rows;
+		private int mask;
+		private int increments;
+		private int resetAt;
+		
+		FrequencySketch(int expected) {
+			int width = Integer.highestOneBit(Math.max(16, expected - 1)) << 1;
+			this.rows = new byte[4][width];
+			this.mask = width - 1;
+			this.resetAt = 10 * expected;
+		}
+		
+		void increment(Object key) {
+			int hash = spread(key.hashCode());
+			for (int row = 0; row < this.rows.length; row++) {
+				int index = this.index(hash, row);
+				if (this.rows[row][index] < MAX_COUNT) {
+					this.rows[row][index]++;
+				}
+			}
+			if (++this.increments >= this.resetAt) {
+				this.reset();
+			}
+		}
+		
+		int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < this.rows.length; row++) {
+				frequency = Math.min(frequency, this.rows[row][this.index(hash, row)]);
+			}
+			return frequency;
+		}
+		
+		private int index(int hash, int row) {
+			int h = hash * (0x9E3779B1 + 2 * row * 0x61C88647);
+			return (h ^ (h >>> 16)) & this.mask;
+		}
+		
+		private void reset() {
+			for (byte[] row : this.rows) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte) (row[i] >> 1);
+				}
+			}
+			this.increments /= 2;
+		}
+		
+		private static int spread(int hash) {
+			hash ^= hash >>> 17;
+			hash *= 0xED5AD4BB;
+			hash ^= hash >>> 11;
+			return hash;
+		}
+	}
+}
+
+/**
+ * A cache for the chunk-tables of the served files, safe to use from many threads.
+ * 
+ * A table is dropped when its file's length or modification time changes. The least recently
+ * used tables are evicted when there are too many or they take too much memory. When many
+ * clients ask for a file whose table doesn't exist yet, it is built only once and they all wait for it.
+ */
+class ChunkTableCache {
+	
+	/**
+	 * The default number of tables.
+	 */
+	static int MAX_TABLES = 1024;
+	
+	/**
+	 * The default memory the tables may take.
+	 */
+	static long MAX_BYTES = 64L << 20;
+	
+	/**
+	 * The tables by absolute path, in access order.
+	 */
+	private java.util.LinkedHashMap<String, Entry> entries;
+	
+	/**
+	 * The maximum number of tables.
+	 */
+	private int maxTables;
+	
+	/**
+	 * The maximum memory of all built tables.
+	 */
+	private long maxBytes;
+	
+	/**
+	 * The memory of all built tables.
+	 */
+	private long bytes;
+	
+	/**
+	 * Counters for the statistics.
+	 */
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * The chunk store the tables are built through, null if there is none.
+	 */
+	private volatile ChunkStore store;
+	
+	/**
+	 * Constructor for the cache.
+	 * 
+	 * @param maxTables The maximum number of tables.
+	 * @param maxBytes The maximum memory of all tables.
+	 */
+	public ChunkTableCache(int maxTables, long maxBytes) {
+		this.entries = new java.util.LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.maxTables = maxTables;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Gets the chunk-table of a file, building it if it isn't cached or the file changed.
+	 * 
+	 * @param file
+	 * @param chunkSize
+	 * @param algorithm
+	 * @return
+	 * @throws IOException
+	 */
+	public ChunkTable get(File file, int chunkSize, String algorithm) throws IOException {
+		return this.get(file, chunkSize, algorithm, false);
+	}
+	
+	/**
+	 * Gets the chunk-table of a file, building it if it isn't cached or the file changed.
+	 * With a chunk store the file's chunks are added to it as the table is built.
+	 * 
+	 * @param file
+	 * @param chunkSize For content-defined chunks the average size.
+	 * @param algorithm
+	 * @param contentDefined
+	 * @return
+	 * @throws IOException
+	 */
+	public ChunkTable get(final File file, final int chunkSize, final String algorithm, final boolean contentDefined) throws IOException {
+		String key = key(file, chunkSize, contentDefined);
+		long length = file.length();
+		long modified = file.lastModified();
+		
+		Entry entry;
+		boolean build = false;
+		synchronized (this) {
+			entry = this.entries.get(key);
+			if (entry != null && entry.matches(length, modified, chunkSize, algorithm)) {
+				this.hits++;
+			} else {
+				// Not cached or stale, the first thread that gets here builds the table
+				this.misses++;
+				if (entry != null) {
+					this.bytes -= entry.bytes;
+				}
+				entry = new Entry(length, modified, chunkSize, algorithm, new java.util.concurrent.FutureTask<ChunkTable>(
+						new java.util.concurrent.Callable<ChunkTable>() {
+							public ChunkTable call() throws IOException {
+								ChunkStore store = ChunkTableCache.this.store;
+								if (store != null) {
+									return store.add(file, chunkSize, algorithm, contentDefined);
+								}
+								return ChunkTable.build(file, chunkSize, algorithm, contentDefined);
+							}
+						}));
+				this.entries.put(key, entry);
+				build = true;
+			}
+		}
+		
+		if (build) {
+			entry.table.run();
+			synchronized (this) {
+				if (this.entries.get(key) == entry) {
+					try {
+						entry.bytes = entry.table.get().getMemorySize();
+						this.bytes += entry.bytes;
+					} catch (java.util.concurrent.ExecutionException e) {
+						// Passed on below
+					} catch (InterruptedException e) {
+						// The task is done, get() doesn't wait
+					}
+				}
+				this.evict(entry);
+			}
+		}
+		
+		try {
+			return entry.table.get();
+		} catch (java.util.concurrent.ExecutionException e) {
+			// Don't keep the failure, the next request tries again
+			synchronized (this) {
+				if (this.entries.get(key) == entry) {
+					this.entries.remove(key);
+				}
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException("Interrupted while waiting for the chunk-table of " + key);
+		}
+	}
+	
+	/**
+	 * Gets the chunk-table of a file only if it is built and current, without building it or waiting for it.
+	 * 
+	 * @param file
+	 * @param chunkSize
+	 * @param algorithm
+	 * @param contentDefined
+	 * @return The table, null if get() would have to build it or wait for it.
+	 */
+	public ChunkTable peek(File file, int chunkSize, String algorithm, boolean contentDefined) {
+		String key = key(file, chunkSize, contentDefined);
+		long length = file.length();
+		long modified = file.lastModified();
+		synchronized (this) {
+			Entry entry = this.entries.get(key);
+			if (entry == null || !entry.matches(length, modified, chunkSize, algorithm) || !entry.table.isDone()) {
+				return null;
+			}
+			try {
+				ChunkTable table = entry.table.get();
+				this.hits++;
+				return table;
+			} catch (java.util.concurrent.ExecutionException e) {
+				// get() tries again and reports the failure
+				return null;
+			} catch (InterruptedException e) {
+				// The task is done, get() doesn't wait
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * @param file
+	 * @param chunkSize
+	 * @param contentDefined
+	 * @return The key of a table.
+	 */
+	private static String key(File file, int chunkSize, boolean contentDefined) {
+		return file.getAbsolutePath() + "#" + chunkSize + (contentDefined ? "#cdc" : "");
+	}
+	
+	/**
+	 * Evicts the least recently used tables until the limits are kept. The given entry is kept in any case.
+	 * 
+	 * @param keep
+	 */
+	private void evict(Entry keep) {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while ((this.entries.size() > this.maxTables || this.bytes > this.maxBytes) && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry == keep) {
+				continue;
+			}
+			it.remove();
+			this.bytes -= entry.bytes;
+			this.evictions++;
+		}
+	}
+	
+	/**
+	 * Builds the tables through a chunk store from now on.
+	 * 
+	 * @param store The store, null for none.
+	 */
+	public void setStore(ChunkStore store) {
+		this.store = store;
+		this.clear();
+	}
+	
+	/**
+	 * Drops all tables.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.bytes = 0;
+	}
+	
+	/**
+	 * @return The number of cached tables.
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+	
+	/**
+	 * @return The memory the cached tables take.
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+	
+	/**
+	 * @return How often a table was found.
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+	
+	/**
+	 * @return How often a table had to be built.
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+	
+	/**
+	 * @return How many tables were evicted.
+	 */
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+	
+	/**
+	 * A cached table and what it was built from.
+	 */
+	private static class Entry {
+		
+		private long length;
+		private long modified;
+		private int chunkSize;
+		private String algorithm;
+		
+		/**
+		 * The table, done once it is built.
+		 */
+		private java.util.concurrent.FutureTask<ChunkTable> table;
+		
+		/**
+		 * The memory the table takes, 0 until it is built.
+		 */
+		private long bytes;
+		
+		Entry(long length, long modified, int chunkSize, String algorithm, java.util.concurrent.FutureTask<ChunkTable> table) {
+			this.length = length;
+			this.modified = modified;
+			this.chunkSize = chunkSize;
+			this.algorithm = algorithm;
+			this.table = table;
+		}
+		
+		boolean matches(long length, long modified, int chunkSize, String algorithm) {
+			return this.length == length && this.modified == modified
+					&& this.chunkSize == chunkSize && this.algorithm.equals(algorithm);
+		}
+	}
+}
+
+/**
+ * The chunk-table of a file: the hash of every chunk's content, in file order.
+ * Chunks are numbered from 1, like the server always did.
+ * 
+ * The table is built in parallel on a fork/join pool, every task hashes a run of chunks
+ * from a read-only memory-mapped region of the file.
+ */
+class ChunkTable {
+	
+	/**
+	 * The cryptographic default.
+	 */
+	static final String MD5 = "MD5";
+	
+	/**
+	 * Hardware accelerated CRC, only for trusted networks.
+	 */
+	static final String CRC32C = "CRC32C";
+	
+	/**
+	 * xxHash64, only for trusted networks.
+	 */
+	static final String XXH64 = "XXH64";
+	
+	/**
+	 * How many chunks one task hashes. Larger runs are split.
+	 */
+	private static int CHUNKS_PER_TASK = 256;
+	
+	/**
+	 * How many bytes one task maps at most, so runs of large chunks are split too.
+	 */
+	private static long MAX_REGION = 64L << 20;
+	
+	/**
+	 * The random values of the gear hash that finds the content-defined boundaries, one per byte value.
+	 * They are generated from a fixed seed, the boundaries of a content must never change.
+	 */
+	private static final long[] GEAR = new long[256];
+	static {
+		java.util.Random random = new java.util.Random(0x6765617248617368L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+	
+	/**
+	 * The length of the file.
+	 */
+	private long length;
+	
+	/**
+	 * The size of a chunk. For content-defined chunks the largest size.
+	 */
+	private int chunkSize;
+	
+	/**
+	 * The hash of every chunk, hashes[0] belongs to chunk 1.
+	 */
+	private String[] hashes;
+	
+	/**
+	 * Where every chunk starts, with the length of the file at the end, for content-defined chunks.
+	 * null if all chunks have the chunk size.
+	 */
+	private long[] boundaries;
+	
+	/**
+	 * The SHA-256 digest of every chunk, its address in the ChunkStore the table comes from. null if it doesn't.
+	 */
+	private String[] storeKeys;
+	
+	/**
+	 * The first chunk with a given hash.
+	 */
+	private HashMap<String, Integer> indices;
+	
+	/**
+	 * The Merkle tree over the hashes, built when it is first asked for.
+	 */
+	private volatile MerkleTree tree;
+	
+	/**
+	 * Constructor for a chunk-table, use build() to hash a file.
+	 * 
+	 * @param length
+	 * @param chunkSize
+	 * @param hashes
+	 * @param boundaries Where the chunks start, null if they all have the chunk size.
+	 */
+	ChunkTable(long length, int chunkSize, String[] hashes, long[] boundaries) {
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.hashes = hashes;
+		this.boundaries = boundaries;
+		this.indices = new HashMap<String, Integer>();
+		for (int i = hashes.length; i >= 1; i--) {
+			this.indices.put(hashes[i - 1], i);
+		}
+	}
+	
+	/**
+	 * Hashes the contents of all chunks of a file.
+	 * 
+	 * @param file
+	 * @param chunkSize
+	 * @param algorithm
+	 * @return
+	 * @throws IOException
+	 */
+	static ChunkTable build(File file, int chunkSize, String algorithm) throws IOException {
+		return build(file, chunkSize, algorithm, false);
+	}
+	
+	/**
+	 * Hashes the contents of all chunks of a file.
+	 * 
+	 * Content-defined chunks end where the content says, see findBoundaries(), not at multiples
+	 * of the chunk size. Inserting a byte then only changes the chunk it is in, the chunks after it
+	 * keep their hashes, and equal data in different files gets the same chunks.
+	 * 
+	 * @param file
+	 * @param chunkSize The chunk size, for content-defined chunks the average size.
+	 * @param algorithm
+	 * @param contentDefined
+	 * @return
+	 * @throws IOException
+	 */
+	static ChunkTable build(File file, int chunkSize, String algorithm, boolean contentDefined) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			
+			long[] boundaries = null;
+			long chunks;
+			if (contentDefined) {
+				boundaries = findBoundaries(channel, length, chunkSize);
+				chunks = boundaries.length - 1;
+			} else {
+				// Calculate how many chunks we need
+				chunks = length / chunkSize;
+				if (length % chunkSize != 0) {
+					chunks++;
+				}
+			}
+			
+			String[] hashes = new String[(int) chunks];
+			try {
+				ForkJoinPool.commonPool().invoke(new HashTask(channel, length, chunkSize, boundaries, algorithm, hashes, 0, hashes.length));
+			} catch (java.io.UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return new ChunkTable(length, contentDefined ? maxContentDefinedSize(chunkSize) : chunkSize, hashes, boundaries);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * @param averageSize
+	 * @return The largest content-defined chunk for an average size.
+	 */
+	static int maxContentDefinedSize(int averageSize) {
+		return averageSize * 4;
+	}
+	
+	/**
+	 * Finds the boundaries of content-defined chunks, like FastCDC does. A gear hash rolls over the bytes,
+	 * each byte shifts it by one bit and adds the byte's random value, so its upper bits depend on the last
+	 * 64 bytes only. A chunk ends where the upper bits under a mask are all 0.
+	 * 
+	 * The chunks are between a quarter and four times the average size. Hashing starts at the smallest size,
+	 * and the mask has two bits more than the average size needs until the chunk reaches the average size,
+	 * two less afterwards, so the sizes cluster around the average.
+	 * 
+	 * @param channel
+	 * @param length
+	 * @param averageSize A power of two.
+	 * @return Where every chunk starts and, at the end, the length.
+	 * @throws IOException
+	 */
+	static long[] findBoundaries(FileChannel channel, long length, int averageSize) throws IOException {
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		long strictMask = -1L << (64 - bits - 2);
+		long looseMask = -1L << (64 - bits + 2);
+		int minSize = averageSize / 4;
+		int maxSize = maxContentDefinedSize(averageSize);
+		
+		long[] boundaries = new long[(int) Math.min(Integer.MAX_VALUE - 8, length / minSize + 2)];
+		int count = 0;
+		long start = 0;
+		long gear = 0;
+		for (long position = 0; position < length; position += MAX_REGION) {
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION, length - position));
+			int regionLength = region.capacity();
+			for (int i = 0; i < regionLength; i++) {
+				long size = position + i + 1 - start;
+				if (size <= minSize) {
+					continue;
+				}
+				gear = (gear << 1) + GEAR[region.get(i) & 0xFF];
+				if ((gear & ((size < averageSize) ? strictMask : looseMask)) == 0 || size >= maxSize) {
+					boundaries[count++] = start;
+					start = position + i + 1;
+					gear = 0;
+				}
+			}
+		}
+		if (start < length) {
+			boundaries[count++] = start;
+		}
+		long[] result = Arrays.copyOf(boundaries, count + 1);
+		result[count] = length;
+		return result;
+	}
+	
+	/**
+	 * @return The number of chunks.
+	 */
+	public int getChunkCount() {
+		return this.hashes.length;
+	}
+	
+	/**
+	 * @return The length of the file the table was built from.
+	 */
+	public long getLength() {
+		return this.length;
+	}
+	
+	/**
+	 * @return The size of a chunk, for content-defined chunks the largest size.
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+	
+	/**
+	 * @return Whether the chunks end where their content says instead of at multiples of the chunk size.
+	 */
+	public boolean isContentDefined() {
+		return this.boundaries != null;
+	}
+	
+	/**
+	 * @return An estimate of the memory the table takes.
+	 */
+	public long getMemorySize() {
+		if (this.hashes.length == 0) {
+			return 64;
+		}
+		// Per chunk: the hash-string with its array, the slot in hashes, an entry in indices, maybe a boundary and a store key
+		return 64 + this.hashes.length * (56L + this.hashes[0].length() + 8 + 48 + ((this.boundaries != null) ? 8 : 0)
+				+ ((this.storeKeys != null) ? 56 + 64 + 8 : 0));
+	}
+	
+	/**
+	 * Sets the chunks' addresses in a ChunkStore, before the table is handed out.
+	 * 
+	 * @param storeKeys The SHA-256 digests, in chunk order.
+	 */
+	void setStoreKeys(String[] storeKeys) {
+		this.storeKeys = storeKeys;
+	}
+	
+	/**
+	 * @param index
+	 * @return The address of a chunk in the ChunkStore the table comes from, null if it doesn't.
+	 */
+	public String getStoreKey(int index) {
+		return (this.storeKeys == null) ? null : this.storeKeys[index - 1];
+	}
+	
+	/**
+	 * @param index
+	 * @return The hash of a chunk.
+	 */
+	public String getHash(int index) {
+		return this.hashes[index - 1];
+	}
+	
+	/**
+	 * @return The Merkle tree over the hashes.
+	 */
+	public MerkleTree getTree() {
+		MerkleTree tree = this.tree;
+		if (tree == null) {
+			synchronized (this) {
+				tree = this.tree;
+				if (tree == null) {
+					tree = new MerkleTree(this.hashes);
+					this.tree = tree;
+				}
+			}
+		}
+		return tree;
+	}
+	
+	/**
+	 * @param hash
+	 * @return The first chunk with the given hash or -1 if there is none.
+	 */
+	public int getIndex(String hash) {
+		Integer index = this.indices.get(hash);
+		return (index == null) ? -1 : index.intValue();
+	}
+	
+	/**
+	 * @param index
+	 * @return The offset of a chunk in the file.
+	 */
+	public long getOffset(int index) {
+		if (this.boundaries != null) {
+			return this.boundaries[index - 1];
+		}
+		return (long) (index - 1) * this.chunkSize;
+	}
+	
+	/**
+	 * @param index
+	 * @return The length of a chunk. Only the last one may be shorter than the chunk size,
+	 * unless the chunks are content-defined.
+	 */
+	public int getChunkLength(int index) {
+		if (this.boundaries != null) {
+			return (int) (this.boundaries[index] - this.boundaries[index - 1]);
+		}
+		return (int) Math.min(this.chunkSize, this.length - this.getOffset(index));
+	}
+	
+	/**
+	 * Checks the name of a hash-function, so a typo fails at startup and not with the first request.
+	 * 
+	 * @param name CRC32C, XXH64 or the name of a MessageDigest, in any case.
+	 * @return The name in upper case, the way hash() knows it.
+	 * @throws IllegalArgumentException If there is no such hash-function.
+	 */
+	static String algorithm(String name) {
+		String algorithm = name.toUpperCase(java.util.Locale.ROOT);
+		if (algorithm.equals(CRC32C) || algorithm.equals(XXH64)) {
+			return algorithm;
+		}
+		try {
+			MessageDigest.getInstance(algorithm);
+			return algorithm;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unknown hash-function: " + name);
+		}
+	}
+	
+	/**
+	 * Hashes a chunk. We have this abstraction-method so we can replace the hash-function.
+	 * 
+	 * @param chunk The chunk's content, from its position to its limit. The position isn't changed.
+	 * @param algorithm CRC32C, XXH64 or the name of a MessageDigest, e.g. MD5 or SHA-256.
+	 * @return The hash as a hex-string.
+	 */
+	static String hash(ByteBuffer chunk, String algorithm) {
+		chunk = chunk.duplicate();
+		if (algorithm.equals(CRC32C)) {
+			java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+			crc.update(chunk);
+			return String.format("%08x", crc.getValue());
+		}
+		if (algorithm.equals(XXH64)) {
+			return String.format("%016x", xxh64(chunk));
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance(algorithm);
+			digest.update(chunk);
+			byte messageDigest[] = digest.digest();
+			
+			StringBuilder hexString = new StringBuilder();
+			for (int i = 0; i < messageDigest.length; i++) {
+				hexString.append(String.format("%02x", messageDigest[i]));
+			}
+			return hexString.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalArgumentException("Unknown hash-function: " + algorithm);
+		}
+	}
+	
+	/**
+	 * xxHash64 with seed 0 over the remaining bytes of a buffer.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	static long xxh64(ByteBuffer buffer) {
+		final long P1 = 0x9E3779B185EBCA87L;
+		final long P2 = 0xC2B2AE3D27D4EB4FL;
+		final long P3 = 0x165667B19E3779F9L;
+		final long P4 = 0x85EBCA77C2B2AE63L;
+		final long P5 = 0x27D4EB2F165667C5L;
+		
+		ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int length = in.remaining();
+		int p = 0;
+		long h;
+		
+		if (length >= 32) {
+			long v1 = P1 + P2;
+			long v2 = P2;
+			long v3 = 0;
+			long v4 = -P1;
+			do {
+				v1 = Long.rotateLeft(v1 + in.getLong(p) * P2, 31) * P1;
+				v2 = Long.rotateLeft(v2 + in.getLong(p + 8) * P2, 31) * P1;
+				v3 = Long.rotateLeft(v3 + in.getLong(p + 16) * P2, 31) * P1;
+				v4 = Long.rotateLeft(v4 + in.getLong(p + 24) * P2, 31) * P1;
+				p += 32;
+			} while (p <= length - 32);
+			
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = (h ^ (Long.rotateLeft(v1 * P2, 31) * P1)) * P1 + P4;
+			h = (h ^ (Long.rotateLeft(v2 * P2, 31) * P1)) * P1 + P4;
+			h = (h ^ (Long.rotateLeft(v3 * P2, 31) * P1)) * P1 + P4;
+			h = (h ^ (Long.rotateLeft(v4 * P2, 31) * P1)) * P1 + P4;
+		} else {
+			h = P5;
+		}
+		h += length;
+		
+		while (p + 8 <= length) {
+			h ^= Long.rotateLeft(in.getLong(p) * P2, 31) * P1;
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+			p += 8;
+		}
+		if (p + 4 <= length) {
+			h ^= (in.getInt(p) & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			p += 4;
+		}
+		while (p < length) {
+			h ^= (in.get(p) & 0xFF) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+			p++;
+		}
+		
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+	
+	/**
+	 * Hashes a run of chunks, splitting it while it is too long for one task.
+	 */
+	private static class HashTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private FileChannel channel;
+		private long length;
+		private int chunkSize;
+		private long[] boundaries;
+		private String algorithm;
+		private String[] hashes;
+		
+		/**
+		 * The run of chunks, as 0-based indices into hashes, from inclusive, to exclusive.
+		 */
+		private int from;
+		private int to;
+		
+		HashTask(FileChannel channel, long length, int chunkSize, long[] boundaries, String algorithm, String[] hashes, int from, int to) {
+			this.channel = channel;
+			this.length = length;
+			this.chunkSize = chunkSize;
+			this.boundaries = boundaries;
+			this.algorithm = algorithm;
+			this.hashes = hashes;
+			this.from = from;
+			this.to = to;
+		}
+		
+		/**
+		 * @param i A 0-based index.
+		 * @return Where the chunk starts.
+		 */
+		private long start(int i) {
+			return (this.boundaries != null) ? this.boundaries[i] : Math.min(this.length, (long) i * this.chunkSize);
+		}
+		
+		protected void compute() {
+			if (this.to - this.from > CHUNKS_PER_TASK
+					|| (this.to - this.from > 1 && this.start(this.to) - this.start(this.from) > MAX_REGION)) {
+				int middle = (this.from + this.to) >>> 1;
+				invokeAll(new HashTask(this.channel, this.length, this.chunkSize, this.boundaries, this.algorithm, this.hashes, this.from, middle),
+						new HashTask(this.channel, this.length, this.chunkSize, this.boundaries, this.algorithm, this.hashes, middle, this.to));
+				return;
+			}
+			if (this.from == this.to) {
+				return;
+			}
+			
+			// Map the whole run at once and hash slices of it
+			long start = this.start(this.from);
+			long end = this.start(this.to);
+			MappedByteBuffer region;
+			try {
+				region = this.channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			} catch (IOException e) {
+				throw new java.io.UncheckedIOException(e);
+			}
+			
+			for (int i = this.from; i < this.to; i++) {
+				region.limit((int) (this.start(i + 1) - start));
+				region.position((int) (this.start(i) - start));
+				this.hashes[i] = hash(region, this.algorithm);
+			}
+		}
+	}
+}
+
+/**
+ * A deduplicated store on disk for the chunks of all served files. Every content is stored once,
+ * no matter how many files or versions of a file have it, and the chunks are served out of the store.
+ * With content-defined chunks the versions of an artifact share most of their chunks.
+ * 
+ * The directory holds:
+ *   chunks.pack  - the chunks, appended one after the other
+ *   chunks.index - a record per chunk in the pack, appended too: the key, the offset and the length
+ *   recipes/     - a recipe per file and chunking: what the table was built from, and the chunks'
+ *                  hashes, keys and lengths, so the file can be restored and its table read instead of built
+ * 
+ * A chunk's key is the SHA-256 digest of its content, whatever hash-function the tables use.
+ * CRC32C or XXH64 collide easily, two different chunks must never share a place in the pack.
+ * 
+ * Chunks are only added, a chunk no recipe needs anymore stays in the pack.
+ * 
+ * Usage: ChunkStore directory add [chunk=KiB] [hash=name] [cdc] file...
+ *        ChunkStore directory list
+ *        ChunkStore directory restore path target
+ */
+class ChunkStore {
+	
+	/**
+	 * The first four bytes of a recipe. Recipes from before the chunks had keys have another one and are rebuilt.
+	 */
+	private static int MAGIC = 0x52435032;
+	
+	/**
+	 * The hash-function that gives the chunks' keys.
+	 */
+	static final String KEY = "SHA-256";
+	
+	/**
+	 * The directory, the pack and where the next chunk goes in it.
+	 */
+	private File directory;
+	private File pack;
+	private FileChannel packOut;
+	private long packLength;
+	
+	/**
+	 * The index, appended to as chunks are added.
+	 */
+	private java.io.DataOutputStream indexOut;
+	
+	/**
+	 * Where every chunk in the pack is, by key.
+	 */
+	private java.util.concurrent.ConcurrentHashMap<String, Location> chunks;
+	
+	/**
+	 * The bytes of the files added, and how many of them were new to the store.
+	 */
+	private LongAdder addedBytes = new LongAdder();
+	private LongAdder newBytes = new LongAdder();
+	
+	/**
+	 * Where a chunk's bytes are.
+	 */
+	static class Location {
+		
+		private File file;
+		private long offset;
+		private int length;
+		
+		Location(File file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		File getFile() {
+			return this.file;
+		}
+		
+		long getOffset() {
+			return this.offset;
+		}
+		
+		int getLength() {
+			return this.length;
+		}
+	}
+	
+	/**
+	 * Constructor for the store, use open().
+	 * 
+	 * @param directory
+	 */
+	private ChunkStore(File directory) {
+		this.directory = directory;
+		this.pack = new File(directory, "chunks.pack");
+		this.chunks = new java.util.concurrent.ConcurrentHashMap<String, Location>();
+	}
+	
+	/**
+	 * Opens a store, creating it if the directory is empty. A record the index doesn't have completely,
+	 * because the server stopped while writing it, is cut off, its chunk is added again when it is needed.
+	 * 
+	 * @param directory
+	 * @return
+	 * @throws IOException
+	 */
+	static ChunkStore open(File directory) throws IOException {
+		new File(directory, "recipes").mkdirs();
+		if (!directory.isDirectory()) {
+			throw new IOException("Can't create the chunk store in " + directory);
+		}
+		ChunkStore store = new ChunkStore(directory);
+		store.packOut = FileChannel.open(store.pack.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		store.packLength = store.packOut.size();
+		
+		File index = new File(directory, "chunks.index");
+		long valid = 0;
+		if (index.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+			try {
+				while (true) {
+					String key = in.readUTF();
+					long offset = in.readLong();
+					int length = in.readInt();
+					if (offset + length > store.packLength) {
+						break;
+					}
+					store.chunks.put(key, new Location(store.pack, offset, length));
+					valid += 2 + key.length() + 12;
+				}
+			} catch (EOFException e) {
+				// The end, or a record that wasn't written completely
+			} finally {
+				in.close();
+			}
+			java.io.RandomAccessFile truncate = new java.io.RandomAccessFile(index, "rw");
+			try {
+				truncate.setLength(valid);
+			} finally {
+				truncate.close();
+			}
+		}
+		store.indexOut = new java.io.DataOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(index, true)));
+		return store;
+	}
+	
+	/**
+	 * Gets the chunk-table of a file and adds the file's chunks the store doesn't have yet.
+	 * If the file didn't change since it was added, the table is read from its recipe.
+	 * 
+	 * @param file
+	 * @param chunkSize For content-defined chunks the average size.
+	 * @param algorithm
+	 * @param contentDefined
+	 * @return
+	 * @throws IOException
+	 */
+	ChunkTable add(File file, int chunkSize, String algorithm, boolean contentDefined) throws IOException {
+		File recipe = this.getRecipe(file, chunkSize, contentDefined);
+		ChunkTable table = this.readRecipe(recipe, file, chunkSize, algorithm, contentDefined);
+		if (table != null) {
+			return table;
+		}
+		
+		long modified = file.lastModified();
+		table = ChunkTable.build(file, chunkSize, algorithm, contentDefined);
+		table.setStoreKeys(this.addChunks(file, table, algorithm));
+		this.writeRecipe(recipe, file, modified, chunkSize, algorithm, contentDefined, table);
+		return table;
+	}
+	
+	/**
+	 * Appends the chunks of a file the store doesn't have to the pack and the index.
+	 * 
+	 * @param file
+	 * @param table
+	 * @param algorithm
+	 * @return The chunks' keys, in chunk order.
+	 * @throws IOException
+	 */
+	private synchronized String[] addChunks(File file, ChunkTable table, String algorithm) throws IOException {
+		String[] keys = new String[table.getChunkCount()];
+		FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(table.getChunkSize());
+			for (int i = 1; i <= table.getChunkCount(); i++) {
+				String hash = table.getHash(i);
+				int length = table.getChunkLength(i);
+				this.addedBytes.add(length);
+				
+				// Every chunk is read, only its key tells whether the store has it
+				buffer.clear();
+				buffer.limit(length);
+				long offset = table.getOffset(i);
+				while (buffer.hasRemaining() && in.read(buffer, offset + buffer.position()) != -1) {
+				}
+				buffer.flip();
+				
+				// The store is addressed by content, a chunk must be what its hash says
+				if (buffer.remaining() != length || !ChunkTable.hash(buffer, algorithm).equals(hash)) {
+					throw new IOException("The file changed while it was added to the chunk store: " + file);
+				}
+				String key = ChunkTable.hash(buffer, KEY);
+				keys[i - 1] = key;
+				if (this.chunks.containsKey(key)) {
+					continue;
+				}
+				
+				long packOffset = this.packLength;
+				while (buffer.hasRemaining()) {
+					this.packOut.write(buffer, packOffset + buffer.position());
+				}
+				this.packLength += length;
+				this.indexOut.writeUTF(key);
+				this.indexOut.writeLong(packOffset);
+				this.indexOut.writeInt(length);
+				this.chunks.put(key, new Location(this.pack, packOffset, length));
+				this.newBytes.add(length);
+			}
+		} finally {
+			in.close();
+			this.indexOut.flush();
+		}
+		return keys;
+	}
+	
+	/**
+	 * @param table A table the store gave out.
+	 * @param index
+	 * @return Where the chunk is in the pack, null if the store doesn't have it or the table isn't from the store.
+	 */
+	Location locate(ChunkTable table, int index) {
+		String key = table.getStoreKey(index);
+		return (key == null) ? null : this.chunks.get(key);
+	}
+	
+	/**
+	 * @param file
+	 * @param chunkSize
+	 * @param contentDefined
+	 * @return The recipe of a file with a chunking, named by the MD5 of the path and the chunking.
+	 */
+	private File getRecipe(File file, int chunkSize, boolean contentDefined) {
+		String key = file.getAbsolutePath() + "#" + chunkSize + (contentDefined ? "#cdc" : "");
+		String name = ChunkTable.hash(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)), ChunkTable.MD5);
+		return new File(new File(this.directory, "recipes"), name + ".recipe");
+	}
+	
+	/**
+	 * Writes a recipe, replacing the old one at once.
+	 * 
+	 * @param recipe
+	 * @param file
+	 * @param modified The modification time before the file was chunked.
+	 * @param chunkSize
+	 * @param algorithm
+	 * @param contentDefined
+	 * @param table
+	 * @throws IOException
+	 */
+	private void writeRecipe(File recipe, File file, long modified, int chunkSize, String algorithm, boolean contentDefined,
+			ChunkTable table) throws IOException {
+		File temp = new File(recipe.getPath() + ".tmp");
+		java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(file.getAbsolutePath());
+			out.writeLong(table.getLength());
+			out.writeLong(modified);
+			out.writeInt(chunkSize);
+			out.writeUTF(algorithm);
+			out.writeBoolean(contentDefined);
+			out.writeInt(table.getChunkCount());
+			for (int i = 1; i <= table.getChunkCount(); i++) {
+				out.writeUTF(table.getHash(i));
+				out.writeUTF(table.getStoreKey(i));
+				out.writeInt(table.getChunkLength(i));
+			}
+		} finally {
+			out.close();
+		}
+		java.nio.file.Files.move(temp.toPath(), recipe.toPath(),
+				java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads the table of a file from its recipe.
+	 * 
+	 * @param recipe
+	 * @param file The file, null to take the recipe as it is.
+	 * @param chunkSize
+	 * @param algorithm
+	 * @param contentDefined
+	 * @return The table, or null if there is no recipe, it was made from another version of the file,
+	 * or the store lost chunks of it.
+	 * @throws IOException
+	 */
+	private ChunkTable readRecipe(File recipe, File file, int chunkSize, String algorithm, boolean contentDefined) throws IOException {
+		if (!recipe.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(recipe)));
+		try {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			in.readUTF();
+			long length = in.readLong();
+			long modified = in.readLong();
+			if (file != null && (file.length() != length || file.lastModified() != modified
+					|| in.readInt() != chunkSize || !in.readUTF().equals(algorithm) || in.readBoolean() != contentDefined)) {
+				return null;
+			}
+			if (file == null) {
+				chunkSize = in.readInt();
+				in.readUTF();
+				contentDefined = in.readBoolean();
+			}
+			
+			int count = in.readInt();
+			String[] hashes = new String[count];
+			String[] keys = new String[count];
+			long[] boundaries = new long[count + 1];
+			for (int i = 0; i < count; i++) {
+				hashes[i] = in.readUTF();
+				keys[i] = in.readUTF();
+				boundaries[i + 1] = boundaries[i] + in.readInt();
+				if (!this.chunks.containsKey(keys[i])) {
+					return null;
+				}
+			}
+			int size = contentDefined ? ChunkTable.maxContentDefinedSize(chunkSize) : chunkSize;
+			ChunkTable table = new ChunkTable(length, size, hashes, contentDefined ? boundaries : null);
+			table.setStoreKeys(keys);
+			return table;
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes a file back from its chunks.
+	 * 
+	 * @param path The path the file was added from.
+	 * @param target
+	 * @return Whether the store has a recipe for the path.
+	 * @throws IOException
+	 */
+	boolean restore(String path, File target) throws IOException {
+		File[] recipes = new File(this.directory, "recipes").listFiles();
+		for (File recipe : (recipes == null) ? new File[0] : recipes) {
+			if (!recipe.getName().endsWith(".recipe") || !path.equals(this.readPath(recipe))) {
+				continue;
+			}
+			ChunkTable table = this.readRecipe(recipe, null, 0, null, false);
+			if (table == null) {
+				throw new IOException("The chunk store misses chunks of " + path);
+			}
+			FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				for (int i = 1; i <= table.getChunkCount(); i++) {
+					// transferTo() may copy less than asked for
+					Location location = this.locate(table, i);
+					long position = location.getOffset();
+					long end = position + location.getLength();
+					while (position < end) {
+						long copied = this.packOut.transferTo(position, end - position, out);
+						if (copied <= 0) {
+							throw new IOException("The chunk store's pack ends inside a chunk of " + path);
+						}
+						position += copied;
+					}
+				}
+			} finally {
+				out.close();
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param recipe
+	 * @return The path of the file a recipe was made from.
+	 * @throws IOException
+	 */
+	private String readPath(File recipe) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(recipe)));
+		try {
+			return (in.readInt() == MAGIC) ? in.readUTF() : null;
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @return The number of chunks in the store.
+	 */
+	int getChunkCount() {
+		return this.chunks.size();
+	}
+	
+	/**
+	 * @return The length of the pack.
+	 */
+	synchronized long getBytes() {
+		return this.packLength;
+	}
+	
+	/**
+	 * @return The bytes of the files added since the store was opened.
+	 */
+	long getAddedBytes() {
+		return this.addedBytes.sum();
+	}
+	
+	/**
+	 * @return How many of the added bytes the store didn't have yet.
+	 */
+	long getNewBytes() {
+		return this.newBytes.sum();
+	}
+	
+	/**
+	 * Closes the pack and the index.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void close() throws IOException {
+		this.indexOut.close();
+		this.packOut.close();
+	}
+	
+	/**
+	 * Adds files to a store, lists what it has, or restores a file.
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: ChunkStore directory add [chunk=KiB] [hash=name] [cdc] file...");
+			System.out.println("       ChunkStore directory list");
+			System.out.println("       ChunkStore directory restore path target");
+			return;
+		}
+		ChunkStore store = ChunkStore.open(new File(args[0]));
+		try {
+			if (args[1].equals("add")) {
+				int chunkSize = Server.getChunkSize();
+				String algorithm = ChunkTable.MD5;
+				boolean contentDefined = false;
+				for (int i = 2; i < args.length; i++) {
+					if (args[i].startsWith("chunk=")) {
+						chunkSize = Server.negotiateChunkSize(Long.parseLong(args[i].substring(6)) << 10);
+					} else if (args[i].startsWith("hash=")) {
+						algorithm = ChunkTable.algorithm(args[i].substring(5));
+					} else if (args[i].equals("cdc")) {
+						contentDefined = true;
+					} else {
+						ChunkTable table = store.add(new File(args[i]), chunkSize, algorithm, contentDefined);
+						System.out.println(args[i] + ": " + table.getChunkCount() + " chunks");
+					}
+				}
+				System.out.println(String.format("Added %d bytes, %d of them new. The store has %d chunks in %d bytes.",
+						store.getAddedBytes(), store.getNewBytes(), store.getChunkCount(), store.getBytes()));
+			} else if (args[1].equals("list")) {
+				File[] recipes = new File(args[0], "recipes").listFiles();
+				for (File recipe : (recipes == null) ? new File[0] : recipes) {
+					if (recipe.getName().endsWith(".recipe")) {
+						ChunkTable table = store.readRecipe(recipe, null, 0, null, false);
+						System.out.println(store.readPath(recipe) + ((table == null) ? " (incomplete)"
+								: ": " + table.getLength() + " bytes, " + table.getChunkCount() + " chunks"
+								+ (table.isContentDefined() ? ", content-defined" : "")));
+					}
+				}
+				System.out.println(store.getChunkCount() + " chunks in " + store.getBytes() + " bytes");
+			} else if (args[1].equals("restore") && args.length > 3) {
+				if (!store.restore(args[2], new File(args[3]))) {
+					System.out.println("The store has no recipe for " + args[2]);
+				}
+			} else {
+				System.out.println("Unknown command: " + args[1]);
+			}
+		} finally {
+			store.close();
+		}
+	}
+}
+
+/**
+ * rsync-style delta encoding. The client cuts its old copy of a file into blocks and sends a
+ * signature for every full block: a weak, rolling checksum and the MD5 digest. The server slides
+ * a window of one block over its file byte by byte; where the weak checksum and then the digest
+ * match, the client already has the bytes and gets a reference to its block instead of the data.
+ * The rolling checksum can be moved by one byte in constant time, so the scan stays linear.
+ * 
+ * A signature is 20 bytes: the weak checksum as an int and the 16 bytes of the MD5 digest.
+ */
+class Delta {
+	
+	/**
+	 * The length of a block's signature.
+	 */
+	static final int SIGNATURE = 20;
+	
+	/**
+	 * The smallest block size we accept, smaller blocks cost more in signatures than they save.
+	 */
+	static final int MIN_BLOCK = 512;
+	
+	/**
+	 * The most new bytes a delta may carry. A delta is built in memory, beyond this the client
+	 * is better off downloading the file.
+	 */
+	static final long MAX_LITERAL = 64 << 20;
+	
+	/**
+	 * The longest DATA frame of a delta.
+	 */
+	private static int MAX_DATA = 1 << 16;
+	
+	/**
+	 * The rolling checksum of a block, as in rsync: a is the sum of the bytes, b the sum of a
+	 * over the block, both modulo 2^16.
+	 * 
+	 * @param block
+	 * @param offset
+	 * @param length
+	 * @return b in the high and a in the low 16 bits.
+	 */
+	static int weak(byte[] block, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			a += block[offset + i] & 0xff;
+			b += (length - i) * (block[offset + i] & 0xff);
+		}
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+	
+	/**
+	 * Moves a rolling checksum one byte on.
+	 * 
+	 * @param weak The checksum of the window before.
+	 * @param out The byte that leaves the window.
+	 * @param in The byte that enters the window.
+	 * @param length The length of the window.
+	 * @return
+	 */
+	static int roll(int weak, byte out, byte in, int length) {
+		int a = ((weak & 0xffff) - (out & 0xff) + (in & 0xff)) & 0xffff;
+		int b = ((weak >>> 16) - length * (out & 0xff) + a) & 0xffff;
+		return (b << 16) | a;
+	}
+	
+	/**
+	 * Encodes a file against the signatures of the client's old copy.
+	 * 
+	 * @param file
+	 * @param blockSize
+	 * @param count The number of signatures.
+	 * @param signatures
+	 * @param maxLiteral The most new bytes the delta may carry.
+	 * @return The COPY, DATA and END frames, or null if more than maxLiteral bytes are new.
+	 * @throws IOException
+	 */
+	static ByteBuffer encode(File file, int blockSize, int count, ByteBuffer signatures, long maxLiteral) throws IOException {
+		// Index the blocks by their weak checksum, blocks with the same checksum are chained
+		HashMap<Integer, Integer> first = new HashMap<Integer, Integer>();
+		int[] next = new int[count];
+		for (int i = count - 1; i >= 0; i--) {
+			Integer previous = first.put(signatures.getInt(i * SIGNATURE), i);
+			next[i] = (previous == null) ? -1 : previous.intValue();
+		}
+		
+		Encoder encoder = new Encoder();
+		MessageDigest whole = md5();
+		MessageDigest md5 = md5();
+		byte[] digest = new byte[16];
+		
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			// The window is buffer[position, position + blockSize), the bytes before it that
+			// didn't match are the pending literal buffer[literal, position)
+			byte[] buffer = new byte[Math.max(4 * blockSize, 1 << 20)];
+			int literal = 0;
+			int position = 0;
+			int end = 0;
+			long target = 0;
+			int weak = 0;
+			boolean rolling = false;
+			
+			while (true) {
+				// Keep a whole window in the buffer
+				if (end - position < blockSize) {
+					if (literal + buffer.length - end < blockSize) {
+						encoder.data(target, buffer, literal, position - literal);
+						target += position - literal;
+						literal = position;
+					}
+					if (buffer.length - end < blockSize) {
+						System.arraycopy(buffer, literal, buffer, 0, end - literal);
+						position -= literal;
+						end -= literal;
+						literal = 0;
+					}
+					int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+					if (read == -1) {
+						break;
+					}
+					whole.update(buffer, end, read);
+					end += read;
+					continue;
+				}
+				
+				weak = rolling ? weak : weak(buffer, position, blockSize);
+				int match = -1;
+				Integer candidate = (count == 0) ? null : first.get(weak);
+				if (candidate != null) {
+					md5.update(buffer, position, blockSize);
+					try {
+						md5.digest(digest, 0, 16);
+					} catch (java.security.DigestException e) {
+						throw new IOException(e);
+					}
+					for (int i = candidate.intValue(); i != -1; i = next[i]) {
+						if (matches(signatures, i, digest)) {
+							match = i;
+							break;
+						}
+					}
+				}
+				
+				if (match != -1) {
+					encoder.data(target, buffer, literal, position - literal);
+					target += position - literal;
+					encoder.copy(target, match + 1);
+					target += blockSize;
+					position += blockSize;
+					literal = position;
+					rolling = false;
+				} else {
+					if (position + blockSize < end) {
+						weak = roll(weak, buffer[position], buffer[position + blockSize], blockSize);
+						rolling = true;
+					} else {
+						rolling = false;
+					}
+					position++;
+					if (position - literal >= MAX_DATA) {
+						encoder.data(target, buffer, literal, position - literal);
+						target += position - literal;
+						literal = position;
+					}
+				}
+				
+				if (encoder.literal + (position - literal) > maxLiteral) {
+					return null;
+				}
+			}
+			
+			// What is left never filled a window
+			encoder.data(target, buffer, literal, end - literal);
+			target += end - literal;
+			if (encoder.literal > maxLiteral) {
+				return null;
+			}
+			encoder.end(target, whole.digest());
+			return encoder.frames();
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * @param signatures
+	 * @param index
+	 * @param digest
+	 * @return Whether the block's MD5 digest is the given one.
+	 */
+	private static boolean matches(ByteBuffer signatures, int index, byte[] digest) {
+		int base = index * SIGNATURE + 4;
+		for (int i = 0; i < 16; i++) {
+			if (signatures.get(base + i) != digest[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return A new MD5 digest.
+	 */
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Collects the frames of a delta. Consecutive block references are merged into one COPY frame.
+	 */
+	private static class Encoder {
+		
+		private ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		private ByteBuffer header = ByteBuffer.allocate(Frame.HEADER + 4);
+		
+		/**
+		 * The pending COPY: where it goes, its first block and how many blocks follow.
+		 */
+		private long copyTarget;
+		private int copyBlock;
+		private int copyCount;
+		
+		/**
+		 * The new bytes so far.
+		 */
+		long literal;
+		
+		void copy(long target, int block) {
+			if (this.copyCount > 0 && block == this.copyBlock + this.copyCount) {
+				this.copyCount++;
+				return;
+			}
+			this.flushCopy();
+			this.copyTarget = target;
+			this.copyBlock = block;
+			this.copyCount = 1;
+		}
+		
+		void data(long target, byte[] buffer, int offset, int length) {
+			if (length == 0) {
+				return;
+			}
+			this.flushCopy();
+			this.header.clear();
+			Frame.put(this.header, Frame.DATA, 0, target, length);
+			this.frames.write(this.header.array(), 0, Frame.HEADER);
+			this.frames.write(buffer, offset, length);
+			this.literal += length;
+		}
+		
+		void end(long length, byte[] digest) {
+			this.flushCopy();
+			this.header.clear();
+			Frame.put(this.header, Frame.END, 0, length, digest.length);
+			this.frames.write(this.header.array(), 0, Frame.HEADER);
+			this.frames.write(digest, 0, digest.length);
+		}
+		
+		private void flushCopy() {
+			if (this.copyCount == 0) {
+				return;
+			}
+			this.header.clear();
+			Frame.put(this.header, Frame.COPY, this.copyBlock, this.copyTarget, 4);
+			this.header.putInt(this.copyCount);
+			this.frames.write(this.header.array(), 0, Frame.HEADER + 4);
+			this.copyCount = 0;
+		}
+		
+		ByteBuffer frames() {
+			return ByteBuffer.wrap(this.frames.toByteArray());
+		}
+	}
+}
+
+/**
+ * What the self-checks share. Each check prints a line, the servers run on daemon threads
+ * in the same process, and the process exits with 1 if a check failed.
+ */
+class Checks {
+	
+	/**
+	 * How long a check waits for an answer, in milliseconds.
+	 */
+	static final int TIMEOUT = 5000;
+	
+	/**
+	 * The number of checks that failed.
+	 */
+	private static int failures;
+	
+	/**
+	 * Prints the result of a check.
+	 * 
+	 * @param name
+	 * @param passed
+	 */
+	static void check(String name, boolean passed) {
+		System.out.println((passed ? "ok      " : "FAILED  ") + name);
+		if (!passed) {
+			failures++;
+		}
+	}
+	
+	/**
+	 * Prints how the checks went, and exits with 1 if one failed.
+	 */
+	static void exit() {
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+	
+	/**
+	 * Serves on a daemon thread.
+	 * 
+	 * @param server A server on an ephemeral port, set up already.
+	 * @param nio Whether the non-blocking reactor serves.
+	 * @return The port.
+	 */
+	static int serve(final Server server, final boolean nio) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (nio) {
+						server.serveNonBlocking(1);
+					} else {
+						while (true) {
+							server.handleRequest();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, nio ? "reactor" : "server");
+		thread.setDaemon(true);
+		thread.start();
+		return server.getPort();
+	}
+}
+
+/**
+ * Checks how both servers answer malformed frames and GET-frames for a chunk that has changed.
+ * 
+ * Usage: FrameCheck
+ */
+class FrameCheck {
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		File file = ReactorLoadTest.createFile(4L * Server.getChunkSize());
+		checkFrames(Checks.serve(new Server(0, file.getPath()), false), "blocking", file);
+		checkFrames(Checks.serve(new Server(0, file.getPath()), true), "nio", file);
+		Checks.exit();
+	}
+	
+	/**
+	 * Sends malformed frames. A frame whose length can't be trusted ends its connection, with an ERROR
+	 * frame if the length is negative. A DELTA frame with a bad signature count is answered with an ERROR
+	 * frame and the connection goes on, so is a GET-frame that expects another hash than the chunk has.
+	 * In any case the server keeps serving.
+	 * 
+	 * @param port
+	 * @param server The name of the server in the output.
+	 * @param file The served file.
+	 * @throws IOException
+	 */
+	private static void checkFrames(int port, String server, File file) throws IOException {
+		byte[] payload = new byte[5];
+		byte[] first = new byte[Server.getChunkSize()];
+		java.io.DataInputStream fileIn = new java.io.DataInputStream(new java.io.FileInputStream(file));
+		try {
+			fileIn.readFully(first);
+		} finally {
+			fileIn.close();
+		}
+		String hash = ChunkTable.hash(ByteBuffer.wrap(first), ChunkTable.MD5);
+		String other = (hash.charAt(0) == '0' ? "1" : "0") + hash.substring(1);
+		byte[] expected = (hash + "\n").getBytes(StandardCharsets.US_ASCII);
+		byte[] changed = (other + "\n").getBytes(StandardCharsets.US_ASCII);
+		
+		Checks.check(server + ": GET with the chunk's hash is answered with DATA",
+				answers(port, new byte[][] {hashedGet(1, expected)}, Frame.DATA));
+		Checks.check(server + ": GET with another hash is answered with ERROR",
+				answers(port, new byte[][] {hashedGet(1, changed), header(Frame.STAT, 0, 0)}, Frame.ERROR, Frame.INFO));
+		Checks.check(server + ": GET with the HASHED flag but no hash is answered with ERROR",
+				answers(port, new byte[][] {hashedGet(1, payload), header(Frame.STAT, 0, 0)}, Frame.ERROR, Frame.INFO));
+		
+		Checks.check(server + ": negative length is answered with ERROR and closes",
+				answers(port, new byte[][] {header(Frame.STAT, 0, -1)}, Frame.ERROR, -1));
+		Checks.check(server + ": negative signature count is answered with ERROR",
+				answers(port, new byte[][] {header(Frame.DELTA, -1, payload.length), payload, header(Frame.STAT, 0, 0)},
+						Frame.ERROR, Frame.INFO));
+		Checks.check(server + ": more signatures than the payload holds are answered with ERROR",
+				answers(port, new byte[][] {header(Frame.DELTA, 10, payload.length), payload, header(Frame.STAT, 0, 0)},
+						Frame.ERROR, Frame.INFO));
+		Checks.check(server + ": a signature count overflowing an int is answered with ERROR",
+				answers(port, new byte[][] {header(Frame.DELTA, Integer.MAX_VALUE, payload.length), payload, header(Frame.STAT, 0, 0)},
+						Frame.ERROR, Frame.INFO));
+		Checks.check(server + ": a length over the limit closes",
+				answers(port, new byte[][] {header(Frame.STAT, 0, 1 << 20)}, -1));
+		Checks.check(server + ": an unknown opcode closes",
+				answers(port, new byte[][] {header((byte) 0x7F, 0, 0)}, -1));
+		Checks.check(server + ": a truncated header closes",
+				answers(port, new byte[][] {Arrays.copyOf(header(Frame.STAT, 0, 0), 10)}, -1));
+		Checks.check(server + ": still serves", answers(port, new byte[][] {header(Frame.STAT, 0, 0)}, Frame.INFO));
+	}
+	
+	/**
+	 * Sends frames on a BINARY connection and compares the answers.
+	 * 
+	 * @param port
+	 * @param frames What is sent, the output is shut down after it.
+	 * @param expected The opcodes of the answers, -1 for the end of the connection.
+	 * @return Whether the answers were the expected ones.
+	 */
+	private static boolean answers(int port, byte[][] frames, int... expected) {
+		try {
+			Socket socket = new Socket("localhost", port);
+			try {
+				socket.setSoTimeout(Checks.TIMEOUT);
+				OutputStream out = socket.getOutputStream();
+				out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+				for (byte[] frame : frames) {
+					out.write(frame);
+				}
+				out.flush();
+				socket.shutdownOutput();
+				
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				for (int opcode : expected) {
+					if (answer(in) != opcode) {
+						return false;
+					}
+					if (opcode == -1) {
+						break;
+					}
+				}
+				return true;
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// A timeout, the server didn't answer at all
+			return false;
+		}
+	}
+	
+	/**
+	 * Reads a frame and skips its payload.
+	 * 
+	 * @param in
+	 * @return The frame's opcode, -1 if the server closed the connection.
+	 * @throws IOException
+	 */
+	private static int answer(DataInputStream in) throws IOException {
+		byte[] header = new byte[Frame.HEADER];
+		try {
+			in.readFully(header);
+		} catch (EOFException e) {
+			return -1;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		in.readFully(new byte[(int) Frame.length(buffer)]);
+		return Frame.opcode(buffer);
+	}
+	
+	/**
+	 * @param opcode
+	 * @param chunk
+	 * @param length
+	 * @return A request header.
+	 */
+	private static byte[] header(byte opcode, int chunk, long length) {
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+		Frame.put(header, opcode, chunk, 0, length);
+		return header.array();
+	}
+	
+	/**
+	 * @param chunk
+	 * @param payload The hash the request expects and a line-break.
+	 * @return A GET-frame with the HASHED flag for the served file.
+	 */
+	private static byte[] hashedGet(int chunk, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + payload.length);
+		Frame.put(frame, Frame.GET, Frame.HASHED, chunk, 0, payload.length);
+		frame.put(payload);
+		return frame.array();
+	}
+}
+
+
+/**
+ * Checks how the HotChunkCache evicts: LRU drops the least recently used chunk, TINYLFU keeps
+ * a popular chunk through a scan of chunks asked for once, and neither holds more than its capacity.
+ * A file rewritten within the resolution of its modification time isn't served from the cache.
+ * 
+ * Usage: CacheCheck
+ */
+class CacheCheck {
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int chunk = Server.getChunkSize();
+		File file = ReactorLoadTest.createFile(16L * chunk);
+		
+		// Four chunks fit, the first is used again before the fifth comes
+		HotChunkCache cache = new HotChunkCache(4L * chunk, HotChunkCache.LRU);
+		for (int i = 0; i < 4; i++) {
+			cache.get(file, (long) i * chunk, chunk);
+		}
+		cache.get(file, 0, chunk);
+		cache.get(file, 4L * chunk, chunk);
+		Checks.check("LRU: a used chunk is a hit", cache.getHits() == 1 && cache.getMisses() == 5);
+		Checks.check("LRU: the least recently used chunk is evicted", cache.getEvictions() == 1
+				&& cache.peek(file, chunk, chunk) == null && cache.peek(file, 0, chunk) != null && cache.peek(file, 4L * chunk, chunk) != null);
+		Checks.check("LRU: holds no more than its capacity", cache.size() == 4 && cache.getBytes() <= 4L * chunk);
+		
+		Checks.check("LRU: a scan evicts a popular chunk", !survivesScan(HotChunkCache.LRU, file, chunk));
+		Checks.check("TINYLFU: a popular chunk survives a scan", survivesScan(HotChunkCache.TINY_LFU, file, chunk));
+		
+		// The same length and time, but another version
+		File changed = ReactorLoadTest.createFile(4L * chunk);
+		cache = new HotChunkCache(4L * chunk, HotChunkCache.LRU);
+		cache.get(changed, 0, chunk);
+		long modified = changed.lastModified();
+		java.io.FileOutputStream fileOut = new java.io.FileOutputStream(changed, true);
+		try {
+			fileOut.write(1);
+		} finally {
+			fileOut.close();
+		}
+		changed.setLastModified(modified);
+		Checks.check("a rewrite within the mtime resolution isn't served from the cache",
+				changed.lastModified() == modified && cache.peek(changed, 0, chunk) == null);
+		
+		Checks.exit();
+	}
+	
+	/**
+	 * Asks for the first chunk ten times, and then once for every other chunk.
+	 * 
+	 * @param policy
+	 * @param file A file of 16 chunks.
+	 * @param chunk The chunk size.
+	 * @return Whether the first chunk is still cached.
+	 * @throws IOException
+	 */
+	private static boolean survivesScan(String policy, File file, int chunk) throws IOException {
+		HotChunkCache cache = new HotChunkCache(4L * chunk, policy);
+		for (int i = 0; i < 10; i++) {
+			cache.get(file, 0, chunk);
+		}
+		for (int i = 1; i < 16; i++) {
+			cache.get(file, (long) i * chunk, chunk);
+		}
+		return cache.getBytes() <= 4L * chunk && cache.peek(file, 0, chunk) != null;
+	}
+}
+
+/**
+ * Checks the bandwidth shaping: the token bucket's arithmetic, a whole-file download that takes
+ * as long as the rate says, two downloads that share the rate evenly, and a chunk request that
+ * isn't held up behind a whole-file download.
+ * 
+ * Usage: ShapingCheck
+ */
+class ShapingCheck {
+	
+	/**
+	 * The rate of the shaped server, in bytes per second.
+	 */
+	private static final long RATE = 1 << 20;
+	
+	/**
+	 * The chunk size the chunk request asks for. At a third of the rate it would take three seconds,
+	 * going before the whole-file downloads it takes little more than one.
+	 */
+	private static final int CHUNK_SIZE = 1 << 20;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		checkBucket();
+		
+		File file = ReactorLoadTest.createFile(2 * RATE);
+		Server server = new Server(0, file.getPath());
+		server.setBandwidth(RATE, 0);
+		final int port = Checks.serve(server, true);
+		
+		// The burst is sent right away, the rest at the rate
+		long start = System.nanoTime();
+		long length = fetchAll(port);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Checks.check(String.format("a whole-file download takes as long as the rate says (%.2f s)", seconds),
+				length == file.length() && seconds > 1.7 && seconds < 3);
+		
+		// Two at once share the rate
+		final double[] took = new double[2];
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					try {
+						fetchAll(port);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					took[index] = (System.nanoTime() - start) / 1e9;
+				}
+			});
+			threads[i].start();
+		}
+		
+		// A chunk request meanwhile goes before them
+		Thread.sleep(300);
+		start = System.nanoTime();
+		boolean served = fetchChunk(port);
+		double chunkSeconds = (System.nanoTime() - start) / 1e9;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Checks.check(String.format("two downloads share the rate evenly (%.2f s and %.2f s)", took[0], took[1]),
+				took[0] > 3 && took[1] > 3 && Math.max(took[0], took[1]) / Math.min(took[0], took[1]) < 1.3);
+		Checks.check(String.format("a chunk request goes before whole-file downloads (%.2f s)", chunkSeconds),
+				served && chunkSeconds < 2);
+		
+		Checks.exit();
+	}
+	
+	/**
+	 * Checks the token bucket with made-up times.
+	 */
+	private static void checkBucket() {
+		TokenBucket bucket = new TokenBucket(RATE);
+		long burst = bucket.available();
+		Checks.check("bucket: starts full with the burst", burst == Math.max(BandwidthScheduler.QUANTUM, RATE / 20));
+		
+		long now = System.nanoTime() + 1000000000L;
+		bucket.refill(now);
+		Checks.check("bucket: holds no more than the burst", bucket.available() == burst);
+		
+		bucket.take(burst);
+		bucket.refill(now + 10000000L);
+		Checks.check("bucket: refills at the rate", bucket.available() == RATE / 100);
+		Checks.check("bucket: tells how long to wait", Math.abs(bucket.getWait(2 * RATE / 100) - 10000000L) < 1000);
+		
+		bucket.refill(now);
+		Checks.check("bucket: time doesn't go back", bucket.available() == RATE / 100);
+		
+		bucket.take(-10 * burst);
+		Checks.check("bucket: tokens given back stay within the burst", bucket.available() == burst);
+	}
+	
+	/**
+	 * Downloads the whole file with ALL on a connection of its own.
+	 * 
+	 * @param port
+	 * @return The bytes received.
+	 * @throws IOException
+	 */
+	private static long fetchAll(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			socket.getOutputStream().write("ALL\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[1 << 16];
+			long length = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				length += read;
+			}
+			return length;
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Fetches the first chunk with a GET-frame.
+	 * 
+	 * @param port
+	 * @return Whether it was answered with the chunk.
+	 * @throws IOException
+	 */
+	private static boolean fetchChunk(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			socket.setSoTimeout(Checks.TIMEOUT);
+			ByteBuffer request = ByteBuffer.allocate(Frame.HEADER);
+			Frame.put(request, Frame.GET, 1, CHUNK_SIZE, 0);
+			OutputStream out = socket.getOutputStream();
+			out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+			out.write(request.array());
+			out.flush();
+			
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+			in.readFully(header.array());
+			in.readFully(new byte[(int) Frame.length(header)]);
+			return Frame.opcode(header) == Frame.DATA && Frame.length(header) == CHUNK_SIZE;
+		} finally {
+			socket.close();
+		}
+	}
+}
+
+/**
+ * Checks the content-defined chunks and the chunk store: an insertion only changes the chunks
+ * around it, the store keeps the chunks of both versions once, and a store whose index was cut
+ * off in the middle of a record opens without the chunk.
+ * 
+ * Usage: ChunkStoreCheck
+ */
+class ChunkStoreCheck {
+	
+	/**
+	 * The average size of the content-defined chunks.
+	 */
+	private static final int CHUNK_SIZE = 16 << 10;
+	
+	/**
+	 * Where the bytes are inserted, and how many.
+	 */
+	private static final int INSERT_AT = 500000;
+	private static final int INSERTED = 100;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		checkBoundaries();
+		File file = ReactorLoadTest.createFile(4L * Server.getChunkSize());
+		checkChunkStore(file);
+		Checks.exit();
+	}
+	
+	/**
+	 * Chunks a file and a copy with bytes inserted, by content and by size.
+	 * 
+	 * @throws IOException
+	 */
+	private static void checkBoundaries() throws IOException {
+		byte[] content = new byte[1 << 20];
+		new Random(42).nextBytes(content);
+		byte[] edited = new byte[content.length + INSERTED];
+		System.arraycopy(content, 0, edited, 0, INSERT_AT);
+		Arrays.fill(edited, INSERT_AT, INSERT_AT + INSERTED, (byte) 'x');
+		System.arraycopy(content, INSERT_AT, edited, INSERT_AT + INSERTED, content.length - INSERT_AT);
+		File original = File.createTempFile("chunk-store", ".bin");
+		original.deleteOnExit();
+		java.nio.file.Files.write(original.toPath(), content);
+		File copy = File.createTempFile("chunk-store", ".bin");
+		copy.deleteOnExit();
+		java.nio.file.Files.write(copy.toPath(), edited);
+		
+		ChunkTable before = ChunkTable.build(original, CHUNK_SIZE, ChunkTable.MD5, true);
+		ChunkTable after = ChunkTable.build(copy, CHUNK_SIZE, ChunkTable.MD5, true);
+		boolean sized = true;
+		for (int i = 1; i < before.getChunkCount(); i++) {
+			sized &= before.getChunkLength(i) > CHUNK_SIZE / 4 && before.getChunkLength(i) <= ChunkTable.maxContentDefinedSize(CHUNK_SIZE);
+		}
+		Checks.check("cdc: the chunks are between a quarter and four times the average", sized && before.getChunkCount() > 32);
+		Checks.check("cdc: the chunks before the insertion stay where they are",
+				moved(before, after, 0, INSERT_AT, 0) == 0);
+		
+		// The chunking finds the old boundaries again within a chunk or two after the insertion
+		int resynced = INSERT_AT + 2 * ChunkTable.maxContentDefinedSize(CHUNK_SIZE);
+		Checks.check("cdc: the boundaries after the insertion move by its length",
+				moved(before, after, resynced, content.length, INSERTED) == 0);
+		Checks.check("cdc: only the chunks around the insertion change", changed(before, after) <= 3);
+		
+		// Fixed-size chunks all shift
+		ChunkTable fixed = ChunkTable.build(copy, CHUNK_SIZE, ChunkTable.MD5, false);
+		Checks.check("fixed: every chunk after the insertion changes",
+				changed(ChunkTable.build(original, CHUNK_SIZE, ChunkTable.MD5, false), fixed) >= fixed.getChunkCount() - INSERT_AT / CHUNK_SIZE);
+		
+		File directory = java.nio.file.Files.createTempDirectory("chunk-store").toFile();
+		try {
+			ChunkStore store = ChunkStore.open(directory);
+			try {
+				store.add(original, CHUNK_SIZE, ChunkTable.MD5, true);
+				long bytes = store.getBytes();
+				store.add(copy, CHUNK_SIZE, ChunkTable.MD5, true);
+				Checks.check("store: the copy only adds the chunks around the insertion",
+						bytes >= content.length && store.getBytes() - bytes <= 3 * ChunkTable.maxContentDefinedSize(CHUNK_SIZE));
+				
+				File target = File.createTempFile("chunk-store", ".restored");
+				target.deleteOnExit();
+				Checks.check("store: the copy is restored", store.restore(copy.getAbsolutePath(), target)
+						&& Arrays.equals(edited, java.nio.file.Files.readAllBytes(target.toPath())));
+			} finally {
+				store.close();
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+	
+	/**
+	 * @param before
+	 * @param after
+	 * @param from The first offset in before that counts.
+	 * @param to The offset in before where they stop counting.
+	 * @param shift How far the boundaries should have moved.
+	 * @return How many boundaries of before between the offsets aren't in after, moved by the shift.
+	 */
+	private static int moved(ChunkTable before, ChunkTable after, long from, long to, long shift) {
+		java.util.Set<Long> offsets = new java.util.HashSet<Long>();
+		for (int i = 1; i <= after.getChunkCount(); i++) {
+			offsets.add(after.getOffset(i));
+		}
+		int missing = 0;
+		for (int i = 1; i <= before.getChunkCount(); i++) {
+			long offset = before.getOffset(i);
+			if (offset >= from && offset < to && !offsets.contains(offset + shift)) {
+				missing++;
+			}
+		}
+		return missing;
+	}
+	
+	/**
+	 * @param before
+	 * @param after
+	 * @return How many chunks of after before doesn't have.
+	 */
+	private static int changed(ChunkTable before, ChunkTable after) {
+		int changed = 0;
+		for (int i = 1; i <= after.getChunkCount(); i++) {
+			if (before.getIndex(after.getHash(i)) == -1) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * Cuts the last record of a store's index in half, like a crash while it was written,
+	 * and checks that the store opens without the chunk and gets it back when the file is added again.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	private static void checkChunkStore(File file) throws IOException {
+		File directory = java.nio.file.Files.createTempDirectory("chunk-store").toFile();
+		try {
+			ChunkStore store = ChunkStore.open(directory);
+			store.add(file, Server.getChunkSize(), ChunkTable.MD5, false);
+			int chunks = store.getChunkCount();
+			store.close();
+			
+			File index = new File(directory, "chunks.index");
+			long record = index.length() / chunks;
+			java.io.RandomAccessFile truncate = new java.io.RandomAccessFile(index, "rw");
+			try {
+				truncate.setLength(index.length() - record / 2);
+			} finally {
+				truncate.close();
+			}
+			
+			store = ChunkStore.open(directory);
+			try {
+				Checks.check("store: the cut record is dropped", store.getChunkCount() == chunks - 1);
+				Checks.check("store: the index is cut back to whole records", index.length() == (chunks - 1) * record);
+				
+				File target = File.createTempFile("chunk-store", ".restored");
+				target.deleteOnExit();
+				boolean refused = false;
+				try {
+					store.restore(file.getAbsolutePath(), target);
+				} catch (IOException e) {
+					refused = true;
+				}
+				Checks.check("store: a file with a lost chunk isn't restored", refused);
+				
+				store.add(file, Server.getChunkSize(), ChunkTable.MD5, false);
+				Checks.check("store: adding the file again brings the chunk back", store.getChunkCount() == chunks);
+				Checks.check("store: the file is restored", store.restore(file.getAbsolutePath(), target)
+						&& Arrays.equals(java.nio.file.Files.readAllBytes(file.toPath()), java.nio.file.Files.readAllBytes(target.toPath())));
+			} finally {
+				store.close();
+			}
+			
+			store = ChunkStore.open(directory);
+			Checks.check("store: reopens with all chunks", store.getChunkCount() == chunks);
+			store.close();
+		} finally {
+			delete(directory);
+		}
+	}
+	
+	/**
+	 * Deletes a directory with everything in it.
+	 * 
+	 * @param file
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
 	}
-
 }
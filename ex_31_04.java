@@ -1,16 +1,54 @@
+import com.example.bekzhan.Server;
+import com.example.bekzhan.Server.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Client for a network programming proof of concept..
@@ -20,6 +58,35 @@ import java.util.Scanner;
  */
 public class Client {
 
+	/**
+	 * The default number of requests in flight on a persistent connection.
+	 */
+	private static int PIPELINE = 16;
+	
+	/**
+	 * The limits of the delta block size, the length of a block's signature.
+	 */
+	private static int MIN_BLOCK = 2048;
+	private static int MAX_BLOCK = 1 << 17;
+	private static int SIGNATURE = 20;
+	
+	/**
+	 * How many chunks are fetched from one source per swarm round, and how long a peer may take
+	 * to connect or answer, in milliseconds.
+	 */
+	private static int SWARM_BATCH = 64;
+	private static int PEER_TIMEOUT = 5000;
+	
+	/**
+	 * How often the chunk journal is written by default, in milliseconds.
+	 */
+	private static long JOURNAL_INTERVAL = 1000;
+	
+	/**
+	 * The size of a run of adjacent chunks that is written at once, at least a chunk.
+	 */
+	private static int WRITE_RUN = 1 << 20;
+
 	/**
 	 * The client's id.
 	 */
@@ -41,266 +108,5118 @@ public class Client {
 	private String outputFilePath;
 	
 	/**
-	 * A table that holds the status of all chunks of the file.
+	 * The name of the file in the server's directory, null for the file the server serves by default.
+	 */
+	private String fileName;
+	
+	/**
+	 * The status of all chunks of the file, a bit per chunk, persisted next to the output file
+	 * so a download that was interrupted can be resumed. Workers update it concurrently.
+	 */
+	private ChunkJournal recieved;
+	
+	/**
+	 * How often the chunk journal is written while downloading, in milliseconds.
+	 */
+	private long journalInterval;
+	
+	/**
+	 * The chunks of earlier downloads, a chunk that is in another file already is copied from there
+	 * instead of being fetched. Null if they aren't reused.
+	 */
+	private LocalChunks localChunks;
+	
+	/**
+	 * Writes the chunks of the running download to the output file.
+	 */
+	private ChunkWriter writer;
+	
+	/**
+	 * How often the received data is forced to the disk, in milliseconds, 0 for never.
+	 */
+	private long syncInterval;
+	
+	/**
+	 * The offsets of the chunks, in the order of the chunk-list.
+	 * The server hashes the chunks' contents, so a hash is at more than one offset if chunks are equal.
+	 */
+	private HashMap<String, List<Long>> offsets;
+	
+	/**
+	 * How long it took to receive each chunk, in nanoseconds, from sending the request to having the data.
+	 */
+	private Map<String, Long> chunkTimes;
+	
+	/**
+	 * The number of workers that download chunks at the same time, each over its own connection.
+	 */
+	private int workers;
+	
+	/**
+	 * Whether the workers run on virtual threads, if the JVM has them.
+	 */
+	private boolean virtualThreads;
+	
+	/**
+	 * How many GET-requests are kept in flight on one persistent connection.
+	 * 0 means the old way, one connection per chunk.
+	 */
+	private int pipeline;
+	
+	/**
+	 * Whether the number of GET-requests in flight follows the measured bandwidth-delay product
+	 * instead of staying at pipeline.
+	 */
+	private boolean adaptivePipeline;
+	
+	/**
+	 * The chunk size the client asks for in binary requests, 0 leaves it to the server.
+	 */
+	private int requestedChunkSize;
+	
+	/**
+	 * Whether an existing output file is updated with a delta instead of being downloaded again.
+	 */
+	private boolean delta;
+	
+	/**
+	 * The Deflater level the client asks the server to compress chunks with, 0 for no compression.
+	 */
+	private int compression;
+	
+	/**
+	 * Whether the client downloads in a swarm: it fetches chunks from other clients too
+	 * and serves the chunks it has, see recieveSwarm().
+	 */
+	private boolean swarm;
+	
+	/**
+	 * The port the chunks are served to peers on, 0 for any free port.
 	 */
-	private HashMap<String, Boolean> recieved;
+	private int peerPort;
+	
+	/**
+	 * How long the chunks are still served after the download, in seconds.
+	 */
+	private int seedTime;
+	
+	/**
+	 * Serves the chunks to peers while the client is in a swarm.
+	 */
+	private PeerServer peerServer;
+	
+	/**
+	 * The chunks that came from peers, and the peers that sent something wrong or went away.
+	 */
+	private AtomicInteger peerChunks;
+	private Map<String, Boolean> badPeers;
+	
+	/**
+	 * Whether the client talks binary frames with the server, see Frame.
+	 * Without them the text protocol is used.
+	 */
+	private boolean binary;
+	
+	/**
+	 * Whether the chunk-list is fetched page by page and checked against the root of its Merkle tree.
+	 */
+	private boolean merkle;
+	private byte[] root;
+	
+	/**
+	 * Whether the file is received from the server's broadcast of it.
+	 */
+	private boolean broadcast;
+	
+	/**
+	 * Whether the last download() got the whole file.
+	 */
+	private volatile boolean complete;
+	
+	/**
+	 * For readers of the download while it runs, see PartialFile: whether the chunk-list is there
+	 * and the output file created, and whether download() returned. Readers wait on arrivals,
+	 * it is notified when a chunk arrives while waiting is more than 0.
+	 */
+	private volatile boolean listed;
+	private volatile boolean finished;
+	private final Object arrivals = new Object();
+	private volatile int waiting;
+	
+	/**
+	 * The chunks the workers still have to fetch, a reader moves the chunk it waits for to the front.
+	 */
+	private volatile ConcurrentLinkedDeque<String> queue;
+	
+	/**
+	 * The hash of every chunk and where it starts, by index - 1, filled in as the chunk-list arrives.
+	 */
+	private String[] hashes;
+	private long[] starts;
+	
+	/**
+	 * Whether the chunks are content-defined: they have any length up to the chunk size,
+	 * starts tells where they are.
+	 */
+	private boolean contentDefined;
+	
+	/**
+	 * The first chunk with a given hash, binary GET-requests name chunks by index.
+	 */
+	private HashMap<String, Integer> indices;
+	
+	/**
+	 * The length of the file, the size of a chunk and the number of chunks, as the server reported them.
+	 */
+	private long fileLength;
+	private int chunkSize;
+	private int chunkCount;
 
 	/**
-	 * Constructor for the client.
+	 * Constructor for the client. Downloads the file right away.
 	 * 
 	 * @param id The client's id.
 	 * @param host The server's hostname or ip-address.
 	 * @param port The server's port to connect to.
 	 */
 	public Client(String id, String host, int port) {
+		this(id, host, port, "/tmp/testfile_" + id + ".out");
+		this.download();
+	}
+	
+	/**
+	 * Constructor for the client. The download is started with download(), so it can be configured first.
+	 * 
+	 * @param id The client's id.
+	 * @param host The server's hostname or ip-address.
+	 * @param port The server's port to connect to.
+	 * @param outputFilePath The path to the output file.
+	 */
+	public Client(String id, String host, int port, String outputFilePath) {
 		this.id = id;
 		this.host = host;
 		this.port = port;
-
-		this.outputFilePath = "/tmp/testfile_" + this.id + ".out";
-
-		try {
-			//this.recieveFile();
-			
-			// Retrieve the list of all chunks for the file.
-			this.recieved = this.recieveList();
-			
-			//this.recieveFilePart("c4ca4238a0b92382dcc509a6f75849b");	// Offset: 0
-			//this.recieveFilePart("c9e174f5b3f9fc8ea15d152add07294");	// Offset: 1687552
-			
-			// Retrieve all chunks
-			for (String hash : this.recieved.keySet()) {
-				this.recieveFilePart(hash);
-			}
-			
-		} catch(IOException e) {
-			// Doh!
-			System.err.println("Something went wrong!");
-		}
+		this.outputFilePath = outputFilePath;
+		this.pipeline = PIPELINE;
+		this.binary = true;
+		this.workers = 1;
+		this.journalInterval = JOURNAL_INTERVAL;
+		this.chunkTimes = new ConcurrentHashMap<String, Long>();
+		this.peerChunks = new AtomicInteger();
+		this.badPeers = new ConcurrentHashMap<String, Boolean>();
 	}
 	
 	/**
-	 * Hashes a index. We have this abstraction-method so we can replace the hash-function.
+	 * Sets how many GET-requests are kept in flight on one persistent connection.
+	 * 0 fetches every chunk on its own connection.
 	 * 
-	 * @param index
-	 * @return The hashed index. If the chosen hash-function doesn't exist the index as a string is returned.
+	 * @param pipeline
 	 */
-	private String hash(int index) {
-		byte[] defaultBytes = String.valueOf(index).getBytes();
-		try{
-			MessageDigest algorithm = MessageDigest.getInstance("MD5");
-			algorithm.reset();
-			algorithm.update(defaultBytes);
-			byte messageDigest[] = algorithm.digest();
-		            
-			StringBuffer hexString = new StringBuffer();
-			for (int i=0;i<messageDigest.length;i++) {
-				hexString.append(Integer.toHexString(0xFF & messageDigest[i]));
-			}
-			
-			return hexString.toString();
-		}catch(NoSuchAlgorithmException nsae){
-			// If the hash-function we chose doesn't exist we just return the index as a string.
-			return String.valueOf(index);
-		}
+	public void setPipeline(int pipeline) {
+		this.pipeline = pipeline;
 	}
 	
 	/**
-	 * Creates a zero-filled file with a given size.
+	 * Chooses a file in the directory the server serves.
 	 * 
-	 * @param size
+	 * @param fileName The path relative to the served directory, null for the server's default file.
 	 */
-	private void createFile(long size) {
-		File file = new File(this.outputFilePath);
-		try {
-			FileOutputStream fileOut = new FileOutputStream(file);
-			
-			for (long i = 0; i < size; i++) {
-				try {
-					fileOut.write(0);
-				} catch (IOException ioe) {
-				}
-			}
-			
-		} catch (FileNotFoundException fnfe) {
-		}
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
 	}
-
+	
 	/**
-	 * Retrieves the list of chunks from the server.
+	 * Builds a request for the chosen file.
 	 * 
-	 * @return The table of chunks, all marked as not recieved
-	 * @throws IOException
+	 * @param request ALL, LIST or GET:hash
+	 * @return The request with the file-name appended, if there is one.
 	 */
-	private HashMap<String, Boolean> recieveList() throws IOException {
-		try {
-			// Connect to the server
-			Socket serverSocket = new Socket(this.host, this.port);
-
-			// We want to read strings from the server, so we need a Scanner.
-			Scanner in = new Scanner(serverSocket.getInputStream());
-			
-			// We want to write strings to the server, so we need a PrintWriter.
-			PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+	private String request(String request) {
+		return (this.fileName == null) ? request : request + ":" + this.fileName;
+	}
 	
-			// Send the LIST-request to the server
-			out.println("LIST");
-			out.flush();
-			
-			HashMap<String, Boolean> recieved = new HashMap<String, Boolean>();
-			
-			// Retrieve all hashes, puts them into the table and marks them as not received.
-			String hash = "";
-			while(in.hasNext()) {
-				hash = in.nextLine();
-				recieved.put(hash, false);
-			}
-			
-			// Disconnect form the server
-			if (serverSocket != null) {
-				try {
-					serverSocket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			
-			// Creates the dummy file
-			//TODO retrieve the correct file-size
-			this.createFile(16384 * 192);
-			
-			return recieved;
-		} catch (UnknownHostException e) {
-			return null;
-		} catch (IOException e) {
-			return null;
-		}
+	/**
+	 * Chooses between binary frames and the text protocol.
+	 * 
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
 	}
 	
 	/**
-	 * Receives a whole file.
+	 * Fetches the chunk-list in pages instead of all at once, see Merkle. The download starts with the first page
+	 * while the next one is fetched, and every page is checked against the root of the list's Merkle tree.
+	 * Needs binary frames, a swarm download still fetches the whole list.
 	 * 
-	 * @throws IOException
+	 * @param merkle
 	 */
-	private void recieveFile() throws IOException {
-		// Connect to the server
-		Socket serverSocket = new Socket(this.host, this.port);
-		
-		// We want to recieve bytes from the server, so we need a InputStream
-		InputStream in = serverSocket.getInputStream();
-		
-		// We want to write strings to the server, so we need a PrintWriter
-		PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
-
-		// Send the ALL-request to the server
-		out.println("ALL");
-		out.flush();
-		
-		// Initialize the file
-		File file = new File(this.outputFilePath);
-		
-		// Initialize the FileOutputStream
-		FileOutputStream fileOut = new FileOutputStream(file);
-
-		int count;
-		byte[] buffer = new byte[16384];
-		while ((count = in.read(buffer)) > 0) {
-			fileOut.write(buffer, 0, count);
-			fileOut.flush();
-		}
-		
-		// Close the FileOutputStream
-		fileOut.close();
-		
-		// Disconnect from server
-		if (serverSocket != null) {
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+	public void setMerkle(boolean merkle) {
+		this.merkle = merkle;
 	}
 	
 	/**
-	 * Receives a file-chunk by index.
+	 * Receives the whole file from the server's broadcast of it, see the server's Broadcast.
+	 * Clients that download the file at the same time share the server's reads, which pays off
+	 * when a whole fleet fetches it at once. Needs binary frames, there is no chunk-list and no journal.
 	 * 
-	 * @param index
-	 * @throws IOException
+	 * @param broadcast
 	 */
-	private void recieveFilePart(int index) throws IOException {
-		String hash = this.hash(index);
-		this.recieveFilePart(hash);
+	public void setBroadcast(boolean broadcast) {
+		this.broadcast = broadcast;
 	}
 	
 	/**
-	 * Receives a file-chunk by hash.
+	 * Sets the number of workers that download chunks at the same time, each over its own connection.
 	 * 
-	 * @param hash
-	 * @throws IOException
+	 * @param workers
 	 */
-	private void recieveFilePart(String hash) throws IOException {
-		// Connect to the server
-		Socket serverSocket = new Socket(this.host, this.port);
-		
-		// We want to receive bytes from the server, so we need a InputStream
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+	
+	/**
+	 * Lets the workers run on virtual threads. On JVMs without virtual threads normal threads are used.
+	 * 
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+	
+	/**
+	 * Lets the number of GET-requests in flight follow the bandwidth-delay product, see PipelineWindow.
+	 * 
+	 * @param adaptivePipeline
+	 */
+	public void setAdaptivePipeline(boolean adaptivePipeline) {
+		this.adaptivePipeline = adaptivePipeline;
+	}
+	
+	/**
+	 * Asks the server for a chunk size. The server serves powers of two between 16 KiB and 8 MiB
+	 * and may round the request. Only the binary protocol can ask, the text protocol gets the server's default.
+	 * 
+	 * @param chunkSize The chunk size in bytes, 0 for the server's default.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.requestedChunkSize = chunkSize;
+	}
+	
+	/**
+	 * Updates an existing output file with a delta: only the bytes that changed are transferred.
+	 * Needs binary frames. If there is no old copy or the delta fails, the file is downloaded.
+	 * 
+	 * @param delta
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+	
+	/**
+	 * Asks the server to compress the chunks. It pays off for text and on slow links,
+	 * the server sends chunks that don't get smaller as they are. Only the binary protocol compresses.
+	 * 
+	 * @param level The Deflater level from 1 to 9, 0 for no compression.
+	 */
+	public void setCompression(int level) {
+		this.compression = level;
+	}
+	
+	/**
+	 * Downloads in a swarm: the server's tracker names other clients of the file, chunks they have
+	 * are fetched from them, rarest first, and the chunks this client has are served to them.
+	 * 
+	 * @param peerPort The port to serve chunks on, 0 for any free port.
+	 * @param seedTime How long the chunks are still served after the download, in seconds.
+	 */
+	public void setSwarm(int peerPort, int seedTime) {
+		this.swarm = true;
+		this.peerPort = peerPort;
+		this.seedTime = seedTime;
+	}
+	
+	/**
+	 * Sets how often the chunk journal is written while downloading. A crash loses at most
+	 * the chunks of the last interval, they are fetched again when the download is resumed.
+	 * The received data is forced to the disk before every write of the journal.
+	 * 
+	 * @param journalInterval In milliseconds.
+	 */
+	public void setJournalInterval(long journalInterval) {
+		this.journalInterval = Math.max(1, journalInterval);
+	}
+	
+	/**
+	 * Sets how often the received data is forced to the disk. The writes are synced in batches,
+	 * at most once per interval and at the end of the download, not after every chunk.
+	 * 
+	 * @param syncInterval In milliseconds, 0 to leave it to the OS.
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = Math.max(0, syncInterval);
+	}
+	
+	/**
+	 * Reuses the chunks of earlier downloads. The index remembers where the chunks of every complete
+	 * download are, chunks a new download shares with them are copied locally. This pays off most
+	 * with content-defined chunks, an insertion only changes the chunks around it.
+	 * 
+	 * @param index The index file, shared by all downloads that should reuse each other's chunks.
+	 */
+	public void setReuse(File index) {
+		this.localChunks = LocalChunks.open(index);
+	}
+	
+	/**
+	 * @return Whether the last download() got the whole file. One that failed can be run again,
+	 * it resumes from the chunk journal.
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+	
+	/**
+	 * @return The chunk size of the download, as the server reported it.
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+	
+	/**
+	 * How long it took to receive each chunk, in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getChunkTimes() {
+		return this.chunkTimes;
+	}
+	
+	/**
+	 * Downloads the file.
+	 */
+	public void download() {
+		this.complete = false;
+		this.listed = false;
+		this.finished = false;
+		this.hashes = null;
+		try {
+			//this.recieveFile();
+			
+			// Update an old copy if we have one. An unfinished download is resumed instead.
+			File old = new File(this.outputFilePath);
+			File journalFile = new File(this.outputFilePath + ".journal");
+			if (this.delta && this.binary && old.length() > 0 && !journalFile.exists()) {
+				boolean updated;
+				try {
+					updated = this.recieveDelta();
+				} catch (IOException e) {
+					// A dropped connection or a short read of the old copy, the old copy is unchanged
+					Server.Log.warn("Delta broke off: {}", e.toString());
+					updated = false;
+				}
+				if (updated) {
+					this.complete = true;
+					return;
+				}
+				System.out.println("Delta failed, downloading the file.");
+			}
+			
+			// A broadcast needs no chunk-list, the segments tell where they go
+			if (this.broadcast && this.binary) {
+				this.recieveBroadcast();
+				this.complete = true;
+				return;
+			}
+			
+			// Retrieve the list of all chunks for the file. A paged list only needs its root to start.
+			boolean paged = this.merkle && this.binary && !this.swarm;
+			if (paged) {
+				if (!this.recieveRoot()) {
+					System.err.println("Couldn't retrieve the chunk-list's root!");
+					return;
+				}
+				// The pages don't tell where content-defined chunks start, that needs the whole list.
+				paged = !this.contentDefined;
+			}
+			if (!paged) {
+				HashMap<String, Boolean> list = this.recieveList();
+				if (list == null) {
+					System.err.println("Couldn't retrieve the chunk-list!");
+					return;
+				}
+			}
+			
+			// An empty file has no chunks, there is nothing to journal or to fetch
+			if (this.chunkCount == 0) {
+				journalFile.delete();
+				this.createFile(0);
+				this.listed = true;
+				this.complete = true;
+				return;
+			}
+			
+			// Pick up where an interrupted download stopped, the output file keeps its content.
+			// The chunks of a paged list are checked when their page arrives.
+			byte[] listDigest = paged ? this.root : this.listDigest();
+			this.recieved = ChunkJournal.open(journalFile, this.fileLength, this.chunkSize, this.chunkCount, listDigest);
+			this.createFile(this.fileLength);
+			this.writer = new ChunkWriter(new File(this.outputFilePath), Math.max(WRITE_RUN, this.chunkSize), this.syncInterval,
+					new ChunkWriter.Listener() {
+						public void written(String hash) {
+							markRecieved(hash);
+						}
+					});
+			this.recieved.setOutput(this.writer);
+			if (this.recieved.getCount() > 0) {
+				if (!paged) {
+					this.verifyJournal(this.indices.keySet());
+				}
+				System.out.println("Resuming: " + this.recieved.getCount() + " of " + this.chunkCount + " chunks already there");
+			}
+			this.recieved.start(this.journalInterval);
+			if (!paged && !this.swarm && this.localChunks != null) {
+				this.reuseChunks();
+			}
+			
+			// Readers can take the chunks as they arrive now. A paged list or a swarm
+			// doesn't tell the chunks up front, there they wait for the whole file.
+			if (!paged && !this.swarm) {
+				this.listed = true;
+				this.notifyReaders();
+			}
+			
+			//this.recieveFilePart("c4ca4238a0b92382dcc509a6f75849b");	// Offset: 0
+			//this.recieveFilePart("c9e174f5b3f9fc8ea15d152add07294");	// Offset: 1687552
+			
+			// Retrieve all chunks
+			long start = System.nanoTime();
+			if (this.swarm) {
+				this.recieveSwarm();
+			} else if (paged) {
+				this.recievePages();
+			} else {
+				this.recieveParallel(this.missingChunks());
+			}
+			this.printTimings(System.nanoTime() - start);
+			System.out.println("Wrote " + this.writer.getChunks() + " chunks in " + this.writer.getWrites() + " writes, "
+					+ this.writer.getSyncs() + " syncs");
+			
+			// The download is complete, the journal isn't needed anymore
+			if (this.missingChunks().isEmpty()) {
+				this.recieved.delete();
+				this.complete = true;
+				if (this.localChunks != null && !paged) {
+					this.localChunks.add(new File(this.outputFilePath), this.hashes, this.starts, this.fileLength);
+				}
+			}
+			
+			if (this.swarm) {
+				System.out.println("Swarm: " + this.peerChunks.get() + " of " + this.indices.size() + " chunks from peers");
+				this.seed();
+			}
+		} catch(IOException e) {
+			// Doh!
+			System.err.println("Something went wrong!");
+		} finally {
+			// The journal's last write forces the output file, so it is closed first
+			if (this.recieved != null) {
+				this.recieved.close();
+			}
+			if (this.writer != null) {
+				try {
+					this.writer.close();
+				} catch (IOException e) {
+					System.err.println("Couldn't close the output file: " + e.getMessage());
+				}
+				this.writer = null;
+			}
+			if (this.peerServer != null) {
+				this.peerServer.close();
+				this.peerServer = null;
+			}
+			this.finished = true;
+			this.notifyReaders();
+		}
+	}
+	
+	/**
+	 * Starts the download in the background and returns a view of the file that can be read
+	 * while it downloads. A read of a chunk that isn't there yet waits for it, and the chunk
+	 * is fetched next.
+	 * 
+	 * @return
+	 */
+	public PartialFile stream() {
+		this.listed = false;
+		this.finished = false;
+		Thread download = new Thread(new Runnable() {
+			public void run() {
+				download();
+			}
+		}, "download");
+		download.start();
+		return new PartialFile(this, new File(this.outputFilePath));
+	}
+	
+	/**
+	 * Waits until the length of the file is known.
+	 * 
+	 * @param reader The view that waits, closing it ends the wait.
+	 * @return The length of the file.
+	 * @throws IOException If the download stopped without it or the reader was closed.
+	 */
+	long awaitLength(PartialFile reader) throws IOException {
+		synchronized (this.arrivals) {
+			try {
+				while (!this.listed && !this.complete) {
+					if (this.finished) {
+						throw new IOException("The download stopped before the file was there");
+					}
+					if (!reader.isOpen()) {
+						throw new java.nio.channels.AsynchronousCloseException();
+					}
+					this.arrivals.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the download");
+			}
+			return this.listed ? this.fileLength : new File(this.outputFilePath).length();
+		}
+	}
+	
+	/**
+	 * Waits until the chunk at a position in the file arrived. If it is still in the queue,
+	 * it is moved to the front, so the workers fetch it next.
+	 * 
+	 * @param position
+	 * @param reader The view that waits, closing it ends the wait.
+	 * @return Where the bytes that are there from position on end.
+	 * @throws IOException If the download stopped without the chunk or the reader was closed.
+	 */
+	long awaitChunk(long position, PartialFile reader) throws IOException {
+		synchronized (this.arrivals) {
+			this.waiting++;
+			try {
+				while (true) {
+					if (this.complete) {
+						return this.listed ? this.fileLength : new File(this.outputFilePath).length();
+					}
+					String hash = null;
+					if (this.listed) {
+						int index = this.chunkAt(position);
+						hash = this.hashes[index];
+						if (this.recieved.get(this.indices.get(hash).intValue() - 1)) {
+							return this.starts[index] + this.getChunkLength(this.starts[index]);
+						}
+					}
+					if (this.finished) {
+						throw new IOException("The download stopped before the chunk at " + position + " arrived");
+					}
+					if (!reader.isOpen()) {
+						throw new java.nio.channels.AsynchronousCloseException();
+					}
+					if (hash != null) {
+						this.prioritize(hash);
+					}
+					this.arrivals.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a chunk");
+			} finally {
+				this.waiting--;
+			}
+		}
+	}
+	
+	/**
+	 * @param position A position in the file.
+	 * @return The index - 1 of the chunk the position is in.
+	 */
+	private int chunkAt(long position) {
+		if (!this.contentDefined) {
+			return (int) (position / this.chunkSize);
+		}
+		int found = Arrays.binarySearch(this.starts, position);
+		return (found >= 0) ? found : -found - 2;
+	}
+	
+	/**
+	 * Moves a chunk to the front of the queue. A chunk that isn't in the queue is being fetched already.
+	 * 
+	 * @param hash
+	 */
+	private void prioritize(String hash) {
+		ConcurrentLinkedDeque<String> queue = this.queue;
+		if (queue != null && !hash.equals(queue.peekFirst()) && queue.remove(hash)) {
+			queue.addFirst(hash);
+		}
+	}
+	
+	/**
+	 * Wakes the readers waiting for chunks.
+	 */
+	void notifyReaders() {
+		synchronized (this.arrivals) {
+			this.arrivals.notifyAll();
+		}
+	}
+	
+	/**
+	 * Receives chunks with several workers. The workers take the chunks from a shared queue,
+	 * so a fast connection simply fetches more of them.
+	 * 
+	 * @param hashes
+	 * @throws IOException
+	 */
+	private void recieveParallel(List<String> hashes) throws IOException {
+		final ConcurrentLinkedDeque<String> queue = new ConcurrentLinkedDeque<String>(hashes);
+		this.queue = queue;
+		
+		ExecutorService executor = this.newExecutor();
+		List<Future<Void>> running = new ArrayList<Future<Void>>();
+		for (int i = 0; i < this.workers; i++) {
+			running.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					work(queue);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+		
+		// Wait for all workers, the first failure is passed on
+		IOException failure = null;
+		for (Future<Void> worker : running) {
+			try {
+				worker.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while downloading", e);
+			}
+		}
+		this.queue = null;
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	/**
+	 * Creates the executor the workers run on.
+	 * 
+	 * @return
+	 */
+	private ExecutorService newExecutor() {
+		if (this.virtualThreads) {
+			try {
+				// Looked up reflectively, so the client still runs on JVMs without virtual threads
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("No virtual threads on this JVM, using normal threads.");
+			}
+		}
+		return Executors.newFixedThreadPool(this.workers);
+	}
+	
+	/**
+	 * The loop of one worker: fetch chunks from the queue until it is empty.
+	 * 
+	 * @param queue
+	 * @throws IOException
+	 */
+	private void work(Queue<String> queue) throws IOException {
+		if (this.binary) {
+			this.recieveFrames(queue);
+			return;
+		}
+		if (this.pipeline > 0) {
+			this.recieveFileParts(this.host, this.port, queue, false);
+			return;
+		}
+		
+		String hash;
+		while ((hash = queue.poll()) != null) {
+			long start = System.nanoTime();
+			this.recieveFilePart(hash);
+			this.chunkTimes.put(hash, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Receives the chunks in a swarm, in rounds. Every round the tracker is asked for peers and
+	 * the peers for the chunks they have. The missing chunks are ordered rarest first:
+	 * a chunk some peers have is fetched from one of them, chosen at random, and the chunks no peer has
+	 * come from the server. Every source gets at most SWARM_BATCH chunks a round, so the next round
+	 * already sees what the peers fetched meanwhile. As the server hands out different chunks to every client,
+	 * the clients soon fetch most chunks from each other.
+	 * 
+	 * @throws IOException If a round got no chunk and no peer failed, the next ones wouldn't either.
+	 */
+	private void recieveSwarm() throws IOException {
+		this.peerServer = new PeerServer(this, this.peerPort);
+		Thread thread = new Thread(this.peerServer, "peer-server");
+		thread.setDaemon(true);
+		thread.start();
+		System.out.println("Serving chunks to peers on port " + this.peerServer.getPort());
+		
+		Random random = new Random();
+		int lastMissing = -1;
+		int lastBadPeers = 0;
+		while (true) {
+			List<String> missing = this.missingChunks();
+			if (missing.isEmpty()) {
+				break;
+			}
+			// A chunk the server answers with an error stays missing. If the last round got no chunk
+			// and no peer failed in it, this one wouldn't get any either.
+			if (missing.size() == lastMissing && this.badPeers.size() == lastBadPeers) {
+				throw new IOException(missing.size() + " chunks couldn't be received from the server or the peers");
+			}
+			lastMissing = missing.size();
+			lastBadPeers = this.badPeers.size();
+			
+			// Ask the tracker for peers and the peers which chunks they have
+			Map<String, byte[]> haves = new HashMap<String, byte[]>();
+			for (String peer : this.recievePeers(this.peerServer.getPort())) {
+				if (this.badPeers.containsKey(peer)) {
+					continue;
+				}
+				try {
+					haves.put(peer, this.recieveHave(peer));
+				} catch (IOException e) {
+					this.badPeers.put(peer, true);
+				}
+			}
+			
+			// Rarest first, chunks equally rare in random order
+			final Map<String, Integer> availability = new HashMap<String, Integer>();
+			for (String hash : missing) {
+				int count = 0;
+				for (byte[] have : haves.values()) {
+					if (has(have, this.indices.get(hash) - 1)) {
+						count++;
+					}
+				}
+				availability.put(hash, count);
+			}
+			Collections.shuffle(missing, random);
+			Collections.sort(missing, new Comparator<String>() {
+				public int compare(String a, String b) {
+					return availability.get(a).compareTo(availability.get(b));
+				}
+			});
+			
+			// Share the chunks out between the peers that have them and the server
+			List<String> fromServer = new ArrayList<String>();
+			final Map<String, Queue<String>> fromPeers = new HashMap<String, Queue<String>>();
+			List<String> holders = new ArrayList<String>();
+			for (String hash : missing) {
+				holders.clear();
+				for (Map.Entry<String, byte[]> have : haves.entrySet()) {
+					Queue<String> queue = fromPeers.get(have.getKey());
+					if (has(have.getValue(), this.indices.get(hash) - 1) && (queue == null || queue.size() < SWARM_BATCH)) {
+						holders.add(have.getKey());
+					}
+				}
+				if (!holders.isEmpty()) {
+					String peer = holders.get(random.nextInt(holders.size()));
+					if (!fromPeers.containsKey(peer)) {
+						fromPeers.put(peer, new ConcurrentLinkedQueue<String>());
+					}
+					fromPeers.get(peer).add(hash);
+				} else if (availability.get(hash).intValue() == 0 && fromServer.size() < SWARM_BATCH) {
+					fromServer.add(hash);
+				}
+			}
+			
+			// Fetch from the peers and the server at the same time. A peer that fails is not asked again,
+			// its chunks are still missing in the next round.
+			ExecutorService executor = Executors.newCachedThreadPool();
+			for (final Map.Entry<String, Queue<String>> batch : fromPeers.entrySet()) {
+				executor.submit(new Runnable() {
+					public void run() {
+						String[] address = batch.getKey().split(":");
+						try {
+							recieveFileParts(address[0], Integer.parseInt(address[1]), batch.getValue(), true);
+						} catch (IOException e) {
+							badPeers.put(batch.getKey(), true);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			if (!fromServer.isEmpty()) {
+				this.recieveParallel(fromServer);
+			}
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, java.util.concurrent.TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while downloading", e);
+			}
+		}
+	}
+	
+	/**
+	 * Keeps serving the chunks to peers for seedTime seconds after the download.
+	 * The client announces itself again before the tracker would forget it.
+	 */
+	private void seed() {
+		long deadline = System.currentTimeMillis() + this.seedTime * 1000L;
+		try {
+			long left;
+			while ((left = deadline - System.currentTimeMillis()) > 0) {
+				this.recievePeers(this.peerServer.getPort());
+				Thread.sleep(Math.min(left, 20000));
+			}
+		} catch (IOException e) {
+			System.out.println("Lost the tracker, not seeding anymore.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Served " + this.peerServer.getBytesServed() + " bytes to peers.");
+	}
+	
+	/**
+	 * Announces the client to the server's tracker and retrieves the other peers.
+	 * 
+	 * @param peerPort The port the client serves chunks on.
+	 * @return The peers, as "host:port".
+	 * @throws IOException
+	 */
+	private List<String> recievePeers(int peerPort) throws IOException {
+		Socket serverSocket = new Socket(this.host, this.port);
+		try {
+			PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+			out.println(this.request("PEERS:" + peerPort));
+			out.flush();
+			
+			// One peer per line, the server closes the connection after the last
+			List<String> peers = new ArrayList<String>();
+			Scanner in = new Scanner(serverSocket.getInputStream());
+			while (in.hasNextLine()) {
+				String peer = in.nextLine().trim();
+				if (peer.indexOf(':') > 0) {
+					peers.add(peer);
+				}
+			}
+			return peers;
+		} finally {
+			serverSocket.close();
+		}
+	}
+	
+	/**
+	 * Asks a peer which chunks it has.
+	 * 
+	 * @param peer "host:port"
+	 * @return A bit for every chunk of the chunk-list, see PeerServer.
+	 * @throws IOException
+	 */
+	private byte[] recieveHave(String peer) throws IOException {
+		String[] address = peer.split(":");
+		Socket peerSocket = new Socket();
+		try {
+			peerSocket.setSoTimeout(PEER_TIMEOUT);
+			peerSocket.connect(new InetSocketAddress(address[0], Integer.parseInt(address[1])), PEER_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(peerSocket.getInputStream()));
+			peerSocket.getOutputStream().write("HAVE\n".getBytes(StandardCharsets.US_ASCII));
+			
+			int count = Integer.parseInt(readLine(in));
+			if (count != this.chunkCount) {
+				throw new IOException("Peer has another chunk-list");
+			}
+			byte[] have = new byte[(count + 7) / 8];
+			in.readFully(have);
+			return have;
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad answer from " + peer, e);
+		} finally {
+			peerSocket.close();
+		}
+	}
+	
+	/**
+	 * @param bits
+	 * @param bit
+	 * @return Whether the bit is set.
+	 */
+	private static boolean has(byte[] bits, int bit) {
+		return (bits[bit >> 3] & (1 << (bit & 7))) != 0;
+	}
+	
+	/**
+	 * The chunks the client has, as PeerServer reports them: bit i stands for the chunk with index i + 1.
+	 * Only the first index of chunks that appear more than once is set, the others are never asked for.
+	 * 
+	 * @return
+	 */
+	byte[] getHave() {
+		return this.recieved.toBytes();
+	}
+	
+	/**
+	 * @return The number of chunks in the chunk-list.
+	 */
+	int getChunkCount() {
+		return this.chunkCount;
+	}
+	
+	/**
+	 * Where a chunk the client has is in the output file.
+	 * 
+	 * @param hash
+	 * @return The offset, -1 if the client doesn't have the chunk.
+	 */
+	long getChunkOffset(String hash) {
+		Integer index = this.indices.get(hash);
+		if (index == null || !this.recieved.get(index.intValue() - 1)) {
+			return -1;
+		}
+		return this.offsets.get(hash).get(0).longValue();
+	}
+	
+	/**
+	 * @param offset
+	 * @return The length of the chunk at offset, the last chunk may be shorter.
+	 */
+	int getChunkLength(long offset) {
+		if (this.contentDefined) {
+			int index = this.chunkAt(offset);
+			return (int) (((index + 1 < this.chunkCount) ? this.starts[index + 1] : this.fileLength) - offset);
+		}
+		return (int) Math.min(this.chunkSize, this.fileLength - offset);
+	}
+	
+	/**
+	 * @return The path to the output file.
+	 */
+	String getOutputFilePath() {
+		return this.outputFilePath;
+	}
+	
+	/**
+	 * @return The chunks that weren't received yet, every content once.
+	 */
+	private List<String> missingChunks() {
+		List<String> missing = new ArrayList<String>();
+		for (Map.Entry<String, Integer> chunk : this.indices.entrySet()) {
+			if (!this.recieved.get(chunk.getValue().intValue() - 1)) {
+				missing.add(chunk.getKey());
+			}
+		}
+		// In file order, so a worker's chunks are mostly adjacent and written together
+		Collections.sort(missing, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return indices.get(a).compareTo(indices.get(b));
+			}
+		});
+		return missing;
+	}
+	
+	/**
+	 * Marks a chunk as received, after it was written to all its places.
+	 * 
+	 * @param hash
+	 */
+	private void markRecieved(String hash) {
+		this.recieved.set(this.indices.get(hash).intValue() - 1);
+		if (this.waiting > 0) {
+			this.notifyReaders();
+		}
+	}
+	
+	/**
+	 * Identifies the chunk-list, so a journal of another version of the file isn't resumed.
+	 * 
+	 * @return The MD5 digest of the hashes in file order.
+	 */
+	private byte[] listDigest() {
+		MessageDigest digest = md5();
+		for (String hash : this.hashes) {
+			digest.update(String.valueOf(hash).getBytes(StandardCharsets.US_ASCII));
+			digest.update((byte) '\n');
+		}
+		return digest.digest();
+	}
+	
+	/**
+	 * Checks the chunks the journal has as received against their hashes, the output file may not have
+	 * been written completely before the crash. Chunks that don't match are fetched again.
+	 * 
+	 * @param hashes The chunks to check.
+	 * @throws IOException
+	 */
+	private void verifyJournal(Collection<String> hashes) throws IOException {
+		byte[] buffer = new byte[this.chunkSize];
+		for (String hash : hashes) {
+			int bit = this.indices.get(hash).intValue() - 1;
+			if (!this.recieved.get(bit)) {
+				continue;
+			}
+			boolean good = true;
+			for (Long offset : this.offsets.get(hash)) {
+				int len = this.getChunkLength(offset.longValue());
+				this.writer.read(offset.longValue(), buffer, len);
+				if (!verify(hash, buffer, len)) {
+					good = false;
+					break;
+				}
+			}
+			if (!good) {
+				this.recieved.clear(bit);
+			}
+		}
+	}
+	
+	/**
+	 * Copies the missing chunks that other files have already, after checking them against their hashes.
+	 * 
+	 * @throws IOException
+	 */
+	private void reuseChunks() throws IOException {
+		File output = new File(this.outputFilePath).getAbsoluteFile();
+		byte[] buffer = new byte[this.chunkSize];
+		int count = 0;
+		long bytes = 0;
+		ChunkWriter.Run run = this.writer.newRun();
+		try {
+			for (String hash : this.missingChunks()) {
+				LocalChunks.Location location = this.localChunks.locate(hash);
+				long first = this.offsets.get(hash).get(0).longValue();
+				int len = this.getChunkLength(first);
+				if (location == null || location.length != len || location.file.equals(output)) {
+					continue;
+				}
+				RandomAccessFile fileIn;
+				try {
+					fileIn = new RandomAccessFile(location.file, "r");
+				} catch (FileNotFoundException e) {
+					continue;
+				}
+				try {
+					fileIn.seek(location.offset);
+					fileIn.readFully(buffer, 0, len);
+				} catch (EOFException e) {
+					continue;
+				} finally {
+					fileIn.close();
+				}
+				// The other file may have changed since it was indexed.
+				if (!verify(hash, buffer, len)) {
+					continue;
+				}
+				run.add(hash, first, buffer, len);
+				this.writeCopies(hash, first, buffer, len);
+				count++;
+				bytes += len * (long) this.offsets.get(hash).size();
+			}
+		} finally {
+			run.close();
+		}
+		if (count > 0) {
+			System.out.println("Reused " + count + " chunks, " + bytes + " bytes, from other files");
+		}
+	}
+	
+	/**
+	 * Checks a chunk from a peer or from an interrupted download against its hash.
+	 * The hash-function is told by the hash's length,
+	 * XXH64 can't be checked here, the server uses it only on trusted networks.
+	 * 
+	 * @param hash
+	 * @param chunk
+	 * @param len
+	 * @return false if the chunk is wrong.
+	 */
+	private static boolean verify(String hash, byte[] chunk, int len) {
+		if (hash.length() == 8) {
+			java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+			crc.update(chunk, 0, len);
+			return String.format("%08x", crc.getValue()).equals(hash);
+		}
+		String algorithm = (hash.length() == 32) ? "MD5" : (hash.length() == 40) ? "SHA-1" : (hash.length() == 64) ? "SHA-256" : null;
+		if (algorithm == null) {
+			return true;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance(algorithm);
+			digest.update(chunk, 0, len);
+			byte[] messageDigest = digest.digest();
+			
+			StringBuilder hexString = new StringBuilder();
+			for (int i = 0; i < messageDigest.length; i++) {
+				hexString.append(String.format("%02x", messageDigest[i]));
+			}
+			return hexString.toString().equals(hash);
+		} catch (NoSuchAlgorithmException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Prints how long the download and the single chunks took.
+	 * 
+	 * @param elapsed The time the whole download took, in nanoseconds.
+	 */
+	private void printTimings(long elapsed) {
+		long[] times = new long[this.chunkTimes.size()];
+		int i = 0;
+		for (Long time : this.chunkTimes.values()) {
+			times[i++] = time.longValue();
+		}
+		Arrays.sort(times);
+		if (times.length == 0) {
+			return;
+		}
+		
+		long sum = 0;
+		for (long time : times) {
+			sum += time;
+		}
+		
+		System.out.println("Received " + times.length + " chunks in " + (elapsed / 1000000) + " ms with "
+				+ this.workers + " worker(s)");
+		System.out.println("Chunk time (ms): min " + millis(times[0])
+				+ ", avg " + millis(sum / times.length)
+				+ ", p50 " + millis(times[times.length / 2])
+				+ ", p99 " + millis(times[(int) Math.min(times.length - 1, times.length * 99L / 100)])
+				+ ", max " + millis(times[times.length - 1]));
+	}
+	
+	/**
+	 * Formats nanoseconds as milliseconds.
+	 * 
+	 * @param nanos
+	 * @return
+	 */
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+	
+	/**
+	 * Hashes a index. We have this abstraction-method so we can replace the hash-function.
+	 * 
+	 * @param index
+	 * @return The hashed index. If the chosen hash-function doesn't exist the index as a string is returned.
+	 */
+	private String hash(int index) {
+		byte[] defaultBytes = String.valueOf(index).getBytes();
+		try{
+			MessageDigest algorithm = MessageDigest.getInstance("MD5");
+			algorithm.reset();
+			algorithm.update(defaultBytes);
+			byte messageDigest[] = algorithm.digest();
+		            
+			StringBuffer hexString = new StringBuffer();
+			for (int i=0;i<messageDigest.length;i++) {
+				hexString.append(Integer.toHexString(0xFF & messageDigest[i]));
+			}
+			
+			return hexString.toString();
+		}catch(NoSuchAlgorithmException nsae){
+			// If the hash-function we chose doesn't exist we just return the index as a string.
+			return String.valueOf(index);
+		}
+	}
+	
+	/**
+	 * Creates a zero-filled file with a given size.
+	 * The length is only set, nothing is written, so on most file-systems the file is sparse and this takes no time.
+	 * 
+	 * @param size
+	 * @throws IOException
+	 */
+	private void createFile(long size) throws IOException {
+		RandomAccessFile fileOut = new RandomAccessFile(new File(this.outputFilePath), "rw");
+		try {
+			fileOut.setLength(size);
+		} finally {
+			fileOut.close();
+		}
+	}
+	
+	/**
+	 * Retrieves the length of the file, the size of a chunk and the number of chunks from the server.
+	 * 
+	 * @throws IOException
+	 */
+	private void recieveStat() throws IOException {
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		try {
+			InputStream in = new BufferedInputStream(serverSocket.getInputStream());
+			PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+			
+			// Send the STAT-request to the server
+			out.println(this.request("STAT"));
+			out.flush();
+			
+			// Retrieve "length chunksize chunks"
+			String[] stat = readLine(in).split(" ");
+			this.fileLength = Long.parseLong(stat[0]);
+			this.chunkSize = Integer.parseInt(stat[1]);
+			this.chunkCount = Integer.parseInt(stat[2]);
+			this.contentDefined = stat.length > 3 && stat[3].equals("cdc");
+		} finally {
+			// Disconnect from the server
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Retrieves the list of chunks from the server.
+	 * 
+	 * @return The table of chunks, all marked as not recieved
+	 * @throws IOException
+	 */
+	private HashMap<String, Boolean> recieveList() throws IOException {
+		if (this.binary) {
+			return this.recieveListFrames();
+		}
+		try {
+			// Retrieve the file's length first, we need it for the output file
+			this.recieveStat();
+			
+			// Connect to the server
+			Socket serverSocket = new Socket(this.host, this.port);
+
+			// We want to read strings from the server, so we need a Scanner.
+			Scanner in = new Scanner(serverSocket.getInputStream());
+			
+			// We want to write strings to the server, so we need a PrintWriter.
+			PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+	
+			// Send the LIST-request to the server
+			out.println(this.request("LIST"));
+			out.flush();
+			
+			HashMap<String, Boolean> recieved = new HashMap<String, Boolean>();
+			this.offsets = new HashMap<String, List<Long>>();
+			this.indices = new HashMap<String, Integer>();
+			this.hashes = null;
+			
+			// Retrieve all hashes, puts them into the table and marks them as not received.
+			// The list is in file order, so we also learn where each hash belongs,
+			// content-defined chunks come as "hash offset".
+			String hash = "";
+			int index = 1;
+			while(in.hasNext()) {
+				hash = in.nextLine();
+				int space = hash.indexOf(' ');
+				if (space != -1) {
+					this.addChunk(recieved, hash.substring(0, space), index, Long.parseLong(hash.substring(space + 1)));
+				} else {
+					this.addChunk(recieved, hash, index, (index - 1) * (long) this.chunkSize);
+				}
+				index++;
+			}
+			
+			// Disconnect form the server
+			if (serverSocket != null) {
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+			return recieved;
+		} catch (UnknownHostException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Retrieves the list of chunks from the server with binary frames.
+	 * 
+	 * @return The table of chunks, all marked as not recieved, null if the list couldn't be retrieved.
+	 * @throws IOException
+	 */
+	private HashMap<String, Boolean> recieveListFrames() throws IOException {
+		try {
+			// Connect to the server
+			Socket serverSocket = new Socket(this.host, this.port);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(serverSocket.getOutputStream());
+			
+			// Send the STAT- and the LIST-request to the server
+			out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+			out.write(this.requestFrame(Frame.STAT).array());
+			out.write(this.requestFrame(Frame.LIST).array());
+			out.flush();
+			
+			HashMap<String, Boolean> recieved = new HashMap<String, Boolean>();
+			this.offsets = new HashMap<String, List<Long>>();
+			this.indices = new HashMap<String, Integer>();
+			this.hashes = null;
+			
+			// Retrieve the INFO frame, then a HASH frame for every chunk, until the END frame
+			byte[] headerBytes = new byte[Frame.HEADER];
+			ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			try {
+				while (true) {
+					in.readFully(headerBytes);
+					byte[] payload = new byte[(int) Frame.length(header)];
+					in.readFully(payload);
+					
+					byte opcode = Frame.opcode(header);
+					if (opcode == Frame.INFO) {
+						this.fileLength = Frame.offset(header);
+						this.chunkCount = Frame.chunk(header);
+						this.chunkSize = ByteBuffer.wrap(payload).getInt();
+						this.contentDefined = (Frame.flags(header) & Frame.CONTENT_DEFINED) != 0;
+					} else if (opcode == Frame.HASH) {
+						String hash = new String(payload, StandardCharsets.US_ASCII);
+						this.addChunk(recieved, hash, Frame.chunk(header), Frame.offset(header));
+					} else if (opcode == Frame.END) {
+						break;
+					} else {
+						Server.Log.warn("Server: {}", new String(payload, StandardCharsets.UTF_8));
+						return null;
+					}
+				}
+			} finally {
+				// Disconnect form the server
+				serverSocket.close();
+			}
+			
+			return recieved;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Receives the whole file from the server's broadcast. The segments come in the order
+	 * the broadcast is at, each is written where it goes.
+	 * 
+	 * @throws IOException
+	 */
+	private void recieveBroadcast() throws IOException {
+		long start = System.nanoTime();
+		
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(serverSocket.getOutputStream());
+			
+			// Send the STAT-request and join the broadcast
+			ByteBuffer all = this.requestFrame(Frame.ALL);
+			all.put(1, Frame.BROADCAST);
+			out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+			out.write(this.requestFrame(Frame.STAT).array());
+			out.write(all.array());
+			out.flush();
+			
+			// Retrieve the INFO frame, then DATA frames until the END frame
+			byte[] headerBytes = new byte[Frame.HEADER];
+			ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			byte[] buffer = new byte[0];
+			long recieved = 0;
+			ChunkWriter fileOut = null;
+			ChunkWriter.Run run = null;
+			try {
+				while (true) {
+					in.readFully(headerBytes);
+					byte opcode = Frame.opcode(header);
+					int len = (int) Frame.length(header);
+					if (buffer.length < len) {
+						buffer = new byte[len];
+					}
+					in.readFully(buffer, 0, len);
+					
+					if (opcode == Frame.INFO) {
+						this.fileLength = Frame.offset(header);
+						this.createFile(this.fileLength);
+						fileOut = new ChunkWriter(new File(this.outputFilePath), Math.max(WRITE_RUN, this.chunkSize), this.syncInterval, null);
+						run = fileOut.newRun();
+					} else if (opcode == Frame.DATA && fileOut != null) {
+						// The segments come in file order, they are written in runs
+						run.add(null, Frame.offset(header), buffer, len);
+						if (in.available() == 0) {
+							run.flush();
+						}
+						recieved += len;
+					} else if (opcode == Frame.END) {
+						break;
+					} else {
+						throw new IOException("Server: " + new String(buffer, 0, len, StandardCharsets.UTF_8));
+					}
+				}
+			} finally {
+				if (fileOut != null) {
+					try {
+						run.close();
+					} finally {
+						fileOut.close();
+					}
+				}
+			}
+			if (recieved != this.fileLength) {
+				throw new IOException("The broadcast sent " + recieved + " of " + this.fileLength + " bytes");
+			}
+		} finally {
+			// Disconnect from the server
+			serverSocket.close();
+		}
+		System.out.println("Received the file from the broadcast in " + ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+	
+	/**
+	 * Retrieves the length of the file, the size of a chunk, the number of chunks and the root of
+	 * the chunk-list's Merkle tree from the server. The chunks themselves come with the pages.
+	 * 
+	 * @return false if the server doesn't know the file.
+	 * @throws IOException
+	 */
+	private boolean recieveRoot() throws IOException {
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+			OutputStream out = serverSocket.getOutputStream();
+			
+			// Send the ROOT-request to the server
+			ByteBuffer frame = this.requestFrame(Frame.ROOT);
+			ByteBuffer request = ByteBuffer.allocate(7 + frame.capacity());
+			request.put("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+			request.put(frame.array());
+			out.write(request.array());
+			out.flush();
+			
+			// Retrieve the TREE frame
+			byte[] headerBytes = new byte[Frame.HEADER];
+			ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			in.readFully(headerBytes);
+			byte[] payload = new byte[(int) Frame.length(header)];
+			in.readFully(payload);
+			if (Frame.opcode(header) != Frame.TREE) {
+				Server.Log.warn("Server: {}", new String(payload, StandardCharsets.UTF_8));
+				return false;
+			}
+			
+			ByteBuffer tree = ByteBuffer.wrap(payload);
+			this.fileLength = Frame.offset(header);
+			this.chunkCount = Frame.chunk(header);
+			this.chunkSize = tree.getInt();
+			this.contentDefined = (Frame.flags(header) & Frame.CONTENT_DEFINED) != 0;
+			this.root = new byte[tree.remaining()];
+			tree.get(this.root);
+			this.offsets = new HashMap<String, List<Long>>();
+			this.indices = new HashMap<String, Integer>();
+			this.hashes = null;
+			return true;
+		} finally {
+			// Disconnect from the server
+			serverSocket.close();
+		}
+	}
+	
+	/**
+	 * Retrieves a page of the chunk-list and checks it against the root.
+	 * 
+	 * @param page The page, counted from 0.
+	 * @return The page's hashes in file order.
+	 * @throws IOException If the page can't be retrieved or doesn't belong to the root.
+	 */
+	private String[] recievePage(int page) throws IOException {
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+			OutputStream out = serverSocket.getOutputStream();
+			
+			// Send the PAGE-request to the server
+			ByteBuffer frame = this.requestFrame(Frame.PAGE);
+			frame.putInt(4, page);
+			ByteBuffer request = ByteBuffer.allocate(7 + frame.capacity());
+			request.put("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+			request.put(frame.array());
+			out.write(request.array());
+			out.flush();
+			
+			// Retrieve a HASH frame for every chunk of the page, the PROOF frame and the END frame
+			int first = page * Merkle.PAGE + 1;
+			String[] hashes = new String[Math.max(0, Math.min(Merkle.PAGE, this.chunkCount - first + 1))];
+			byte[] proof = null;
+			byte[] headerBytes = new byte[Frame.HEADER];
+			ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			while (true) {
+				in.readFully(headerBytes);
+				byte[] payload = new byte[(int) Frame.length(header)];
+				in.readFully(payload);
+				
+				byte opcode = Frame.opcode(header);
+				if (opcode == Frame.HASH) {
+					int i = Frame.chunk(header) - first;
+					if (i < 0 || i >= hashes.length) {
+						throw new IOException("Chunk " + Frame.chunk(header) + " isn't on page " + page);
+					}
+					hashes[i] = new String(payload, StandardCharsets.US_ASCII);
+				} else if (opcode == Frame.PROOF) {
+					proof = payload;
+				} else if (opcode == Frame.END) {
+					break;
+				} else {
+					throw new IOException("Server: " + new String(payload, StandardCharsets.UTF_8));
+				}
+			}
+			
+			for (String hash : hashes) {
+				if (hash == null) {
+					throw new IOException("Page " + page + " is incomplete");
+				}
+			}
+			if (proof == null || !Merkle.verifyPage(this.root, page, this.getPageCount(), hashes, proof)) {
+				throw new IOException("Page " + page + " doesn't match the root");
+			}
+			return hashes;
+		} finally {
+			// Disconnect from the server
+			serverSocket.close();
+		}
+	}
+	
+	/**
+	 * @return The number of pages of the chunk-list.
+	 */
+	private int getPageCount() {
+		return Math.max(1, (this.chunkCount + Merkle.PAGE - 1) / Merkle.PAGE);
+	}
+	
+	/**
+	 * Receives the chunks page by page. While the chunks of a page are downloaded the next page is
+	 * already fetched, so the download never waits for the list after the first page and the tables
+	 * only grow by a page at a time. The tables are only changed between the pages, when no worker runs.
+	 * 
+	 * @throws IOException
+	 */
+	private void recievePages() throws IOException {
+		ExecutorService prefetch = Executors.newSingleThreadExecutor();
+		try {
+			Future<String[]> next = prefetch.submit(this.pageTask(0));
+			for (int page = 0; page < this.getPageCount(); page++) {
+				String[] hashes;
+				try {
+					hashes = next.get();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+				if (page + 1 < this.getPageCount()) {
+					next = prefetch.submit(this.pageTask(page + 1));
+				}
+				
+				this.recieveParallel(this.addPage(page, hashes));
+			}
+		} finally {
+			prefetch.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @param page
+	 * @return A task that retrieves a page of the chunk-list.
+	 */
+	private Callable<String[]> pageTask(final int page) {
+		return new Callable<String[]>() {
+			public String[] call() throws IOException {
+				return recievePage(page);
+			}
+		};
+	}
+	
+	/**
+	 * Adds a page of the chunk-list to the tables. Chunks the journal has are checked, and a chunk whose
+	 * content was already received for an earlier page is copied within the output file.
+	 * 
+	 * @param page
+	 * @param hashes The page's hashes in file order.
+	 * @return The page's chunks that have to be fetched, every content once.
+	 * @throws IOException
+	 */
+	private List<String> addPage(int page, String[] hashes) throws IOException {
+		HashMap<String, Boolean> recieved = new HashMap<String, Boolean>();
+		List<String> fresh = new ArrayList<String>();
+		List<String> copies = new ArrayList<String>();
+		List<Long> copyOffsets = new ArrayList<Long>();
+		for (int i = 0; i < hashes.length; i++) {
+			int index = page * Merkle.PAGE + i + 1;
+			long offset = (index - 1) * (long) this.chunkSize;
+			Integer known = this.indices.get(hashes[i]);
+			if (known == null) {
+				fresh.add(hashes[i]);
+			} else if (known.intValue() <= page * Merkle.PAGE) {
+				copies.add(hashes[i]);
+				copyOffsets.add(offset);
+			}
+			this.addChunk(recieved, hashes[i], index, offset);
+		}
+		
+		if (this.recieved.getCount() > 0) {
+			this.verifyJournal(fresh);
+		}
+		if (!copies.isEmpty()) {
+			byte[] buffer = new byte[this.chunkSize];
+			for (int i = 0; i < copies.size(); i++) {
+				long from = this.offsets.get(copies.get(i)).get(0).longValue();
+				int len = this.getChunkLength(from);
+				this.writer.read(from, buffer, len);
+				this.writer.write(copyOffsets.get(i).longValue(), buffer, len);
+			}
+		}
+		
+		List<String> missing = new ArrayList<String>();
+		for (String hash : fresh) {
+			if (!this.recieved.get(this.indices.get(hash).intValue() - 1)) {
+				missing.add(hash);
+			}
+		}
+		return missing;
+	}
+	
+	/**
+	 * Updates the output file with a delta. The signatures of the old copy's blocks are sent to the server,
+	 * it answers with references to the blocks that are still valid and with the bytes that are new.
+	 * The new file is built next to the old one and replaces it once its MD5 digest is verified.
+	 * 
+	 * @return false if the server refused the delta or the result was wrong, the old copy is unchanged then.
+	 * @throws IOException If the connection or the old copy failed, the old copy is unchanged then too.
+	 */
+	private boolean recieveDelta() throws IOException {
+		File old = new File(this.outputFilePath);
+		File temp = new File(this.outputFilePath + ".delta");
+		
+		// One block per square root of the length, like rsync. The signatures have to fit into one request.
+		int blockSize = this.requestedChunkSize;
+		if (blockSize == 0) {
+			blockSize = Integer.highestOneBit((int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Math.sqrt(old.length()))));
+		}
+		while (old.length() / blockSize * SIGNATURE > Frame.MAX_DELTA_REQUEST - 1024) {
+			blockSize *= 2;
+		}
+		byte[] signatures = signatures(old, blockSize);
+		
+		byte[] name = (this.fileName == null) ? new byte[0] : this.fileName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer request = ByteBuffer.allocate(Frame.HEADER + name.length + signatures.length);
+		Frame.put(request, Frame.DELTA, signatures.length / SIGNATURE, blockSize, name.length + signatures.length);
+		request.put(name).put(signatures);
+		
+		Socket serverSocket = new Socket(this.host, this.port);
+		RandomAccessFile oldIn = new RandomAccessFile(old, "r");
+		RandomAccessFile newOut = new RandomAccessFile(temp, "rw");
+		boolean done = false;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(serverSocket.getOutputStream());
+			out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+			out.write(request.array());
+			out.flush();
+			
+			newOut.setLength(0);
+			MessageDigest whole = md5();
+			byte[] headerBytes = new byte[Frame.HEADER];
+			ByteBuffer header = ByteBuffer.wrap(headerBytes);
+			byte[] buffer = new byte[Math.max(blockSize, 1 << 16)];
+			long reused = 0;
+			long fetched = 0;
+			
+			// COPY and DATA frames in file order, until the END frame
+			while (true) {
+				in.readFully(headerBytes);
+				byte opcode = Frame.opcode(header);
+				long offset = Frame.offset(header);
+				int len = (int) Frame.length(header);
+				if (buffer.length < len) {
+					buffer = new byte[len];
+				}
+				in.readFully(buffer, 0, len);
+				
+				if (opcode == Frame.COPY) {
+					// Copy the blocks from the old copy
+					long from = (long) (Frame.chunk(header) - 1) * blockSize;
+					long count = (long) ByteBuffer.wrap(buffer, 0, 4).getInt() * blockSize;
+					newOut.seek(offset);
+					for (long copied = 0; copied < count; ) {
+						int n = (int) Math.min(buffer.length, count - copied);
+						oldIn.seek(from + copied);
+						oldIn.readFully(buffer, 0, n);
+						newOut.write(buffer, 0, n);
+						whole.update(buffer, 0, n);
+						copied += n;
+					}
+					reused += count;
+				} else if (opcode == Frame.DATA) {
+					newOut.seek(offset);
+					newOut.write(buffer, 0, len);
+					whole.update(buffer, 0, len);
+					fetched += len;
+				} else if (opcode == Frame.END) {
+					newOut.setLength(offset);
+					if (!MessageDigest.isEqual(whole.digest(), Arrays.copyOf(buffer, len))) {
+						Server.Log.warn("The delta doesn't match the server's file");
+						return false;
+					}
+					break;
+				} else {
+					Server.Log.warn("Server: {}", new String(buffer, 0, len, StandardCharsets.UTF_8));
+					return false;
+				}
+			}
+			done = true;
+			System.out.println("Delta: " + reused + " bytes reused, " + fetched + " bytes fetched");
+		} finally {
+			newOut.close();
+			oldIn.close();
+			serverSocket.close();
+			if (!done) {
+				temp.delete();
+			}
+		}
+		
+		java.nio.file.Files.move(temp.toPath(), old.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+	
+	/**
+	 * Builds the signatures of a file's full blocks for a DELTA-request: the rolling checksum
+	 * as an int and the MD5 digest. This has to match the server's Delta.
+	 * 
+	 * @param file
+	 * @param blockSize
+	 * @return SIGNATURE bytes for every full block.
+	 * @throws IOException
+	 */
+	private static byte[] signatures(File file, int blockSize) throws IOException {
+		int count = (int) (file.length() / blockSize);
+		ByteBuffer signatures = ByteBuffer.allocate(count * SIGNATURE);
+		MessageDigest md5 = md5();
+		byte[] block = new byte[blockSize];
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new java.io.FileInputStream(file), 1 << 16));
+		try {
+			for (int i = 0; i < count; i++) {
+				in.readFully(block);
+				
+				// rsync's rolling checksum: a is the sum of the bytes, b the sum of a over the block
+				int a = 0;
+				int b = 0;
+				for (int j = 0; j < blockSize; j++) {
+					a += block[j] & 0xff;
+					b += (blockSize - j) * (block[j] & 0xff);
+				}
+				signatures.putInt(((b & 0xffff) << 16) | (a & 0xffff));
+				signatures.put(md5.digest(block));
+			}
+		} finally {
+			in.close();
+		}
+		return signatures.array();
+	}
+	
+	/**
+	 * @return A new MD5 digest.
+	 */
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Adds a chunk of the chunk-list to the tables.
+	 * 
+	 * @param recieved
+	 * @param hash
+	 * @param index
+	 * @param offset
+	 */
+	private void addChunk(HashMap<String, Boolean> recieved, String hash, int index, long offset) {
+		recieved.put(hash, false);
+		if (this.hashes == null) {
+			this.hashes = new String[this.chunkCount];
+			this.starts = new long[this.chunkCount];
+		}
+		this.hashes[index - 1] = hash;
+		this.starts[index - 1] = offset;
+		
+		if (!this.offsets.containsKey(hash)) {
+			this.offsets.put(hash, new ArrayList<Long>());
+			this.indices.put(hash, index);
+		}
+		this.offsets.get(hash).add(offset);
+	}
+	
+	/**
+	 * Builds a binary request frame for the chosen file. Its offset is the chunk size:
+	 * the one the client asks for until the server reported the negotiated one.
+	 * 
+	 * @param opcode
+	 * @return The frame, its chunk can be changed with putInt(4, chunk).
+	 */
+	private ByteBuffer requestFrame(byte opcode) {
+		byte[] name = (this.fileName == null) ? new byte[0] : this.fileName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + name.length);
+		// The size of content-defined chunks is only their largest length, they are asked for as at first.
+		long chunkSize = (this.chunkSize != 0 && !this.contentDefined) ? this.chunkSize : this.requestedChunkSize;
+		Frame.put(frame, opcode, 0, chunkSize, name.length);
+		frame.put(name);
+		return frame;
+	}
+	
+	/**
+	 * A GET-frame with the HASHED flag. Its payload has room for the hash, followed by a line-break and the file-name.
+	 * 
+	 * @param hashLength The length of the hashes.
+	 * @return The frame, the chunk and the hash still have to be put.
+	 */
+	private ByteBuffer hashedRequestFrame(int hashLength) {
+		byte[] name = (this.fileName == null) ? new byte[0] : this.fileName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + hashLength + 1 + name.length);
+		long chunkSize = (this.chunkSize != 0 && !this.contentDefined) ? this.chunkSize : this.requestedChunkSize;
+		Frame.put(frame, Frame.GET, Frame.HASHED, 0, chunkSize, hashLength + 1 + name.length);
+		frame.position(frame.position() + hashLength);
+		frame.put((byte) '\n').put(name);
+		return frame;
+	}
+	
+	/**
+	 * Receives a whole file.
+	 * 
+	 * @throws IOException
+	 */
+	private void recieveFile() throws IOException {
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		
+		// We want to recieve bytes from the server, so we need a InputStream
 		InputStream in = serverSocket.getInputStream();
 		
-		// We want to read strings from the server, so we need a Scanner.
-		Scanner     inScanner = new Scanner(in);
+		// We want to write strings to the server, so we need a PrintWriter
+		PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+
+		// Send the ALL-request to the server
+		out.println(this.request("ALL"));
+		out.flush();
+		
+		// Initialize the file
+		File file = new File(this.outputFilePath);
+		
+		// Initialize the FileOutputStream
+		FileOutputStream fileOut = new FileOutputStream(file);
+
+		int count;
+		byte[] buffer = new byte[16384];
+		while ((count = in.read(buffer)) > 0) {
+			fileOut.write(buffer, 0, count);
+			fileOut.flush();
+		}
+		
+		// Close the FileOutputStream
+		fileOut.close();
+		
+		// Disconnect from server
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Receives a file-chunk by index.
+	 * 
+	 * @param index
+	 * @throws IOException
+	 */
+	private void recieveFilePart(int index) throws IOException {
+		String hash = this.hash(index);
+		this.recieveFilePart(hash);
+	}
+	
+	/**
+	 * Receives a file-chunk by hash.
+	 * 
+	 * @param hash
+	 * @throws IOException
+	 */
+	private void recieveFilePart(String hash) throws IOException {
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		
+		// We want to receive bytes from the server, so we need a InputStream.
+		// The offset is read with readLine(), a Scanner would read ahead into the chunk.
+		InputStream in = new BufferedInputStream(serverSocket.getInputStream());
+		
+		// We want to write strings to the server, so we need a PrintWriter
+		PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+
+		Server.Log.debug("Recieving {}", hash);
+		
+		// Send the GET-request to the server
+		out.println(this.request("GET:" + hash));
+		out.flush();
+		
+		// Retrieve the offset in the file
+		long offset = Long.parseLong(readLine(in));
+		
+		Server.Log.debug("Offset: {}", offset);
+		
+		// Retrieve the chunk, the server closes the connection after it
+		byte[] buffer = new byte[this.chunkSize];
+		int len = 0;
+		int read;
+		while (len < buffer.length && (read = in.read(buffer, len, buffer.length - len)) != -1) {
+			len += read;
+		}
+		
+		// Write the chunk to the file, at its offset, it is marked as received then
+		this.writeCopies(hash, offset, buffer, len);
+		ChunkWriter.Run run = this.writer.newRun();
+		run.add(hash, offset, buffer, len);
+		run.close();
+		
+		// Disconnect from the server
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Receives chunks over one persistent connection until the queue is empty.
+	 * Up to pipeline GET-requests are sent ahead, the server answers them in order.
+	 * A peer speaks the same protocol, but its chunks are checked and written where the chunk-list says.
+	 * 
+	 * @param host The server or a peer.
+	 * @param port
+	 * @param queue The chunks to receive, shared with the other workers.
+	 * @param peer Whether host is a peer.
+	 * @throws IOException
+	 */
+	private void recieveFileParts(String host, int port, Queue<String> queue, boolean peer) throws IOException {
+		// Connect to the server, a peer must answer in time
+		Socket serverSocket = new Socket();
+		if (peer) {
+			serverSocket.setSoTimeout(PEER_TIMEOUT);
+		}
+		serverSocket.connect(new InetSocketAddress(host, port), peer ? PEER_TIMEOUT : 0);
+		serverSocket.setTcpNoDelay(true);
+		
+		// We read head lines and chunks from the same stream, so we can't use a Scanner here,
+		// it would read ahead into the chunks.
+		DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+		OutputStream out = new BufferedOutputStream(serverSocket.getOutputStream());
+		
+		// Switch the connection to keep-alive
+		out.write("KEEPALIVE\n".getBytes(StandardCharsets.US_ASCII));
+		
+		ChunkWriter.Run run = this.writer.newRun();
+		byte[] buffer = new byte[this.chunkSize];
+		
+		// The requests in flight and when they were sent
+		ArrayDeque<String> inFlight = new ArrayDeque<String>();
+		ArrayDeque<Long> sentAt = new ArrayDeque<Long>();
+		PipelineWindow window = this.adaptivePipeline ? new PipelineWindow() : null;
+		
+		try {
+			while (true) {
+				// Fill the pipeline
+				String next;
+				int depth = (window != null) ? window.getDepth() : Math.max(1, this.pipeline);
+				while (inFlight.size() < depth && (next = queue.poll()) != null) {
+					out.write((this.request("GET:" + next) + "\n").getBytes(StandardCharsets.US_ASCII));
+					inFlight.add(next);
+					sentAt.add(System.nanoTime());
+				}
+				out.flush();
+				
+				if (inFlight.isEmpty()) {
+					break;
+				}
+				String hash = inFlight.poll();
+				long start = sentAt.poll().longValue();
+				
+				// Retrieve the offset and the length of the chunk
+				String[] head = readLine(in).split(" ");
+				long offset = Long.parseLong(head[0]);
+				int len = Integer.parseInt(head[1]);
+				if (offset == -1) {
+					if (peer) {
+						throw new IOException("Peer doesn't have " + hash);
+					}
+					Server.Log.warn("Server doesn't know {}", hash);
+					continue;
+				}
+				
+				// Retrieve the chunk
+				if (buffer.length < len) {
+					buffer = new byte[len];
+				}
+				in.readFully(buffer, 0, len);
+				if (peer) {
+					offset = this.offsets.get(hash).get(0).longValue();
+					if (len != this.getChunkLength(offset) || !verify(hash, buffer, len)) {
+						throw new IOException("Peer sent a wrong chunk " + hash);
+					}
+					this.peerChunks.incrementAndGet();
+				}
+				
+				// Add the chunk to the run, it is marked as received once the run is written.
+				// The run is written when nothing more has arrived or a reader waits.
+				run.add(hash, offset, buffer, len);
+				this.writeCopies(hash, offset, buffer, len);
+				if (in.available() == 0 || this.waiting > 0) {
+					run.flush();
+				}
+				long now = System.nanoTime();
+				this.chunkTimes.put(hash, now - start);
+				if (window != null) {
+					window.onChunk(now - start, len, now);
+				}
+			}
+		} finally {
+			run.close();
+			
+			// Disconnect from the server
+			serverSocket.close();
+		}
+		if (window != null) {
+			Server.Log.info("Pipeline depth: {}", window.getDepth());
+		}
+	}
+	
+	/**
+	 * Receives chunks over one persistent connection with binary frames until the queue is empty.
+	 * Up to pipeline GET-frames are sent ahead, the server answers them in order. They tell the hash
+	 * we expect, so a file that changed during the download is answered with errors instead of the new bytes.
+	 * The request and the response header are reused for every chunk.
+	 * 
+	 * @param queue The chunks to receive, shared with the other workers.
+	 * @throws IOException
+	 */
+	private void recieveFrames(Queue<String> queue) throws IOException {
+		// Connect to the server
+		Socket serverSocket = new Socket(this.host, this.port);
+		serverSocket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+		OutputStream out = new BufferedOutputStream(serverSocket.getOutputStream());
+		
+		// Switch the connection to binary frames
+		out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+		
+		ByteBuffer request = null;
+		int hashLength = -1;
+		byte[] headerBytes = new byte[Frame.HEADER];
+		ByteBuffer header = ByteBuffer.wrap(headerBytes);
+		
+		// Negotiate the compression, the server tells which level it grants
+		Inflater inflater = null;
+		byte[] inflated = null;
+		if (this.compression > 0) {
+			ByteBuffer compress = this.requestFrame(Frame.COMPRESS);
+			compress.putInt(4, this.compression);
+			out.write(compress.array());
+			out.flush();
+			in.readFully(headerBytes);
+			if (Frame.opcode(header) == Frame.COMPRESS && Frame.chunk(header) > 0) {
+				inflater = new Inflater();
+				inflated = new byte[this.chunkSize];
+			}
+		}
+		
+		ChunkWriter.Run run = this.writer.newRun();
+		byte[] buffer = new byte[this.chunkSize];
+		
+		// The requests in flight and when they were sent
+		ArrayDeque<String> inFlight = new ArrayDeque<String>();
+		ArrayDeque<Long> sentAt = new ArrayDeque<Long>();
+		PipelineWindow window = this.adaptivePipeline ? new PipelineWindow() : null;
+		
+		try {
+			while (true) {
+				// Fill the pipeline
+				String next;
+				int depth = (window != null) ? window.getDepth() : Math.max(1, this.pipeline);
+				while (inFlight.size() < depth && (next = queue.poll()) != null) {
+					if (next.length() != hashLength) {
+						hashLength = next.length();
+						request = this.hashedRequestFrame(hashLength);
+					}
+					request.putInt(4, this.indices.get(next).intValue());
+					for (int i = 0; i < next.length(); i++) {
+						request.put(Frame.HEADER + i, (byte) next.charAt(i));
+					}
+					out.write(request.array());
+					inFlight.add(next);
+					sentAt.add(System.nanoTime());
+				}
+				out.flush();
+				
+				if (inFlight.isEmpty()) {
+					break;
+				}
+				String hash = inFlight.poll();
+				long start = sentAt.poll().longValue();
+				
+				// Retrieve the header, it tells where the chunk belongs and how long it is
+				in.readFully(headerBytes);
+				int len = (int) Frame.length(header);
+				if (buffer.length < len) {
+					buffer = new byte[len];
+				}
+				in.readFully(buffer, 0, len);
+				
+				if (Frame.opcode(header) != Frame.DATA) {
+					Server.Log.warn("Server: {}", new String(buffer, 0, len, StandardCharsets.UTF_8));
+					continue;
+				}
+				long offset = Frame.offset(header);
+				byte[] chunk = buffer;
+				if ((Frame.flags(header) & Frame.DEFLATE) != 0) {
+					if (inflater == null) {
+						throw new IOException("The server sent a compressed chunk we didn't ask for");
+					}
+					chunk = inflated;
+					len = inflate(inflater, buffer, len, inflated, this.getChunkLength(offset));
+				}
+				
+				// Add the chunk to the run, it is marked as received once the run is written.
+				// The run is written when nothing more has arrived or a reader waits.
+				run.add(hash, offset, chunk, len);
+				this.writeCopies(hash, offset, chunk, len);
+				if (in.available() == 0 || this.waiting > 0) {
+					run.flush();
+				}
+				long now = System.nanoTime();
+				this.chunkTimes.put(hash, now - start);
+				if (window != null) {
+					window.onChunk(now - start, len, now);
+				}
+			}
+		} finally {
+			run.close();
+			if (inflater != null) {
+				inflater.end();
+			}
+			
+			// Disconnect from the server
+			serverSocket.close();
+		}
+		if (window != null) {
+			Server.Log.info("Pipeline depth: {}", window.getDepth());
+		}
+	}
+	
+	/**
+	 * Decompresses a chunk.
+	 * 
+	 * @param inflater Reused for every chunk of the connection.
+	 * @param compressed
+	 * @param compressedLength
+	 * @param chunk Receives the chunk.
+	 * @param length The length the chunk must have.
+	 * @return length
+	 * @throws IOException If the chunk doesn't decompress to length bytes.
+	 */
+	private static int inflate(Inflater inflater, byte[] compressed, int compressedLength, byte[] chunk, int length) throws IOException {
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedLength);
+		int inflated = 0;
+		try {
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(chunk, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Broken compressed chunk", e);
+		}
+		if (inflated != length || !inflater.finished()) {
+			throw new IOException("Compressed chunk has the wrong length");
+		}
+		return length;
+	}
+	
+	/**
+	 * Writes a received chunk to the other places in the file that have the same content.
+	 * The chunk was fetched only once, but the server listed its hash more than once.
+	 * 
+	 * @param hash
+	 * @param offset The offset the chunk was already written to.
+	 * @param buffer
+	 * @param len
+	 * @throws IOException
+	 */
+	private void writeCopies(String hash, long offset, byte[] buffer, int len) throws IOException {
+		List<Long> copies = this.offsets.get(hash);
+		if (copies == null || copies.size() < 2) {
+			return;
+		}
+		for (Long copy : copies) {
+			if (copy.longValue() != offset) {
+				this.writer.write(copy.longValue(), buffer, len);
+			}
+		}
+	}
+	
+	/**
+	 * Reads a line without reading ahead.
+	 * 
+	 * @param in
+	 * @return The line without the line-break.
+	 * @throws IOException
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException("Connection closed");
+			}
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String id = (args.length>0) ? args[0] : "default-client";
+		
+		// The server may be given as server=host:port
+		String host = "localhost";
+		int port = 8888;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].startsWith("server=")) {
+				String[] address = args[i].substring(7).split(":");
+				host = address[0];
+				port = (address.length > 1) ? Integer.parseInt(address[1]) : port;
+			}
+		}
+		Client c = new Client(id, host, port, "/tmp/testfile_" + id + ".out");
+		int peerPort = -1;
+		int seedTime = 0;
+		boolean stream = false;
+		
+		// Options after the id:
+		//   pipeline=n - the number of requests in flight on a persistent connection, 0 for one connection per chunk,
+		//                auto to follow the bandwidth-delay product
+		//   chunk=n    - ask the server for chunks of n KiB
+		//   workers=n  - the number of connections downloading at the same time
+		//   virtual    - run the workers on virtual threads
+		//   file=name  - the file in the server's directory
+		//   text       - use the text protocol instead of binary frames
+		//   delta      - update an existing output file with a delta
+		//   merkle     - fetch the chunk-list page by page, checked against its Merkle root
+		//   broadcast  - receive the whole file from the server's broadcast of it
+		//   stream     - read the file while it downloads, and tell when the first and the last bytes could be read
+		//   deflate=n  - ask the server to compress the chunks with level n
+		//   swarm[=n]  - download in a swarm, serving chunks to peers on port n
+		//   seed=n     - keep serving chunks to peers for n seconds after the download
+		//   server=host:port - the server to download from
+		//   log=path   - write the log to a file instead of the console
+		//   log-level=name - the lowest level that is logged: DEBUG, INFO, WARN or ERROR
+		//   log-sample=n - keep only one in n log records below WARN
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("pipeline=auto")) {
+				c.setAdaptivePipeline(true);
+			} else if (args[i].startsWith("pipeline=")) {
+				c.setPipeline(Integer.parseInt(args[i].substring(9)));
+			} else if (args[i].startsWith("chunk=")) {
+				c.setChunkSize(Integer.parseInt(args[i].substring(6)) << 10);
+			} else if (args[i].startsWith("workers=")) {
+				c.setWorkers(Integer.parseInt(args[i].substring(8)));
+			} else if (args[i].equals("virtual")) {
+				c.setVirtualThreads(true);
+			} else if (args[i].equals("text")) {
+				c.setBinary(false);
+			} else if (args[i].equals("delta")) {
+				c.setDelta(true);
+			} else if (args[i].equals("merkle")) {
+				c.setMerkle(true);
+			} else if (args[i].startsWith("sync=")) {
+				c.setSyncInterval(Long.parseLong(args[i].substring(5)));
+			} else if (args[i].startsWith("reuse=")) {
+				c.setReuse(new File(args[i].substring(6)));
+			} else if (args[i].equals("stream")) {
+				stream = true;
+			} else if (args[i].equals("broadcast")) {
+				c.setBroadcast(true);
+			} else if (args[i].startsWith("deflate=")) {
+				c.setCompression(Integer.parseInt(args[i].substring(8)));
+			} else if (args[i].startsWith("file=")) {
+				c.setFileName(args[i].substring(5));
+			} else if (args[i].equals("swarm")) {
+				peerPort = 0;
+			} else if (args[i].startsWith("swarm=")) {
+				peerPort = Integer.parseInt(args[i].substring(6));
+			} else if (args[i].startsWith("seed=")) {
+				seedTime = Integer.parseInt(args[i].substring(5));
+			} else if (args[i].startsWith("log=")) {
+				try {
+					Server.Log.open(args[i].substring(4));
+				} catch (IOException e) {
+					System.err.println("Can't open the log: " + e.getMessage());
+				}
+			} else if (args[i].startsWith("log-level=")) {
+				Server.Log.setLevel(args[i].substring(10));
+			} else if (args[i].startsWith("log-sample=")) {
+				Server.Log.setSampling(Integer.parseInt(args[i].substring(11)));
+			} else if (!args[i].startsWith("server=")) {
+				System.out.println("Unknown option: " + args[i]);
+			}
+		}
+		if (peerPort >= 0) {
+			c.setSwarm(peerPort, seedTime);
+		}
+		
+		if (stream) {
+			c.streamFile();
+			return;
+		}
+		c.download();
+	}
+	
+	/**
+	 * Downloads the file and reads it at the same time, through a PartialFile.
+	 */
+	private void streamFile() {
+		long begin = System.nanoTime();
+		long first = -1;
+		long length = 0;
+		try {
+			PartialFile view = this.stream();
+			InputStream in = view.newInputStream();
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (first == -1) {
+					first = System.nanoTime() - begin;
+				}
+				digest.update(buffer, 0, read);
+				length += read;
+			}
+			view.close();
+			StringBuilder md5 = new StringBuilder();
+			for (byte b : digest.digest()) {
+				md5.append(String.format("%02x", b));
+			}
+			System.out.println(String.format("Streamed %d bytes, the first after %.1f ms, the last after %.1f ms, MD5 %s",
+					length, first / 1e6, (System.nanoTime() - begin) / 1e6, md5));
+		} catch (IOException e) {
+			System.err.println("Streaming failed: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
+
+/**
+ * Decides how many GET-requests a connection keeps in flight, so the pipe to the server stays full.
+ * That is the case when the requests in flight cover the bandwidth-delay product: the bandwidth
+ * times the round-trip time, divided by the chunk size.
+ * 
+ * The round-trip time is the shortest time a chunk took, the bandwidth the best rate of the last rounds,
+ * a round being as many chunks as were in flight. The window asks for twice the product, so it doubles
+ * every round while the rate still grows with it, and settles once the rate stops growing.
+ */
+class PipelineWindow {
+	
+	/**
+	 * The limits of the depth.
+	 */
+	private static int MIN_DEPTH = 1;
+	private static int MAX_DEPTH = 1024;
+	
+	/**
+	 * How many rounds the bandwidth is remembered.
+	 */
+	private static int ROUNDS = 4;
+	
+	/**
+	 * The number of requests to keep in flight.
+	 */
+	private int depth;
+	
+	/**
+	 * The shortest time a chunk took, in nanoseconds.
+	 */
+	private long minRtt;
+	
+	/**
+	 * The rates of the last rounds, in bytes per nanosecond.
+	 */
+	private double[] rates;
+	private int round;
+	
+	/**
+	 * The current round: when it started, and the chunks and bytes received in it.
+	 */
+	private long roundStart;
+	private int roundChunks;
+	private long roundBytes;
+	
+	/**
+	 * Constructor for the window, it starts with two requests in flight.
+	 */
+	public PipelineWindow() {
+		this.depth = 2;
+		this.minRtt = Long.MAX_VALUE;
+		this.rates = new double[ROUNDS];
+		this.roundStart = System.nanoTime();
+	}
+	
+	/**
+	 * @return The number of requests to keep in flight.
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+	
+	/**
+	 * Accounts for a received chunk.
+	 * 
+	 * @param latency The time from sending the request to having the chunk, in nanoseconds.
+	 * @param bytes The length of the chunk.
+	 * @param now
+	 */
+	public void onChunk(long latency, int bytes, long now) {
+		this.minRtt = Math.min(this.minRtt, Math.max(1, latency));
+		this.roundChunks++;
+		this.roundBytes += bytes;
+		if (this.roundChunks < this.depth) {
+			return;
+		}
+		
+		// The round is over: remember its rate and size the window from the best rate
+		this.rates[this.round++ % ROUNDS] = (double) this.roundBytes / Math.max(1, now - this.roundStart);
+		double bandwidth = 0;
+		for (double rate : this.rates) {
+			bandwidth = Math.max(bandwidth, rate);
+		}
+		double chunk = (double) this.roundBytes / this.roundChunks;
+		double product = bandwidth * this.minRtt / chunk;
+		this.depth = (int) Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, Math.ceil(2 * product)));
+		
+		this.roundStart = now;
+		this.roundChunks = 0;
+		this.roundBytes = 0;
+	}
+}
+
+/**
+ * A TCP proxy that makes loopback behave like a bad network, to compare download strategies.
+ * Every block it forwards is held back for the one-way delay plus some jitter, in both directions.
+ * The blocks of all connections share a link of limited bandwidth, now and then a connection stalls,
+ * and it can be reset in the middle of a transfer. The faults are drawn from a seeded random,
+ * so a scenario runs the same way every time.
+ * 
+ * Usage: FaultProxy listen-port host:port [rtt=ms] [jitter=ms] [rate=MiB/s] [stall=chance:ms] [reset=chance] [seed=n]
+ */
+class FaultProxy implements Runnable {
+	
+	/**
+	 * The most blocks a direction of a connection holds, like the window of a real link.
+	 * The reader waits when they are all in flight.
+	 */
+	private static int WINDOW = 256;
+	
+	/**
+	 * The socket clients connect to.
+	 */
+	private ServerSocket serverSocket;
+	
+	/**
+	 * Where the connections are forwarded to.
+	 */
+	private String host;
+	private int port;
+	
+	/**
+	 * The one-way delay and the most jitter that is added to it, in nanoseconds.
+	 */
+	private long delay;
+	private long jitter;
+	
+	/**
+	 * The bandwidth of the link in bytes per second, 0 for no limit.
+	 */
+	private long bandwidth;
+	
+	/**
+	 * When the link is free again in each direction, to the server and to the client.
+	 */
+	private long[] linkFree = new long[2];
+	
+	/**
+	 * The chance that a block stalls its connection, and for how long in nanoseconds.
+	 */
+	private double stallChance;
+	private long stall;
+	
+	/**
+	 * The chance that a connection is reset per MiB it forwards to the client.
+	 */
+	private double resetChance;
+	
+	private Random random = new Random(42);
+	
+	/**
+	 * What happened so far.
+	 */
+	private AtomicInteger connections = new AtomicInteger();
+	private AtomicInteger stalls = new AtomicInteger();
+	private AtomicInteger resets = new AtomicInteger();
+	
+	/**
+	 * Constructor for the proxy, it listens on a free port.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param rttMillis The round-trip time to simulate.
+	 * @throws IOException
+	 */
+	public FaultProxy(String host, int port, long rttMillis) throws IOException {
+		this(0, host, port, rttMillis);
+	}
+	
+	/**
+	 * Constructor for the proxy.
+	 * 
+	 * @param listenPort The port to listen on, 0 for a free one.
+	 * @param host
+	 * @param port
+	 * @param rttMillis The round-trip time to simulate.
+	 * @throws IOException
+	 */
+	public FaultProxy(int listenPort, String host, int port, long rttMillis) throws IOException {
+		this.serverSocket = new ServerSocket(listenPort);
+		this.host = host;
+		this.port = port;
+		this.setRoundTripTime(rttMillis);
+	}
+	
+	/**
+	 * @param rttMillis The round-trip time to simulate.
+	 */
+	public void setRoundTripTime(long rttMillis) {
+		this.delay = rttMillis * 1000000L / 2;
+	}
+	
+	/**
+	 * @param jitterMillis The most that is added to the one-way delay of a block, chosen at random.
+	 * The blocks stay in order.
+	 */
+	public void setJitter(long jitterMillis) {
+		this.jitter = jitterMillis * 1000000L;
+	}
+	
+	/**
+	 * @param bytesPerSecond The bandwidth all connections share, in each direction. 0 for no limit.
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+	
+	/**
+	 * @param chance The chance that a block stalls its connection.
+	 * @param millis How long the connection stalls.
+	 */
+	public void setStalls(double chance, long millis) {
+		this.stallChance = chance;
+		this.stall = millis * 1000000L;
+	}
+	
+	/**
+	 * @param chance The chance that a connection is reset per MiB it forwards to the client.
+	 */
+	public void setResets(double chance) {
+		this.resetChance = chance;
+	}
+	
+	/**
+	 * @param seed Where the random faults start.
+	 */
+	public void setSeed(long seed) {
+		this.random = new Random(seed);
+	}
+	
+	/**
+	 * @return The port the proxy listens on.
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * @return The number of connections forwarded so far.
+	 */
+	public int getConnections() {
+		return this.connections.get();
+	}
+	
+	/**
+	 * @return The number of stalls so far.
+	 */
+	public int getStalls() {
+		return this.stalls.get();
+	}
+	
+	/**
+	 * @return The number of connections reset so far.
+	 */
+	public int getResets() {
+		return this.resets.get();
+	}
+	
+	/**
+	 * Stops accepting connections.
+	 */
+	public void close() {
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Accepts connections until the proxy is closed.
+	 */
+	public void run() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				Socket client = this.serverSocket.accept();
+				Socket server = new Socket(this.host, this.port);
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				this.connections.incrementAndGet();
+				this.forward(client, server, 0);
+				this.forward(server, client, 1);
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+	
+	/**
+	 * Decides when a block is passed on: after the delay and the jitter, after the block before it,
+	 * and after the link had the time to carry it.
+	 * 
+	 * @param direction 0 to the server, 1 to the client.
+	 * @param previous When the block before it is passed on.
+	 * @param length
+	 * @return
+	 */
+	private long due(int direction, long previous, int length) {
+		long now = System.nanoTime();
+		long due = now + this.delay;
+		if (this.jitter > 0) {
+			due += (long) (this.random.nextDouble() * this.jitter);
+		}
+		if (this.stallChance > 0 && this.random.nextDouble() < this.stallChance) {
+			this.stalls.incrementAndGet();
+			due += this.stall;
+		}
+		if (this.bandwidth > 0) {
+			synchronized (this.linkFree) {
+				long sent = Math.max(this.linkFree[direction], now) + length * 1000000000L / this.bandwidth;
+				this.linkFree[direction] = sent;
+				due = Math.max(due, sent + this.delay);
+			}
+		}
+		return Math.max(due, previous);
+	}
+	
+	/**
+	 * Forwards one direction of a connection. One thread reads and stamps the blocks,
+	 * another one writes them once they are due.
+	 * 
+	 * @param from
+	 * @param to
+	 * @param direction 0 to the server, 1 to the client.
+	 */
+	private void forward(final Socket from, final Socket to, final int direction) {
+		final java.util.concurrent.LinkedBlockingQueue<Object[]> queue = new java.util.concurrent.LinkedBlockingQueue<Object[]>(WINDOW);
+		
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[65536];
+				long previous = 0;
+				try {
+					InputStream in = from.getInputStream();
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						previous = due(direction, previous, read);
+						
+						// A reset takes the place of the block
+						if (direction == 1 && resetChance > 0 && random.nextDouble() < resetChance * read / (1 << 20)) {
+							queue.put(new Object[] {previous, null, Boolean.TRUE});
+							return;
+						}
+						queue.put(new Object[] {previous, Arrays.copyOf(buffer, read), Boolean.FALSE});
+					}
+				} catch (IOException e) {
+					// The connection broke, pass the end on
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				try {
+					queue.put(new Object[] {Math.max(previous, System.nanoTime() + delay), null, Boolean.FALSE});
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "proxy-reader");
+		
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					OutputStream out = to.getOutputStream();
+					while (true) {
+						Object[] block = queue.take();
+						long wait = ((Long) block[0]).longValue() - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+						}
+						if (block[2] == Boolean.TRUE) {
+							// Closing with a zero linger sends a RST instead of a FIN
+							resets.incrementAndGet();
+							from.setSoLinger(true, 0);
+							to.setSoLinger(true, 0);
+							break;
+						}
+						if (block[1] == null) {
+							to.shutdownOutput();
+							
+							// The other direction shuts down from's output when it is done too
+							if (!from.isOutputShutdown()) {
+								return;
+							}
+							break;
+						}
+						out.write((byte[]) block[1]);
+					}
+				} catch (IOException e) {
+					// The connection broke
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				try {
+					from.close();
+					to.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "proxy-writer");
+		
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+	
+	/**
+	 * Configures the proxy from options like rtt=50, the ones in the usage.
+	 * 
+	 * @param option
+	 * @return Whether the option was known.
+	 */
+	public boolean configure(String option) {
+		int equals = option.indexOf('=');
+		if (equals == -1) {
+			return false;
+		}
+		String name = option.substring(0, equals);
+		String value = option.substring(equals + 1);
+		if (name.equals("rtt")) {
+			this.setRoundTripTime(Long.parseLong(value));
+		} else if (name.equals("jitter")) {
+			this.setJitter(Long.parseLong(value));
+		} else if (name.equals("rate")) {
+			this.setBandwidth((long) (Double.parseDouble(value) * (1 << 20)));
+		} else if (name.equals("stall")) {
+			String[] parts = value.split(":");
+			this.setStalls(Double.parseDouble(parts[0]), Long.parseLong(parts[1]));
+		} else if (name.equals("reset")) {
+			this.setResets(Double.parseDouble(value));
+		} else if (name.equals("seed")) {
+			this.setSeed(Long.parseLong(value));
+		} else {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the proxy in front of a server, for clients in other processes.
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: FaultProxy listen-port host:port [rtt=ms] [jitter=ms] [rate=MiB/s] [stall=chance:ms] [reset=chance] [seed=n]");
+			return;
+		}
+		int colon = args[1].lastIndexOf(':');
+		FaultProxy proxy = new FaultProxy(Integer.parseInt(args[0]), args[1].substring(0, colon), Integer.parseInt(args[1].substring(colon + 1)), 0);
+		for (int i = 2; i < args.length; i++) {
+			if (!proxy.configure(args[i])) {
+				System.out.println("Unknown option: " + args[i]);
+				return;
+			}
+		}
+		System.out.println("Proxy on port " + proxy.getPort());
+		proxy.run();
+	}
+}
+
+/**
+ * Sweeps chunk sizes and pipeline depths over loopback with a simulated round-trip time
+ * and prints the throughput of each combination, in MiB/s.
+ * 
+ * Usage: ChunkSizeBenchmark [file-size in MiB] [rtt in ms]
+ */
+class ChunkSizeBenchmark {
+	
+	/**
+	 * The chunk sizes in KiB and the pipeline depths, 0 standing for the adaptive pipeline.
+	 */
+	private static int[] CHUNK_SIZES = {16, 64, 256, 1024, 4096};
+	private static int[] DEPTHS = {1, 4, 16, 64, 0};
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		long size = ((args.length > 0) ? Long.parseLong(args[0]) : 16) << 20;
+		long rtt  = (args.length > 1) ? Long.parseLong(args[1]) : 10;
+		
+		// A file with random content, so no chunks are deduplicated
+		File file = File.createTempFile("chunk-benchmark", ".bin");
+		file.deleteOnExit();
+		FileOutputStream fileOut = new FileOutputStream(file);
+		java.util.Random random = new java.util.Random(42);
+		byte[] block = new byte[1 << 20];
+		for (long written = 0; written < size; written += block.length) {
+			random.nextBytes(block);
+			fileOut.write(block, 0, (int) Math.min(block.length, size - written));
+		}
+		fileOut.close();
+		File output = File.createTempFile("chunk-benchmark", ".out");
+		output.deleteOnExit();
+		
+		final Server server = new Server(0, file.getPath());
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.serveNonBlocking(1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "reactor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		FaultProxy proxy = new FaultProxy("localhost", server.getPort(), rtt);
+		Thread proxyThread = new Thread(proxy, "proxy");
+		proxyThread.setDaemon(true);
+		proxyThread.start();
+		
+		System.out.println((size >> 20) + " MiB, " + rtt + " ms round-trip time");
+		StringBuilder head = new StringBuilder("chunk KiB");
+		for (int depth : DEPTHS) {
+			head.append('\t').append((depth == 0) ? "auto" : "depth " + depth);
+		}
+		System.out.println(head);
+		
+		// The client reports every download, keep the table readable
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		});
+		
+		for (int chunkSize : CHUNK_SIZES) {
+			StringBuilder row = new StringBuilder(String.valueOf(chunkSize));
+			for (int depth : DEPTHS) {
+				Client client = new Client("benchmark", "localhost", proxy.getPort(), output.getPath());
+				client.setChunkSize(chunkSize << 10);
+				client.setPipeline(depth);
+				client.setAdaptivePipeline(depth == 0);
+				
+				System.setOut(quiet);
+				long begin = System.nanoTime();
+				try {
+					client.download();
+				} finally {
+					System.setOut(console);
+				}
+				double seconds = (System.nanoTime() - begin) / 1e9;
+				row.append('\t').append(String.format("%.1f", size / seconds / (1 << 20)));
+			}
+			System.out.println(row);
+		}
+		
+		proxy.close();
+		server.close();
+	}
+}
+
+/**
+ * Compares the download strategies under network faults. Every scenario runs a FaultProxy
+ * between the client and a server on loopback, and the same file is downloaded sequentially
+ * (a connection per chunk), in parallel (several such workers) and pipelined (one binary connection
+ * with requests in flight). A download that breaks on a reset is run again, it resumes from its journal.
+ * 
+ * The scenarios come from a script, a line per scenario: a name and the options of the FaultProxy,
+ * and optionally workers=n for the parallel downloads, depth=n for the pipelined ones and chunk=KiB.
+ * Lines starting with # are comments. Without a script the built-in scenarios run.
+ * 
+ * Usage: NetworkBenchmark [file-size in MiB] [script]
+ */
+class NetworkBenchmark {
+	
+	/**
+	 * The scenarios that run without a script.
+	 */
+	private static String[] SCENARIOS = {
+		"lan rtt=1",
+		"wan rtt=40 jitter=10 rate=20",
+		"congested rtt=80 jitter=40 rate=5 stall=0.01:250",
+		"flaky rtt=40 jitter=10 rate=20 reset=0.5",
+	};
+	
+	private static String[] MODES = {"sequential", "parallel", "pipelined"};
+	
+	/**
+	 * How often a broken download is run again before the mode gives up.
+	 */
+	private static int ATTEMPTS = 50;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		long size = ((args.length > 0) ? Long.parseLong(args[0]) : 4) << 20;
+		List<String> scenarios = new ArrayList<String>();
+		if (args.length > 1) {
+			Scanner script = new Scanner(new File(args[1]));
+			while (script.hasNextLine()) {
+				String line = script.nextLine().trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					scenarios.add(line);
+				}
+			}
+			script.close();
+		} else {
+			scenarios.addAll(Arrays.asList(SCENARIOS));
+		}
+		
+		// A file with random content, so no chunks are deduplicated
+		File file = File.createTempFile("network-benchmark", ".bin");
+		file.deleteOnExit();
+		FileOutputStream fileOut = new FileOutputStream(file);
+		Random random = new Random(42);
+		byte[] block = new byte[1 << 20];
+		for (long written = 0; written < size; written += block.length) {
+			random.nextBytes(block);
+			fileOut.write(block, 0, (int) Math.min(block.length, size - written));
+		}
+		fileOut.close();
+		byte[] expected = SwarmBenchmark.digest(file);
+		File output = File.createTempFile("network-benchmark", ".out");
+		output.deleteOnExit();
+		File journal = new File(output.getPath() + ".journal");
+		journal.deleteOnExit();
+		
+		final Server server = new Server(0, file.getPath());
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.serveNonBlocking(1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "reactor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		System.out.println((size >> 20) + " MiB, MiB/s and the number of restarts of each mode");
+		StringBuilder head = new StringBuilder(String.format("%-12s", "scenario"));
+		for (String mode : MODES) {
+			head.append(String.format("%18s", mode));
+		}
+		head.append("     stalls  resets");
+		System.out.println(head);
+		
+		// The client reports every download and every failure, keep the table readable
+		PrintStream console = System.out;
+		PrintStream errors = System.err;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		});
+		
+		for (String scenario : scenarios) {
+			String[] options = scenario.split("\\s+");
+			FaultProxy proxy = new FaultProxy("localhost", server.getPort(), 0);
+			proxy.setSeed(1);
+			int workers = 8;
+			int depth = 16;
+			int chunkSize = 0;
+			for (int i = 1; i < options.length; i++) {
+				if (options[i].startsWith("workers=")) {
+					workers = Integer.parseInt(options[i].substring(8));
+				} else if (options[i].startsWith("depth=")) {
+					depth = Integer.parseInt(options[i].substring(6));
+				} else if (options[i].startsWith("chunk=")) {
+					chunkSize = Integer.parseInt(options[i].substring(6)) << 10;
+				} else if (!proxy.configure(options[i])) {
+					throw new IllegalArgumentException("Unknown option in " + options[0] + ": " + options[i]);
+				}
+			}
+			Thread proxyThread = new Thread(proxy, "proxy");
+			proxyThread.setDaemon(true);
+			proxyThread.start();
+			
+			StringBuilder row = new StringBuilder(String.format("%-12s", options[0]));
+			for (String mode : MODES) {
+				output.delete();
+				journal.delete();
+				
+				System.setOut(quiet);
+				System.setErr(quiet);
+				int restarts = -1;
+				long begin = System.nanoTime();
+				try {
+					boolean complete = false;
+					while (!complete && ++restarts < ATTEMPTS) {
+						Client client = new Client("benchmark", "localhost", proxy.getPort(), output.getPath());
+						client.setChunkSize(chunkSize);
+						client.setBinary(mode.equals("pipelined"));
+						client.setPipeline(mode.equals("pipelined") ? depth : 0);
+						client.setWorkers(mode.equals("parallel") ? workers : 1);
+						client.download();
+						complete = client.isComplete();
+					}
+				} finally {
+					System.setOut(console);
+					System.setErr(errors);
+				}
+				double seconds = (System.nanoTime() - begin) / 1e9;
+				
+				String result;
+				if (restarts == ATTEMPTS) {
+					result = "failed";
+				} else if (!MessageDigest.isEqual(expected, SwarmBenchmark.digest(output))) {
+					result = "broken";
+				} else {
+					result = String.format("%.1f (%d)", size / seconds / (1 << 20), restarts);
+				}
+				row.append(String.format("%18s", result));
+			}
+			row.append(String.format("%11d%8d", proxy.getStalls(), proxy.getResets()));
+			System.out.println(row);
+			proxy.close();
+		}
+		
+		server.close();
+	}
+}
+
+/**
+ * Serves the chunks a client has to the other clients of a swarm.
+ * A peer connection is persistent and speaks a part of the server's keep-alive protocol:
+ *   HAVE - "count", followed by a bit for every chunk of the chunk-list, see Client.getHave()
+ *   GET:hash - "offset length", followed by the chunk. A chunk the client doesn't have yet gets "-1 0".
+ * The line KEEPALIVE is accepted and ignored, so the client's keep-alive download works against a peer.
+ */
+class PeerServer implements Runnable {
+	
+	/**
+	 * The client whose chunks are served.
+	 */
+	private Client client;
+	
+	/**
+	 * The socket peers connect to.
+	 */
+	private ServerSocket serverSocket;
+	
+	/**
+	 * The bytes of chunks served to peers.
+	 */
+	private java.util.concurrent.atomic.AtomicLong bytesServed;
+	
+	/**
+	 * Constructor for the peer server.
+	 * 
+	 * @param client
+	 * @param port The port to listen on, 0 for any free port.
+	 * @throws IOException
+	 */
+	public PeerServer(Client client, int port) throws IOException {
+		this.client = client;
+		this.serverSocket = new ServerSocket(port);
+		this.bytesServed = new java.util.concurrent.atomic.AtomicLong();
+	}
+	
+	/**
+	 * @return The port the peer server listens on.
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * @return The bytes of chunks served to peers.
+	 */
+	public long getBytesServed() {
+		return this.bytesServed.get();
+	}
+	
+	/**
+	 * Stops accepting connections.
+	 */
+	public void close() {
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Accepts connections until the peer server is closed, every connection gets its own thread.
+	 */
+	public void run() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				final Socket peer = this.serverSocket.accept();
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						serve(peer);
+					}
+				}, "peer-connection");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+	
+	/**
+	 * Serves the requests of one peer until it closes the connection.
+	 * Responses to pipelined requests are flushed together.
+	 * 
+	 * @param peer
+	 */
+	private void serve(Socket peer) {
+		RandomAccessFile fileIn = null;
+		try {
+			peer.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(peer.getInputStream()));
+			OutputStream out = new BufferedOutputStream(peer.getOutputStream());
+			fileIn = new RandomAccessFile(this.client.getOutputFilePath(), "r");
+			byte[] buffer = new byte[0];
+			
+			while (true) {
+				String request = Client.readLine(in).trim();
+				if (request.equals("KEEPALIVE")) {
+					continue;
+				} else if (request.equals("HAVE")) {
+					out.write((this.client.getChunkCount() + "\n").getBytes(StandardCharsets.US_ASCII));
+					out.write(this.client.getHave());
+				} else if (request.startsWith("GET:")) {
+					String hash = request.split(":", 3)[1];
+					long offset = this.client.getChunkOffset(hash);
+					if (offset == -1) {
+						out.write("-1 0\n".getBytes(StandardCharsets.US_ASCII));
+					} else {
+						int len = this.client.getChunkLength(offset);
+						if (buffer.length < len) {
+							buffer = new byte[len];
+						}
+						fileIn.seek(offset);
+						fileIn.readFully(buffer, 0, len);
+						out.write((offset + " " + len + "\n").getBytes(StandardCharsets.US_ASCII));
+						out.write(buffer, 0, len);
+						this.bytesServed.addAndGet(len);
+					}
+				} else {
+					Server.Log.warn("Unknown peer request: {}", request);
+					break;
+				}
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			// The peer went away
+		} finally {
+			try {
+				if (fileIn != null) {
+					fileIn.close();
+				}
+				peer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
+
+/**
+ * Downloads a file in a swarm of client processes on localhost and checks how much the peers took off the server.
+ * The server runs in this process, every client in its own JVM, started a little after the one before.
+ * 
+ * Usage: SwarmBenchmark [clients] [size in MiB] [seed time in seconds]
+ */
+class SwarmBenchmark {
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		long size = ((args.length > 1) ? Long.parseLong(args[1]) : 32) << 20;
+		int seedTime = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+		
+		// A file with random content, so no chunks are deduplicated
+		File file = File.createTempFile("swarm-benchmark", ".bin");
+		file.deleteOnExit();
+		FileOutputStream fileOut = new FileOutputStream(file);
+		Random random = new Random(42);
+		byte[] block = new byte[1 << 20];
+		for (long written = 0; written < size; written += block.length) {
+			random.nextBytes(block);
+			fileOut.write(block, 0, (int) Math.min(block.length, size - written));
+		}
+		fileOut.close();
+		
+		final Server server = new Server(0, file.getPath());
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.serveNonBlocking(1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "reactor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		// Start the clients
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process[] processes = new Process[clients];
+		File[] logs = new File[clients];
+		long begin = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			logs[i] = File.createTempFile("swarm-client-" + i, ".log");
+			logs[i].deleteOnExit();
+			new File("/tmp/testfile_swarm-" + i + ".out").delete();
+			processes[i] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Client", "swarm-" + i,
+					"server=localhost:" + server.getPort(), "swarm", "seed=" + seedTime)
+					.redirectErrorStream(true).redirectOutput(logs[i]).start();
+			Thread.sleep(200);
+		}
+		
+		// Wait for them and check their files
+		byte[] expected = digest(file);
+		int peerChunks = 0;
+		int chunks = 0;
+		int broken = 0;
+		for (int i = 0; i < clients; i++) {
+			processes[i].waitFor();
+			File output = new File("/tmp/testfile_swarm-" + i + ".out");
+			if (!output.isFile() || !MessageDigest.isEqual(expected, digest(output))) {
+				broken++;
+			}
+			output.delete();
+			
+			// "Swarm: n of m chunks from peers"
+			Scanner log = new Scanner(logs[i]);
+			while (log.hasNextLine()) {
+				String line = log.nextLine();
+				if (line.startsWith("Swarm: ")) {
+					String[] parts = line.split(" ");
+					peerChunks += Integer.parseInt(parts[1]);
+					chunks += Integer.parseInt(parts[3]);
+				}
+			}
+			log.close();
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		server.close();
+		
+		System.out.println(clients + " clients, " + (size >> 20) + " MiB, " + seedTime + " s seed time");
+		System.out.println(String.format("%d of %d chunks from peers (%.1f%%), the server sent %.1f%% of what separate downloads take",
+				peerChunks, chunks, (chunks == 0) ? 0.0 : 100.0 * peerChunks / chunks,
+				(chunks == 0) ? 0.0 : 100.0 * (chunks - peerChunks) / chunks));
+		System.out.println(String.format("%.1f s including the seed time, %d broken files", seconds, broken));
+	}
+	
+	/**
+	 * @param file
+	 * @return The MD5 digest of the file.
+	 * @throws IOException
+	 */
+	static byte[] digest(File file) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			java.io.FileInputStream in = new java.io.FileInputStream(file);
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			in.close();
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+}
+
+/**
+ * Writes the chunks of a download through one FileChannel that stays open for the whole download.
+ * The chunks are written with positional writes, so the workers share the channel without seeking.
+ * A worker collects the chunks it receives back to back in a run, one of the writer's pooled buffers,
+ * and writes the run at once when the next chunk isn't adjacent, the run is full or nothing more has
+ * arrived yet. The listener hears of a chunk only after its run was written.
+ * The data is forced to the disk at most once per sync interval, if at all.
+ */
+class ChunkWriter {
+	
+	/**
+	 * Hears of the chunks that were written.
+	 */
+	interface Listener {
+		void written(String hash);
+	}
+	
+	/**
+	 * The channel to the output file.
+	 */
+	private java.nio.channels.FileChannel channel;
+	
+	/**
+	 * The size of a run's buffer.
+	 */
+	private int runSize;
+	
+	/**
+	 * The free buffers of finished runs.
+	 */
+	private ConcurrentLinkedQueue<ByteBuffer> pool;
+	
+	/**
+	 * Null if nobody has to hear of the chunks.
+	 */
+	private Listener listener;
+	
+	/**
+	 * How often the data is forced to the disk, in nanoseconds, 0 for never, and when it was last.
+	 */
+	private long syncInterval;
+	private long synced;
+	private Object syncLock;
+	
+	/**
+	 * The chunks, the writes to the channel and the syncs so far.
+	 */
+	private AtomicInteger chunks;
+	private AtomicInteger writes;
+	private AtomicInteger syncs;
+	
+	/**
+	 * Opens the output file.
+	 * 
+	 * @param file
+	 * @param runSize The size of a run's buffer, larger chunks are written on their own.
+	 * @param syncInterval In milliseconds, 0 to leave it to the OS when the data reaches the disk.
+	 * @param listener
+	 * @throws IOException
+	 */
+	public ChunkWriter(File file, int runSize, long syncInterval, Listener listener) throws IOException {
+		this.channel = java.nio.channels.FileChannel.open(file.toPath(),
+				java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+		this.runSize = runSize;
+		this.pool = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.listener = listener;
+		this.syncInterval = syncInterval * 1000000;
+		this.synced = System.nanoTime();
+		this.syncLock = new Object();
+		this.chunks = new AtomicInteger();
+		this.writes = new AtomicInteger();
+		this.syncs = new AtomicInteger();
+	}
+	
+	/**
+	 * Writes bytes at a position right away.
+	 * 
+	 * @param position
+	 * @param data
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(long position, byte[] data, int len) throws IOException {
+		this.write(position, ByteBuffer.wrap(data, 0, len));
+	}
+	
+	/**
+	 * @param position
+	 * @param buffer Written from its position to its limit.
+	 * @throws IOException
+	 */
+	private void write(long position, ByteBuffer buffer) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer, start + buffer.position());
+		}
+		this.writes.incrementAndGet();
+	}
+	
+	/**
+	 * Reads bytes at a position.
+	 * 
+	 * @param position
+	 * @param data
+	 * @param len
+	 * @throws IOException If the file ends before len bytes.
+	 */
+	public void read(long position, byte[] data, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, len);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException("The file ends at " + (position + buffer.position()));
+			}
+		}
+	}
+	
+	/**
+	 * Starts a run, for one worker.
+	 * 
+	 * @return
+	 */
+	public Run newRun() {
+		return new Run();
+	}
+	
+	/**
+	 * Forces the data to the disk if the sync interval passed since the last time.
+	 * 
+	 * @throws IOException
+	 */
+	private void sync() throws IOException {
+		if (this.syncInterval == 0 || System.nanoTime() - this.synced < this.syncInterval) {
+			return;
+		}
+		synchronized (this.syncLock) {
+			if (System.nanoTime() - this.synced >= this.syncInterval) {
+				this.channel.force(false);
+				this.synced = System.nanoTime();
+				this.syncs.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Forces the data written so far to the disk, whatever the sync interval.
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		synchronized (this.syncLock) {
+			this.channel.force(false);
+			this.synced = System.nanoTime();
+			this.syncs.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * @return The number of chunks written.
+	 */
+	public int getChunks() {
+		return this.chunks.get();
+	}
+	
+	/**
+	 * @return The number of writes to the channel, fewer than chunks if runs were coalesced.
+	 */
+	public int getWrites() {
+		return this.writes.get();
+	}
+	
+	/**
+	 * @return The number of times the data was forced to the disk.
+	 */
+	public int getSyncs() {
+		return this.syncs.get();
+	}
+	
+	/**
+	 * Forces the data to the disk if there is a sync interval, and closes the file.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (this.syncInterval > 0) {
+				this.channel.force(false);
+				this.syncs.incrementAndGet();
+			}
+		} finally {
+			this.channel.close();
+		}
+	}
+	
+	/**
+	 * Chunks that are adjacent in the file and not written yet.
+	 */
+	class Run {
+		
+		/**
+		 * The chunks' bytes, from the position start in the file on, null until the first chunk.
+		 */
+		private ByteBuffer buffer;
+		private long start;
+		
+		/**
+		 * The chunks in the run.
+		 */
+		private List<String> hashes = new ArrayList<String>();
+		
+		/**
+		 * Adds a chunk to the run. The run is written first if the chunk doesn't go right after it
+		 * or doesn't fit anymore.
+		 * 
+		 * @param hash
+		 * @param offset
+		 * @param chunk
+		 * @param len
+		 * @throws IOException
+		 */
+		public void add(String hash, long offset, byte[] chunk, int len) throws IOException {
+			if (this.buffer == null) {
+				this.buffer = pool.poll();
+				if (this.buffer == null) {
+					this.buffer = ByteBuffer.allocate(runSize);
+				}
+			}
+			if (this.buffer.position() > 0 && (offset != this.start + this.buffer.position() || this.buffer.remaining() < len)) {
+				this.flush();
+			}
+			if (len > this.buffer.capacity()) {
+				ChunkWriter.this.write(offset, chunk, len);
+				chunks.incrementAndGet();
+				if (listener != null) {
+					listener.written(hash);
+				}
+				return;
+			}
+			if (this.buffer.position() == 0) {
+				this.start = offset;
+			}
+			this.buffer.put(chunk, 0, len);
+			this.hashes.add(hash);
+		}
+		
+		/**
+		 * Writes the run and tells the listener about its chunks.
+		 * 
+		 * @throws IOException
+		 */
+		public void flush() throws IOException {
+			if (this.buffer == null || this.buffer.position() == 0) {
+				return;
+			}
+			this.buffer.flip();
+			ChunkWriter.this.write(this.start, this.buffer);
+			this.buffer.clear();
+			chunks.addAndGet(this.hashes.size());
+			if (listener != null) {
+				for (String hash : this.hashes) {
+					listener.written(hash);
+				}
+			}
+			this.hashes.clear();
+			sync();
+		}
+		
+		/**
+		 * Writes the run and gives its buffer back to the pool.
+		 * 
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			try {
+				this.flush();
+			} finally {
+				if (this.buffer != null) {
+					this.buffer.clear();
+					pool.add(this.buffer);
+					this.buffer = null;
+				}
+			}
+		}
+	}
+}
+
+/**
+ * The received chunks of a download as a bitmap, bit i standing for the chunk with index i + 1.
+ * Setting a bit is an atomic operation, so workers mark their chunks without locks.
+ * 
+ * The bitmap is written to a journal file next to the output file by a background thread, every second by default,
+ * so a download that crashed resumes with the chunks it had. A journal is only resumed for the same
+ * chunk-list: the file's length, the chunk size and the digest of the hashes have to match.
+ * It is written to a temporary file first and then renamed, so a crash while writing leaves the old one.
+ * 
+ * The journal's format:
+ *   int   magic, "CHJ1"
+ *   long  the file's length
+ *   int   the chunk size
+ *   int   the number of chunks
+ *   short the length of the chunk-list's digest, followed by it
+ *   int   the length of the bitmap, followed by it
+ *   long  the CRC32 of everything before
+ */
+class ChunkJournal {
+	
+	/**
+	 * The first four bytes of a journal.
+	 */
+	private static int MAGIC = 0x43484a31;
+	
+	/**
+	 * The journal file.
+	 */
+	private File file;
+	
+	/**
+	 * What the journal belongs to.
+	 */
+	private long fileLength;
+	private int chunkSize;
+	private int chunkCount;
+	private byte[] listDigest;
+	
+	/**
+	 * The bitmap and the number of bits set.
+	 */
+	private java.util.concurrent.atomic.AtomicLongArray bits;
+	private AtomicInteger count;
+	
+	/**
+	 * Whether bits changed since the journal was written, and whether the journal was deleted for good.
+	 */
+	private volatile boolean dirty;
+	private volatile boolean deleted;
+	
+	/**
+	 * Writes the journal regularly, null if it doesn't run.
+	 */
+	private Thread writer;
+	
+	/**
+	 * The output file, forced to the disk before the journal tells its chunks are there. Null if there is none.
+	 */
+	private ChunkWriter output;
+	
+	/**
+	 * Constructor for an empty bitmap.
+	 * 
+	 * @param file The journal file.
+	 * @param fileLength
+	 * @param chunkSize
+	 * @param chunkCount
+	 * @param listDigest
+	 */
+	public ChunkJournal(File file, long fileLength, int chunkSize, int chunkCount, byte[] listDigest) {
+		this.file = file;
+		this.fileLength = fileLength;
+		this.chunkSize = chunkSize;
+		this.chunkCount = chunkCount;
+		this.listDigest = listDigest;
+		this.bits = new java.util.concurrent.atomic.AtomicLongArray((chunkCount + 63) / 64);
+		this.count = new AtomicInteger();
+	}
+	
+	/**
+	 * Opens the journal of a download: the bits of an earlier run if the journal file belongs to
+	 * the same chunk-list and is intact, an empty bitmap otherwise.
+	 * 
+	 * @param file
+	 * @param fileLength
+	 * @param chunkSize
+	 * @param chunkCount
+	 * @param listDigest
+	 * @return
+	 */
+	public static ChunkJournal open(File file, long fileLength, int chunkSize, int chunkCount, byte[] listDigest) {
+		ChunkJournal journal = new ChunkJournal(file, fileLength, chunkSize, chunkCount, listDigest);
+		if (!file.isFile()) {
+			return journal;
+		}
+		try {
+			byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+			crc.update(bytes, 0, Math.max(0, bytes.length - 8));
+			if (bytes.length < 8 || ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+				System.out.println("Chunk journal is broken, starting over.");
+				return journal;
+			}
+			byte[] digest = null;
+			if (in.getInt() == MAGIC && in.getLong() == fileLength && in.getInt() == chunkSize && in.getInt() == chunkCount) {
+				digest = new byte[in.getShort()];
+				in.get(digest);
+			}
+			if (digest == null || !MessageDigest.isEqual(digest, listDigest)) {
+				System.out.println("Chunk journal is for another version of the file, starting over.");
+				return journal;
+			}
+			byte[] bitmap = new byte[in.getInt()];
+			in.get(bitmap);
+			for (int i = 0; i < chunkCount && (i >> 3) < bitmap.length; i++) {
+				if ((bitmap[i >> 3] & (1 << (i & 7))) != 0) {
+					journal.set(i);
+				}
+			}
+			journal.dirty = false;
+		} catch (IOException e) {
+			System.out.println("Can't read the chunk journal, starting over.");
+		} catch (RuntimeException e) {
+			System.out.println("Chunk journal is broken, starting over.");
+		}
+		return journal;
+	}
+	
+	/**
+	 * @param index The chunk's index - 1.
+	 * @return Whether the chunk was received.
+	 */
+	public boolean get(int index) {
+		return (this.bits.get(index >> 6) & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Marks a chunk as received.
+	 * 
+	 * @param index The chunk's index - 1.
+	 */
+	public void set(int index) {
+		long mask = 1L << index;
+		while (true) {
+			long word = this.bits.get(index >> 6);
+			if ((word & mask) != 0) {
+				return;
+			}
+			if (this.bits.compareAndSet(index >> 6, word, word | mask)) {
+				this.count.incrementAndGet();
+				this.dirty = true;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Marks a chunk as missing.
+	 * 
+	 * @param index The chunk's index - 1.
+	 */
+	public void clear(int index) {
+		long mask = 1L << index;
+		while (true) {
+			long word = this.bits.get(index >> 6);
+			if ((word & mask) == 0) {
+				return;
+			}
+			if (this.bits.compareAndSet(index >> 6, word, word & ~mask)) {
+				this.count.decrementAndGet();
+				this.dirty = true;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of chunks received.
+	 */
+	public int getCount() {
+		return this.count.get();
+	}
+	
+	/**
+	 * @return The bitmap, a byte for every eight chunks.
+	 */
+	public byte[] toBytes() {
+		byte[] bitmap = new byte[(this.chunkCount + 7) / 8];
+		for (int i = 0; i < bitmap.length; i++) {
+			bitmap[i] = (byte) (this.bits.get(i >> 3) >>> ((i & 7) * 8));
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Sets the output file. The chunks are marked as soon as they are written, so its data is forced
+	 * to the disk before every write of the journal, or a crash could leave a journal that names chunks
+	 * the disk never got. Chunks with an XXH64 can't be checked when the download resumes.
+	 * 
+	 * @param output
+	 */
+	public synchronized void setOutput(ChunkWriter output) {
+		this.output = output;
+	}
+	
+	/**
+	 * Starts writing the journal regularly.
+	 * 
+	 * @param interval In milliseconds.
+	 */
+	public synchronized void start(final long interval) {
+		if (this.writer != null) {
+			return;
+		}
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(interval);
+						flush();
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				} catch (IOException e) {
+					Server.Log.warn("Can't write the chunk journal: {}", e.getMessage());
+				}
+			}
+		}, "journal");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+	
+	/**
+	 * Writes the journal if bits changed since it was written last, after the output file's data.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (!this.dirty || this.deleted) {
+			return;
+		}
+		this.dirty = false;
+		
+		// A bit is set after its chunk was written, so the chunks of this bitmap are forced with the data
+		byte[] bitmap = this.toBytes();
+		if (this.output != null) {
+			this.output.force();
+		}
+		ByteBuffer out = ByteBuffer.allocate(4 + 8 + 4 + 4 + 2 + this.listDigest.length + 4 + bitmap.length + 8);
+		out.putInt(MAGIC);
+		out.putLong(this.fileLength);
+		out.putInt(this.chunkSize);
+		out.putInt(this.chunkCount);
+		out.putShort((short) this.listDigest.length);
+		out.put(this.listDigest);
+		out.putInt(bitmap.length);
+		out.put(bitmap);
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(out.array(), 0, out.position());
+		out.putLong(crc.getValue());
+		
+		File temp = new File(this.file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		try {
+			fileOut.write(out.array());
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		java.nio.file.Files.move(temp.toPath(), this.file.toPath(),
+				java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Stops writing the journal regularly and writes it a last time.
+	 */
+	public void close() {
+		this.stop();
+		try {
+			this.flush();
+		} catch (IOException e) {
+			Server.Log.warn("Can't write the chunk journal: {}", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Deletes the journal, the download is complete.
+	 */
+	public void delete() {
+		this.stop();
+		synchronized (this) {
+			this.deleted = true;
+			this.file.delete();
+		}
+	}
+	
+	/**
+	 * Stops the writer.
+	 */
+	private void stop() {
+		Thread writer;
+		synchronized (this) {
+			writer = this.writer;
+			this.writer = null;
+		}
+		if (writer != null) {
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
+
+/**
+ * The index of the chunks of complete downloads: where a chunk with a hash is, in which file at which
+ * offset. The index is a file, rewritten as a whole when a download is added, so downloads into
+ * other directories or later runs reuse the chunks as well.
+ * 
+ * A hash is an address here, so only chunks with a cryptographic hash are indexed. Two chunks with
+ * the same CRC32C or XXH64 are easily different, and an XXH64 can't even be checked after the copy.
+ */
+class LocalChunks {
+	
+	/**
+	 * The first four bytes of an index.
+	 */
+	private static int MAGIC = 0x4c434831;
+	
+	/**
+	 * Where a chunk is.
+	 */
+	static class Location {
+		final File file;
+		final long offset;
+		final int length;
+		
+		Location(File file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * The index file.
+	 */
+	private File file;
+	
+	/**
+	 * The chunks by hash, a hash that is in several files is only there once.
+	 */
+	private HashMap<String, Location> chunks;
+	
+	/**
+	 * Constructor for an empty index.
+	 * 
+	 * @param file
+	 */
+	public LocalChunks(File file) {
+		this.file = file;
+		this.chunks = new HashMap<String, Location>();
+	}
+	
+	/**
+	 * Opens an index, an empty one if the file isn't there, can't be read or is broken.
+	 * The index only saves fetching chunks, it is rewritten with the next download.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static LocalChunks open(File file) {
+		LocalChunks index = new LocalChunks(file);
+		if (!file.exists()) {
+			return index;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC) {
+					return index;
+				}
+				int files = in.readInt();
+				for (int i = 0; i < files; i++) {
+					File chunkFile = new File(in.readUTF());
+					int count = in.readInt();
+					for (int j = 0; j < count; j++) {
+						String hash = in.readUTF();
+						index.chunks.put(hash, new Location(chunkFile, in.readLong(), in.readInt()));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Also a record that was cut off or a hash that isn't UTF-8
+			index.chunks.clear();
+			System.out.println("Can't read the chunk index, starting over.");
+		} catch (RuntimeException e) {
+			index.chunks.clear();
+			System.out.println("Chunk index is broken, starting over.");
+		}
+		return index;
+	}
+	
+	/**
+	 * @param hash
+	 * @return Where the chunk is, null if no file has it or the hash isn't cryptographic.
+	 */
+	public synchronized Location locate(String hash) {
+		return isCryptographic(hash) ? this.chunks.get(hash) : null;
+	}
+	
+	/**
+	 * Tells the hash-function by the hash's length, like Client.verify().
+	 * 
+	 * @param hash
+	 * @return Whether the hash is an MD5, SHA-1 or SHA-256 digest.
+	 */
+	static boolean isCryptographic(String hash) {
+		return hash.length() == 32 || hash.length() == 40 || hash.length() == 64;
+	}
+	
+	/**
+	 * @return The number of chunks in the index.
+	 */
+	public synchronized int getChunkCount() {
+		return this.chunks.size();
+	}
+	
+	/**
+	 * Adds the chunks of a complete file and writes the index. The chunks of an earlier version of the file
+	 * are replaced.
+	 * 
+	 * @param chunkFile
+	 * @param hashes The hashes in file order.
+	 * @param starts Where the chunks start.
+	 * @param length The length of the file.
+	 * @throws IOException
+	 */
+	public synchronized void add(File chunkFile, String[] hashes, long[] starts, long length) throws IOException {
+		File absolute = chunkFile.getAbsoluteFile();
+		Iterator<Location> locations = this.chunks.values().iterator();
+		while (locations.hasNext()) {
+			if (locations.next().file.equals(absolute)) {
+				locations.remove();
+			}
+		}
+		for (int i = 0; i < hashes.length; i++) {
+			long end = (i + 1 < hashes.length) ? starts[i + 1] : length;
+			if (isCryptographic(hashes[i]) && !this.chunks.containsKey(hashes[i])) {
+				this.chunks.put(hashes[i], new Location(absolute, starts[i], (int) (end - starts[i])));
+			}
+		}
+		this.write();
+	}
+	
+	/**
+	 * Writes the index, grouped by file, next to the old one and moves it over it.
+	 * 
+	 * @throws IOException
+	 */
+	private void write() throws IOException {
+		HashMap<File, List<Map.Entry<String, Location>>> byFile = new HashMap<File, List<Map.Entry<String, Location>>>();
+		for (Map.Entry<String, Location> chunk : this.chunks.entrySet()) {
+			List<Map.Entry<String, Location>> list = byFile.get(chunk.getValue().file);
+			if (list == null) {
+				list = new ArrayList<Map.Entry<String, Location>>();
+				byFile.put(chunk.getValue().file, list);
+			}
+			list.add(chunk);
+		}
+		
+		File temp = new File(this.file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(byFile.size());
+			for (Map.Entry<File, List<Map.Entry<String, Location>>> entry : byFile.entrySet()) {
+				out.writeUTF(entry.getKey().getPath());
+				out.writeInt(entry.getValue().size());
+				for (Map.Entry<String, Location> chunk : entry.getValue()) {
+					out.writeUTF(chunk.getKey());
+					out.writeLong(chunk.getValue().offset);
+					out.writeInt(chunk.getValue().length);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		java.nio.file.Files.move(temp.toPath(), this.file.toPath(),
+				java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+}
+
+/**
+ * A read-only view of a file while it downloads. Reading bytes that are there doesn't wait,
+ * reading a chunk that is missing waits until it arrives, and the client fetches it next.
+ * So a consumer can work through the file, or jump around in it, while the transfer runs.
+ * The view reads the output file, it doesn't buffer anything itself.
+ */
+class PartialFile implements java.nio.channels.SeekableByteChannel {
+	
+	/**
+	 * The client downloading the file.
+	 */
+	private Client client;
+	
+	/**
+	 * The output file, opened when the first bytes are read.
+	 */
+	private File file;
+	private java.nio.channels.FileChannel channel;
+	
+	private long position;
+	private volatile boolean open = true;
+	
+	/**
+	 * Constructor for the view.
+	 * 
+	 * @param client The client downloading the file.
+	 * @param file The output file.
+	 */
+	public PartialFile(Client client, File file) {
+		this.client = client;
+		this.file = file;
+	}
+	
+	/**
+	 * @return A stream reading the file from the current position on.
+	 */
+	public InputStream newInputStream() {
+		return java.nio.channels.Channels.newInputStream(this);
+	}
+	
+	/**
+	 * Reads from the current position, up to the end of the chunk there.
+	 * Waits for the chunk if it isn't there yet. The view isn't locked while it waits,
+	 * so close() from another thread ends the wait with an AsynchronousCloseException.
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		while (true) {
+			long position;
+			synchronized (this) {
+				this.ensureOpen();
+				position = this.position;
+			}
+			if (position >= this.client.awaitLength(this)) {
+				return -1;
+			}
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			long end = this.client.awaitChunk(position, this);
+			
+			synchronized (this) {
+				this.ensureOpen();
+				if (this.position != position) {
+					// Moved while we waited, the chunk at the new position may not be there
+					continue;
+				}
+				if (this.channel == null) {
+					this.channel = java.nio.channels.FileChannel.open(this.file.toPath(), java.nio.file.StandardOpenOption.READ);
+				}
+				
+				// Don't read past the bytes that are there
+				int limit = dst.limit();
+				if (end - this.position < dst.remaining()) {
+					dst.limit(dst.position() + (int) (end - this.position));
+				}
+				int read;
+				try {
+					read = this.channel.read(dst, this.position);
+				} finally {
+					dst.limit(limit);
+				}
+				if (read > 0) {
+					this.position += read;
+				}
+				return read;
+			}
+		}
+	}
+	
+	public int write(ByteBuffer src) {
+		throw new java.nio.channels.NonWritableChannelException();
+	}
+	
+	public synchronized long position() throws IOException {
+		this.ensureOpen();
+		return this.position;
+	}
+	
+	public synchronized java.nio.channels.SeekableByteChannel position(long newPosition) throws IOException {
+		this.ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+	
+	/**
+	 * Waits until the length of the file is known.
+	 */
+	public long size() throws IOException {
+		this.ensureOpen();
+		return this.client.awaitLength(this);
+	}
+	
+	public java.nio.channels.SeekableByteChannel truncate(long size) {
+		throw new java.nio.channels.NonWritableChannelException();
+	}
+	
+	public boolean isOpen() {
+		return this.open;
+	}
+	
+	/**
+	 * Closes the view, the download goes on. A read waiting for a chunk is woken up.
+	 */
+	public void close() throws IOException {
+		this.open = false;
+		this.client.notifyReaders();
+		synchronized (this) {
+			if (this.channel != null) {
+				this.channel.close();
+				this.channel = null;
+			}
+		}
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (!this.open) {
+			throw new java.nio.channels.ClosedChannelException();
+		}
+	}
+}
+
+/**
+ * Checks pages of a chunk-list against the root of its Merkle tree.
+ * 
+ * A leaf is the SHA-256 digest of 0x00 and the chunk's hash as text, an inner node the digest of 0x01
+ * and its two children. A node without a sibling, the last of an odd level, moves up unchanged.
+ * A page of PAGE chunks is a subtree, its proof are the siblings on the way up to the root.
+ * This has to match the server's MerkleTree.
+ */
+class Merkle {
+	
+	/**
+	 * The chunks of a page.
+	 */
+	static final int PAGE = 1024;
+	
+	/**
+	 * The length of a node.
+	 */
+	static final int HASH = 32;
+	
+	/**
+	 * Checks a page against the root.
+	 * 
+	 * @param root
+	 * @param page The page, counted from 0.
+	 * @param pages The number of pages.
+	 * @param hashes The page's hashes in file order.
+	 * @param proof The siblings on the way up, lowest first.
+	 * @return true if the page belongs to the root.
+	 */
+	static boolean verifyPage(byte[] root, int page, int pages, String[] hashes, byte[] proof) {
+		MessageDigest digest = digest();
+		byte[] node = pageRoot(hashes);
+		int used = 0;
+		for (int index = page, width = pages; width > 1; index >>= 1, width = (width + 1) / 2) {
+			if ((index ^ 1) >= width) {
+				continue;
+			}
+			if (used + HASH > proof.length) {
+				return false;
+			}
+			byte[] sibling = Arrays.copyOfRange(proof, used, used + HASH);
+			used += HASH;
+			digest.update((byte) 1);
+			digest.update((index & 1) == 0 ? node : sibling);
+			digest.update((index & 1) == 0 ? sibling : node);
+			node = digest.digest();
+		}
+		return used == proof.length && MessageDigest.isEqual(node, root);
+	}
+	
+	/**
+	 * The root of a page's subtree.
+	 * 
+	 * @param hashes The page's chunk hashes.
+	 * @return
+	 */
+	static byte[] pageRoot(String[] hashes) {
+		MessageDigest digest = digest();
+		if (hashes.length == 0) {
+			return digest.digest();
+		}
+		byte[][] level = new byte[hashes.length][];
+		for (int i = 0; i < hashes.length; i++) {
+			digest.update((byte) 0);
+			digest.update(hashes[i].getBytes(StandardCharsets.US_ASCII));
+			level[i] = digest.digest();
+		}
+		while (level.length > 1) {
+			byte[][] parents = new byte[(level.length + 1) / 2][];
+			for (int i = 0; i < parents.length; i++) {
+				if (2 * i + 1 < level.length) {
+					digest.update((byte) 1);
+					digest.update(level[2 * i]);
+					digest.update(level[2 * i + 1]);
+					parents[i] = digest.digest();
+				} else {
+					parents[i] = level[2 * i];
+				}
+			}
+			level = parents;
+		}
+		return level[0];
+	}
+	
+	/**
+	 * @return A new SHA-256 digest.
+	 */
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
+
+/**
+ * What the client's self-checks share. Each check prints a line, the servers run on daemon threads
+ * in the same process, and the process exits with 1 if a check failed.
+ */
+class ClientChecks {
+	
+	/**
+	 * How long a check waits for an answer, in milliseconds.
+	 */
+	static final int TIMEOUT = 5000;
+	
+	/**
+	 * The number of checks that failed.
+	 */
+	private static int failures;
+	
+	/**
+	 * Prints the result of a check.
+	 * 
+	 * @param name
+	 * @param passed
+	 */
+	static void check(String name, boolean passed) {
+		System.out.println((passed ? "ok      " : "FAILED  ") + name);
+		if (!passed) {
+			failures++;
+		}
+	}
+	
+	/**
+	 * Prints how the checks went, and exits with 1 if one failed.
+	 */
+	static void exit() {
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+	
+	/**
+	 * Serves on a daemon thread.
+	 * 
+	 * @param server A server on an ephemeral port, set up already.
+	 * @param nio Whether the non-blocking reactor serves.
+	 * @return The port.
+	 */
+	static int serve(final Server server, final boolean nio) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (nio) {
+						server.serveNonBlocking(1);
+					} else {
+						while (true) {
+							server.handleRequest();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, nio ? "reactor" : "server");
+		thread.setDaemon(true);
+		thread.start();
+		return server.getPort();
+	}
+	
+	/**
+	 * Downloads a file without the client's output.
+	 * 
+	 * @param client
+	 * @return What the client printed.
+	 */
+	static String download(Client client) {
+		PrintStream console = System.out;
+		java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+		System.setOut(new PrintStream(output));
+		try {
+			client.download();
+		} finally {
+			System.setOut(console);
+		}
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param suffix
+	 * @param content
+	 * @return A temporary file with the content, deleted when the checks are done.
+	 * @throws IOException
+	 */
+	static File createFile(String suffix, byte[] content) throws IOException {
+		File file = File.createTempFile("client-check", suffix);
+		file.deleteOnExit();
+		java.nio.file.Files.write(file.toPath(), content);
+		return file;
+	}
+}
+
+/**
+ * Checks the delta sync against both servers: an edited, an unrelated, a longer and an identical
+ * old copy all end up as the server's file, and an edited copy reuses most of its blocks.
+ * This is where the client's signatures and the server's Delta have to agree.
+ * 
+ * Usage: DeltaCheck
+ */
+class DeltaCheck {
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(42);
+		byte[] content = new byte[2 << 20];
+		random.nextBytes(content);
+		File file = ClientChecks.createFile(".bin", content);
+		
+		// An old copy that lost some bytes, has others changed and some inserted
+		java.io.ByteArrayOutputStream edited = new java.io.ByteArrayOutputStream();
+		edited.write(content, 0, 300000);
+		edited.write(content, 300000 + 5000, 900000 - 5000);
+		edited.write(new byte[100], 0, 100);
+		edited.write(content, 1200100, 400000 - 100);
+		for (int i = 0; i < 20; i++) {
+			edited.write("inserted bytes ".getBytes(StandardCharsets.US_ASCII));
+		}
+		edited.write(content, 1600000, content.length - 1600000);
+		byte[] unrelated = new byte[content.length];
+		random.nextBytes(unrelated);
+		byte[] longer = Arrays.copyOf(content, content.length + 100000);
 		
-		// We want to write strings to the server, so we need a PrintWriter
-		PrintWriter out = new PrintWriter(serverSocket.getOutputStream());
+		String[] servers = {"blocking", "nio"};
+		for (int i = 0; i < servers.length; i++) {
+			int port = ClientChecks.serve(new Server(0, file.getPath()), i == 1);
+			long[] bytes = update(port, edited.toByteArray(), content);
+			ClientChecks.check(servers[i] + ": an edited copy is updated", bytes != null);
+			ClientChecks.check(servers[i] + ": an edited copy reuses most of its blocks",
+					bytes != null && bytes[0] > content.length * 9L / 10 && bytes[1] < content.length / 10);
+			ClientChecks.check(servers[i] + ": an unrelated copy is replaced", update(port, unrelated, content) != null);
+			ClientChecks.check(servers[i] + ": a longer copy is cut", update(port, longer, content) != null);
+			bytes = update(port, content, content);
+			ClientChecks.check(servers[i] + ": an identical copy is reused as a whole", bytes != null && bytes[1] < (64 << 10));
+		}
+		ClientChecks.exit();
+	}
+	
+	/**
+	 * Updates an old copy with a delta.
+	 * 
+	 * @param port
+	 * @param old The old copy.
+	 * @param content What the server serves.
+	 * @return The bytes reused and the bytes fetched, null if the result isn't the server's file
+	 * or no delta was used.
+	 * @throws IOException
+	 */
+	private static long[] update(int port, byte[] old, byte[] content) throws IOException {
+		File output = ClientChecks.createFile(".out", old);
+		try {
+			Client client = new Client("check", "localhost", port, output.getPath());
+			client.setDelta(true);
+			String log = ClientChecks.download(client);
+			java.util.regex.Matcher delta = java.util.regex.Pattern.compile("Delta: (\\d+) bytes reused, (\\d+) bytes fetched").matcher(log);
+			if (!client.isComplete() || !delta.find() || !Arrays.equals(content, java.nio.file.Files.readAllBytes(output.toPath()))) {
+				return null;
+			}
+			return new long[] {Long.parseLong(delta.group(1)), Long.parseLong(delta.group(2))};
+		} finally {
+			output.delete();
+		}
+	}
+}
 
-		System.out.println("Recieving " + hash);
+/**
+ * Checks the Deflate negotiation against both servers: the server grants at most its own highest level,
+ * compresses the chunks that get smaller once a level was granted and only those, and stops when the
+ * client asks for 0. A download with compression ends up as the server's file.
+ * 
+ * Usage: CompressionCheck
+ */
+class CompressionCheck {
+	
+	/**
+	 * The chunk size the servers use.
+	 */
+	private static int CHUNK_SIZE = 64 << 10;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		// A chunk of text, one of random bytes and another one of text
+		byte[] content = new byte[3 * CHUNK_SIZE];
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < CHUNK_SIZE; i++) {
+			text.append(i).append(" INFO request served\n");
+		}
+		byte[] lines = text.toString().getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(lines, 0, content, 0, CHUNK_SIZE);
+		byte[] noise = new byte[CHUNK_SIZE];
+		new Random(42).nextBytes(noise);
+		System.arraycopy(noise, 0, content, CHUNK_SIZE, CHUNK_SIZE);
+		System.arraycopy(lines, 0, content, 2 * CHUNK_SIZE, CHUNK_SIZE);
+		File file = ClientChecks.createFile(".bin", content);
 		
-		// Send the GET-request to the server
-		out.println("GET:" + hash);
-		out.flush();
+		String[] servers = {"blocking", "nio"};
+		for (int i = 0; i < servers.length; i++) {
+			Server server = new Server(0, file.getPath());
+			server.setChunkSize(CHUNK_SIZE);
+			int port = ClientChecks.serve(server, i == 1);
+			
+			Session session = new Session(port);
+			try {
+				session.request(Frame.COMPRESS, 6);
+				ClientChecks.check(servers[i] + ": the level asked for is granted", session.is(Frame.COMPRESS) && session.chunk() == 6);
+				session.request(Frame.GET, 1);
+				ClientChecks.check(servers[i] + ": a chunk that gets smaller is compressed", session.is(Frame.DATA)
+						&& session.deflated() && session.payload.length < CHUNK_SIZE
+						&& Arrays.equals(inflate(session.payload, CHUNK_SIZE), Arrays.copyOfRange(content, 0, CHUNK_SIZE)));
+				session.request(Frame.GET, 2);
+				ClientChecks.check(servers[i] + ": a chunk that doesn't get smaller isn't", session.is(Frame.DATA)
+						&& !session.deflated() && Arrays.equals(session.payload, noise));
+				session.request(Frame.COMPRESS, 0);
+				session.request(Frame.GET, 3);
+				ClientChecks.check(servers[i] + ": asking for 0 stops compressing", session.is(Frame.DATA) && !session.deflated());
+			} finally {
+				session.close();
+			}
+			
+			session = new Session(port);
+			try {
+				session.request(Frame.COMPRESS, 12);
+				ClientChecks.check(servers[i] + ": a level over 9 gets 9", session.is(Frame.COMPRESS) && session.chunk() == 9);
+			} finally {
+				session.close();
+			}
+			
+			File output = ClientChecks.createFile(".out", new byte[0]);
+			Client client = new Client("check", "localhost", port, output.getPath());
+			client.setCompression(6);
+			ClientChecks.download(client);
+			ClientChecks.check(servers[i] + ": a compressed download is the server's file", client.isComplete()
+					&& Arrays.equals(content, java.nio.file.Files.readAllBytes(output.toPath())));
+			output.delete();
+			
+			// A server that never compresses grants 0
+			server = new Server(0, file.getPath());
+			server.setChunkSize(CHUNK_SIZE);
+			server.setMaxCompressionLevel(0);
+			session = new Session(ClientChecks.serve(server, i == 1));
+			try {
+				session.request(Frame.COMPRESS, 6);
+				ClientChecks.check(servers[i] + ": a server that doesn't compress grants 0", session.is(Frame.COMPRESS) && session.chunk() == 0);
+				session.request(Frame.GET, 1);
+				ClientChecks.check(servers[i] + ": and sends chunks as they are", session.is(Frame.DATA) && !session.deflated());
+			} finally {
+				session.close();
+			}
+		}
+		ClientChecks.exit();
+	}
+	
+	/**
+	 * @param compressed
+	 * @param length The length before the compression.
+	 * @return
+	 * @throws java.util.zip.DataFormatException
+	 */
+	private static byte[] inflate(byte[] compressed, int length) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			byte[] chunk = new byte[length];
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(chunk, inflated, length - inflated);
+				if (n == 0 && inflater.needsInput()) {
+					break;
+				}
+				inflated += n;
+			}
+			return (inflated == length) ? chunk : null;
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	/**
+	 * A BINARY connection: sends a request frame and reads the answer.
+	 */
+	private static class Session {
 		
-		// Retrieve the offset in the file
-		long offset = new Long(inScanner.nextLine());
+		private Socket socket;
+		private DataInputStream in;
+		private OutputStream out;
 		
-		System.out.println("Offset: " + offset);
+		/**
+		 * The last answer.
+		 */
+		private ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+		byte[] payload;
 		
-		// Initialize the file
-		File file = new File(this.outputFilePath);
+		Session(int port) throws IOException {
+			this.socket = new Socket("localhost", port);
+			this.socket.setSoTimeout(ClientChecks.TIMEOUT);
+			this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+			this.out = this.socket.getOutputStream();
+			this.out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+		}
+		
+		/**
+		 * Sends a request for the served file and reads the answer.
+		 * 
+		 * @param opcode
+		 * @param chunk
+		 * @throws IOException
+		 */
+		void request(byte opcode, int chunk) throws IOException {
+			ByteBuffer request = ByteBuffer.allocate(Frame.HEADER);
+			Frame.put(request, opcode, chunk, 0, 0);
+			this.out.write(request.array());
+			this.out.flush();
+			this.in.readFully(this.header.array());
+			this.payload = new byte[(int) Frame.length(this.header)];
+			this.in.readFully(this.payload);
+		}
+		
+		boolean is(byte opcode) {
+			return Frame.opcode(this.header) == opcode;
+		}
+		
+		int chunk() {
+			return Frame.chunk(this.header);
+		}
+		
+		boolean deflated() {
+			return (Frame.flags(this.header) & Frame.DEFLATE) != 0;
+		}
 		
-		// We want to write to a given place in the file so we need a RandomAccessFile
-		RandomAccessFile fileOut = new RandomAccessFile(file, "rw");
+		void close() throws IOException {
+			this.socket.close();
+		}
+	}
+}
 
-		// Set the pointer to the offset
-		fileOut.seek(offset);
+/**
+ * Checks the download journal: it reopens for its own chunk-list only, a download resumes from it
+ * and fetches a chunk again that the journal has but the output file doesn't, and an empty file
+ * downloads in every mode over an old output file and a stale journal.
+ * 
+ * Usage: JournalCheck
+ */
+class JournalCheck {
+	
+	/**
+	 * The chunk size the servers use.
+	 */
+	private static final int CHUNK_SIZE = 64 << 10;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		checkJournal();
+		checkResume();
+		checkEmptyFile();
+		ClientChecks.exit();
+	}
+	
+	/**
+	 * Starts a server for a file.
+	 * 
+	 * @param file
+	 * @param nio Whether the non-blocking reactor serves.
+	 * @return The port.
+	 */
+	private static int start(File file, boolean nio) {
+		Server server = new Server(0, file.getPath());
+		server.setChunkSize(CHUNK_SIZE);
+		return ClientChecks.serve(server, nio);
+	}
+	
+	/**
+	 * Writes a journal and opens it again, for the same chunk-list, for another one and broken.
+	 * 
+	 * @throws IOException
+	 */
+	private static void checkJournal() throws IOException {
+		File file = File.createTempFile("client-check", ".journal");
+		file.deleteOnExit();
+		byte[] digest = new byte[16];
+		ChunkJournal journal = new ChunkJournal(file, 10 * CHUNK_SIZE, CHUNK_SIZE, 10, digest);
+		journal.set(0);
+		journal.set(3);
+		journal.set(9);
+		journal.close();
 		
-		// Retrieve the chunk
-		byte[] buffer = new byte[16384];
-		int len = in.read(buffer, 0, 16384);
-		//TODO the received Chunk is to small and the data is corrupt
+		journal = ChunkJournal.open(file, 10 * CHUNK_SIZE, CHUNK_SIZE, 10, digest);
+		ClientChecks.check("journal: reopens with its chunks", journal.getCount() == 3 && journal.get(0) && journal.get(3) && journal.get(9));
 		
-		// Write the chunk to the file
-		fileOut.write(buffer, 0, len);
+		byte[] other = digest.clone();
+		other[0] = 1;
+		ClientChecks.check("journal: another chunk-list starts over", ChunkJournal.open(file, 10 * CHUNK_SIZE, CHUNK_SIZE, 10, other).getCount() == 0);
 		
-		// Close the RandomAccessFile
-		fileOut.close();
+		RandomAccessFile broken = new RandomAccessFile(file, "rw");
+		try {
+			broken.seek(4);
+			broken.write(0xFF);
+		} finally {
+			broken.close();
+		}
+		ClientChecks.check("journal: a broken journal starts over", ChunkJournal.open(file, 10 * CHUNK_SIZE, CHUNK_SIZE, 10, digest).getCount() == 0);
+		file.delete();
+	}
+	
+	/**
+	 * Leaves a download half done, with one chunk the journal has but the output file lost,
+	 * and lets the client finish it.
+	 * 
+	 * @throws IOException
+	 */
+	private static void checkResume() throws IOException {
+		int chunks = 8;
+		byte[] content = new byte[chunks * CHUNK_SIZE];
+		new Random(42).nextBytes(content);
+		File file = ClientChecks.createFile(".bin", content);
+		int port = start(file, true);
 		
-		// Mark the Chunk as received
-		this.recieved.put(hash, true);
+		// The journal belongs to the chunk-list, the MD5 of the hashes in file order
+		MessageDigest list = md5();
+		for (int i = 0; i < chunks; i++) {
+			MessageDigest chunk = md5();
+			chunk.update(content, i * CHUNK_SIZE, CHUNK_SIZE);
+			StringBuilder hash = new StringBuilder();
+			for (byte b : chunk.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+			list.update(hash.toString().getBytes(StandardCharsets.US_ASCII));
+			list.update((byte) '\n');
+		}
+		byte[] listDigest = list.digest();
 		
-		// Disconnect from the server
-		if (serverSocket != null) {
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		// The first half is there, but the second chunk never made it to the disk
+		File output = File.createTempFile("client-check", ".out");
+		output.deleteOnExit();
+		File journalFile = new File(output.getPath() + ".journal");
+		journalFile.deleteOnExit();
+		RandomAccessFile out = new RandomAccessFile(output, "rw");
+		try {
+			out.setLength(content.length);
+			out.write(content, 0, CHUNK_SIZE);
+			out.seek(2 * CHUNK_SIZE);
+			out.write(content, 2 * CHUNK_SIZE, 2 * CHUNK_SIZE);
+		} finally {
+			out.close();
+		}
+		ChunkJournal journal = new ChunkJournal(journalFile, content.length, CHUNK_SIZE, chunks, listDigest);
+		for (int i = 0; i < chunks / 2; i++) {
+			journal.set(i);
+		}
+		journal.close();
+		
+		Client client = new Client("check", "localhost", port, output.getPath());
+		String log = ClientChecks.download(client);
+		// The journal has half the chunks, but the lost one is checked and fetched again
+		ClientChecks.check("resume: starts from the journal", log.contains("Resuming: " + (chunks / 2 - 1) + " of " + chunks));
+		ClientChecks.check("resume: the file is complete", client.isComplete()
+				&& Arrays.equals(content, java.nio.file.Files.readAllBytes(output.toPath())));
+		ClientChecks.check("resume: the journal is deleted", !journalFile.exists());
+		output.delete();
+	}
+	
+	/**
+	 * Downloads an empty file from both servers in every mode, over an old output file and a stale journal.
+	 * 
+	 * @throws IOException
+	 */
+	private static void checkEmptyFile() throws IOException {
+		File file = ClientChecks.createFile(".empty", new byte[0]);
+		int[] ports = {start(file, false), start(file, true)};
+		String[] servers = {"blocking", "nio"};
+		String[] modes = {"binary", "text", "pipeline=0", "deflate", "merkle"};
+		
+		File output = File.createTempFile("client-check", ".out");
+		output.deleteOnExit();
+		File journalFile = new File(output.getPath() + ".journal");
+		journalFile.deleteOnExit();
+		for (int i = 0; i < ports.length; i++) {
+			for (String mode : modes) {
+				java.nio.file.Files.write(output.toPath(), new byte[500]);
+				java.nio.file.Files.write(journalFile.toPath(), new byte[50]);
+				
+				Client client = new Client("check", "localhost", ports[i], output.getPath());
+				if (mode.equals("text")) {
+					client.setBinary(false);
+				} else if (mode.equals("pipeline=0")) {
+					client.setPipeline(0);
+				} else if (mode.equals("deflate")) {
+					client.setCompression(6);
+				} else if (mode.equals("merkle")) {
+					client.setMerkle(true);
+				}
+				ClientChecks.download(client);
+				ClientChecks.check("empty file, " + servers[i] + ", " + mode + ": downloads",
+						client.isComplete() && output.length() == 0 && !journalFile.exists());
 			}
 		}
+		output.delete();
+	}
+	
+	/**
+	 * @return A new MD5 digest.
+	 */
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
 	}
+}
 
+/**
+ * Checks the paged Merkle manifests against both servers: every page the server sends proves
+ * against its root with Merkle.verifyPage, a changed hash, a wrong page number or another page's
+ * proof doesn't, and a Merkle download is the server's file. This is where the client's Merkle
+ * and the server's MerkleTree have to agree.
+ * 
+ * Usage: MerkleCheck
+ */
+class MerkleCheck {
+	
+	/**
+	 * The chunk size the servers use.
+	 */
+	private static final int CHUNK_SIZE = 16 << 10;
+	
+	/**
+	 * Two full pages and a short one, so the last page has no sibling on the way up.
+	 */
+	private static final int CHUNKS = 2 * Merkle.PAGE + 5;
+	
 	/**
 	 * @param args
+	 * @throws Exception
 	 */
-	public static void main(String[] args) {
-		Client c = new Client(((args.length>0) ? args[0] : "default-client"), "localhost", 8888);
+	public static void main(String[] args) throws Exception {
+		byte[] content = new byte[CHUNKS * CHUNK_SIZE - 1000];
+		new Random(42).nextBytes(content);
+		File file = ClientChecks.createFile(".bin", content);
+		
+		String[] servers = {"blocking", "nio"};
+		for (int i = 0; i < servers.length; i++) {
+			Server server = new Server(0, file.getPath());
+			server.setChunkSize(CHUNK_SIZE);
+			int port = ClientChecks.serve(server, i == 1);
+			
+			Socket socket = new Socket("localhost", port);
+			try {
+				socket.setSoTimeout(ClientChecks.TIMEOUT);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				OutputStream out = socket.getOutputStream();
+				out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+				
+				ByteBuffer header = request(out, in, Frame.ROOT, 0);
+				byte[] payload = new byte[(int) Frame.length(header)];
+				in.readFully(payload);
+				ByteBuffer tree = ByteBuffer.wrap(payload);
+				boolean isTree = Frame.opcode(header) == Frame.TREE && payload.length == 4 + Merkle.HASH;
+				ClientChecks.check(servers[i] + ": the root tells the chunks and the length", isTree
+						&& Frame.chunk(header) == CHUNKS && Frame.offset(header) == content.length && tree.getInt() == CHUNK_SIZE);
+				if (!isTree) {
+					continue;
+				}
+				byte[] root = new byte[Merkle.HASH];
+				tree.get(root);
+				
+				int pages = (CHUNKS + Merkle.PAGE - 1) / Merkle.PAGE;
+				String[][] hashes = new String[pages][];
+				byte[][] proofs = new byte[pages][];
+				boolean verified = true;
+				boolean listed = true;
+				for (int page = 0; page < pages; page++) {
+					header = request(out, in, Frame.PAGE, page);
+					int first = page * Merkle.PAGE + 1;
+					hashes[page] = new String[Math.min(Merkle.PAGE, CHUNKS - first + 1)];
+					while (Frame.opcode(header) != Frame.END && Frame.opcode(header) != Frame.ERROR) {
+						payload = new byte[(int) Frame.length(header)];
+						in.readFully(payload);
+						if (Frame.opcode(header) == Frame.HASH) {
+							int chunk = Frame.chunk(header);
+							if (chunk < first || chunk - first >= hashes[page].length) {
+								listed = false;
+							} else {
+								hashes[page][chunk - first] = new String(payload, StandardCharsets.US_ASCII);
+								listed &= Frame.offset(header) == (long) (chunk - 1) * CHUNK_SIZE
+										&& hashes[page][chunk - first].equals(md5(content, chunk));
+							}
+						} else if (Frame.opcode(header) == Frame.PROOF) {
+							proofs[page] = payload;
+						}
+						in.readFully(header.array());
+					}
+					in.readFully(new byte[(int) Frame.length(header)]);
+					listed &= !Arrays.asList(hashes[page]).contains(null);
+					verified &= listed && proofs[page] != null && Merkle.verifyPage(root, page, pages, hashes[page], proofs[page]);
+				}
+				ClientChecks.check(servers[i] + ": the pages list every chunk's hash and offset", listed);
+				ClientChecks.check(servers[i] + ": every page proves against the root", verified);
+				
+				header = request(out, in, Frame.PAGE, pages);
+				in.readFully(new byte[(int) Frame.length(header)]);
+				ClientChecks.check(servers[i] + ": a page after the last is answered with ERROR", Frame.opcode(header) == Frame.ERROR);
+				
+				String[] changed = hashes[1].clone();
+				changed[7] = md5(content, 1);
+				ClientChecks.check(servers[i] + ": a changed hash doesn't prove",
+						!Merkle.verifyPage(root, 1, pages, changed, proofs[1]));
+				ClientChecks.check(servers[i] + ": a page under another number doesn't prove",
+						!Merkle.verifyPage(root, 1, pages, hashes[0], proofs[0]));
+				ClientChecks.check(servers[i] + ": another page's proof doesn't prove",
+						!Merkle.verifyPage(root, 0, pages, hashes[0], proofs[1]));
+				ClientChecks.check(servers[i] + ": a short proof doesn't prove",
+						!Merkle.verifyPage(root, 0, pages, hashes[0], Arrays.copyOf(proofs[0], Merkle.HASH)));
+			} finally {
+				socket.close();
+			}
+			
+			File output = ClientChecks.createFile(".out", new byte[0]);
+			Client client = new Client("check", "localhost", port, output.getPath());
+			client.setMerkle(true);
+			ClientChecks.download(client);
+			ClientChecks.check(servers[i] + ": a Merkle download is the server's file", client.isComplete()
+					&& Arrays.equals(content, java.nio.file.Files.readAllBytes(output.toPath())));
+			output.delete();
+		}
+		ClientChecks.exit();
+	}
+	
+	/**
+	 * Sends a request for the served file and reads the header of the first answer.
+	 * 
+	 * @param out
+	 * @param in
+	 * @param opcode
+	 * @param chunk
+	 * @return The header, its payload is still to be read.
+	 * @throws IOException
+	 */
+	private static ByteBuffer request(OutputStream out, DataInputStream in, byte opcode, int chunk) throws IOException {
+		ByteBuffer request = ByteBuffer.allocate(Frame.HEADER);
+		Frame.put(request, opcode, chunk, 0, 0);
+		out.write(request.array());
+		out.flush();
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+		in.readFully(header.array());
+		return header;
+	}
+	
+	/**
+	 * @param content
+	 * @param chunk The chunk, counted from 1.
+	 * @return The chunk's MD5 in hex, the way the server hashes it.
+	 */
+	private static String md5(byte[] content, int chunk) {
+		int offset = (chunk - 1) * CHUNK_SIZE;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			digest.update(content, offset, Math.min(CHUNK_SIZE, content.length - offset));
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
 	}
-
 }